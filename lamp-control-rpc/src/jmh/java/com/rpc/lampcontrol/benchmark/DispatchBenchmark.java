@@ -0,0 +1,73 @@
+package com.rpc.lampcontrol.benchmark;
+
+import com.rpc.lampcontrol.middleware.rpc.FunctionInvoker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares calling a registered function through core reflection, as {@code RpcServer}
+ * used to, with a {@link FunctionInvoker} and with a plain interface call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+    public interface Dimmer {
+        int dim(String lamp, int level);
+    }
+
+    public static class Lamp implements Dimmer {
+        private int level;
+
+        @Override
+        public int dim(String lamp, int level) {
+            this.level = level + lamp.length();
+            return this.level;
+        }
+    }
+
+    private final List<Object> arguments = List.of("living-room", 42);
+    private Dimmer direct;
+    private Lamp target;
+    private Method method;
+    private FunctionInvoker invoker;
+
+    @Setup
+    public void setUp() throws Exception {
+        target = new Lamp();
+        direct = target;
+        method = Lamp.class.getMethod("dim", String.class, int.class);
+        invoker = FunctionInvoker.create(target, method);
+    }
+
+    @Benchmark
+    public Object reflection() throws Exception {
+        return method.invoke(target, arguments.toArray());
+    }
+
+    @Benchmark
+    public Object invoker() throws Exception {
+        return invoker.invoke(arguments);
+    }
+
+    @Benchmark
+    public Object interfaceCall() {
+        return direct.dim((String) arguments.get(0), (Integer) arguments.get(1));
+    }
+}
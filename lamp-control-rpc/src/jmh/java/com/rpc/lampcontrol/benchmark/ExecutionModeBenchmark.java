@@ -0,0 +1,99 @@
+package com.rpc.lampcontrol.benchmark;
+
+import ch.qos.logback.classic.Level;
+import com.rpc.lampcontrol.middleware.registry.RegistryClient;
+import com.rpc.lampcontrol.middleware.registry.RegistryServer;
+import com.rpc.lampcontrol.middleware.rpc.RpcClient;
+import com.rpc.lampcontrol.middleware.rpc.RpcServer;
+import com.rpc.lampcontrol.middleware.transport.ClientTransport;
+import com.rpc.lampcontrol.middleware.transport.ExecutionMode;
+import com.rpc.lampcontrol.middleware.transport.MultiplexedConnectionPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends {@code calls} concurrent calls to a function that blocks for {@link #BLOCK_MS} ms,
+ * as one waiting on a device or a database would, and measures how long the server takes to
+ * answer all of them in each {@link ExecutionMode}. The fixed pool runs only as many calls at
+ * once as it has workers; a platform thread per call runs all of them but costs a thread each;
+ * virtual threads (Java 21 or later, e.g. with {@code JAVA_HOME} pointing at one) run all of
+ * them on a few carriers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ExecutionModeBenchmark {
+    static final long BLOCK_MS = 10;
+    private static final long CALL_TIMEOUT_MS = 120_000;
+
+    public static class Device {
+        public String read() throws InterruptedException {
+            Thread.sleep(BLOCK_MS);
+            return "ready";
+        }
+    }
+
+    @Param({"POOLED", "PLATFORM", "VIRTUAL"})
+    public ExecutionMode mode;
+
+    @Param({"10000"})
+    public int calls;
+
+    private RegistryServer registry;
+    private RpcServer server;
+    private RpcClient client;
+
+    @Setup
+    public void setUp() throws Exception {
+        // Logging every call would measure the appenders instead
+        ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger("com.rpc.lampcontrol")).setLevel(Level.WARN);
+        registry = new RegistryServer(0);
+        registry.start();
+        server = new RpcServer(0, "localhost", new RegistryClient("localhost", registry.getPort()), 0, mode);
+        // Measures what each mode can run, so nothing is shed or refused under the burst
+        server.setAdmissionControl(null);
+        server.setConcurrencyLimiter(null);
+        server.start();
+        server.registerFunction("read", new Device(), "read");
+        // Enough connections that the client does not queue calls the server could run
+        client = new RpcClient(new RegistryClient("localhost", registry.getPort()),
+                new MultiplexedConnectionPool(new ClientTransport(), 16, 1024, 60_000));
+        client.invoke("read");
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.close();
+        server.stop();
+        registry.stop();
+    }
+
+    @Benchmark
+    public int blockingCalls() {
+        @SuppressWarnings("unchecked")
+        CompletableFuture<Object>[] results = new CompletableFuture[calls];
+        for (int i = 0; i < calls; i++) {
+            results[i] = client.invokeAsync("read", List.of(), CALL_TIMEOUT_MS);
+        }
+        CompletableFuture.allOf(results).join();
+        return results.length;
+    }
+}
@@ -0,0 +1,81 @@
+package com.rpc.lampcontrol.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rpc.lampcontrol.middleware.common.JsonSerializer;
+import com.rpc.lampcontrol.middleware.protocol.LookupResponse;
+import com.rpc.lampcontrol.middleware.protocol.Message;
+import com.rpc.lampcontrol.middleware.protocol.MessageType;
+import com.rpc.lampcontrol.middleware.protocol.RegisterRequest;
+import com.rpc.lampcontrol.middleware.protocol.RpcRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares single-pass polymorphic decoding with the previous approach of parsing
+ * into a Map to find the type and then parsing again into the concrete class.
+ * Run with {@code -prof gc} to see the allocation per message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonSerializerBenchmark {
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Param({"register", "lookupResponse", "request"})
+    public String messageType;
+
+    private String json;
+    private byte[] bytes;
+
+    @Setup
+    public void setUp() throws Exception {
+        Message message;
+        switch (messageType) {
+            case "register":
+                message = new RegisterRequest("toggle", "localhost", 9000);
+                break;
+            case "lookupResponse":
+                message = LookupResponse.success("localhost", 9000);
+                break;
+            default:
+                message = new RpcRequest("setBrightness", List.of("living-room", 75));
+                break;
+        }
+        json = JsonSerializer.serialize(message);
+        bytes = json.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public Message twoPassString() throws Exception {
+        Map<?, ?> map = objectMapper.readValue(json, Map.class);
+        Class<? extends Message> messageClass = MessageType.fromName((String) map.get("type")).getMessageClass();
+        return objectMapper.readValue(json, messageClass);
+    }
+
+    @Benchmark
+    public Message singlePassString() throws Exception {
+        return JsonSerializer.deserialize(json);
+    }
+
+    @Benchmark
+    public Message singlePassBytes() throws Exception {
+        return JsonSerializer.deserialize(bytes, 0, bytes.length);
+    }
+}
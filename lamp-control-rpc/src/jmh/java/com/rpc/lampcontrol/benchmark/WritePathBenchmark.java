@@ -0,0 +1,64 @@
+package com.rpc.lampcontrol.benchmark;
+
+import com.rpc.lampcontrol.middleware.common.Codecs;
+import com.rpc.lampcontrol.middleware.common.JsonSerializer;
+import com.rpc.lampcontrol.middleware.common.OutputBuffer;
+import com.rpc.lampcontrol.middleware.protocol.Message;
+import com.rpc.lampcontrol.middleware.protocol.MessageType;
+import com.rpc.lampcontrol.middleware.protocol.RpcResponse;
+import com.rpc.lampcontrol.middleware.transport.FrameFormat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of turning a response into the bytes handed to the socket.
+ * {@code stringLine} is the original path (JSON string, then re-encoded to bytes);
+ * the frame benchmarks encode into a reused buffer the way the connection handlers do.
+ * Run with {@code -prof gc}: the binary frame should allocate close to nothing per call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WritePathBenchmark {
+    private final OutputBuffer buffer = new OutputBuffer();
+    private RpcResponse response;
+
+    @Setup
+    public void setUp() {
+        response = RpcResponse.success("Lamp 'living-room' is now ON");
+        response.setTraceId(Message.newTraceId());
+    }
+
+    @Benchmark
+    public byte[] stringLine() throws Exception {
+        return (JsonSerializer.serialize(response) + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public int jsonFrame() throws Exception {
+        buffer.reset();
+        FrameFormat.encodeFrame(response, MessageType.RESPONSE, Codecs.JSON, buffer);
+        return buffer.size();
+    }
+
+    @Benchmark
+    public int binaryFrame() throws Exception {
+        buffer.reset();
+        FrameFormat.encodeFrame(response, MessageType.RESPONSE, Codecs.BINARY, buffer);
+        return buffer.size();
+    }
+}
@@ -2,6 +2,7 @@ package com.rpc.lampcontrol.application.client;
 
 import com.rpc.lampcontrol.middleware.registry.RegistryClient;
 import com.rpc.lampcontrol.middleware.rpc.RpcClient;
+import com.rpc.lampcontrol.middleware.rpc.Subscription;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -37,7 +38,10 @@ public class ClientMain {
         
         try {
             // Create registry client with specified host and port
-            RegistryClient registryClient = new RegistryClient(registryHost, registryPort);
+            // A comma-separated list of host:port names the nodes of a registry cluster
+            RegistryClient registryClient = registryHost.contains(":")
+                    ? new RegistryClient(RegistryClient.parseAddresses(registryHost))
+                    : new RegistryClient(registryHost, registryPort);
             
             // Create RPC client using the registry client
             RpcClient rpcClient = new RpcClient(registryClient);
@@ -46,16 +50,18 @@ public class ClientMain {
             System.out.println("==================================");
             System.out.println("  Lamp Control RPC Client");
             System.out.println("==================================");
-            System.out.println("Registry: " + registryHost + ":" + registryPort);
+            System.out.println("Registry: " + registryClient.getRegistries());
             System.out.println("Commands:");
             System.out.println("  toggle - Toggle the lamp on/off");
             System.out.println("  status - Check lamp status");
+            System.out.println("  watch  - Start or stop printing lamp changes");
             System.out.println("  exit   - Exit the application");
             System.out.println("==================================");
             
             // Start interactive console
             Scanner scanner = new Scanner(System.in);
             boolean running = true;
+            Subscription watch = null;
             
             while (running) {
                 System.out.print("\nEnter command: ");
@@ -73,13 +79,25 @@ public class ClientMain {
                             System.out.println("Lamp is currently: " + (isOn ? "ON" : "OFF"));
                             break;
                             
+                        case "watch":
+                            if (watch != null && watch.isActive()) {
+                                watch.close();
+                                watch = null;
+                                System.out.println("Stopped watching the lamp");
+                            } else {
+                                watch = rpcClient.subscribe("lampState", (lamp, on) ->
+                                        System.out.println("\n" + lamp + " is now " + (Boolean.TRUE.equals(on) ? "ON" : "OFF")));
+                                System.out.println("Watching the lamp; enter 'watch' again to stop");
+                            }
+                            break;
+                            
                         case "exit":
                             System.out.println("Exiting...");
                             running = false;
                             break;
                             
                         default:
-                            System.out.println("Unknown command. Available commands: toggle, status, exit");
+                            System.out.println("Unknown command. Available commands: toggle, status, watch, exit");
                     }
                 } catch (RpcClient.RpcException e) {
                     System.out.println("Error: " + e.getMessage());
@@ -1,5 +1,7 @@
 package com.rpc.lampcontrol.application.server;
 
+import java.util.function.Consumer;
+
 /**
  * Interface for controllable lamp devices.
  * Any device implementing this interface can be toggled on and off remotely.
@@ -19,4 +21,18 @@ public interface Lamp {
      * @return true if the lamp is on, false if off
      */
     boolean isOn();
+    
+    /**
+     * Registers a listener that is called with the new state after every change.
+     * 
+     * @param listener Receives true when the lamp turns on, false when it turns off
+     */
+    void addStateListener(Consumer<Boolean> listener);
+    
+    /**
+     * Removes a listener registered with {@link #addStateListener}.
+     * 
+     * @param listener The listener to remove
+     */
+    void removeStateListener(Consumer<Boolean> listener);
 }
\ No newline at end of file
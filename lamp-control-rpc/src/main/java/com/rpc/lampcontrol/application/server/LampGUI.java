@@ -4,19 +4,18 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 /**
  * GUI representation of a lamp using a light bulb image.
- * This class provides a visual indication of the lamp's current state.
+ * This class provides a visual indication of the lamp's current state, updated by the
+ * lamp's state listener rather than by polling.
  */
 public class LampGUI extends JFrame {
     private final Lamp lamp;
     private final JPanel bulbPanel;
     private boolean isLampOn = false;
-    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final Consumer<Boolean> stateListener;
 
     /**
      * Creates a new lamp GUI for the given lamp.
@@ -36,7 +35,7 @@ public class LampGUI extends JFrame {
         addWindowListener(new WindowAdapter() {
             @Override
             public void windowClosing(WindowEvent e) {
-                scheduler.shutdown();
+                lamp.removeStateListener(stateListener);
                 dispose();
             }
         });
@@ -46,21 +45,18 @@ public class LampGUI extends JFrame {
         getContentPane().add(bulbPanel, BorderLayout.CENTER);
         
         // Create status label
-        JLabel statusLabel = new JLabel("Lamp is OFF", JLabel.CENTER);
+        isLampOn = lamp.isOn();
+        JLabel statusLabel = new JLabel("Lamp is " + (isLampOn ? "ON" : "OFF"), JLabel.CENTER);
         statusLabel.setFont(new Font("Arial", Font.BOLD, 16));
         getContentPane().add(statusLabel, BorderLayout.SOUTH);
         
-        // Schedule a task to check lamp status and update GUI
-        scheduler.scheduleAtFixedRate(() -> {
-            boolean currentState = lamp.isOn();
-            if (isLampOn != currentState) {
-                isLampOn = currentState;
-                SwingUtilities.invokeLater(() -> {
-                    bulbPanel.repaint();
-                    statusLabel.setText("Lamp is " + (isLampOn ? "ON" : "OFF"));
-                });
-            }
-        }, 0, 100, TimeUnit.MILLISECONDS);
+        // Repaint on the Event Dispatch Thread whenever the lamp changes
+        stateListener = on -> SwingUtilities.invokeLater(() -> {
+            isLampOn = on;
+            bulbPanel.repaint();
+            statusLabel.setText("Lamp is " + (on ? "ON" : "OFF"));
+        });
+        lamp.addStateListener(stateListener);
         
         // Center the frame on the screen
         setLocationRelativeTo(null);
@@ -3,6 +3,11 @@ package com.rpc.lampcontrol.application.server;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
 /**
  * Implementation of a controllable lamp.
  * This class simulates a physical lamp with toggle functionality.
@@ -12,6 +17,10 @@ public class LampImpl implements Lamp {
     
     private volatile boolean on = false;
     private final String lampName;
+    private final List<Consumer<Boolean>> stateListeners = new CopyOnWriteArrayList<>();
+    // Held while logging and notifying listeners, which may block; a monitor would pin a
+    // virtual thread calling toggle to its carrier for that long
+    private final ReentrantLock toggleLock = new ReentrantLock();
     private LampGUI gui;
     
     /**
@@ -39,15 +48,34 @@ public class LampImpl implements Lamp {
     }
     
     @Override
-    public synchronized String toggle() {
-        on = !on;
-        String state = on ? "ON" : "OFF";
-        logger.info("Lamp '{}' toggled to: {}", lampName, state);
-        return "Lamp '" + lampName + "' is now " + state;
+    public String toggle() {
+        toggleLock.lock();
+        try {
+            on = !on;
+            String state = on ? "ON" : "OFF";
+            logger.info("Lamp '{}' toggled to: {}", lampName, state);
+            // Notified under the lock so that listeners see the changes in order
+            for (Consumer<Boolean> listener : stateListeners) {
+                listener.accept(on);
+            }
+            return "Lamp '" + lampName + "' is now " + state;
+        } finally {
+            toggleLock.unlock();
+        }
     }
     
     @Override
     public boolean isOn() {
         return on;
     }
+    
+    @Override
+    public void addStateListener(Consumer<Boolean> listener) {
+        stateListeners.add(listener);
+    }
+    
+    @Override
+    public void removeStateListener(Consumer<Boolean> listener) {
+        stateListeners.remove(listener);
+    }
 }
\ No newline at end of file
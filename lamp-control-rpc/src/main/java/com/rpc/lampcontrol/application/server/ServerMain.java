@@ -2,6 +2,8 @@ package com.rpc.lampcontrol.application.server;
 
 import com.rpc.lampcontrol.middleware.registry.RegistryClient;
 import com.rpc.lampcontrol.middleware.rpc.RpcServer;
+import com.rpc.lampcontrol.middleware.rpc.Topic;
+import com.rpc.lampcontrol.middleware.transport.ExecutionMode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -21,6 +23,7 @@ public class ServerMain {
         int serverPort = DEFAULT_PORT;
         String registryHost = DEFAULT_REGISTRY_HOST;
         int registryPort = DEFAULT_REGISTRY_PORT;
+        ExecutionMode executionMode = ExecutionMode.POOLED;
         
         // Parse command-line arguments
         if (args.length > 0) {
@@ -46,12 +49,25 @@ public class ServerMain {
             }
         }
         
+        if (args.length > 3) {
+            try {
+                executionMode = ExecutionMode.valueOf(args[3].toUpperCase());
+                logger.info("Using execution mode: {}", executionMode);
+            } catch (IllegalArgumentException e) {
+                logger.warn("Invalid execution mode '{}', using default: {}", args[3], executionMode);
+            }
+        }
+        
         try {
             // Create registry client with specified host and port
-            RegistryClient registryClient = new RegistryClient(registryHost, registryPort);
+            // A comma-separated list of host:port names the nodes of a registry cluster
+            RegistryClient registryClient = registryHost.contains(":")
+                    ? new RegistryClient(RegistryClient.parseAddresses(registryHost))
+                    : new RegistryClient(registryHost, registryPort);
             
             // Create and start the RPC server with the custom registry client
-            RpcServer rpcServer = new RpcServer(serverPort, "localhost", registryClient);
+            RpcServer rpcServer = new RpcServer(serverPort, "localhost", registryClient,
+                    RpcServer.DEFAULT_LEASE_TTL_MS, executionMode);
             rpcServer.start();
             
             // Create the lamp service
@@ -60,9 +76,13 @@ public class ServerMain {
             // Initialize the lamp GUI
             lamp.initializeGUI();
             
-            // Register the lamp service with the RPC server
-            rpcServer.registerFunction("toggle", lamp, "toggle");
-            rpcServer.registerFunction("isOn", lamp, "isOn");
+            // Register the lamp service with the RPC server, in one registry request
+            rpcServer.registerFunctions(lamp, "toggle", "isOn");
+            
+            // Push lamp state changes to subscribed clients
+            Topic lampState = rpcServer.registerTopic("lampState");
+            lampState.publish("Main Lamp", lamp.isOn());
+            lamp.addStateListener(on -> lampState.publish("Main Lamp", on));
             
             logger.info("Lamp server started on port {}. Press Ctrl+C to exit.", rpcServer.getPort());
             
@@ -0,0 +1,907 @@
+package com.rpc.lampcontrol.middleware.common;
+
+import com.rpc.lampcontrol.middleware.protocol.ArgumentTypes;
+import com.rpc.lampcontrol.middleware.protocol.BatchRequest;
+import com.rpc.lampcontrol.middleware.protocol.BatchResponse;
+import com.rpc.lampcontrol.middleware.protocol.CancelRequest;
+import com.rpc.lampcontrol.middleware.protocol.Endpoint;
+import com.rpc.lampcontrol.middleware.protocol.HeartbeatRequest;
+import com.rpc.lampcontrol.middleware.protocol.HeartbeatResponse;
+import com.rpc.lampcontrol.middleware.protocol.ListRequest;
+import com.rpc.lampcontrol.middleware.protocol.ListResponse;
+import com.rpc.lampcontrol.middleware.protocol.LookupRequest;
+import com.rpc.lampcontrol.middleware.protocol.LookupResponse;
+import com.rpc.lampcontrol.middleware.protocol.Message;
+import com.rpc.lampcontrol.middleware.protocol.MessageType;
+import com.rpc.lampcontrol.middleware.protocol.PingRequest;
+import com.rpc.lampcontrol.middleware.protocol.PingResponse;
+import com.rpc.lampcontrol.middleware.protocol.RegisterRequest;
+import com.rpc.lampcontrol.middleware.protocol.RegisterResponse;
+import com.rpc.lampcontrol.middleware.protocol.RpcRequest;
+import com.rpc.lampcontrol.middleware.protocol.RpcResponse;
+import com.rpc.lampcontrol.middleware.protocol.ServiceChange;
+import com.rpc.lampcontrol.middleware.protocol.StreamEvent;
+import com.rpc.lampcontrol.middleware.protocol.SubscribeRequest;
+import com.rpc.lampcontrol.middleware.protocol.UnsubscribeRequest;
+import com.rpc.lampcontrol.middleware.protocol.WatchEvent;
+import com.rpc.lampcontrol.middleware.protocol.WatchRequest;
+
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Compact binary codec for the protocol messages.
+ * <p>
+ * Fields are written in a fixed order per message type, without names. The type is already
+ * in the frame header, {@code version} is implied by the codec and {@code success} is derived
+ * from {@code status}, so none of them are written. Integers are varints, strings are
+ * length-prefixed UTF-8, trace ids in UUID form take 16 bytes, and the common status values
+ * take one byte. RPC arguments and results are tagged values; anything that is not a plain
+ * scalar, list or string-keyed map is embedded as JSON, so they decode to the same values
+ * the JSON codec would produce.
+ */
+public class BinaryCodec implements Codec {
+    public static final int ID = 1;
+    public static final String PROTOCOL_VERSION = "2.0";
+
+    private static final int TRACE_NULL = 0;
+    private static final int TRACE_UUID = 1;
+    private static final int TRACE_STRING = 2;
+
+    private static final int STATUS_NULL = 0;
+    private static final int STATUS_SUCCESS = 1;
+    private static final int STATUS_ERROR = 2;
+    private static final int STATUS_OTHER = 3;
+
+    private static final int VALUE_NULL = 0;
+    private static final int VALUE_FALSE = 1;
+    private static final int VALUE_TRUE = 2;
+    private static final int VALUE_INT = 3;
+    private static final int VALUE_LONG = 4;
+    private static final int VALUE_DOUBLE = 5;
+    private static final int VALUE_STRING = 6;
+    private static final int VALUE_LIST = 7;
+    private static final int VALUE_MAP = 8;
+    private static final int VALUE_JSON = 9;
+
+    private static final int MAX_NESTING = 64;
+
+    @Override
+    public int getId() {
+        return ID;
+    }
+
+    @Override
+    public String getName() {
+        return "binary";
+    }
+
+    @Override
+    public String getProtocolVersion() {
+        return PROTOCOL_VERSION;
+    }
+
+    @Override
+    public void encode(Message message, OutputBuffer out) throws CodecException {
+        writeTraceId(out, message.getTraceId());
+        if (message instanceof RegisterRequest) {
+            RegisterRequest request = (RegisterRequest) message;
+            writeString(out, request.getFunctionName());
+            writeString(out, request.getHost());
+            writeVarInt(out, request.getPort());
+            writeVarLong(out, request.getLeaseId());
+            writeVarLong(out, request.getLeaseTtlMs());
+            writeStrings(out, request.getFunctionNames());
+        } else if (message instanceof RegisterResponse) {
+            RegisterResponse response = (RegisterResponse) message;
+            writeStatus(out, response.getStatus());
+            writeString(out, response.getMessage());
+            writeVarLong(out, response.getLeaseId());
+            writeVarLong(out, response.getLeaseTtlMs());
+            writeVarLong(out, response.getRevision());
+        } else if (message instanceof LookupRequest) {
+            LookupRequest request = (LookupRequest) message;
+            writeString(out, request.getFunctionName());
+            writeStrings(out, request.getFunctionNames());
+        } else if (message instanceof LookupResponse) {
+            LookupResponse response = (LookupResponse) message;
+            writeStatus(out, response.getStatus());
+            writeString(out, response.getErrorMessage());
+            // host and port repeat the first endpoint, so only the list is written
+            writeEndpoints(out, response.getEndpoints());
+            Map<String, List<Endpoint>> functions = response.getFunctions();
+            writeVarInt(out, functions == null ? 0 : functions.size());
+            if (functions != null) {
+                for (Map.Entry<String, List<Endpoint>> entry : functions.entrySet()) {
+                    writeString(out, entry.getKey());
+                    writeEndpoints(out, entry.getValue());
+                }
+            }
+        } else if (message instanceof RpcRequest) {
+            writeRequest(out, (RpcRequest) message);
+        } else if (message instanceof RpcResponse) {
+            writeResponse(out, (RpcResponse) message);
+        } else if (message instanceof BatchRequest) {
+            List<RpcRequest> requests = ((BatchRequest) message).getRequests();
+            writeVarInt(out, requests.size());
+            for (RpcRequest request : requests) {
+                writeTraceId(out, request.getTraceId());
+                writeRequest(out, request);
+            }
+            writeVarLong(out, ((BatchRequest) message).getTimeoutMs());
+        } else if (message instanceof BatchResponse) {
+            List<RpcResponse> responses = ((BatchResponse) message).getResponses();
+            writeVarInt(out, responses.size());
+            for (RpcResponse response : responses) {
+                writeTraceId(out, response.getTraceId());
+                writeResponse(out, response);
+            }
+        } else if (message instanceof SubscribeRequest) {
+            writeString(out, ((SubscribeRequest) message).getTopic());
+        } else if (message instanceof UnsubscribeRequest) {
+            writeTraceId(out, ((UnsubscribeRequest) message).getSubscriptionId());
+        } else if (message instanceof CancelRequest) {
+            writeTraceId(out, ((CancelRequest) message).getRequestId());
+        } else if (message instanceof StreamEvent) {
+            StreamEvent event = (StreamEvent) message;
+            writeString(out, event.getTopic());
+            writeString(out, event.getKey());
+            writeVarLong(out, event.getSequence());
+            writeValue(out, event.getValue(), 0);
+        } else if (message instanceof HeartbeatRequest) {
+            writeVarLong(out, ((HeartbeatRequest) message).getLeaseId());
+        } else if (message instanceof HeartbeatResponse) {
+            HeartbeatResponse response = (HeartbeatResponse) message;
+            writeStatus(out, response.getStatus());
+            writeString(out, response.getMessage());
+        } else if (message instanceof PingRequest) {
+            // Nothing but the trace id, written above
+        } else if (message instanceof PingResponse) {
+            PingResponse response = (PingResponse) message;
+            writeStatus(out, response.getStatus());
+            writeString(out, response.getMessage());
+        } else if (message instanceof WatchRequest) {
+            WatchRequest request = (WatchRequest) message;
+            writeString(out, request.getKey());
+            writeByte(out, request.isPrefix() ? 1 : 0);
+            writeVarLong(out, request.getFromRevision());
+        } else if (message instanceof WatchEvent) {
+            WatchEvent event = (WatchEvent) message;
+            writeVarLong(out, event.getSequence());
+            writeVarLong(out, event.getRevision());
+            writeByte(out, event.isReset() ? 1 : 0);
+            List<ServiceChange> changes = event.getChanges() == null ? List.of() : event.getChanges();
+            writeVarInt(out, changes.size());
+            for (ServiceChange change : changes) {
+                writeVarLong(out, change.getRevision());
+                writeString(out, change.getAction());
+                writeString(out, change.getFunctionName());
+                writeString(out, change.getHost());
+                writeVarInt(out, change.getPort());
+            }
+        } else if (message instanceof ListRequest) {
+            ListRequest request = (ListRequest) message;
+            writeString(out, request.getPrefix());
+            writeString(out, request.getStartAfter());
+            writeVarInt(out, request.getLimit());
+            writeVarLong(out, request.getRevision());
+        } else if (message instanceof ListResponse) {
+            ListResponse response = (ListResponse) message;
+            writeStatus(out, response.getStatus());
+            writeString(out, response.getErrorMessage());
+            writeVarLong(out, response.getRevision());
+            writeByte(out, response.isMore() ? 1 : 0);
+            Map<String, List<Endpoint>> functions = response.getFunctions() == null ? Map.of() : response.getFunctions();
+            writeVarInt(out, functions.size());
+            for (Map.Entry<String, List<Endpoint>> entry : functions.entrySet()) {
+                writeString(out, entry.getKey());
+                writeEndpoints(out, entry.getValue());
+            }
+        } else {
+            throw new CodecException("No binary layout for " + message.getClass().getSimpleName());
+        }
+    }
+
+    @Override
+    public Message decode(MessageType type, byte[] data, int offset, int length, ArgumentTypes argumentTypes)
+            throws CodecException {
+        Reader in = new Reader(data, offset, length);
+        String traceId = readTraceId(in);
+        Message message;
+        switch (type) {
+            case REGISTER: {
+                RegisterRequest request = new RegisterRequest();
+                request.setFunctionName(in.readString());
+                request.setHost(in.readString());
+                request.setPort(in.readVarInt());
+                request.setLeaseId(in.readVarLong());
+                request.setLeaseTtlMs(in.readVarLong());
+                request.setFunctionNames(readStrings(in));
+                message = request;
+                break;
+            }
+            case REGISTER_RESPONSE: {
+                RegisterResponse response = new RegisterResponse();
+                response.setStatus(readStatus(in));
+                response.setMessage(in.readString());
+                response.setLeaseId(in.readVarLong());
+                response.setLeaseTtlMs(in.readVarLong());
+                response.setRevision(in.readVarLong());
+                message = response;
+                break;
+            }
+            case LOOKUP: {
+                LookupRequest request = new LookupRequest(in.readString());
+                request.setFunctionNames(readStrings(in));
+                message = request;
+                break;
+            }
+            case LOOKUP_RESPONSE: {
+                LookupResponse response = new LookupResponse();
+                response.setStatus(readStatus(in));
+                response.setErrorMessage(in.readString());
+                List<Endpoint> endpoints = readEndpoints(in);
+                if (!endpoints.isEmpty()) {
+                    response.setEndpoints(endpoints);
+                    response.setHost(endpoints.get(0).getHost());
+                    response.setPort(endpoints.get(0).getPort());
+                }
+                int count = in.readLength();
+                if (count > 0) {
+                    Map<String, List<Endpoint>> functions = new LinkedHashMap<>(count * 2);
+                    for (int i = 0; i < count; i++) {
+                        functions.put(in.readString(), readEndpoints(in));
+                    }
+                    response.setFunctions(functions);
+                }
+                message = response;
+                break;
+            }
+            case REQUEST:
+                message = readRequest(in, argumentTypes);
+                break;
+            case RESPONSE:
+                message = readResponse(in);
+                break;
+            case BATCH_REQUEST: {
+                int size = in.readLength();
+                List<RpcRequest> requests = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    String entryTraceId = readTraceId(in);
+                    RpcRequest request = readRequest(in, argumentTypes);
+                    request.setTraceId(entryTraceId);
+                    request.setVersion(PROTOCOL_VERSION);
+                    requests.add(request);
+                }
+                BatchRequest batch = new BatchRequest(requests);
+                batch.setTimeoutMs(in.readVarLong());
+                message = batch;
+                break;
+            }
+            case BATCH_RESPONSE: {
+                int size = in.readLength();
+                List<RpcResponse> responses = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    String entryTraceId = readTraceId(in);
+                    RpcResponse response = readResponse(in);
+                    response.setTraceId(entryTraceId);
+                    response.setVersion(PROTOCOL_VERSION);
+                    responses.add(response);
+                }
+                message = new BatchResponse(responses);
+                break;
+            }
+            case SUBSCRIBE:
+                message = new SubscribeRequest(in.readString());
+                break;
+            case UNSUBSCRIBE:
+                message = new UnsubscribeRequest(readTraceId(in));
+                break;
+            case CANCEL:
+                message = new CancelRequest(readTraceId(in));
+                break;
+            case EVENT: {
+                StreamEvent event = new StreamEvent();
+                event.setTopic(in.readString());
+                event.setKey(in.readString());
+                event.setSequence(in.readVarLong());
+                event.setValue(readValue(in, 0));
+                message = event;
+                break;
+            }
+            case HEARTBEAT:
+                message = new HeartbeatRequest(in.readVarLong());
+                break;
+            case HEARTBEAT_RESPONSE: {
+                HeartbeatResponse response = new HeartbeatResponse();
+                response.setStatus(readStatus(in));
+                response.setMessage(in.readString());
+                message = response;
+                break;
+            }
+            case PING:
+                message = new PingRequest();
+                break;
+            case PING_RESPONSE: {
+                PingResponse response = new PingResponse();
+                response.setStatus(readStatus(in));
+                response.setMessage(in.readString());
+                message = response;
+                break;
+            }
+            case WATCH: {
+                WatchRequest request = new WatchRequest();
+                request.setKey(in.readString());
+                request.setPrefix(in.readByte() != 0);
+                request.setFromRevision(in.readVarLong());
+                message = request;
+                break;
+            }
+            case WATCH_EVENT: {
+                WatchEvent event = new WatchEvent();
+                event.setSequence(in.readVarLong());
+                event.setRevision(in.readVarLong());
+                event.setReset(in.readByte() != 0);
+                int size = in.readLength();
+                List<ServiceChange> changes = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    changes.add(new ServiceChange(in.readVarLong(), in.readString(), in.readString(),
+                            in.readString(), in.readVarInt()));
+                }
+                event.setChanges(changes);
+                message = event;
+                break;
+            }
+            case LIST: {
+                ListRequest request = new ListRequest();
+                request.setPrefix(in.readString());
+                request.setStartAfter(in.readString());
+                request.setLimit(in.readVarInt());
+                request.setRevision(in.readVarLong());
+                message = request;
+                break;
+            }
+            case LIST_RESPONSE: {
+                ListResponse response = new ListResponse();
+                response.setStatus(readStatus(in));
+                response.setErrorMessage(in.readString());
+                response.setRevision(in.readVarLong());
+                response.setMore(in.readByte() != 0);
+                int count = in.readLength();
+                for (int i = 0; i < count; i++) {
+                    response.getFunctions().put(in.readString(), readEndpoints(in));
+                }
+                message = response;
+                break;
+            }
+            default:
+                throw new CodecException("No binary layout for " + type.getTypeName());
+        }
+        if (in.remaining() != 0) {
+            throw new CodecException("Unexpected " + in.remaining() + " trailing bytes in " + type.getTypeName());
+        }
+        message.setTraceId(traceId);
+        message.setVersion(PROTOCOL_VERSION);
+        return message;
+    }
+
+    /**
+     * Writes an optional list of strings; null and empty lists both read back as null.
+     */
+    private static void writeStrings(OutputBuffer out, List<String> values) {
+        writeVarInt(out, values == null ? 0 : values.size());
+        if (values != null) {
+            for (String value : values) {
+                writeString(out, value);
+            }
+        }
+    }
+
+    private static List<String> readStrings(Reader in) throws CodecException {
+        int size = in.readLength();
+        if (size == 0) {
+            return null;
+        }
+        List<String> values = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            values.add(in.readString());
+        }
+        return values;
+    }
+
+    private static void writeEndpoints(OutputBuffer out, List<Endpoint> endpoints) {
+        writeVarInt(out, endpoints.size());
+        for (Endpoint endpoint : endpoints) {
+            writeString(out, endpoint.getHost());
+            writeVarInt(out, endpoint.getPort());
+        }
+    }
+
+    private static List<Endpoint> readEndpoints(Reader in) throws CodecException {
+        int size = in.readLength();
+        List<Endpoint> endpoints = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            endpoints.add(new Endpoint(in.readString(), in.readVarInt()));
+        }
+        return endpoints;
+    }
+
+    private static void writeRequest(OutputBuffer out, RpcRequest request) throws CodecException {
+        writeString(out, request.getFunctionName());
+        writeValue(out, request.getArguments(), 0);
+        writeVarLong(out, request.getTimeoutMs());
+    }
+
+    private static RpcRequest readRequest(Reader in, ArgumentTypes argumentTypes) throws CodecException {
+        RpcRequest request = new RpcRequest(in.readString());
+        request.setArguments(readArguments(in, request, argumentTypes));
+        request.setTimeoutMs(in.readVarLong());
+        return request;
+    }
+
+    private static void writeResponse(OutputBuffer out, RpcResponse response) throws CodecException {
+        writeStatus(out, response.getStatus());
+        writeValue(out, response.getResult(), 0);
+        writeString(out, response.getErrorMessage());
+    }
+
+    private static RpcResponse readResponse(Reader in) throws CodecException {
+        RpcResponse response = new RpcResponse();
+        response.setStatus(readStatus(in));
+        response.setResult(readValue(in, 0));
+        response.setErrorMessage(in.readString());
+        return response;
+    }
+
+    private static void writeTraceId(OutputBuffer out, String traceId) {
+        if (traceId == null) {
+            writeByte(out, TRACE_NULL);
+        } else if (isCanonicalUuid(traceId)) {
+            writeByte(out, TRACE_UUID);
+            writeLong(out, parseHex(traceId, 0, 8) << 32 | parseHex(traceId, 9, 13) << 16 | parseHex(traceId, 14, 18));
+            writeLong(out, parseHex(traceId, 19, 23) << 48 | parseHex(traceId, 24, 36));
+        } else {
+            writeByte(out, TRACE_STRING);
+            writeString(out, traceId);
+        }
+    }
+
+    private static String readTraceId(Reader in) throws CodecException {
+        int kind = in.readByte();
+        switch (kind) {
+            case TRACE_NULL:
+                return null;
+            case TRACE_UUID:
+                return new UUID(in.readLong(), in.readLong()).toString();
+            case TRACE_STRING:
+                return in.readString();
+            default:
+                throw new CodecException("Unknown trace id encoding: " + kind);
+        }
+    }
+
+    /**
+     * Checks for the lowercase form produced by {@link UUID#toString()}, which is the only
+     * form that survives the round trip through 16 bytes unchanged.
+     */
+    private static boolean isCanonicalUuid(String value) {
+        if (value.length() != 36) {
+            return false;
+        }
+        for (int i = 0; i < 36; i++) {
+            char c = value.charAt(i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') {
+                    return false;
+                }
+            } else if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long parseHex(String value, int start, int end) {
+        long result = 0;
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
+            result = (result << 4) | (c <= '9' ? c - '0' : c - 'a' + 10);
+        }
+        return result;
+    }
+
+    private static void writeStatus(OutputBuffer out, String status) {
+        if (status == null) {
+            writeByte(out, STATUS_NULL);
+        } else if ("success".equals(status)) {
+            writeByte(out, STATUS_SUCCESS);
+        } else if ("error".equals(status)) {
+            writeByte(out, STATUS_ERROR);
+        } else {
+            writeByte(out, STATUS_OTHER);
+            writeString(out, status);
+        }
+    }
+
+    private static String readStatus(Reader in) throws CodecException {
+        int kind = in.readByte();
+        switch (kind) {
+            case STATUS_NULL:
+                return null;
+            case STATUS_SUCCESS:
+                return "success";
+            case STATUS_ERROR:
+                return "error";
+            case STATUS_OTHER:
+                return in.readString();
+            default:
+                throw new CodecException("Unknown status encoding: " + kind);
+        }
+    }
+
+    private static void writeValue(OutputBuffer out, Object value, int depth) throws CodecException {
+        if (depth > MAX_NESTING) {
+            throw new CodecException("Value nested deeper than " + MAX_NESTING + " levels");
+        }
+        if (value == null) {
+            writeByte(out, VALUE_NULL);
+        } else if (value instanceof Boolean) {
+            writeByte(out, (Boolean) value ? VALUE_TRUE : VALUE_FALSE);
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            writeByte(out, VALUE_INT);
+            writeVarLong(out, zigZag(((Number) value).intValue()));
+        } else if (value instanceof Long) {
+            writeByte(out, VALUE_LONG);
+            writeVarLong(out, zigZag((Long) value));
+        } else if (value instanceof Double || value instanceof Float) {
+            writeByte(out, VALUE_DOUBLE);
+            writeLong(out, Double.doubleToRawLongBits(((Number) value).doubleValue()));
+        } else if (value instanceof String || value instanceof Character) {
+            writeByte(out, VALUE_STRING);
+            writeString(out, value.toString());
+        } else if (value instanceof Enum) {
+            writeByte(out, VALUE_STRING);
+            writeString(out, ((Enum<?>) value).name());
+        } else if (value instanceof Collection) {
+            Collection<?> collection = (Collection<?>) value;
+            writeByte(out, VALUE_LIST);
+            writeVarInt(out, collection.size());
+            for (Object element : collection) {
+                writeValue(out, element, depth + 1);
+            }
+        } else if (value instanceof Map && hasStringKeys((Map<?, ?>) value)) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            writeByte(out, VALUE_MAP);
+            writeVarInt(out, map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                writeString(out, (String) entry.getKey());
+                writeValue(out, entry.getValue(), depth + 1);
+            }
+        } else {
+            try {
+                byte[] json = JsonSerializer.serializeValue(value);
+                writeByte(out, VALUE_JSON);
+                writeVarInt(out, json.length);
+                writeBytes(out, json);
+            } catch (JsonSerializer.SerializationException e) {
+                throw new CodecException("Failed to encode value of type " + value.getClass().getName(), e);
+            }
+        }
+    }
+
+    private static Object readValue(Reader in, int depth) throws CodecException {
+        if (depth > MAX_NESTING) {
+            throw new CodecException("Value nested deeper than " + MAX_NESTING + " levels");
+        }
+        int tag = in.readByte();
+        switch (tag) {
+            case VALUE_NULL:
+                return null;
+            case VALUE_FALSE:
+                return Boolean.FALSE;
+            case VALUE_TRUE:
+                return Boolean.TRUE;
+            case VALUE_INT:
+                return (int) unZigZag(in.readVarLong());
+            case VALUE_LONG: {
+                // Same narrowing as untyped JSON decoding, so both codecs yield equal values
+                long value = unZigZag(in.readVarLong());
+                return value == (int) value ? (Object) (int) value : (Object) value;
+            }
+            case VALUE_DOUBLE:
+                return Double.longBitsToDouble(in.readLong());
+            case VALUE_STRING:
+                return in.readString();
+            case VALUE_LIST: {
+                int size = in.readLength();
+                List<Object> list = new ArrayList<>(Math.min(size, in.remaining()));
+                for (int i = 0; i < size; i++) {
+                    list.add(readValue(in, depth + 1));
+                }
+                return list;
+            }
+            case VALUE_MAP: {
+                int size = in.readLength();
+                Map<String, Object> map = new LinkedHashMap<>();
+                for (int i = 0; i < size; i++) {
+                    map.put(in.readString(), readValue(in, depth + 1));
+                }
+                return map;
+            }
+            case VALUE_JSON: {
+                int length = in.readLength();
+                int offset = in.skip(length);
+                try {
+                    return JsonSerializer.deserializeValue(in.data, offset, length);
+                } catch (JsonSerializer.SerializationException e) {
+                    throw new CodecException("Failed to decode embedded JSON value", e);
+                }
+            }
+            default:
+                throw new CodecException("Unknown value tag: " + tag);
+        }
+    }
+
+    /**
+     * Reads request arguments. The count precedes the values, so the exact overload's
+     * parameter types are known before the first argument is read.
+     */
+    @SuppressWarnings("unchecked")
+    private static List<Object> readArguments(Reader in, RpcRequest request, ArgumentTypes argumentTypes)
+            throws CodecException {
+        if (argumentTypes == null || in.peekByte() != VALUE_LIST) {
+            Object arguments = readValue(in, 0);
+            if (arguments != null && !(arguments instanceof List)) {
+                throw new CodecException("Request arguments are not a list");
+            }
+            return (List<Object>) arguments;
+        }
+        in.readByte();
+        int size = in.readLength();
+        Type[] types = argumentTypes.getArgumentTypes(request.getFunctionName(), size);
+        List<Object> arguments = new ArrayList<>(Math.min(size, in.remaining()));
+        for (int i = 0; i < size; i++) {
+            Type type = types != null && i < types.length ? types[i] : null;
+            arguments.add(type == null ? readValue(in, 1) : readTypedValue(in, type, request, i));
+        }
+        return arguments;
+    }
+
+    /**
+     * Reads an argument bound to a declared parameter type. Objects embedded as JSON are
+     * bound directly from their bytes; other values are read plainly and then converted.
+     * A value that does not fit is recorded on the request rather than failing the frame.
+     */
+    private static Object readTypedValue(Reader in, Type type, RpcRequest request, int index) throws CodecException {
+        try {
+            if (in.peekByte() == VALUE_JSON) {
+                in.readByte();
+                int length = in.readLength();
+                int offset = in.skip(length);
+                return JsonSerializer.deserializeValue(in.data, offset, length, type);
+            }
+            Object value = readValue(in, 1);
+            return value == null ? null : JsonSerializer.convertValue(value, type);
+        } catch (JsonSerializer.SerializationException e) {
+            if (request.getArgumentError() == null) {
+                request.setArgumentError("Argument " + index + " is not a valid " + type.getTypeName()
+                        + ": " + e.getMessage());
+            }
+            return null;
+        }
+    }
+
+    private static boolean hasStringKeys(Map<?, ?> map) {
+        for (Object key : map.keySet()) {
+            if (!(key instanceof String)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeByte(OutputBuffer buffer, int value) {
+        buffer.write(value);
+    }
+
+    private static void writeBytes(OutputBuffer buffer, byte[] bytes) {
+        buffer.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeLong(OutputBuffer buffer, long value) {
+        buffer.ensureCapacity(8);
+        byte[] array = buffer.array();
+        int position = buffer.size();
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            array[position++] = (byte) (value >>> shift);
+        }
+        buffer.setSize(position);
+    }
+
+    private static void writeVarInt(OutputBuffer buffer, int value) {
+        writeVarLong(buffer, value & 0xFFFFFFFFL);
+    }
+
+    private static void writeVarLong(OutputBuffer buffer, long value) {
+        buffer.ensureCapacity(10);
+        byte[] array = buffer.array();
+        int position = buffer.size();
+        while ((value & ~0x7FL) != 0) {
+            array[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        array[position++] = (byte) value;
+        buffer.setSize(position);
+    }
+
+    /**
+     * Writes a string as its UTF-8 length plus one, followed by the bytes; 0 stands for null.
+     * The UTF-8 bytes are produced in place rather than through {@link String#getBytes}, so
+     * encoding does not allocate. Unpaired surrogates become '?', as with {@link String#getBytes}.
+     */
+    private static void writeString(OutputBuffer buffer, String value) {
+        if (value == null) {
+            writeVarInt(buffer, 0);
+            return;
+        }
+        int length = utf8Length(value);
+        writeVarInt(buffer, length + 1);
+        buffer.ensureCapacity(length);
+        byte[] array = buffer.array();
+        int position = buffer.size();
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                array[position++] = (byte) c;
+            } else if (c < 0x800) {
+                array[position++] = (byte) (0xC0 | (c >> 6));
+                array[position++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                        && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    array[position++] = (byte) (0xF0 | (codePoint >> 18));
+                    array[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    array[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    array[position++] = (byte) (0x80 | (codePoint & 0x3F));
+                } else {
+                    array[position++] = (byte) '?';
+                }
+            } else {
+                array[position++] = (byte) (0xE0 | (c >> 12));
+                array[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                array[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        buffer.setSize(position);
+    }
+
+    private static int utf8Length(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                        && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    length += 4;
+                    i++;
+                } else {
+                    length++;
+                }
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Bounds-checked reader over a payload.
+     */
+    private static class Reader {
+        private final byte[] data;
+        private final int limit;
+        private int position;
+
+        Reader(byte[] data, int offset, int length) {
+            this.data = data;
+            this.position = offset;
+            this.limit = offset + length;
+        }
+
+        int remaining() {
+            return limit - position;
+        }
+
+        int readByte() throws CodecException {
+            require(1);
+            return data[position++] & 0xFF;
+        }
+
+        int peekByte() throws CodecException {
+            require(1);
+            return data[position] & 0xFF;
+        }
+
+        long readLong() throws CodecException {
+            require(8);
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (data[position++] & 0xFF);
+            }
+            return value;
+        }
+
+        int readVarInt() throws CodecException {
+            long value = readVarLong();
+            if (value > 0xFFFFFFFFL) {
+                throw new CodecException("Varint out of range");
+            }
+            return (int) value;
+        }
+
+        long readVarLong() throws CodecException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new CodecException("Malformed varint");
+        }
+
+        /**
+         * Reads a non-negative count that cannot exceed the remaining bytes.
+         */
+        int readLength() throws CodecException {
+            int length = readVarInt();
+            if (length < 0 || length > remaining()) {
+                throw new CodecException("Invalid length: " + length);
+            }
+            return length;
+        }
+
+        String readString() throws CodecException {
+            int encoded = readVarInt();
+            if (encoded == 0) {
+                return null;
+            }
+            int length = encoded - 1;
+            int offset = skip(length);
+            return new String(data, offset, length, StandardCharsets.UTF_8);
+        }
+
+        int skip(int length) throws CodecException {
+            require(length);
+            int offset = position;
+            position += length;
+            return offset;
+        }
+
+        private void require(int length) throws CodecException {
+            if (length < 0 || length > limit - position) {
+                throw new CodecException("Truncated payload");
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.rpc.lampcontrol.middleware.common;
+
+import com.rpc.lampcontrol.middleware.protocol.ArgumentTypes;
+import com.rpc.lampcontrol.middleware.protocol.Message;
+import com.rpc.lampcontrol.middleware.protocol.MessageType;
+
+/**
+ * Turns messages into payload bytes and back.
+ * The message type is carried outside the payload (in the frame header), and the codec
+ * used for a frame is identified by {@link #getId()} in the frame flags, so a connection
+ * can switch codecs between frames.
+ */
+public interface Codec {
+
+    /**
+     * Gets the identifier written to the frame flags.
+     *
+     * @return the codec id, 0-15
+     */
+    int getId();
+
+    /**
+     * Gets a short human-readable name, used in logs.
+     *
+     * @return the codec name
+     */
+    String getName();
+
+    /**
+     * Gets the lowest protocol version (see {@link Message#getVersion()}) whose peers can
+     * decode this codec. A connection switches to this codec once the peer advertises it.
+     *
+     * @return the protocol version
+     */
+    String getProtocolVersion();
+
+    /**
+     * Encodes a message, appending the payload bytes to the buffer.
+     *
+     * @param message The message to encode
+     * @param out The buffer to append to
+     * @throws CodecException if the message cannot be encoded
+     */
+    void encode(Message message, OutputBuffer out) throws CodecException;
+
+    /**
+     * Encodes a message into a new array. Convenient outside the write path, which
+     * reuses an {@link OutputBuffer} instead.
+     *
+     * @param message The message to encode
+     * @return the encoded payload
+     * @throws CodecException if the message cannot be encoded
+     */
+    default byte[] encode(Message message) throws CodecException {
+        OutputBuffer out = new OutputBuffer();
+        encode(message, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes a payload into a message of the given type.
+     *
+     * @param type The message type from the frame header
+     * @param data The array holding the payload
+     * @param offset The offset of the first payload byte
+     * @param length The number of payload bytes
+     * @return the decoded message
+     * @throws CodecException if the payload is malformed
+     */
+    default Message decode(MessageType type, byte[] data, int offset, int length) throws CodecException {
+        return decode(type, data, offset, length, null);
+    }
+
+    /**
+     * Decodes a payload into a message of the given type, binding the arguments of an
+     * {@link com.rpc.lampcontrol.middleware.protocol.RpcRequest} to the types the receiving
+     * function declares.
+     *
+     * @param type The message type from the frame header
+     * @param data The array holding the payload
+     * @param offset The offset of the first payload byte
+     * @param length The number of payload bytes
+     * @param argumentTypes The argument types of the functions served, or null to decode
+     *                      arguments as plain values
+     * @return the decoded message
+     * @throws CodecException if the payload is malformed
+     */
+    Message decode(MessageType type, byte[] data, int offset, int length, ArgumentTypes argumentTypes)
+            throws CodecException;
+
+    /**
+     * Exception thrown when a message cannot be encoded or decoded.
+     */
+    class CodecException extends Exception {
+        public CodecException(String message) {
+            super(message);
+        }
+
+        public CodecException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.rpc.lampcontrol.middleware.common;
+
+/**
+ * The available codecs and the rules for choosing one per connection.
+ * <p>
+ * Negotiation piggybacks on {@code Message.version}: every message advertises the protocol
+ * version of the sender's preferred codec. Connections start with {@link #JSON}; once a
+ * message from the peer advertises a version that supports the preferred codec, later
+ * frames are sent with it. Frames carry their codec id, so the switch needs no extra
+ * round trip and peers that never advertise a newer version keep receiving JSON.
+ */
+public final class Codecs {
+    public static final Codec JSON = new JsonCodec();
+    public static final Codec BINARY = new BinaryCodec();
+
+    private static final Codec[] BY_ID = {JSON, BINARY};
+
+    private Codecs() {
+    }
+
+    /**
+     * Looks up a codec by the id carried in a frame.
+     *
+     * @param id The codec id
+     * @return the codec, or null if the id is unknown
+     */
+    public static Codec forId(int id) {
+        return id >= 0 && id < BY_ID.length ? BY_ID[id] : null;
+    }
+
+    /**
+     * Chooses the codec for messages sent to a peer.
+     *
+     * @param peerVersion The protocol version advertised by the peer
+     * @param preferred The codec this side would like to use
+     * @return the preferred codec if the peer supports it, JSON otherwise
+     */
+    public static Codec negotiate(String peerVersion, Codec preferred) {
+        if (majorVersion(peerVersion) >= majorVersion(preferred.getProtocolVersion())) {
+            return preferred;
+        }
+        return JSON;
+    }
+
+    private static int majorVersion(String version) {
+        if (version == null) {
+            return 1;
+        }
+        int end = version.indexOf('.');
+        try {
+            return Integer.parseInt(end < 0 ? version : version.substring(0, end));
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.rpc.lampcontrol.middleware.common;
+
+import com.rpc.lampcontrol.middleware.protocol.ArgumentTypes;
+import com.rpc.lampcontrol.middleware.protocol.Message;
+import com.rpc.lampcontrol.middleware.protocol.MessageType;
+
+/**
+ * Codec that encodes messages as JSON through {@link JsonSerializer}.
+ * Understood by every peer, so it is used until a connection has negotiated something
+ * better, and remains available as a readable format for debugging.
+ */
+public class JsonCodec implements Codec {
+    public static final int ID = 0;
+    public static final String PROTOCOL_VERSION = "1.0";
+
+    @Override
+    public int getId() {
+        return ID;
+    }
+
+    @Override
+    public String getName() {
+        return "json";
+    }
+
+    @Override
+    public String getProtocolVersion() {
+        return PROTOCOL_VERSION;
+    }
+
+    @Override
+    public void encode(Message message, OutputBuffer out) throws CodecException {
+        try {
+            JsonSerializer.serialize(message, out);
+        } catch (JsonSerializer.SerializationException e) {
+            throw new CodecException("Failed to encode " + message.getType() + " as JSON", e);
+        }
+    }
+
+    @Override
+    public Message decode(MessageType type, byte[] data, int offset, int length, ArgumentTypes argumentTypes)
+            throws CodecException {
+        try {
+            return JsonSerializer.deserialize(data, offset, length, type.getMessageClass(), argumentTypes);
+        } catch (JsonSerializer.SerializationException e) {
+            throw new CodecException("Failed to decode " + type.getTypeName() + " from JSON", e);
+        }
+    }
+}
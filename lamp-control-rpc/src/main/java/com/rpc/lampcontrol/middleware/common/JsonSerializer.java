@@ -1,43 +1,45 @@
 package com.rpc.lampcontrol.middleware.common;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonStreamContext;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.util.JsonParserSequence;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.jsontype.BasicPolymorphicTypeValidator;
-import com.fasterxml.jackson.databind.jsontype.PolymorphicTypeValidator;
-import com.rpc.lampcontrol.middleware.protocol.*;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import com.rpc.lampcontrol.middleware.protocol.ArgumentTypes;
+import com.rpc.lampcontrol.middleware.protocol.Message;
+import com.rpc.lampcontrol.middleware.protocol.MessageType;
+import com.rpc.lampcontrol.middleware.protocol.RpcRequest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.io.OutputStream;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Handles serialization and deserialization of messages to/from JSON format.
  */
 public class JsonSerializer {
     private static final Logger logger = LoggerFactory.getLogger(JsonSerializer.class);
-    private static final ObjectMapper objectMapper = createObjectMapper();
-    private static final Map<String, Class<? extends Message>> MESSAGE_TYPES = createMessageTypes();
-
-    private static ObjectMapper createObjectMapper() {
-        PolymorphicTypeValidator ptv = BasicPolymorphicTypeValidator.builder()
-                .allowIfBaseType(Message.class)
-                .build();
-        
-        return new ObjectMapper();
-    }
-
-    private static Map<String, Class<? extends Message>> createMessageTypes() {
-        Map<String, Class<? extends Message>> types = new HashMap<>();
-        types.put("register", RegisterRequest.class);
-        types.put("registerResponse", RegisterResponse.class);
-        types.put("lookup", LookupRequest.class);
-        types.put("lookupResponse", LookupResponse.class);
-        types.put("request", RpcRequest.class);
-        types.put("response", RpcResponse.class);
-        return types;
-    }
+    private static final String TYPE_FIELD = "type";
+    private static final ObjectMapper objectMapper = new ObjectMapper()
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+            .addMixIn(RpcRequest.class, RpcRequestMixin.class);
+    private static final Map<Type, JavaType> JAVA_TYPES = new ConcurrentHashMap<>();
+    // Set while a message is being read, for ArgumentsDeserializer; Jackson calls it on the same thread
+    private static final ThreadLocal<ArgumentTypes> ARGUMENT_TYPES = new ThreadLocal<>();
 
     /**
      * Serializes a Message object to JSON string.
@@ -55,6 +57,38 @@ public class JsonSerializer {
         }
     }
 
+    /**
+     * Serializes a Message object to UTF-8 encoded JSON bytes, without an intermediate string.
+     *
+     * @param message The message to serialize
+     * @return JSON bytes
+     * @throws SerializationException if serialization fails
+     */
+    public static byte[] serializeToBytes(Message message) throws SerializationException {
+        try {
+            return objectMapper.writeValueAsBytes(message);
+        } catch (JsonProcessingException e) {
+            logger.error("Failed to serialize message: {}", e.getMessage());
+            throw new SerializationException("Failed to serialize message", e);
+        }
+    }
+
+    /**
+     * Serializes a Message object as UTF-8 encoded JSON straight into a stream.
+     *
+     * @param message The message to serialize
+     * @param out The stream to write to; it is not closed
+     * @throws SerializationException if serialization fails
+     */
+    public static void serialize(Message message, OutputStream out) throws SerializationException {
+        try {
+            objectMapper.writeValue(out, message);
+        } catch (IOException e) {
+            logger.error("Failed to serialize message: {}", e.getMessage());
+            throw new SerializationException("Failed to serialize message", e);
+        }
+    }
+
     /**
      * Deserializes a JSON string to a Message object.
      * 
@@ -63,21 +97,8 @@ public class JsonSerializer {
      * @throws SerializationException if deserialization fails
      */
     public static Message deserialize(String json) throws SerializationException {
-        try {
-            // First, parse to get type
-            Map<String, Object> map = objectMapper.readValue(json, Map.class);
-            String type = (String) map.get("type");
-            
-            if (type == null) {
-                throw new SerializationException("Message missing 'type' field", null);
-            }
-            
-            Class<? extends Message> messageClass = MESSAGE_TYPES.get(type);
-            if (messageClass == null) {
-                throw new SerializationException("Unknown message type: " + type, null);
-            }
-            
-            return objectMapper.readValue(json, messageClass);
+        try (JsonParser parser = objectMapper.createParser(json)) {
+            return readMessage(parser);
         } catch (IOException e) {
             logger.error("Failed to deserialize message: {}", e.getMessage());
             throw new SerializationException("Failed to deserialize message", e);
@@ -102,6 +123,287 @@ public class JsonSerializer {
         }
     }
 
+    /**
+     * Deserializes UTF-8 encoded JSON bytes to a Message object of the specified type.
+     *
+     * @param data The array holding the JSON bytes
+     * @param offset The offset of the first JSON byte
+     * @param length The number of JSON bytes
+     * @param messageClass The target Message class
+     * @param <T> Type parameter for the Message class
+     * @return Deserialized Message object
+     * @throws SerializationException if deserialization fails
+     */
+    public static <T extends Message> T deserialize(byte[] data, int offset, int length, Class<T> messageClass)
+            throws SerializationException {
+        return deserialize(data, offset, length, messageClass, null);
+    }
+
+    /**
+     * Deserializes UTF-8 encoded JSON bytes to a Message object of the specified type, binding
+     * request arguments to the types of the called function as they are read.
+     *
+     * @param data The array holding the JSON bytes
+     * @param offset The offset of the first JSON byte
+     * @param length The number of JSON bytes
+     * @param messageClass The target Message class
+     * @param argumentTypes The argument types of the functions served, or null to decode
+     *                      arguments as plain values
+     * @param <T> Type parameter for the Message class
+     * @return Deserialized Message object
+     * @throws SerializationException if deserialization fails
+     */
+    public static <T extends Message> T deserialize(byte[] data, int offset, int length, Class<T> messageClass,
+                                                    ArgumentTypes argumentTypes) throws SerializationException {
+        ARGUMENT_TYPES.set(argumentTypes);
+        try {
+            return objectMapper.readValue(data, offset, length, messageClass);
+        } catch (IOException e) {
+            logger.error("Failed to deserialize message: {}", e.getMessage());
+            throw new SerializationException("Failed to deserialize message", e);
+        } finally {
+            ARGUMENT_TYPES.set(null);
+        }
+    }
+
+    /**
+     * Deserializes UTF-8 encoded JSON bytes to a Message object, using its {@code type} field.
+     *
+     * @param data The array holding the JSON bytes
+     * @param offset The offset of the first JSON byte
+     * @param length The number of JSON bytes
+     * @return Deserialized Message object
+     * @throws SerializationException if deserialization fails
+     */
+    public static Message deserialize(byte[] data, int offset, int length) throws SerializationException {
+        return deserialize(data, offset, length, (ArgumentTypes) null);
+    }
+
+    /**
+     * Deserializes UTF-8 encoded JSON bytes to a Message object, using its {@code type} field,
+     * and binds request arguments to the types of the called function as they are read.
+     *
+     * @param data The array holding the JSON bytes
+     * @param offset The offset of the first JSON byte
+     * @param length The number of JSON bytes
+     * @param argumentTypes The argument types of the functions served, or null to decode
+     *                      arguments as plain values
+     * @return Deserialized Message object
+     * @throws SerializationException if deserialization fails
+     */
+    public static Message deserialize(byte[] data, int offset, int length, ArgumentTypes argumentTypes)
+            throws SerializationException {
+        ARGUMENT_TYPES.set(argumentTypes);
+        try (JsonParser parser = objectMapper.createParser(data, offset, length)) {
+            return readMessage(parser);
+        } catch (IOException e) {
+            logger.error("Failed to deserialize message: {}", e.getMessage());
+            throw new SerializationException("Failed to deserialize message", e);
+        } finally {
+            ARGUMENT_TYPES.set(null);
+        }
+    }
+
+    /**
+     * Serializes an arbitrary value, such as an RPC argument or result, to UTF-8 encoded JSON bytes.
+     *
+     * @param value The value to serialize
+     * @return JSON bytes
+     * @throws SerializationException if serialization fails
+     */
+    public static byte[] serializeValue(Object value) throws SerializationException {
+        try {
+            return objectMapper.writeValueAsBytes(value);
+        } catch (JsonProcessingException e) {
+            logger.error("Failed to serialize value: {}", e.getMessage());
+            throw new SerializationException("Failed to serialize value", e);
+        }
+    }
+
+    /**
+     * Deserializes UTF-8 encoded JSON bytes to plain values: maps, lists, strings, numbers and booleans.
+     *
+     * @param data The array holding the JSON bytes
+     * @param offset The offset of the first JSON byte
+     * @param length The number of JSON bytes
+     * @return the decoded value
+     * @throws SerializationException if deserialization fails
+     */
+    public static Object deserializeValue(byte[] data, int offset, int length) throws SerializationException {
+        try {
+            return objectMapper.readValue(data, offset, length, Object.class);
+        } catch (IOException e) {
+            logger.error("Failed to deserialize value: {}", e.getMessage());
+            throw new SerializationException("Failed to deserialize value", e);
+        }
+    }
+
+    /**
+     * Deserializes UTF-8 encoded JSON bytes to a value of the given type.
+     *
+     * @param data The array holding the JSON bytes
+     * @param offset The offset of the first JSON byte
+     * @param length The number of JSON bytes
+     * @param type The type to bind to, possibly generic
+     * @return the decoded value
+     * @throws SerializationException if the bytes are not valid JSON for the type
+     */
+    public static Object deserializeValue(byte[] data, int offset, int length, Type type) throws SerializationException {
+        try {
+            return objectMapper.readValue(data, offset, length, javaType(type));
+        } catch (IOException e) {
+            throw new SerializationException(reason(e), e);
+        }
+    }
+
+    /**
+     * Converts a plain value (maps, lists, strings, numbers and booleans) to the given type.
+     *
+     * @param value The value to convert
+     * @param type The type to convert to, possibly generic
+     * @return the converted value
+     * @throws SerializationException if the value does not fit the type
+     */
+    public static Object convertValue(Object value, Type type) throws SerializationException {
+        try {
+            return objectMapper.convertValue(value, javaType(type));
+        } catch (IllegalArgumentException e) {
+            throw new SerializationException(reason(e.getCause() != null ? e.getCause() : e), e);
+        }
+    }
+
+    /**
+     * Gets Jackson's description of a binding problem without the source location, which
+     * means nothing to a remote caller.
+     */
+    private static String reason(Throwable e) {
+        return e instanceof JsonProcessingException ? ((JsonProcessingException) e).getOriginalMessage() : e.getMessage();
+    }
+
+    private static JavaType javaType(Type type) {
+        JavaType javaType = JAVA_TYPES.get(type);
+        if (javaType == null) {
+            javaType = objectMapper.getTypeFactory().constructType(type);
+            JAVA_TYPES.put(type, javaType);
+        }
+        return javaType;
+    }
+
+    /**
+     * Reads one message in a single pass over the token stream. Fields before {@code type} are
+     * buffered; once the type is known, the concrete class is bound from the buffered tokens
+     * followed by the rest of the stream. Messages are written with {@code type} first, so
+     * normally nothing needs buffering and the stream is bound directly.
+     */
+    private static Message readMessage(JsonParser parser) throws IOException, SerializationException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new SerializationException("Message is not a JSON object", null);
+        }
+        TokenBuffer buffered = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            if (!TYPE_FIELD.equals(field)) {
+                if (buffered == null) {
+                    buffered = new TokenBuffer(parser);
+                    buffered.writeStartObject();
+                }
+                buffered.writeFieldName(field);
+                buffered.copyCurrentStructure(parser);
+                continue;
+            }
+
+            String type = parser.getValueAsString();
+            MessageType messageType = MessageType.fromName(type);
+            if (messageType == null) {
+                throw new SerializationException("Unknown message type: " + type, null);
+            }
+            Class<? extends Message> messageClass = messageType.getMessageClass();
+
+            if (buffered == null) {
+                JsonToken next = parser.nextToken();
+                if (next == JsonToken.FIELD_NAME) {
+                    return objectMapper.readValue(parser, messageClass);
+                }
+                // Only the type field is present
+                buffered = new TokenBuffer(parser);
+                buffered.writeStartObject();
+                buffered.writeStringField(TYPE_FIELD, type);
+                buffered.writeEndObject();
+                return objectMapper.readValue(buffered.asParser(parser), messageClass);
+            }
+            buffered.writeStringField(TYPE_FIELD, type);
+            JsonParser remaining = JsonParserSequence.createFlattened(false, buffered.asParser(parser), parser);
+            return objectMapper.readValue(remaining, messageClass);
+        }
+        throw new SerializationException("Message missing 'type' field", null);
+    }
+
+    /**
+     * Routes {@link RpcRequest#setArguments} through {@link ArgumentsDeserializer}.
+     */
+    private abstract static class RpcRequestMixin {
+        @JsonDeserialize(using = ArgumentsDeserializer.class)
+        abstract void setArguments(List<Object> arguments);
+    }
+
+    /**
+     * Reads the argument array of a request, binding each argument to the type the called
+     * function declares for its position while streaming, rather than building plain maps and
+     * lists first. Requests are written with {@code functionName} before {@code arguments};
+     * if it arrives later, or no types are known, arguments are read as plain values.
+     * An argument that does not fit its type is skipped and recorded on the request, so the
+     * caller gets an error response instead of losing the connection.
+     */
+    static class ArgumentsDeserializer extends StdDeserializer<List<Object>> {
+        private static final JavaType OBJECT = objectMapper.constructType(Object.class);
+
+        ArgumentsDeserializer() {
+            super(List.class);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public List<Object> deserialize(JsonParser p, DeserializationContext ctxt) throws IOException {
+            if (p.currentToken() != JsonToken.START_ARRAY) {
+                return (List<Object>) ctxt.handleUnexpectedToken(List.class, p);
+            }
+            JsonStreamContext array = p.getParsingContext();
+            Object current = array.getParent() != null ? array.getParent().getCurrentValue() : null;
+            RpcRequest request = current instanceof RpcRequest ? (RpcRequest) current : null;
+            ArgumentTypes argumentTypes = ARGUMENT_TYPES.get();
+            Type[] types = argumentTypes != null && request != null && request.getFunctionName() != null
+                    ? argumentTypes.getArgumentTypes(request.getFunctionName(), -1)
+                    : null;
+
+            List<Object> arguments = new ArrayList<>();
+            for (int index = 0; p.nextToken() != JsonToken.END_ARRAY; index++) {
+                Type type = types != null && index < types.length ? types[index] : null;
+                if (type == null || p.currentToken() == JsonToken.VALUE_NULL) {
+                    arguments.add(ctxt.readValue(p, OBJECT));
+                    continue;
+                }
+                try {
+                    arguments.add(ctxt.readValue(p, javaType(type)));
+                } catch (JsonMappingException e) {
+                    if (request == null) {
+                        throw e;
+                    }
+                    if (request.getArgumentError() == null) {
+                        request.setArgumentError("Argument " + index + " is not a valid "
+                                + type.getTypeName() + ": " + reason(e));
+                    }
+                    // Skip the rest of the argument and carry on with the next one
+                    while (p.getParsingContext() != array) {
+                        p.nextToken();
+                    }
+                    arguments.add(null);
+                }
+            }
+            return arguments;
+        }
+    }
+
     /**
      * Exception thrown when serialization or deserialization fails.
      */
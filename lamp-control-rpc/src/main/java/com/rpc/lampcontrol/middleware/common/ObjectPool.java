@@ -0,0 +1,58 @@
+package com.rpc.lampcontrol.middleware.common;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Bounded pool of reusable objects, such as encode buffers, shared by all threads.
+ * Unlike a {@link ThreadLocal} it keeps reuse working when every message runs on a thread
+ * of its own, as with virtual threads, and keeps at most a fixed number of idle objects
+ * however many threads there are. Taking an object never blocks: one is created when none
+ * is idle, and one returned to a full pool is dropped.
+ *
+ * @param <T> The type of the pooled objects
+ */
+public final class ObjectPool<T> {
+    private final Queue<T> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger count = new AtomicInteger();
+    private final int maxIdle;
+    private final Supplier<T> factory;
+
+    /**
+     * @param maxIdle The most objects kept for reuse
+     * @param factory Creates an object when none is idle
+     */
+    public ObjectPool(int maxIdle, Supplier<T> factory) {
+        this.maxIdle = maxIdle;
+        this.factory = factory;
+    }
+
+    /**
+     * Takes an idle object, or creates one. The caller owns it until it returns it.
+     *
+     * @return an object for the caller's use alone
+     */
+    public T acquire() {
+        T object = free.poll();
+        if (object == null) {
+            return factory.get();
+        }
+        count.decrementAndGet();
+        return object;
+    }
+
+    /**
+     * Returns an object for reuse. The caller must not use it afterwards.
+     *
+     * @param object The object to return
+     */
+    public void release(T object) {
+        if (count.incrementAndGet() <= maxIdle) {
+            free.offer(object);
+        } else {
+            count.decrementAndGet();
+        }
+    }
+}
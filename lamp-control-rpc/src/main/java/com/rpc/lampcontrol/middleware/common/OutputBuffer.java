@@ -0,0 +1,121 @@
+package com.rpc.lampcontrol.middleware.common;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer that codecs encode into.
+ * Meant to be kept by a connection or borrowed from an {@link ObjectPool}, and
+ * {@link #reset()} before every message, so steady-state encoding does not allocate. Unlike {@link java.io.ByteArrayOutputStream}
+ * it is unsynchronized and exposes its backing array, so the encoded bytes can be written
+ * to a socket without another copy.
+ */
+public final class OutputBuffer extends OutputStream {
+    private static final int INITIAL_CAPACITY = 512;
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    private byte[] buffer;
+    private int size;
+    private ByteBuffer view;
+
+    public OutputBuffer() {
+        this.buffer = new byte[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Empties the buffer for the next message. A buffer that grew unusually large for one
+     * message is replaced, so a single big payload does not pin memory for good.
+     */
+    public void reset() {
+        size = 0;
+        if (buffer.length > MAX_RETAINED_CAPACITY) {
+            buffer = new byte[INITIAL_CAPACITY];
+            view = null;
+        }
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(1);
+        buffer[size++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(bytes, offset, buffer, size, length);
+        size += length;
+    }
+
+    /**
+     * Reserves bytes to be filled in later, such as a header whose length field is
+     * only known once the payload has been written.
+     *
+     * @param length The number of bytes to reserve
+     * @return the index of the first reserved byte
+     */
+    public int skip(int length) {
+        ensureCapacity(length);
+        int index = size;
+        size += length;
+        return index;
+    }
+
+    /**
+     * Makes room for at least {@code additional} more bytes, so callers can write into
+     * {@link #array()} directly and then {@link #setSize(int)}.
+     *
+     * @param additional The number of bytes about to be written
+     */
+    public void ensureCapacity(int additional) {
+        if (size + additional > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + additional));
+            view = null;
+        }
+    }
+
+    /**
+     * Gets the backing array. Only the first {@link #size()} bytes are meaningful, and the
+     * array is replaced when the buffer grows.
+     *
+     * @return the backing array
+     */
+    public byte[] array() {
+        return buffer;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void setSize(int size) {
+        if (size < 0 || size > buffer.length) {
+            throw new IndexOutOfBoundsException("Size " + size + " outside 0.." + buffer.length);
+        }
+        this.size = size;
+    }
+
+    /**
+     * Gets a ByteBuffer over the written bytes, ready to be written to a channel.
+     * The same instance is returned until the buffer grows.
+     *
+     * @return a buffer with position 0 and limit {@link #size()}
+     */
+    public ByteBuffer asByteBuffer() {
+        if (view == null) {
+            view = ByteBuffer.wrap(buffer);
+        }
+        view.limit(size).position(0);
+        return view;
+    }
+
+    /**
+     * Copies the written bytes into a new array.
+     *
+     * @return the written bytes
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, size);
+    }
+}
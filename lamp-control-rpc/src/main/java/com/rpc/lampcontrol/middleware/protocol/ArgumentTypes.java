@@ -0,0 +1,24 @@
+package com.rpc.lampcontrol.middleware.protocol;
+
+import java.lang.reflect.Type;
+
+/**
+ * Tells a decoder which Java types the arguments of an {@link RpcRequest} should be bound to,
+ * so they can be decoded straight into the parameter types of the called function instead of
+ * into plain maps, lists and numbers first.
+ */
+@FunctionalInterface
+public interface ArgumentTypes {
+
+    /**
+     * Gets the types to bind the arguments of a call to.
+     *
+     * @param functionName The function being called
+     * @param count The number of arguments, or -1 if the decoder reads the function name
+     *              before it knows how many arguments follow
+     * @return one type per argument position, with null for positions that should be decoded
+     *         as plain values; positions beyond the array are decoded as plain values too.
+     *         Null if the function is unknown.
+     */
+    Type[] getArgumentTypes(String functionName, int count);
+}
@@ -0,0 +1,55 @@
+package com.rpc.lampcontrol.middleware.protocol;
+
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Carries several RPC requests to one server in a single message.
+ * The server answers with one {@link BatchResponse} holding a response per request, in the
+ * same order. Entries are independent: the server may execute them in parallel.
+ * The caller waits for the whole batch, so its timeout is set on the batch rather than on
+ * the entries.
+ */
+@JsonPropertyOrder({"type", "version", "traceId", "requests", "timeoutMs"})
+public class BatchRequest extends Message {
+    private List<RpcRequest> requests;
+    private long timeoutMs;
+
+    public BatchRequest() {
+        super("batchRequest");
+        this.requests = new ArrayList<>();
+    }
+
+    public BatchRequest(List<RpcRequest> requests) {
+        this();
+        this.requests = requests;
+    }
+
+    public List<RpcRequest> getRequests() {
+        return requests;
+    }
+
+    public void setRequests(List<RpcRequest> requests) {
+        this.requests = requests;
+    }
+
+    public void addRequest(RpcRequest request) {
+        this.requests.add(request);
+    }
+
+    /**
+     * Gets how long the caller waits for the batch response, counted from when it was sent.
+     *
+     * @return the timeout in milliseconds, or 0 if the caller did not say
+     * @see RpcRequest#getTimeoutMs()
+     */
+    public long getTimeoutMs() {
+        return timeoutMs;
+    }
+
+    public void setTimeoutMs(long timeoutMs) {
+        this.timeoutMs = timeoutMs;
+    }
+}
@@ -0,0 +1,32 @@
+package com.rpc.lampcontrol.middleware.protocol;
+
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Answers a {@link BatchRequest} with one response per request, in request order.
+ */
+@JsonPropertyOrder({"type", "version", "traceId", "responses"})
+public class BatchResponse extends Message {
+    private List<RpcResponse> responses;
+
+    public BatchResponse() {
+        super("batchResponse");
+        this.responses = new ArrayList<>();
+    }
+
+    public BatchResponse(List<RpcResponse> responses) {
+        this();
+        this.responses = responses;
+    }
+
+    public List<RpcResponse> getResponses() {
+        return responses;
+    }
+
+    public void setResponses(List<RpcResponse> responses) {
+        this.responses = responses;
+    }
+}
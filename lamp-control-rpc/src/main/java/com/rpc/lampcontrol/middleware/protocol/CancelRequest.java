@@ -0,0 +1,32 @@
+package com.rpc.lampcontrol.middleware.protocol;
+
+/**
+ * Cancels a call the client no longer waits for. A call still queued on the server is dropped;
+ * one already running can notice through {@code RpcContext} and stop early. Either way its
+ * response is not sent. The server acknowledges the cancellation with an {@link RpcResponse}.
+ */
+public class CancelRequest extends Message {
+    private String requestId;
+
+    public CancelRequest() {
+        super("cancel");
+    }
+
+    public CancelRequest(String requestId) {
+        this();
+        this.requestId = requestId;
+    }
+
+    /**
+     * Gets the trace id of the {@link RpcRequest} or {@link BatchRequest} to cancel.
+     *
+     * @return the request id
+     */
+    public String getRequestId() {
+        return requestId;
+    }
+
+    public void setRequestId(String requestId) {
+        this.requestId = requestId;
+    }
+}
@@ -0,0 +1,57 @@
+package com.rpc.lampcontrol.middleware.protocol;
+
+import java.util.Objects;
+
+/**
+ * The address of one server instance offering a function, as listed in a {@link LookupResponse}.
+ */
+public class Endpoint {
+    private String host;
+    private int port;
+
+    public Endpoint() {
+    }
+
+    public Endpoint(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public void setHost(String host) {
+        this.host = host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof Endpoint)) {
+            return false;
+        }
+        Endpoint endpoint = (Endpoint) other;
+        return port == endpoint.port && Objects.equals(host, endpoint.host);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(host, port);
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + port;
+    }
+}
@@ -0,0 +1,26 @@
+package com.rpc.lampcontrol.middleware.protocol;
+
+/**
+ * Renews a registry lease, keeping every registration made under it alive for another TTL.
+ * Sent to an RPC server, it is a health probe, answered without touching any function.
+ */
+public class HeartbeatRequest extends Message {
+    private long leaseId;
+
+    public HeartbeatRequest() {
+        super("heartbeat");
+    }
+
+    public HeartbeatRequest(long leaseId) {
+        this();
+        this.leaseId = leaseId;
+    }
+
+    public long getLeaseId() {
+        return leaseId;
+    }
+
+    public void setLeaseId(long leaseId) {
+        this.leaseId = leaseId;
+    }
+}
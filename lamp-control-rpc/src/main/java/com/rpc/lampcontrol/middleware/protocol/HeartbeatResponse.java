@@ -0,0 +1,63 @@
+package com.rpc.lampcontrol.middleware.protocol;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+/**
+ * Answers a {@link HeartbeatRequest}. An error means the lease has expired and its
+ * registrations are gone, so they have to be made again under a new lease. The status
+ * {@code unavailable} means a follower could not reach the registry leader, so the lease may
+ * well still be there and the heartbeat should just be retried.
+ */
+public class HeartbeatResponse extends Message {
+    private String status;
+    private String message;
+
+    public HeartbeatResponse() {
+        super("heartbeatResponse");
+        this.status = "success";
+    }
+
+    public static HeartbeatResponse success() {
+        return new HeartbeatResponse();
+    }
+
+    public static HeartbeatResponse error(String message) {
+        HeartbeatResponse response = new HeartbeatResponse();
+        response.setStatus("error");
+        response.setMessage(message);
+        return response;
+    }
+
+    public static HeartbeatResponse unavailable(String message) {
+        HeartbeatResponse response = new HeartbeatResponse();
+        response.setStatus("unavailable");
+        response.setMessage(message);
+        return response;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public void setMessage(String message) {
+        this.message = message;
+    }
+
+    @JsonIgnore
+    public boolean isSuccess() {
+        return "success".equals(status);
+    }
+
+    @JsonIgnore
+    public boolean isUnavailable() {
+        return "unavailable".equals(status);
+    }
+}
@@ -0,0 +1,75 @@
+package com.rpc.lampcontrol.middleware.protocol;
+
+/**
+ * Asks the registry for the functions whose name starts with a prefix, in name order, one page
+ * at a time. The registry answers with a {@link ListResponse}.
+ * <p>
+ * A listing that takes several pages asks for every page after the first at the revision the
+ * first was taken at, so all pages show the registry as it was then; the registry answers with
+ * an error once that revision is too old, and the listing has to start over.
+ */
+public class ListRequest extends Message {
+    private String prefix;
+    private String startAfter;
+    private int limit;
+    private long revision;
+
+    public ListRequest() {
+        super("list");
+    }
+
+    public ListRequest(String prefix, String startAfter, int limit, long revision) {
+        this();
+        this.prefix = prefix;
+        this.startAfter = startAfter;
+        this.limit = limit;
+        this.revision = revision;
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    public void setPrefix(String prefix) {
+        this.prefix = prefix;
+    }
+
+    /**
+     * Gets the function name the page starts after, the last one of the previous page.
+     *
+     * @return the name, or null for the first page
+     */
+    public String getStartAfter() {
+        return startAfter;
+    }
+
+    public void setStartAfter(String startAfter) {
+        this.startAfter = startAfter;
+    }
+
+    /**
+     * Gets the maximum number of functions in the page.
+     *
+     * @return the limit, or 0 for the registry's default
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    public void setLimit(int limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * Gets the registry revision to list the functions at.
+     *
+     * @return the revision, or 0 for the current one
+     */
+    public long getRevision() {
+        return revision;
+    }
+
+    public void setRevision(long revision) {
+        this.revision = revision;
+    }
+}
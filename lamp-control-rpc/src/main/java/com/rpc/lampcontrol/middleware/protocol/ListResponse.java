@@ -0,0 +1,94 @@
+package com.rpc.lampcontrol.middleware.protocol;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One page of a registry listing: the endpoints of each function in the page, in name order,
+ * as of {@code revision}. If {@code more} is set, the next page starts after the last function
+ * of this one.
+ */
+@JsonPropertyOrder({"type", "traceId", "version", "status", "errorMessage", "revision", "more", "functions"})
+public class ListResponse extends Message {
+    private String status;
+    private String errorMessage;
+    private long revision;
+    private boolean more;
+    private Map<String, List<Endpoint>> functions = new LinkedHashMap<>();
+
+    public ListResponse() {
+        super("listResponse");
+        this.status = "success";
+    }
+
+    public static ListResponse error(String errorMessage) {
+        ListResponse response = new ListResponse();
+        response.setStatus("error");
+        response.setErrorMessage(errorMessage);
+        return response;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    public void setErrorMessage(String errorMessage) {
+        this.errorMessage = errorMessage;
+    }
+
+    /**
+     * Gets the registry revision the page shows.
+     *
+     * @return the revision
+     */
+    public long getRevision() {
+        return revision;
+    }
+
+    public void setRevision(long revision) {
+        this.revision = revision;
+    }
+
+    /**
+     * Checks whether more functions follow this page.
+     *
+     * @return true if there is a next page
+     */
+    public boolean isMore() {
+        return more;
+    }
+
+    public void setMore(boolean more) {
+        this.more = more;
+    }
+
+    /**
+     * Gets the endpoints of each function in the page.
+     *
+     * @return the endpoints by function name, in name order
+     */
+    public Map<String, List<Endpoint>> getFunctions() {
+        return functions;
+    }
+
+    public void setFunctions(Map<String, List<Endpoint>> functions) {
+        this.functions = functions;
+    }
+
+    @JsonIgnore
+    public boolean isSuccess() {
+        return "success".equals(status);
+    }
+}
@@ -1,10 +1,15 @@
 package com.rpc.lampcontrol.middleware.protocol;
 
+import java.util.List;
+
 /**
  * Represents a service lookup request sent to the registry.
+ * A request that lists several {@code functionNames} looks them all up at once and is answered
+ * with {@link LookupResponse#getFunctions()}.
  */
 public class LookupRequest extends Message {
     private String functionName;
+    private List<String> functionNames;
 
     public LookupRequest() {
         super("lookup");
@@ -22,4 +27,17 @@ public class LookupRequest extends Message {
     public void setFunctionName(String functionName) {
         this.functionName = functionName;
     }
-}
\ No newline at end of file
+
+    /**
+     * Gets the functions to look up, if this request looks up several.
+     *
+     * @return the function names, or null for just {@code functionName}
+     */
+    public List<String> getFunctionNames() {
+        return functionNames;
+    }
+
+    public void setFunctionNames(List<String> functionNames) {
+        this.functionNames = functionNames;
+    }
+}
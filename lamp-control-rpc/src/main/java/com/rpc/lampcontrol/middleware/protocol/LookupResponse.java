@@ -2,14 +2,26 @@ package com.rpc.lampcontrol.middleware.protocol;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
 /**
  * Represents a service lookup response from the registry.
+ * A function may be offered by several servers; {@link #getEndpoints()} lists all of them,
+ * while {@code host} and {@code port} name the first one for clients that expect a single
+ * endpoint.
+ * <p>
+ * The answer to a lookup of several functions lists the endpoints of each one found in
+ * {@link #getFunctions()}; functions that are not registered are left out.
  */
 public class LookupResponse extends Message {
     private String status;
     private String host;
     private int port;
     private String errorMessage;
+    private List<Endpoint> endpoints;
+    private Map<String, List<Endpoint>> functions;
     private Boolean success;  // Added to handle deserialization
 
     public LookupResponse() {
@@ -25,6 +37,12 @@ public class LookupResponse extends Message {
         return response;
     }
 
+    public static LookupResponse success(List<Endpoint> endpoints) {
+        LookupResponse response = success(endpoints.get(0).getHost(), endpoints.get(0).getPort());
+        response.setEndpoints(endpoints);
+        return response;
+    }
+
     public static LookupResponse error(String errorMessage) {
         LookupResponse response = new LookupResponse();
         response.setStatus("error");
@@ -56,6 +74,36 @@ public class LookupResponse extends Message {
         this.port = port;
     }
 
+    /**
+     * Gets every endpoint that offers the function.
+     *
+     * @return the endpoints, just {@code host:port} if the registry did not list them, or an
+     *         empty list if the lookup failed
+     */
+    public List<Endpoint> getEndpoints() {
+        if (endpoints != null) {
+            return endpoints;
+        }
+        return isSuccess() && host != null ? Collections.singletonList(new Endpoint(host, port)) : Collections.emptyList();
+    }
+
+    public void setEndpoints(List<Endpoint> endpoints) {
+        this.endpoints = endpoints;
+    }
+
+    /**
+     * Gets the endpoints of each function found by a lookup of several functions.
+     *
+     * @return the endpoints by function name, or null for a lookup of one function
+     */
+    public Map<String, List<Endpoint>> getFunctions() {
+        return functions;
+    }
+
+    public void setFunctions(Map<String, List<Endpoint>> functions) {
+        this.functions = functions;
+    }
+
     public String getErrorMessage() {
         return errorMessage;
     }
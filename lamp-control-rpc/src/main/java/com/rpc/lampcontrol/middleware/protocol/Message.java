@@ -1,21 +1,27 @@
 package com.rpc.lampcontrol.middleware.protocol;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+
 import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Base class for all RPC messages in the system.
+ * The {@code type} property is always written first so receivers can pick the
+ * message class before reading the rest of the object.
  */
+@JsonPropertyOrder({"type", "version", "traceId"})
 public abstract class Message {
     protected String version = "1.0";
     protected String type;
     protected String traceId;
+    private long receivedAt;
 
     public Message() {
-        this.traceId = UUID.randomUUID().toString();
     }
 
     public Message(String type) {
-        this();
         this.type = type;
     }
 
@@ -35,11 +41,50 @@ public abstract class Message {
         this.type = type;
     }
 
+    /**
+     * Gets the trace id, generating one on first use. Decoded messages and responses get their
+     * id from the peer or the request, so only messages that start a trace pay for a new one.
+     *
+     * @return the trace id
+     */
     public String getTraceId() {
+        if (traceId == null) {
+            traceId = newTraceId();
+        }
         return traceId;
     }
 
     public void setTraceId(String traceId) {
         this.traceId = traceId;
     }
-}
\ No newline at end of file
+
+    /**
+     * Gets the time this message arrived, before it waited for a worker to decode it.
+     * Only set on the receiving side; never sent.
+     *
+     * @return the {@link System#nanoTime()} of arrival, or 0 if it was not received
+     */
+    @JsonIgnore
+    public long getReceivedAt() {
+        return receivedAt;
+    }
+
+    @JsonIgnore
+    public void setReceivedAt(long receivedAt) {
+        this.receivedAt = receivedAt;
+    }
+
+    /**
+     * Creates a random (version 4) UUID string for use as a trace id. Trace ids only need to
+     * be unique, so this draws from {@link ThreadLocalRandom} instead of the contended
+     * {@link java.security.SecureRandom} behind {@link UUID#randomUUID()}.
+     *
+     * @return a new trace id
+     */
+    public static String newTraceId() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long mostSigBits = (random.nextLong() & ~0xF000L) | 0x4000L;
+        long leastSigBits = (random.nextLong() & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L;
+        return new UUID(mostSigBits, leastSigBits).toString();
+    }
+}
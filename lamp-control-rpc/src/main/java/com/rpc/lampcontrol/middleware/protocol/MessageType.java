@@ -0,0 +1,83 @@
+package com.rpc.lampcontrol.middleware.protocol;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * All message types of the protocol, with the name used in the {@code type} field
+ * and the compact code used in frame headers.
+ */
+public enum MessageType {
+    REGISTER(1, "register", RegisterRequest.class),
+    REGISTER_RESPONSE(2, "registerResponse", RegisterResponse.class),
+    LOOKUP(3, "lookup", LookupRequest.class),
+    LOOKUP_RESPONSE(4, "lookupResponse", LookupResponse.class),
+    REQUEST(5, "request", RpcRequest.class),
+    RESPONSE(6, "response", RpcResponse.class),
+    BATCH_REQUEST(7, "batchRequest", BatchRequest.class),
+    BATCH_RESPONSE(8, "batchResponse", BatchResponse.class),
+    SUBSCRIBE(9, "subscribe", SubscribeRequest.class),
+    UNSUBSCRIBE(10, "unsubscribe", UnsubscribeRequest.class),
+    EVENT(11, "event", StreamEvent.class),
+    HEARTBEAT(12, "heartbeat", HeartbeatRequest.class),
+    HEARTBEAT_RESPONSE(13, "heartbeatResponse", HeartbeatResponse.class),
+    WATCH(14, "watch", WatchRequest.class),
+    WATCH_EVENT(15, "watchEvent", WatchEvent.class),
+    LIST(16, "list", ListRequest.class),
+    LIST_RESPONSE(17, "listResponse", ListResponse.class),
+    CANCEL(18, "cancel", CancelRequest.class),
+    PING(19, "ping", PingRequest.class),
+    PING_RESPONSE(20, "pingResponse", PingResponse.class);
+
+    private static final MessageType[] BY_CODE = new MessageType[256];
+    private static final Map<String, MessageType> BY_NAME = new HashMap<>();
+
+    static {
+        for (MessageType type : values()) {
+            BY_CODE[type.code] = type;
+            BY_NAME.put(type.typeName, type);
+        }
+    }
+
+    private final int code;
+    private final String typeName;
+    private final Class<? extends Message> messageClass;
+
+    MessageType(int code, String typeName, Class<? extends Message> messageClass) {
+        this.code = code;
+        this.typeName = typeName;
+        this.messageClass = messageClass;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    public String getTypeName() {
+        return typeName;
+    }
+
+    public Class<? extends Message> getMessageClass() {
+        return messageClass;
+    }
+
+    /**
+     * Looks up a message type by its frame header code.
+     *
+     * @param code The code, 0-255
+     * @return the message type, or null if the code is unknown
+     */
+    public static MessageType fromCode(int code) {
+        return code >= 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+    }
+
+    /**
+     * Looks up a message type by the value of the {@code type} field.
+     *
+     * @param typeName The type name
+     * @return the message type, or null if the name is unknown
+     */
+    public static MessageType fromName(String typeName) {
+        return BY_NAME.get(typeName);
+    }
+}
@@ -0,0 +1,13 @@
+package com.rpc.lampcontrol.middleware.protocol;
+
+/**
+ * A health probe. RPC servers answer it on their worker pool, so its latency shows how
+ * loaded they are; the registry answers it too. Unlike a {@link HeartbeatRequest} it renews
+ * nothing and changes no state.
+ */
+public class PingRequest extends Message {
+
+    public PingRequest() {
+        super("ping");
+    }
+}
@@ -0,0 +1,49 @@
+package com.rpc.lampcontrol.middleware.protocol;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+/**
+ * Answers a {@link PingRequest}. An error means the server is up but refused the probe,
+ * e.g. because it is overloaded.
+ */
+public class PingResponse extends Message {
+    private String status;
+    private String message;
+
+    public PingResponse() {
+        super("pingResponse");
+        this.status = "success";
+    }
+
+    public static PingResponse success() {
+        return new PingResponse();
+    }
+
+    public static PingResponse error(String message) {
+        PingResponse response = new PingResponse();
+        response.setStatus("error");
+        response.setMessage(message);
+        return response;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public void setMessage(String message) {
+        this.message = message;
+    }
+
+    @JsonIgnore
+    public boolean isSuccess() {
+        return "success".equals(status);
+    }
+}
@@ -1,12 +1,23 @@
 package com.rpc.lampcontrol.middleware.protocol;
 
+import java.util.List;
+
 /**
  * Represents a service registration request sent to the registry.
+ * With a lease TTL the registration expires unless the lease is renewed with
+ * {@link HeartbeatRequest}s; the first registration gets a new lease (lease id 0) and later
+ * ones join it by passing its id. Without a TTL the registration does not expire.
+ * <p>
+ * A server exporting many functions lists them all in {@code functionNames} to register them
+ * at once; {@code functionName} then repeats the first.
  */
 public class RegisterRequest extends Message {
     private String functionName;
     private String host;
     private int port;
+    private long leaseId;
+    private long leaseTtlMs;
+    private List<String> functionNames;
 
     public RegisterRequest() {
         super("register");
@@ -42,4 +53,33 @@ public class RegisterRequest extends Message {
     public void setPort(int port) {
         this.port = port;
     }
-}
\ No newline at end of file
+
+    public long getLeaseId() {
+        return leaseId;
+    }
+
+    public void setLeaseId(long leaseId) {
+        this.leaseId = leaseId;
+    }
+
+    public long getLeaseTtlMs() {
+        return leaseTtlMs;
+    }
+
+    public void setLeaseTtlMs(long leaseTtlMs) {
+        this.leaseTtlMs = leaseTtlMs;
+    }
+
+    /**
+     * Gets the functions to register, if this request registers several.
+     *
+     * @return the function names, or null for just {@code functionName}
+     */
+    public List<String> getFunctionNames() {
+        return functionNames;
+    }
+
+    public void setFunctionNames(List<String> functionNames) {
+        this.functionNames = functionNames;
+    }
+}
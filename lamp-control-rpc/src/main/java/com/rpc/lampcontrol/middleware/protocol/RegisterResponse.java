@@ -4,10 +4,17 @@ import com.fasterxml.jackson.annotation.JsonIgnore;
 
 /**
  * Represents a service registration response from the registry.
+ * For a leased registration it carries the lease id and the TTL the registry granted.
+ * A successful one carries the registry revision that includes it.
+ * The status {@code unavailable} means a follower could not reach the registry leader to
+ * forward the registration to, so nothing was registered and the request may be retried.
  */
 public class RegisterResponse extends Message {
     private String status;
     private String message;
+    private long leaseId;
+    private long leaseTtlMs;
+    private long revision;
     private Boolean success;  // Added to handle deserialization
 
     public RegisterResponse() {
@@ -29,6 +36,13 @@ public class RegisterResponse extends Message {
         return response;
     }
 
+    public static RegisterResponse unavailable(String message) {
+        RegisterResponse response = new RegisterResponse();
+        response.setStatus("unavailable");
+        response.setMessage(message);
+        return response;
+    }
+
     public String getStatus() {
         return status;
     }
@@ -45,11 +59,40 @@ public class RegisterResponse extends Message {
         this.message = message;
     }
 
+    public long getLeaseId() {
+        return leaseId;
+    }
+
+    public void setLeaseId(long leaseId) {
+        this.leaseId = leaseId;
+    }
+
+    public long getLeaseTtlMs() {
+        return leaseTtlMs;
+    }
+
+    public void setLeaseTtlMs(long leaseTtlMs) {
+        this.leaseTtlMs = leaseTtlMs;
+    }
+
+    public long getRevision() {
+        return revision;
+    }
+
+    public void setRevision(long revision) {
+        this.revision = revision;
+    }
+
     @JsonIgnore  // Don't serialize this method's return value
     public boolean isSuccess() {
         return "success".equals(status);
     }
 
+    @JsonIgnore
+    public boolean isUnavailable() {
+        return "unavailable".equals(status);
+    }
+
     // Added for JSON deserialization
     public Boolean getSuccess() {
         return isSuccess();
@@ -1,14 +1,24 @@
 package com.rpc.lampcontrol.middleware.protocol;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+
 import java.util.ArrayList;
 import java.util.List;
 
 /**
  * Represents an RPC request from client to server.
+ * The function name is written before the arguments, so a server can bind the arguments
+ * to the function's parameter types while reading them (see {@link ArgumentTypes}).
+ * A request may carry the time the caller still waits for it, so the server can drop it once
+ * nobody waits any more.
  */
+@JsonPropertyOrder({"type", "version", "traceId", "functionName", "arguments", "timeoutMs"})
 public class RpcRequest extends Message {
     private String functionName;
     private List<Object> arguments;
+    private String argumentError;
+    private long timeoutMs;
 
     public RpcRequest() {
         super("request");
@@ -44,4 +54,35 @@ public class RpcRequest extends Message {
     public void addArgument(Object argument) {
         this.arguments.add(argument);
     }
-}
\ No newline at end of file
+
+    /**
+     * Gets how long the caller waits for the response, counted from when the request was sent.
+     * The server counts it from when the request arrived, as clocks of different hosts need
+     * not agree.
+     *
+     * @return the timeout in milliseconds, or 0 if the caller did not say
+     */
+    public long getTimeoutMs() {
+        return timeoutMs;
+    }
+
+    public void setTimeoutMs(long timeoutMs) {
+        this.timeoutMs = timeoutMs;
+    }
+
+    /**
+     * Gets the reason an argument could not be bound to the called function's parameter
+     * type while decoding. Only set on the receiving side; never sent.
+     *
+     * @return the binding error, or null if all arguments were bound
+     */
+    @JsonIgnore
+    public String getArgumentError() {
+        return argumentError;
+    }
+
+    @JsonIgnore
+    public void setArgumentError(String argumentError) {
+        this.argumentError = argumentError;
+    }
+}
@@ -4,6 +4,8 @@ import com.fasterxml.jackson.annotation.JsonIgnore;
 
 /**
  * Represents an RPC response from server to client.
+ * The status is "success", "error", or "overloaded" for a request the server shed under load
+ * without handling it, which can safely be sent again, preferably to another server.
  */
 public class RpcResponse extends Message {
     private String status;
@@ -35,6 +37,13 @@ public class RpcResponse extends Message {
         return response;
     }
 
+    public static RpcResponse overloaded(String errorMessage) {
+        RpcResponse response = new RpcResponse();
+        response.setStatus("overloaded");
+        response.setErrorMessage(errorMessage);
+        return response;
+    }
+
     public String getStatus() {
         return status;
     }
@@ -64,6 +73,11 @@ public class RpcResponse extends Message {
         return "success".equals(status);
     }
 
+    @JsonIgnore
+    public boolean isOverloaded() {
+        return "overloaded".equals(status);
+    }
+
     // Added for JSON deserialization
     public Boolean getSuccess() {
         return isSuccess();
@@ -0,0 +1,83 @@
+package com.rpc.lampcontrol.middleware.protocol;
+
+/**
+ * One change to the endpoints of a function in the registry.
+ */
+public class ServiceChange {
+    public static final String ADD = "add";
+    public static final String REMOVE = "remove";
+    public static final String UPDATE = "update";
+
+    private long revision;
+    private String action;
+    private String functionName;
+    private String host;
+    private int port;
+
+    public ServiceChange() {
+    }
+
+    public ServiceChange(long revision, String action, String functionName, String host, int port) {
+        this.revision = revision;
+        this.action = action;
+        this.functionName = functionName;
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Gets the registry revision that made this change.
+     *
+     * @return the revision
+     */
+    public long getRevision() {
+        return revision;
+    }
+
+    public void setRevision(long revision) {
+        this.revision = revision;
+    }
+
+    /**
+     * Gets what happened to the endpoint: {@link #ADD}, {@link #REMOVE} or {@link #UPDATE}
+     * (registered again, e.g. under a new lease).
+     *
+     * @return the action
+     */
+    public String getAction() {
+        return action;
+    }
+
+    public void setAction(String action) {
+        this.action = action;
+    }
+
+    public String getFunctionName() {
+        return functionName;
+    }
+
+    public void setFunctionName(String functionName) {
+        this.functionName = functionName;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public void setHost(String host) {
+        this.host = host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    @Override
+    public String toString() {
+        return action + " " + functionName + " at " + host + ":" + port + " (revision " + revision + ")";
+    }
+}
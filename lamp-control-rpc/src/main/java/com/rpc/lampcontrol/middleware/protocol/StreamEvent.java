@@ -0,0 +1,58 @@
+package com.rpc.lampcontrol.middleware.protocol;
+
+/**
+ * Pushes the latest state of one key of a topic to a subscriber.
+ * The trace id is the id of the subscription. Events are conflated: a subscriber that falls
+ * behind only receives the newest state of each key, so the sequence numbers it sees may
+ * skip, but they always increase within a subscription.
+ */
+public class StreamEvent extends Message {
+    private String topic;
+    private String key;
+    private long sequence;
+    private Object value;
+
+    public StreamEvent() {
+        super("event");
+    }
+
+    public StreamEvent(String topic, String key, long sequence, Object value) {
+        this();
+        this.topic = topic;
+        this.key = key;
+        this.sequence = sequence;
+        this.value = value;
+    }
+
+    public String getTopic() {
+        return topic;
+    }
+
+    public void setTopic(String topic) {
+        this.topic = topic;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public void setKey(String key) {
+        this.key = key;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    public Object getValue() {
+        return value;
+    }
+
+    public void setValue(Object value) {
+        this.value = value;
+    }
+}
@@ -0,0 +1,29 @@
+package com.rpc.lampcontrol.middleware.protocol;
+
+/**
+ * Subscribes to the state changes published on a topic.
+ * The trace id of this request identifies the subscription: the server acknowledges it with
+ * an {@link RpcResponse} carrying that id, and then sends a {@link StreamEvent} with the same
+ * id for the current state and every later change, until an {@link UnsubscribeRequest}
+ * arrives or the connection closes.
+ */
+public class SubscribeRequest extends Message {
+    private String topic;
+
+    public SubscribeRequest() {
+        super("subscribe");
+    }
+
+    public SubscribeRequest(String topic) {
+        this();
+        this.topic = topic;
+    }
+
+    public String getTopic() {
+        return topic;
+    }
+
+    public void setTopic(String topic) {
+        this.topic = topic;
+    }
+}
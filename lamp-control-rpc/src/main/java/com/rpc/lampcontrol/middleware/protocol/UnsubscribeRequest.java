@@ -0,0 +1,30 @@
+package com.rpc.lampcontrol.middleware.protocol;
+
+/**
+ * Ends a subscription. The server acknowledges it with an {@link RpcResponse}.
+ */
+public class UnsubscribeRequest extends Message {
+    private String subscriptionId;
+
+    public UnsubscribeRequest() {
+        super("unsubscribe");
+    }
+
+    public UnsubscribeRequest(String subscriptionId) {
+        this();
+        this.subscriptionId = subscriptionId;
+    }
+
+    /**
+     * Gets the trace id of the {@link SubscribeRequest} that started the subscription.
+     *
+     * @return the subscription id
+     */
+    public String getSubscriptionId() {
+        return subscriptionId;
+    }
+
+    public void setSubscriptionId(String subscriptionId) {
+        this.subscriptionId = subscriptionId;
+    }
+}
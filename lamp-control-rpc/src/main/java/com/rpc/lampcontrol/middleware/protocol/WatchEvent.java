@@ -0,0 +1,76 @@
+package com.rpc.lampcontrol.middleware.protocol;
+
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streams registry changes to a watcher. The trace id is the id of the watch.
+ * <p>
+ * The first event of a watch either replays the changes the watcher missed or, with
+ * {@code reset} set, lists every matching endpoint as a snapshot that replaces what the
+ * watcher knew. Each later event carries the changes of one registry revision. Events are
+ * numbered per watch, so a watcher can put them back in order.
+ */
+@JsonPropertyOrder({"type", "traceId", "version", "sequence", "revision", "reset", "changes"})
+public class WatchEvent extends Message {
+    private long sequence;
+    private long revision;
+    private boolean reset;
+    private List<ServiceChange> changes = new ArrayList<>();
+
+    public WatchEvent() {
+        super("watchEvent");
+    }
+
+    public WatchEvent(long sequence, long revision, boolean reset, List<ServiceChange> changes) {
+        this();
+        this.sequence = sequence;
+        this.revision = revision;
+        this.reset = reset;
+        this.changes = changes;
+    }
+
+    /**
+     * Gets the position of this event in its watch, starting at 1.
+     *
+     * @return the sequence number
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * Gets the registry revision the watcher is up to date with after this event.
+     *
+     * @return the revision
+     */
+    public long getRevision() {
+        return revision;
+    }
+
+    public void setRevision(long revision) {
+        this.revision = revision;
+    }
+
+    public boolean isReset() {
+        return reset;
+    }
+
+    public void setReset(boolean reset) {
+        this.reset = reset;
+    }
+
+    public List<ServiceChange> getChanges() {
+        return changes;
+    }
+
+    public void setChanges(List<ServiceChange> changes) {
+        this.changes = changes;
+    }
+}
@@ -0,0 +1,59 @@
+package com.rpc.lampcontrol.middleware.protocol;
+
+/**
+ * Asks the registry to stream the changes to a function, or to all functions whose name
+ * starts with a prefix, as {@link WatchEvent}s carrying this request's trace id. The registry
+ * acknowledges the watch with an {@link RpcResponse} and ends it on an
+ * {@link UnsubscribeRequest} for the same id.
+ */
+public class WatchRequest extends Message {
+    private String key;
+    private boolean prefix;
+    private long fromRevision;
+
+    public WatchRequest() {
+        super("watch");
+    }
+
+    public WatchRequest(String key, boolean prefix, long fromRevision) {
+        this();
+        this.key = key;
+        this.prefix = prefix;
+        this.fromRevision = fromRevision;
+    }
+
+    /**
+     * Gets the function name, or the prefix of the function names, to watch.
+     *
+     * @return the key
+     */
+    public String getKey() {
+        return key;
+    }
+
+    public void setKey(String key) {
+        this.key = key;
+    }
+
+    public boolean isPrefix() {
+        return prefix;
+    }
+
+    public void setPrefix(boolean prefix) {
+        this.prefix = prefix;
+    }
+
+    /**
+     * Gets the revision the watcher has already seen. The watch starts with the changes
+     * made after it, or with a snapshot if they are no longer retained or the revision is 0.
+     *
+     * @return the last revision seen, or 0 for none
+     */
+    public long getFromRevision() {
+        return fromRevision;
+    }
+
+    public void setFromRevision(long fromRevision) {
+        this.fromRevision = fromRevision;
+    }
+}
@@ -0,0 +1,90 @@
+package com.rpc.lampcontrol.middleware.registry;
+
+import com.rpc.lampcontrol.middleware.protocol.Endpoint;
+import com.rpc.lampcontrol.middleware.protocol.PingRequest;
+import com.rpc.lampcontrol.middleware.protocol.PingResponse;
+import com.rpc.lampcontrol.middleware.transport.ClientTransport;
+import com.rpc.lampcontrol.middleware.transport.MultiplexedConnectionPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Actively probes the endpoints in a registry with a {@link PingRequest}, which RPC servers
+ * answer on their worker pool, and feeds the results to an {@link OutlierDetector}.
+ * Lookups leave out the endpoints it ejects, so callers stop finding a server that is down or
+ * far slower than its peers before their own calls fail.
+ */
+final class HealthChecker implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(HealthChecker.class);
+    static final long PROBE_INTERVAL_MS = 2000;
+    private static final long PROBE_TIMEOUT_MS = 1000;
+    // Probes are sparse, so fewer failures eject and the rates are judged over several rounds
+    private static final int CONSECUTIVE_FAILURES = 2;
+    private static final int MIN_PROBES = 3;
+    private static final long EVALUATION_INTERVAL_MS = 5 * PROBE_INTERVAL_MS;
+
+    private final ServiceRegistry registry;
+    private final OutlierDetector detector = new OutlierDetector(CONSECUTIVE_FAILURES, MIN_PROBES,
+            EVALUATION_INTERVAL_MS);
+    private final MultiplexedConnectionPool connectionPool = new MultiplexedConnectionPool(new ClientTransport());
+    // Endpoints with a probe outstanding, which are not probed again until it completes
+    private final Set<Endpoint> probing = ConcurrentHashMap.newKeySet();
+
+    HealthChecker(ServiceRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Sends one round of probes, one to each registered endpoint. Does not wait for them.
+     */
+    void probe() {
+        Set<Endpoint> endpoints = registry.getEndpoints();
+        detector.retain(endpoints);
+        for (Endpoint endpoint : endpoints) {
+            if (probing.add(endpoint)) {
+                probe(endpoint);
+            }
+        }
+    }
+
+    private void probe(Endpoint endpoint) {
+        long start = System.nanoTime();
+        PingRequest ping = new PingRequest();
+        connectionPool.getConnectionAsync(endpoint.getHost(), endpoint.getPort()).thenCompose(connection ->
+                connection.send(ping).orTimeout(PROBE_TIMEOUT_MS, TimeUnit.MILLISECONDS).whenComplete((response, error) -> {
+                    if (error instanceof TimeoutException) {
+                        connection.cancel(ping.getTraceId());
+                    }
+                })).whenComplete((response, error) -> {
+                    probing.remove(endpoint);
+                    if (error == null && response instanceof PingResponse && ((PingResponse) response).isSuccess()) {
+                        detector.recordSuccess(endpoint, System.nanoTime() - start);
+                    } else {
+                        logger.debug("Probe of {} failed: {}", endpoint,
+                                error != null ? error.getMessage() : response.getType());
+                        detector.recordFailure(endpoint);
+                    }
+                });
+    }
+
+    /**
+     * Leaves out the ejected endpoints, unless all of them are.
+     *
+     * @param endpoints The registered endpoints of a function
+     * @return the endpoints to hand out
+     */
+    List<Endpoint> filter(List<Endpoint> endpoints) {
+        return detector.filter(endpoints);
+    }
+
+    @Override
+    public void close() {
+        connectionPool.close();
+    }
+}
@@ -0,0 +1,377 @@
+package com.rpc.lampcontrol.middleware.registry;
+
+import com.rpc.lampcontrol.middleware.protocol.Endpoint;
+import com.rpc.lampcontrol.middleware.protocol.LookupResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Caches registry lookups on the client so that an RPC does not cost a registry round trip.
+ * <p>
+ * Found services are kept for a TTL, "not found" answers for a separate, usually shorter TTL.
+ * Concurrent misses for the same function share one registry request. An entry that is still
+ * being used when most of its TTL has passed is refreshed in the background, so hot functions
+ * do not stall on expiry. Callers invalidate an entry when a call to the cached endpoint fails.
+ * Registry errors are not cached. A lookup that was under way when its function was
+ * invalidated is returned but not cached, as it may predate the change that caused the
+ * invalidation.
+ */
+public class LookupCache {
+    private static final Logger logger = LoggerFactory.getLogger(LookupCache.class);
+    public static final long DEFAULT_TTL_MS = 30_000;
+    public static final long DEFAULT_NEGATIVE_TTL_MS = 2_000;
+    public static final int MAX_ENTRIES = 10_000;
+    // An entry hit after this fraction of its TTL is refreshed ahead of expiry
+    private static final double REFRESH_AHEAD_FRACTION = 0.75;
+    // Invalidation generations are kept per stripe of function names rather than per function,
+    // so that they need no cleanup; a collision only keeps a lookup out of the cache
+    private static final int GENERATION_STRIPES = 64;
+    private static final ExecutorService SHARED_REFRESHER = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "registry-lookup-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+    private final LongSupplier clock;
+    private final Executor refresher;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<LookupResponse>> loading = new ConcurrentHashMap<>();
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    /**
+     * Loads a lookup from the registry.
+     */
+    @FunctionalInterface
+    public interface Loader {
+        LookupResponse load(String functionName) throws RegistryClient.RegistryException;
+    }
+
+    /**
+     * Creates a cache with the default TTLs.
+     */
+    public LookupCache() {
+        this(DEFAULT_TTL_MS, DEFAULT_NEGATIVE_TTL_MS);
+    }
+
+    /**
+     * Creates a cache with custom TTLs.
+     *
+     * @param ttlMs How long a found service is cached, in milliseconds; 0 disables caching
+     * @param negativeTtlMs How long a "not found" answer is cached, in milliseconds; 0 disables negative caching
+     */
+    public LookupCache(long ttlMs, long negativeTtlMs) {
+        this(ttlMs, negativeTtlMs, System::nanoTime, SHARED_REFRESHER);
+    }
+
+    LookupCache(long ttlMs, long negativeTtlMs, LongSupplier clock, Executor refresher) {
+        if (ttlMs < 0 || negativeTtlMs < 0) {
+            throw new IllegalArgumentException("TTLs must not be negative");
+        }
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+        this.negativeTtlNanos = TimeUnit.MILLISECONDS.toNanos(negativeTtlMs);
+        this.clock = clock;
+        this.refresher = refresher;
+    }
+
+    /**
+     * Gets the lookup for a function, from the cache if it is fresh, otherwise from the loader.
+     * The returned response may be shared with other callers and must not be modified.
+     *
+     * @param functionName The function to look up
+     * @param loader Loads the lookup from the registry on a miss or refresh
+     * @return the lookup response
+     * @throws RegistryClient.RegistryException if the registry cannot be reached on a miss
+     */
+    public LookupResponse get(String functionName, Loader loader) throws RegistryClient.RegistryException {
+        LookupResponse cached = getIfFresh(functionName, loader);
+        if (cached != null) {
+            return cached;
+        }
+        misses.increment();
+        return load(functionName, loader);
+    }
+
+    /**
+     * Gets the lookup for a function only if the cache holds a fresh entry, so callers that
+     * must not block can answer hits directly and load misses elsewhere.
+     *
+     * @param functionName The function to look up
+     * @param loader Loads the lookup from the registry if the entry is due for a refresh
+     * @return the cached lookup response, or null on a miss
+     */
+    public LookupResponse getIfFresh(String functionName, Loader loader) {
+        long now = clock.getAsLong();
+        Entry entry = entries.get(functionName);
+        if (entry == null || now - entry.expiresAt >= 0) {
+            return null;
+        }
+        if (entry.response.isSuccess()) {
+            hits.increment();
+            if (now - entry.refreshAt >= 0) {
+                refreshAhead(functionName, entry, loader);
+            }
+        } else {
+            negativeHits.increment();
+        }
+        return entry.response;
+    }
+
+    /**
+     * Gets the invalidation generation of a function, to take before looking it up outside
+     * the cache and pass to {@link #put}.
+     *
+     * @param functionName The function about to be looked up
+     * @return the generation, which changes whenever the function is invalidated
+     */
+    long generation(String functionName) {
+        return generations.get(stripe(functionName));
+    }
+
+    /**
+     * Caches a lookup that was made outside the cache, such as one of several functions
+     * looked up at once, unless the function was invalidated since the lookup started.
+     *
+     * @param functionName The function looked up
+     * @param response The lookup response
+     * @param generation The {@link #generation} of the function before the lookup started
+     */
+    void put(String functionName, LookupResponse response, long generation) {
+        misses.increment();
+        store(functionName, response, generation);
+    }
+
+    /**
+     * Drops the cached lookup for a function.
+     *
+     * @param functionName The function whose lookup to drop
+     */
+    public void invalidate(String functionName) {
+        // Bumped before removing, so a lookup that stores after this checks the new generation
+        generations.incrementAndGet(stripe(functionName));
+        if (entries.remove(functionName) != null) {
+            invalidations.increment();
+        }
+    }
+
+    /**
+     * Drops the cached lookup for a function if it still lists the given endpoint, so that a
+     * failure on an old endpoint does not discard an entry that was already refreshed.
+     *
+     * @param functionName The function whose lookup to drop
+     * @param host The host the failed call went to
+     * @param port The port the failed call went to
+     */
+    public void invalidate(String functionName, String host, int port) {
+        Entry entry = entries.get(functionName);
+        if (entry != null && entry.response.getEndpoints().contains(new Endpoint(host, port))) {
+            generations.incrementAndGet(stripe(functionName));
+            if (entries.remove(functionName, entry)) {
+                invalidations.increment();
+                logger.info("Invalidated cached lookup of '{}' at {}:{}", functionName, host, port);
+            }
+        }
+    }
+
+    /**
+     * Drops all cached lookups.
+     */
+    public void clear() {
+        for (int i = 0; i < GENERATION_STRIPES; i++) {
+            generations.incrementAndGet(i);
+        }
+        entries.clear();
+    }
+
+    /**
+     * Gets the number of cached lookups, including expired ones not yet replaced.
+     *
+     * @return the number of entries
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Gets a snapshot of the cache counters.
+     *
+     * @return the current counters
+     */
+    public Stats getStats() {
+        return new Stats(hits.sum(), negativeHits.sum(), misses.sum(), refreshes.sum(), invalidations.sum());
+    }
+
+    private LookupResponse load(String functionName, Loader loader) throws RegistryClient.RegistryException {
+        CompletableFuture<LookupResponse> mine = new CompletableFuture<>();
+        CompletableFuture<LookupResponse> existing = loading.putIfAbsent(functionName, mine);
+        if (existing != null) {
+            return await(existing);
+        }
+        try {
+            long generation = generation(functionName);
+            LookupResponse response = loader.load(functionName);
+            store(functionName, response, generation);
+            mine.complete(response);
+            return response;
+        } catch (RegistryClient.RegistryException | RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(functionName, mine);
+        }
+    }
+
+    private LookupResponse await(CompletableFuture<LookupResponse> future) throws RegistryClient.RegistryException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RegistryClient.RegistryException("Interrupted while waiting for a registry lookup", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RegistryClient.RegistryException) {
+                throw (RegistryClient.RegistryException) cause;
+            }
+            throw new RegistryClient.RegistryException("Registry lookup failed: " + cause.getMessage(), cause);
+        }
+    }
+
+    private void refreshAhead(String functionName, Entry entry, Loader loader) {
+        if (!entry.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            refresher.execute(() -> {
+                try {
+                    long generation = generation(functionName);
+                    LookupResponse response = loader.load(functionName);
+                    refreshes.increment();
+                    // Keep an entry that was replaced in the meantime; store skips invalidated ones
+                    if (entries.get(functionName) == entry) {
+                        store(functionName, response, generation);
+                    }
+                } catch (RegistryClient.RegistryException | RuntimeException e) {
+                    logger.warn("Failed to refresh lookup of '{}': {}", functionName, e.getMessage());
+                } finally {
+                    entry.refreshing.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            entry.refreshing.set(false);
+        }
+    }
+
+    private void store(String functionName, LookupResponse response, long generation) {
+        long ttl = response.isSuccess() ? ttlNanos : negativeTtlNanos;
+        if (ttl == 0) {
+            return;
+        }
+        if (entries.size() >= MAX_ENTRIES && !entries.containsKey(functionName)) {
+            long now = clock.getAsLong();
+            entries.values().removeIf(existing -> now - existing.expiresAt >= 0);
+            if (entries.size() >= MAX_ENTRIES) {
+                return;
+            }
+        }
+        long now = clock.getAsLong();
+        Entry entry = new Entry(response, now + ttl, now + (long) (ttl * REFRESH_AHEAD_FRACTION));
+        entries.put(functionName, entry);
+        // An invalidation since the lookup started either bumped the generation before this
+        // check, or removes the entry after it
+        if (generation(functionName) != generation) {
+            entries.remove(functionName, entry);
+        }
+    }
+
+    private static int stripe(String functionName) {
+        return functionName.hashCode() & (GENERATION_STRIPES - 1);
+    }
+
+    private static final class Entry {
+        private final LookupResponse response;
+        private final long expiresAt;
+        private final long refreshAt;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        private Entry(LookupResponse response, long expiresAt, long refreshAt) {
+            this.response = response;
+            this.expiresAt = expiresAt;
+            this.refreshAt = refreshAt;
+        }
+    }
+
+    /**
+     * Snapshot of the cache counters.
+     */
+    public static final class Stats {
+        private final long hits;
+        private final long negativeHits;
+        private final long misses;
+        private final long refreshes;
+        private final long invalidations;
+
+        Stats(long hits, long negativeHits, long misses, long refreshes, long invalidations) {
+            this.hits = hits;
+            this.negativeHits = negativeHits;
+            this.misses = misses;
+            this.refreshes = refreshes;
+            this.invalidations = invalidations;
+        }
+
+        /** Lookups answered from the cache with a found service. */
+        public long getHits() {
+            return hits;
+        }
+
+        /** Lookups answered from the cache with "not found". */
+        public long getNegativeHits() {
+            return negativeHits;
+        }
+
+        /** Lookups that had to go to the registry. */
+        public long getMisses() {
+            return misses;
+        }
+
+        /** Background refreshes of hot entries that completed. */
+        public long getRefreshes() {
+            return refreshes;
+        }
+
+        /** Entries dropped because a call to the cached endpoint failed. */
+        public long getInvalidations() {
+            return invalidations;
+        }
+
+        public double getHitRatio() {
+            long total = hits + negativeHits + misses;
+            return total == 0 ? 0 : (double) (hits + negativeHits) / total;
+        }
+
+        @Override
+        public String toString() {
+            return "hits=" + hits + ", negativeHits=" + negativeHits + ", misses=" + misses
+                    + ", refreshes=" + refreshes + ", invalidations=" + invalidations;
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package com.rpc.lampcontrol.middleware.registry;
+
+import com.rpc.lampcontrol.middleware.protocol.Endpoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Tracks the error rate and latency of endpoints and temporarily ejects the outliers, so one
+ * sick server does not drag up the tail latency of every caller.
+ * <p>
+ * An endpoint is ejected after a run of consecutive failures, or when, over an evaluation
+ * interval, at least half of its requests failed or its average latency was several times the
+ * median of its peers. Each ejection of the same endpoint lasts twice as long as the one before,
+ * up to a cap; the count decays again while the endpoint stays healthy. At most half of the
+ * known endpoints are ejected at once, and {@link #filter} fails open, returning every endpoint
+ * when all of them are ejected.
+ * <p>
+ * The registry feeds it the results of its health probes; {@code RpcClient} feeds it the
+ * results of its calls.
+ */
+public class OutlierDetector {
+    private static final Logger logger = LoggerFactory.getLogger(OutlierDetector.class);
+    public static final int DEFAULT_CONSECUTIVE_FAILURES = 5;
+    public static final int DEFAULT_MIN_REQUESTS = 10;
+    public static final long DEFAULT_EVALUATION_INTERVAL_MS = 1000;
+    static final long BASE_EJECTION_MS = 10_000;
+    static final long MAX_EJECTION_MS = 300_000;
+    // Failure rate over an interval at which an endpoint is ejected
+    private static final double FAILURE_RATE = 0.5;
+    // An endpoint this many times slower than the median of its peers is ejected...
+    private static final double LATENCY_FACTOR = 3.0;
+    // ...if it is also this much slower, so sub-millisecond jitter ejects nobody
+    private static final long MIN_LATENCY_EXCESS_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+    // Latency outliers need a median of at least this many endpoints to stand out from
+    private static final int MIN_LATENCY_PEERS = 3;
+    // Weight of the newest latency sample in the moving average
+    private static final double LATENCY_WEIGHT = 0.2;
+
+    private final int consecutiveFailures;
+    private final int minRequests;
+    private final long evaluationIntervalNanos;
+    private final LongSupplier clock;
+    private final Map<Endpoint, Stats> stats = new ConcurrentHashMap<>();
+    private final AtomicLong nextEvaluation;
+    // The latest end of any ejection, so filtering skips the scan while nothing is ejected
+    private final AtomicLong ejectedUntil;
+
+    /**
+     * Creates a detector with the default thresholds, suited to the results of calls.
+     */
+    public OutlierDetector() {
+        this(DEFAULT_CONSECUTIVE_FAILURES, DEFAULT_MIN_REQUESTS, DEFAULT_EVALUATION_INTERVAL_MS);
+    }
+
+    /**
+     * Creates a detector.
+     *
+     * @param consecutiveFailures How many failures in a row eject an endpoint
+     * @param minRequests How many results an endpoint needs in an interval for its failure rate
+     *                    and latency to be judged
+     * @param evaluationIntervalMs How often failure rates and latencies are judged
+     */
+    public OutlierDetector(int consecutiveFailures, int minRequests, long evaluationIntervalMs) {
+        this(consecutiveFailures, minRequests, evaluationIntervalMs, System::nanoTime);
+    }
+
+    OutlierDetector(int consecutiveFailures, int minRequests, long evaluationIntervalMs, LongSupplier clock) {
+        this.consecutiveFailures = consecutiveFailures;
+        this.minRequests = minRequests;
+        this.evaluationIntervalNanos = TimeUnit.MILLISECONDS.toNanos(evaluationIntervalMs);
+        this.clock = clock;
+        long now = clock.getAsLong();
+        this.nextEvaluation = new AtomicLong(now + evaluationIntervalNanos);
+        this.ejectedUntil = new AtomicLong(now);
+    }
+
+    /**
+     * Records a successful request.
+     *
+     * @param endpoint The endpoint that answered
+     * @param latencyNanos How long it took
+     */
+    public void recordSuccess(Endpoint endpoint, long latencyNanos) {
+        record(endpoint, true, latencyNanos);
+    }
+
+    /**
+     * Records a request that failed, including one that timed out or could not be sent.
+     *
+     * @param endpoint The endpoint that failed
+     */
+    public void recordFailure(Endpoint endpoint) {
+        record(endpoint, false, 0);
+    }
+
+    /**
+     * Checks whether an endpoint is currently ejected.
+     *
+     * @param endpoint The endpoint
+     * @return true if ejected
+     */
+    public boolean isEjected(Endpoint endpoint) {
+        Stats endpointStats = stats.get(endpoint);
+        return endpointStats != null && endpointStats.isEjected(clock.getAsLong());
+    }
+
+    /**
+     * Removes the ejected endpoints from a list.
+     *
+     * @param endpoints The endpoints
+     * @return the endpoints that are not ejected, or all of them if every one is
+     */
+    public List<Endpoint> filter(List<Endpoint> endpoints) {
+        long now = clock.getAsLong();
+        if (now - ejectedUntil.get() >= 0) {
+            return endpoints;
+        }
+        List<Endpoint> healthy = new ArrayList<>(endpoints.size());
+        for (Endpoint endpoint : endpoints) {
+            Stats endpointStats = stats.get(endpoint);
+            if (endpointStats == null || !endpointStats.isEjected(now)) {
+                healthy.add(endpoint);
+            }
+        }
+        return healthy.isEmpty() ? endpoints : healthy;
+    }
+
+    /**
+     * Forgets the endpoints not in a collection, e.g. those no longer registered.
+     *
+     * @param endpoints The endpoints to keep
+     */
+    public void retain(Collection<Endpoint> endpoints) {
+        stats.keySet().retainAll(endpoints);
+    }
+
+    private void record(Endpoint endpoint, boolean success, long latencyNanos) {
+        long now = clock.getAsLong();
+        Stats endpointStats = stats.computeIfAbsent(endpoint, key -> new Stats());
+        boolean eject;
+        synchronized (endpointStats) {
+            endpointStats.requests++;
+            if (success) {
+                endpointStats.consecutiveFailures = 0;
+                endpointStats.latencyNanos = endpointStats.latencyNanos == 0 ? latencyNanos
+                        : (long) (LATENCY_WEIGHT * latencyNanos + (1 - LATENCY_WEIGHT) * endpointStats.latencyNanos);
+            } else {
+                endpointStats.failures++;
+                endpointStats.consecutiveFailures++;
+            }
+            // Failures go on counting while ejected, so an endpoint still failing is ejected again
+            // as soon as its ejection ends
+            eject = endpointStats.consecutiveFailures >= consecutiveFailures && !endpointStats.isEjected(now);
+        }
+        if (eject) {
+            eject(endpoint, endpointStats, now, consecutiveFailures + " consecutive failures");
+        }
+        long next = nextEvaluation.get();
+        if (now - next >= 0 && nextEvaluation.compareAndSet(next, now + evaluationIntervalNanos)) {
+            evaluate(now);
+        }
+    }
+
+    private void evaluate(long now) {
+        List<Map.Entry<Endpoint, Stats>> judged = new ArrayList<>();
+        for (Map.Entry<Endpoint, Stats> entry : stats.entrySet()) {
+            Stats endpointStats = entry.getValue();
+            synchronized (endpointStats) {
+                endpointStats.judgedRequests = endpointStats.requests;
+                endpointStats.judgedFailures = endpointStats.failures;
+                endpointStats.judgedLatencyNanos = endpointStats.latencyNanos;
+                endpointStats.requests = 0;
+                endpointStats.failures = 0;
+                // Each healthy interval as long as the base ejection takes one doubling back
+                if (endpointStats.ejections > 0 && !endpointStats.isEjected(now)
+                        && now - Math.max(endpointStats.ejectedUntil, endpointStats.decayedAt)
+                        > TimeUnit.MILLISECONDS.toNanos(BASE_EJECTION_MS)) {
+                    endpointStats.ejections--;
+                    endpointStats.decayedAt = now;
+                }
+            }
+            if (endpointStats.judgedRequests >= minRequests && !endpointStats.isEjected(now)) {
+                judged.add(entry);
+            }
+        }
+
+        List<Map.Entry<Endpoint, Stats>> withLatency = new ArrayList<>();
+        for (Map.Entry<Endpoint, Stats> entry : judged) {
+            Stats endpointStats = entry.getValue();
+            if ((double) endpointStats.judgedFailures / endpointStats.judgedRequests >= FAILURE_RATE) {
+                eject(entry.getKey(), endpointStats, now, endpointStats.judgedFailures + " of "
+                        + endpointStats.judgedRequests + " requests failed");
+            } else if (endpointStats.judgedLatencyNanos > 0) {
+                withLatency.add(entry);
+            }
+        }
+        if (withLatency.size() < MIN_LATENCY_PEERS) {
+            return;
+        }
+        long[] latencies = new long[withLatency.size()];
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = withLatency.get(i).getValue().judgedLatencyNanos;
+        }
+        Arrays.sort(latencies);
+        long median = latencies[latencies.length / 2];
+        for (Map.Entry<Endpoint, Stats> entry : withLatency) {
+            long latency = entry.getValue().judgedLatencyNanos;
+            if (latency > LATENCY_FACTOR * median && latency - median > MIN_LATENCY_EXCESS_NANOS) {
+                eject(entry.getKey(), entry.getValue(), now, String.format("latency %.1f ms against a median of %.1f ms",
+                        latency / 1e6, median / 1e6));
+            }
+        }
+    }
+
+    private void eject(Endpoint endpoint, Stats endpointStats, long now, String reason) {
+        int ejected = 0;
+        for (Stats other : stats.values()) {
+            if (other.isEjected(now)) {
+                ejected++;
+            }
+        }
+        if ((ejected + 1) * 2 > stats.size()) {
+            logger.warn("Not ejecting {} ({}): {} of {} endpoints are ejected already", endpoint, reason,
+                    ejected, stats.size());
+            return;
+        }
+        long durationMs;
+        synchronized (endpointStats) {
+            if (endpointStats.isEjected(now)) {
+                return;
+            }
+            durationMs = Math.min(BASE_EJECTION_MS << Math.min(endpointStats.ejections, 20), MAX_EJECTION_MS);
+            endpointStats.ejections++;
+            endpointStats.ejectedUntil = now + TimeUnit.MILLISECONDS.toNanos(durationMs);
+            endpointStats.consecutiveFailures = 0;
+            // Judged afresh when it comes back
+            endpointStats.latencyNanos = 0;
+            ejectedUntil.accumulateAndGet(endpointStats.ejectedUntil, (a, b) -> b - a > 0 ? b : a);
+        }
+        logger.warn("Ejected {} for {} ms: {}", endpoint, durationMs, reason);
+    }
+
+    /**
+     * The results of one endpoint. Counters are guarded by the instance, and the judged ones
+     * are only touched by the evaluating thread; the end of the ejection is also read without
+     * the lock.
+     */
+    private static final class Stats {
+        private long requests;
+        private long failures;
+        private long judgedRequests;
+        private long judgedFailures;
+        private long judgedLatencyNanos;
+        private int consecutiveFailures;
+        // Moving average of successful requests, 0 until the first one
+        private long latencyNanos;
+        private int ejections;
+        private volatile long ejectedUntil;
+        private long decayedAt;
+
+        private Stats() {
+            // Not ejected: an end in the past
+            this.ejectedUntil = Long.MIN_VALUE / 2;
+            this.decayedAt = Long.MIN_VALUE / 2;
+        }
+
+        private boolean isEjected(long now) {
+            return ejectedUntil - now > 0;
+        }
+    }
+}
@@ -3,22 +3,60 @@ package com.rpc.lampcontrol.middleware.registry;
 import com.rpc.lampcontrol.middleware.protocol.*;
 import com.rpc.lampcontrol.middleware.transport.ClientTransport;
 import com.rpc.lampcontrol.middleware.transport.ConnectionHandler;
+import com.rpc.lampcontrol.middleware.transport.ConnectionPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Client for interacting with the Registry server.
+ * Connections to the registry are kept alive in a pool and reused across requests.
+ * Lookups are cached (see {@link LookupCache}), so repeated calls to the same function
+ * normally do not reach the registry at all.
+ * <p>
+ * The client can be given every node of a registry cluster. Lookups then take turns among
+ * the nodes, so they spread over the followers, and registrations and heartbeats go to the
+ * first node, normally the leader. A request to a node that cannot be reached is retried on
+ * the next one; registrations stick with the node that last took one.
  */
-public class RegistryClient {
+public class RegistryClient implements AutoCloseable {
     private static final Logger logger = LoggerFactory.getLogger(RegistryClient.class);
     private static final String DEFAULT_HOST = "localhost";
     private static final int DEFAULT_PORT = 7777;
+    private static final long WATCH_TIMEOUT_MS = 5000;
+    private static final int MAX_LIST_ATTEMPTS = 3;
+    // Registry requests are blocking; asynchronous lookups that miss the cache run here
+    private static final ExecutorService LOOKUP_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "registry-lookup");
+        thread.setDaemon(true);
+        return thread;
+    });
     
-    private final String registryHost;
-    private final int registryPort;
-    private final ClientTransport transport;
+    private final List<Endpoint> registries;
+    // Lookups start at the next node in turn; writes at the node that last took one
+    private final AtomicInteger nextLookupRegistry = new AtomicInteger();
+    private volatile int writeRegistry = 0;
+    private final ConnectionPool connectionPool;
+    private final LookupCache lookupCache;
+    private final Map<String, CompletableFuture<LookupResponse>> pendingLookups = new ConcurrentHashMap<>();
+    private final Set<RegistryWatch> watches = ConcurrentHashMap.newKeySet();
     
     /**
      * Creates a new RegistryClient using default host and port.
@@ -34,28 +72,97 @@ public class RegistryClient {
      * @param registryPort The registry port
      */
     public RegistryClient(String registryHost, int registryPort) {
-        this.registryHost = registryHost;
-        this.registryPort = registryPort;
-        this.transport = new ClientTransport();
-        logger.info("RegistryClient configured to use registry at {}:{}", registryHost, registryPort);
+        this(registryHost, registryPort, new LookupCache());
     }
     
     /**
-     * Gets the host of the registry server.
+     * Creates a new RegistryClient with the specified registry host and port and lookup cache.
+     * Pass {@code new LookupCache(0, 0)} to send every lookup to the registry.
+     *
+     * @param registryHost The registry host
+     * @param registryPort The registry port
+     * @param lookupCache The cache for lookup results
+     */
+    public RegistryClient(String registryHost, int registryPort, LookupCache lookupCache) {
+        this(List.of(new Endpoint(registryHost, registryPort)), lookupCache);
+    }
+    
+    /**
+     * Creates a new RegistryClient for the nodes of a registry cluster, leader first.
+     *
+     * @param registries The registry nodes
+     */
+    public RegistryClient(List<Endpoint> registries) {
+        this(registries, new LookupCache());
+    }
+    
+    /**
+     * Creates a new RegistryClient for the nodes of a registry cluster, leader first, with
+     * the specified lookup cache.
+     *
+     * @param registries The registry nodes
+     * @param lookupCache The cache for lookup results
+     */
+    public RegistryClient(List<Endpoint> registries, LookupCache lookupCache) {
+        if (registries.isEmpty()) {
+            throw new IllegalArgumentException("At least one registry is required");
+        }
+        this.registries = List.copyOf(registries);
+        this.connectionPool = new ConnectionPool(new ClientTransport());
+        this.lookupCache = lookupCache;
+        logger.info("RegistryClient configured to use registry at {}", this.registries);
+    }
+    
+    /**
+     * Parses a comma-separated list of registry addresses, such as
+     * {@code localhost:7777,localhost:7778}.
+     *
+     * @param addresses The addresses, each as host:port
+     * @return the registry endpoints
+     * @throws IllegalArgumentException if an address is malformed
+     */
+    public static List<Endpoint> parseAddresses(String addresses) {
+        List<Endpoint> endpoints = new ArrayList<>();
+        for (String address : addresses.split(",")) {
+            String trimmed = address.trim();
+            int colon = trimmed.lastIndexOf(':');
+            if (colon <= 0 || colon == trimmed.length() - 1) {
+                throw new IllegalArgumentException("Registry address '" + trimmed + "' is not host:port");
+            }
+            try {
+                endpoints.add(new Endpoint(trimmed.substring(0, colon), Integer.parseInt(trimmed.substring(colon + 1))));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Registry address '" + trimmed + "' has an invalid port", e);
+            }
+        }
+        return endpoints;
+    }
+    
+    /**
+     * Gets the host of the registry server, or of the first one in a cluster.
      *
      * @return the registry host
      */
     public String getRegistryHost() {
-        return registryHost;
+        return registries.get(0).getHost();
     }
     
     /**
-     * Gets the port of the registry server.
+     * Gets the port of the registry server, or of the first one in a cluster.
      *
      * @return the registry port
      */
     public int getRegistryPort() {
-        return registryPort;
+        return registries.get(0).getPort();
+    }
+    
+    /**
+     * Gets all registry nodes this client uses.
+     *
+     * @return the registry endpoints
+     */
+    public List<Endpoint> getRegistries() {
+        return registries;
     }
     
     /**
@@ -68,19 +175,86 @@ public class RegistryClient {
      * @throws RegistryException if there is an error communicating with the registry
      */
     public RegisterResponse registerService(String functionName, String host, int port) throws RegistryException {
-        logger.info("Registering service '{}' at {}:{} with registry at {}:{}", 
-            functionName, host, port, registryHost, registryPort);
+        return registerService(functionName, host, port, 0, 0);
+    }
+    
+    /**
+     * Registers a service under a lease, so that the registry drops it if the lease is not
+     * renewed with {@link #renewLease} in time.
+     *
+     * @param functionName The name of the function to register
+     * @param host The host where the function is available
+     * @param port The port where the function is available
+     * @param leaseId The lease to register under, or 0 for a new lease
+     * @param leaseTtlMs The TTL of a new lease in milliseconds
+     * @return The registry response, with the lease id and granted TTL
+     * @throws RegistryException if there is an error communicating with the registry
+     */
+    public RegisterResponse registerService(String functionName, String host, int port, long leaseId, long leaseTtlMs)
+            throws RegistryException {
+        return registerServices(List.of(functionName), host, port, leaseId, leaseTtlMs);
+    }
+    
+    /**
+     * Registers several functions offered at one endpoint in a single request.
+     *
+     * @param functionNames The names of the functions to register
+     * @param host The host where the functions are available
+     * @param port The port where the functions are available
+     * @return The registry response
+     * @throws RegistryException if there is an error communicating with the registry
+     */
+    public RegisterResponse registerServices(List<String> functionNames, String host, int port) throws RegistryException {
+        return registerServices(functionNames, host, port, 0, 0);
+    }
+    
+    /**
+     * Registers several functions offered at one endpoint in a single request, under a lease.
+     *
+     * @param functionNames The names of the functions to register
+     * @param host The host where the functions are available
+     * @param port The port where the functions are available
+     * @param leaseId The lease to register under, or 0 for a new lease
+     * @param leaseTtlMs The TTL of a new lease in milliseconds, or 0 to register without a lease
+     * @return The registry response, with the lease id and granted TTL
+     * @throws RegistryException if there is an error communicating with the registry, or the
+     *         registry node cannot reach its leader
+     */
+    public RegisterResponse registerServices(List<String> functionNames, String host, int port, long leaseId,
+                                             long leaseTtlMs) throws RegistryException {
+        if (functionNames.isEmpty()) {
+            throw new IllegalArgumentException("No functions to register");
+        }
+        String subject = functionNames.size() == 1
+                ? "service '" + functionNames.get(0) + "'"
+                : functionNames.size() + " services";
+        logger.info("Registering {} at {}:{} with registry at {}", subject, host, port, registries);
         
-        RegisterRequest request = new RegisterRequest(functionName, host, port);
+        // A single function goes in the plain form, which every registry understands
+        RegisterRequest request = new RegisterRequest(functionNames.get(0), host, port);
+        if (functionNames.size() > 1) {
+            request.setFunctionNames(functionNames);
+        }
+        request.setLeaseId(leaseId);
+        request.setLeaseTtlMs(leaseTtlMs);
         
-        try (ConnectionHandler connection = transport.connect(registryHost, registryPort)) {
-            connection.sendMessage(request);
-            RegisterResponse response = connection.receiveMessage(RegisterResponse.class);
+        try {
+            RegisterResponse response = execute(true, connection -> {
+                connection.sendMessage(request);
+                return connection.receiveMessage(RegisterResponse.class);
+            });
             
+            if (response.isUnavailable()) {
+                throw new RegistryException("Failed to register service: " + response.getMessage(), null);
+            }
             if (response.isSuccess()) {
-                logger.info("Service '{}' registered successfully: {}", functionName, response.getMessage());
+                // A cached "not found" or old endpoint for these functions is now out of date
+                for (String functionName : functionNames) {
+                    lookupCache.invalidate(functionName);
+                }
+                logger.info("Registered {} successfully: {}", subject, response.getMessage());
             } else {
-                logger.warn("Failed to register service '{}': {}", functionName, response.getMessage());
+                logger.warn("Failed to register {}: {}", subject, response.getMessage());
             }
             
             return response;
@@ -91,21 +265,264 @@ public class RegistryClient {
     }
     
     /**
-     * Looks up a service in the registry.
+     * Renews a lease, keeping the services registered under it.
+     *
+     * @param leaseId The lease to renew
+     * @return true if renewed, false if the lease has expired and its services were dropped
+     * @throws RegistryException if there is an error communicating with the registry, or the
+     *         registry node cannot reach its leader
+     */
+    public boolean renewLease(long leaseId) throws RegistryException {
+        HeartbeatRequest request = new HeartbeatRequest(leaseId);
+        try {
+            HeartbeatResponse response = execute(true, connection -> {
+                connection.sendMessage(request);
+                return connection.receiveMessage(HeartbeatResponse.class);
+            });
+            if (response.isUnavailable()) {
+                throw new RegistryException("Failed to renew lease: " + response.getMessage(), null);
+            }
+            if (!response.isSuccess()) {
+                logger.warn("Failed to renew lease {}: {}", leaseId, response.getMessage());
+            }
+            return response.isSuccess();
+        } catch (IOException | ConnectionHandler.ConnectionException e) {
+            logger.error("Error renewing lease: {}", e.getMessage());
+            throw new RegistryException("Failed to renew lease: " + e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Looks up a service, answering from the lookup cache when it holds a fresh entry.
+     * The returned response may be shared with other callers and must not be modified.
      *
      * @param functionName The name of the function to look up
      * @return The lookup response
      * @throws RegistryException if there is an error communicating with the registry
      */
     public LookupResponse lookupService(String functionName) throws RegistryException {
-        logger.info("Looking up service '{}' in registry at {}:{}", 
-            functionName, registryHost, registryPort);
+        return lookupCache.get(functionName, this::fetchLookup);
+    }
+    
+    /**
+     * Looks up several services with one registry request for all that are not cached, and
+     * caches the answers, so a client that knows which functions it will call can prefetch
+     * their lookups at startup.
+     *
+     * @param functionNames The names of the functions to look up
+     * @return the lookup response of each function, in the given order; a function that is
+     *         not registered gets a "not found" response
+     * @throws RegistryException if there is an error communicating with the registry
+     */
+    public Map<String, LookupResponse> lookupServices(List<String> functionNames) throws RegistryException {
+        Map<String, LookupResponse> responses = new LinkedHashMap<>(functionNames.size() * 2);
+        List<String> missing = new ArrayList<>();
+        for (String functionName : functionNames) {
+            LookupResponse cached = lookupCache.getIfFresh(functionName, this::fetchLookup);
+            responses.put(functionName, cached);
+            if (cached == null) {
+                missing.add(functionName);
+            }
+        }
+        if (missing.isEmpty()) {
+            return responses;
+        }
+        long[] generations = new long[missing.size()];
+        for (int i = 0; i < generations.length; i++) {
+            generations[i] = lookupCache.generation(missing.get(i));
+        }
+        logger.info("Looking up {} services in registry at {}", missing.size(), registries);
+        LookupRequest request = new LookupRequest(missing.get(0));
+        request.setFunctionNames(missing);
+        LookupResponse response;
+        try {
+            response = execute(false, connection -> {
+                connection.sendMessage(request);
+                return connection.receiveMessage(LookupResponse.class);
+            });
+        } catch (IOException | ConnectionHandler.ConnectionException e) {
+            logger.error("Error looking up services: {}", e.getMessage());
+            throw new RegistryException("Failed to look up services: " + e.getMessage(), e);
+        }
+        if (!response.isSuccess() || response.getFunctions() == null) {
+            throw new RegistryException("Failed to look up services: "
+                    + (response.getErrorMessage() != null ? response.getErrorMessage() : "registry does not support bulk lookups"), null);
+        }
+        for (int i = 0; i < missing.size(); i++) {
+            String functionName = missing.get(i);
+            List<Endpoint> endpoints = response.getFunctions().get(functionName);
+            LookupResponse lookup = endpoints != null && !endpoints.isEmpty()
+                    ? LookupResponse.success(endpoints)
+                    : LookupResponse.error("Function '" + functionName + "' not found");
+            lookupCache.put(functionName, lookup, generations[i]);
+            responses.put(functionName, lookup);
+        }
+        return responses;
+    }
+    
+    /**
+     * Lists one page of the functions whose name starts with a prefix, in name order.
+     *
+     * @param prefix The prefix of the function names, such as {@code building7/}; empty for all
+     * @param startAfter The last function of the previous page, or null for the first page
+     * @param limit The maximum number of functions in the page, or 0 for the registry's default
+     * @param revision The revision of the first page for later pages, or 0 for the current revision
+     * @return the page; an error response if the revision is no longer available
+     * @throws RegistryException if there is an error communicating with the registry
+     */
+    public ListResponse list(String prefix, String startAfter, int limit, long revision) throws RegistryException {
+        ListRequest request = new ListRequest(prefix, startAfter, limit, revision);
+        try {
+            return execute(false, connection -> {
+                connection.sendMessage(request);
+                return connection.receiveMessage(ListResponse.class);
+            });
+        } catch (IOException | ConnectionHandler.ConnectionException e) {
+            logger.error("Error listing services: {}", e.getMessage());
+            throw new RegistryException("Failed to list services: " + e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Lists all functions whose name starts with a prefix, as they were at one revision, by
+     * paging through them at the revision of the first page. If the registry no longer has
+     * that revision by the time a later page is asked for, the listing starts over.
+     *
+     * @param prefix The prefix of the function names; empty for all
+     * @return the endpoints of each function, in name order
+     * @throws RegistryException if the registry cannot be reached or the listing cannot complete
+     */
+    public SortedMap<String, List<Endpoint>> listAll(String prefix) throws RegistryException {
+        String lastError = null;
+        for (int attempt = 0; attempt < MAX_LIST_ATTEMPTS; attempt++) {
+            SortedMap<String, List<Endpoint>> functions = new TreeMap<>();
+            long revision = 0;
+            String startAfter = null;
+            ListResponse page;
+            do {
+                page = list(prefix, startAfter, 0, revision);
+                if (!page.isSuccess()) {
+                    break;
+                }
+                revision = page.getRevision();
+                functions.putAll(page.getFunctions());
+                for (String functionName : page.getFunctions().keySet()) {
+                    startAfter = functionName;
+                }
+            } while (page.isMore());
+            if (page.isSuccess()) {
+                return functions;
+            }
+            lastError = page.getErrorMessage();
+            logger.warn("Listing of '{}' interrupted: {}; starting over", prefix, lastError);
+        }
+        throw new RegistryException("Failed to list '" + prefix + "': " + lastError, null);
+    }
+    
+    /**
+     * Looks up a service without blocking the caller. Cache hits complete immediately;
+     * misses are fetched from the registry on a shared lookup thread pool.
+     *
+     * @param functionName The name of the function to look up
+     * @return a future completed with the lookup response, or exceptionally with a
+     *         RegistryException if the registry cannot be reached
+     */
+    public CompletableFuture<LookupResponse> lookupServiceAsync(String functionName) {
+        LookupResponse cached = lookupCache.getIfFresh(functionName, this::fetchLookup);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        // Concurrent misses share one pending lookup instead of each occupying a thread
+        CompletableFuture<LookupResponse> future = new CompletableFuture<>();
+        CompletableFuture<LookupResponse> pending = pendingLookups.putIfAbsent(functionName, future);
+        if (pending != null) {
+            return pending;
+        }
+        try {
+            LOOKUP_EXECUTOR.execute(() -> {
+                // Stop sharing before completing, so callers that follow up on the result start a new lookup
+                try {
+                    LookupResponse response = lookupService(functionName);
+                    pendingLookups.remove(functionName, future);
+                    future.complete(response);
+                } catch (RegistryException | RuntimeException e) {
+                    pendingLookups.remove(functionName, future);
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pendingLookups.remove(functionName, future);
+            future.completeExceptionally(new RegistryException("Lookup of '" + functionName + "' rejected", e));
+        }
+        return future;
+    }
+    
+    /**
+     * Watches the endpoints of a function, or of all functions whose name starts with a
+     * prefix. The registry pushes every change to the returned watch over one long-lived
+     * connection, and each change also drops this client's cached lookup of the function.
+     *
+     * @param key The function name, or the prefix of the function names
+     * @param prefix True to watch every function whose name starts with the key
+     * @param listener Receives each change as it is applied, or null
+     * @return the watch, once its view holds the registry's current endpoints
+     * @throws RegistryException if the registry cannot be reached
+     */
+    public RegistryWatch watch(String key, boolean prefix, RegistryWatch.Listener listener) throws RegistryException {
+        RegistryWatch.Listener target = listener != null ? listener : change -> { };
+        RegistryWatch watch = new RegistryWatch(registries, key, prefix, target, lookupCache) {
+            @Override
+            public void close() {
+                watches.remove(this);
+                super.close();
+            }
+        };
+        watches.add(watch);
+        try {
+            return watch.start().get(WATCH_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            watch.close();
+            Thread.currentThread().interrupt();
+            throw new RegistryException("Interrupted while starting a watch", e);
+        } catch (ExecutionException | TimeoutException e) {
+            watch.close();
+            Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+            logger.error("Error watching '{}': {}", key, cause.getMessage());
+            throw new RegistryException("Failed to watch '" + key + "': " + cause.getMessage(), cause);
+        }
+    }
+    
+    /**
+     * Drops the cached lookup of a function after a call to the endpoint it named failed,
+     * so the next lookup asks the registry again.
+     *
+     * @param functionName The function that was called
+     * @param host The host the call went to
+     * @param port The port the call went to
+     */
+    public void invalidateLookup(String functionName, String host, int port) {
+        lookupCache.invalidate(functionName, host, port);
+    }
+    
+    /**
+     * Gets the lookup cache, for its hit and miss counters.
+     *
+     * @return the lookup cache
+     */
+    public LookupCache getLookupCache() {
+        return lookupCache;
+    }
+    
+    private LookupResponse fetchLookup(String functionName) throws RegistryException {
+        logger.info("Looking up service '{}' in registry at {}", functionName, registries);
         
         LookupRequest request = new LookupRequest(functionName);
         
-        try (ConnectionHandler connection = transport.connect(registryHost, registryPort)) {
-            connection.sendMessage(request);
-            LookupResponse response = connection.receiveMessage(LookupResponse.class);
+        try {
+            LookupResponse response = execute(false, connection -> {
+                connection.sendMessage(request);
+                return connection.receiveMessage(LookupResponse.class);
+            });
             
             if (response.isSuccess()) {
                 logger.info("Service '{}' found at {}:{}", functionName, response.getHost(), response.getPort());
@@ -120,6 +537,43 @@ public class RegistryClient {
         }
     }
     
+    /**
+     * Runs an exchange with a registry node, moving on to the next node while they cannot be
+     * reached. Lookups start at the next node in turn, writes at the node that last took one.
+     */
+    private <T> T execute(boolean write, ConnectionPool.Exchange<T> exchange)
+            throws IOException, ConnectionHandler.ConnectionException {
+        int first = write ? writeRegistry : Math.floorMod(nextLookupRegistry.getAndIncrement(), registries.size());
+        for (int attempt = 0; ; attempt++) {
+            int index = (first + attempt) % registries.size();
+            Endpoint registry = registries.get(index);
+            try {
+                // Reads may be sent again; a write only if the registry cannot have received it
+                T result = connectionPool.execute(registry.getHost(), registry.getPort(), !write, exchange);
+                if (write && index != first) {
+                    writeRegistry = index;
+                }
+                return result;
+            } catch (IOException | ConnectionHandler.ConnectionException e) {
+                if (attempt == registries.size() - 1) {
+                    throw e;
+                }
+                logger.warn("Registry at {} failed: {}; trying the next one", registry, e.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Closes all pooled connections to the registry and stops all watches.
+     */
+    @Override
+    public void close() {
+        for (RegistryWatch watch : watches) {
+            watch.close();
+        }
+        connectionPool.close();
+    }
+    
     /**
      * Exception thrown when there is an error communicating with the registry.
      */
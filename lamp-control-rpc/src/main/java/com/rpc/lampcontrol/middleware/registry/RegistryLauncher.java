@@ -1,11 +1,14 @@
 package com.rpc.lampcontrol.middleware.registry;
 
+import com.rpc.lampcontrol.middleware.protocol.Endpoint;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Launcher for the Registry Server.
  * This class provides a simple way to start the registry server as a standalone application.
+ * Arguments: the port, 7777 by default, and optionally the leader's host:port to start a
+ * follower of it, so a cluster runs as one process per node.
  */
 public class RegistryLauncher {
     private static final Logger logger = LoggerFactory.getLogger(RegistryLauncher.class);
@@ -22,7 +25,14 @@ public class RegistryLauncher {
             }
         }
         
-        RegistryServer registryServer = new RegistryServer(port);
+        RegistryServer registryServer;
+        if (args.length > 1) {
+            Endpoint leader = RegistryClient.parseAddresses(args[1]).get(0);
+            logger.info("Starting as a follower of {}", leader);
+            registryServer = new RegistryServer(port, leader);
+        } else {
+            registryServer = new RegistryServer(port);
+        }
         
         // Add shutdown hook to cleanly shutdown the server
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
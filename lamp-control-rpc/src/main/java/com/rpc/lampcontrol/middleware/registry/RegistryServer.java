@@ -1,6 +1,5 @@
 package com.rpc.lampcontrol.middleware.registry;
 
-import com.rpc.lampcontrol.middleware.common.JsonSerializer;
 import com.rpc.lampcontrol.middleware.protocol.*;
 import com.rpc.lampcontrol.middleware.transport.ConnectionHandler;
 import com.rpc.lampcontrol.middleware.transport.ServerTransport;
@@ -8,17 +7,69 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Registry server that handles service registration and lookup requests.
+ * Registrations made under a lease are removed once the lease expires without heartbeats.
+ * Clients can also watch a function, or all functions with a name prefix, and have every
+ * change to its endpoints pushed to them as {@link WatchEvent}s, and list all functions under
+ * a name prefix page by page with {@link ListRequest}s.
+ * <p>
+ * Given a data directory, the registry journals every registration there and recovers them
+ * when it starts, before it accepts any connection; a registration is acknowledged only once
+ * it is on disk. Without one, it keeps everything in memory.
+ * <p>
+ * Several registry servers form a cluster by starting the others as followers of one leader.
+ * A follower watches all of the leader's registry and applies every change at the leader's
+ * revision, then serves lookups and watches from its copy, so reads scale with the number of
+ * nodes. It forwards registrations and heartbeats to the leader, which alone grants and
+ * expires leases, and answers a forwarded registration once it has replicated it, so that a
+ * lookup on the same node finds it. The leader is fixed by configuration: while it is down, followers keep
+ * serving the registry as it last was, and catch up once it is back.
+ * <p>
+ * Every node pings the registered endpoints every few seconds (see {@link HealthChecker}) and
+ * leaves those that fail or answer far slower than their peers out of lookups for a while.
  */
 public class RegistryServer {
     private static final Logger logger = LoggerFactory.getLogger(RegistryServer.class);
     private static final int DEFAULT_PORT = 7777;
+    // A watcher whose connection has not taken this many events is dropped; it can watch again
+    // from its last revision, which costs one replay instead of unbounded buffering here
+    static final int MAX_LAGGED_WATCH_EVENTS = 1000;
+    // Listing pages are taken under the registry's lock, so their size is capped
+    static final int DEFAULT_LIST_LIMIT = 100;
+    static final int MAX_LIST_LIMIT = 1000;
+    // How long a follower waits for the leader's registry before it starts serving without it
+    private static final long FOLLOWER_SYNC_TIMEOUT_MS = 5000;
+    // How long a follower holds back its answer to a forwarded registration until it has
+    // replicated it, so the registrant can look it up there at once
+    private static final long FOLLOWER_APPLY_TIMEOUT_MS = 2000;
     
     private final int port;
+    private final Path dataDirectory;
+    private final Endpoint leader;
     private final ServiceRegistry registry;
     private final ServerTransport serverTransport;
+    private final HealthChecker healthChecker;
+    private ScheduledExecutorService leaseTimer;
+    private final Map<ConnectionHandler, List<Watch>> watches = new ConcurrentHashMap<>();
+    // Only set on a follower
+    private RegistryClient leaderClient;
+    private RegistryWatch replication;
     
     /**
      * Creates a new RegistryServer on the default port.
@@ -33,9 +84,38 @@ public class RegistryServer {
      * @param port The port to listen on
      */
     public RegistryServer(int port) {
+        this(port, (Path) null);
+    }
+    
+    /**
+     * Creates a new RegistryServer on the specified port that keeps its registrations in a
+     * directory, so that they survive restarts.
+     *
+     * @param port The port to listen on
+     * @param dataDirectory The directory for the registry's journal and snapshots, or null to keep them in memory
+     */
+    public RegistryServer(int port, Path dataDirectory) {
+        this(port, dataDirectory, null);
+    }
+    
+    /**
+     * Creates a new RegistryServer on the specified port that follows the registry of a leader.
+     * Its copy of the registry is kept in memory and filled from the leader when it starts.
+     *
+     * @param port The port to listen on
+     * @param leader The leader's address
+     */
+    public RegistryServer(int port, Endpoint leader) {
+        this(port, null, leader);
+    }
+    
+    private RegistryServer(int port, Path dataDirectory, Endpoint leader) {
         this.port = port;
+        this.dataDirectory = dataDirectory;
+        this.leader = leader;
         this.registry = new ServiceRegistry();
         this.serverTransport = new ServerTransport(port);
+        this.healthChecker = new HealthChecker(registry);
     }
     
     /**
@@ -45,7 +125,24 @@ public class RegistryServer {
      */
     public void start() throws IOException {
         logger.info("Starting registry server on port {}", port);
+        if (dataDirectory != null) {
+            // Recover before accepting connections, so no lookup sees a partial registry
+            registry.open(dataDirectory);
+        }
+        if (leader != null) {
+            follow();
+        }
         serverTransport.start(this::handleConnection);
+        leaseTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "registry-lease-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        leaseTimer.scheduleAtFixedRate(this::maintain,
+                ServiceRegistry.LEASE_TICK_MS, ServiceRegistry.LEASE_TICK_MS, TimeUnit.MILLISECONDS);
+        // Every node probes for itself, so followers eject endpoints even when the leader is down
+        leaseTimer.scheduleAtFixedRate(this::probe,
+                HealthChecker.PROBE_INTERVAL_MS, HealthChecker.PROBE_INTERVAL_MS, TimeUnit.MILLISECONDS);
         logger.info("Registry server started on port {}", serverTransport.getPort());
     }
     
@@ -54,7 +151,17 @@ public class RegistryServer {
      */
     public void stop() {
         logger.info("Stopping registry server");
+        if (leaseTimer != null) {
+            leaseTimer.shutdownNow();
+        }
         serverTransport.stop();
+        healthChecker.close();
+        if (replication != null) {
+            replication.close();
+            leaderClient.close();
+        }
+        // Closed first, so clearing the in-memory state does not reach the journal
+        registry.close();
         registry.clear();
         logger.info("Registry server stopped");
     }
@@ -68,19 +175,94 @@ public class RegistryServer {
         return serverTransport.getPort();
     }
     
+    /**
+     * Checks whether this server follows a leader.
+     *
+     * @return true for a follower
+     */
+    public boolean isFollower() {
+        return leader != null;
+    }
+    
+    private void follow() {
+        logger.info("Following the registry at {}", leader);
+        leaderClient = new RegistryClient(List.of(leader), new LookupCache(0, 0));
+        replication = new RegistryWatch(List.of(leader), "", true, new Replicator(), new LookupCache(0, 0));
+        // Like recovery, syncing comes before accepting connections, unless the leader is down
+        try {
+            replication.start().get(FOLLOWER_SYNC_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            logger.info("In sync with the leader at revision {}", registry.getRevision());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+            logger.warn("Leader at {} not reached ({}); serving without its registry until it is", leader,
+                    cause.getMessage());
+        }
+    }
+    
+    private void maintain() {
+        try {
+            int expired = registry.expireLeases();
+            if (expired > 0) {
+                logger.info("Expired {} leases; {} services remain registered", expired, registry.getServiceCount());
+            }
+            if (registry.isSnapshotDue()) {
+                registry.snapshot();
+            }
+        } catch (IOException | RuntimeException e) {
+            // An exception would cancel the periodic task
+            logger.error("Error maintaining the registry: {}", e.getMessage(), e);
+        }
+    }
+    
+    private void probe() {
+        try {
+            healthChecker.probe();
+        } catch (RuntimeException e) {
+            // An exception would cancel the periodic task
+            logger.error("Error probing registered endpoints: {}", e.getMessage(), e);
+        }
+    }
+    
     private void handleConnection(ConnectionHandler connection) {
+        connection.setMessageListener(new ConnectionHandler.MessageListener() {
+            @Override
+            public void onMessage(ConnectionHandler source, Message message) {
+                handleMessage(source, message);
+            }
+
+            @Override
+            public void onClose(ConnectionHandler source) {
+                List<Watch> closed = watches.remove(source);
+                if (closed != null) {
+                    for (Watch watch : closed) {
+                        registry.unwatch(watch);
+                    }
+                }
+            }
+        });
+    }
+    
+    private void handleMessage(ConnectionHandler connection, Message message) {
         try {
-            // Read the raw message
-            String json = connection.readRawMessage();
-            
-            // Deserialize to determine message type
-            Message message = JsonSerializer.deserialize(json);
-            
             // Process based on message type
             if (message instanceof RegisterRequest) {
                 handleRegisterRequest(connection, (RegisterRequest) message);
             } else if (message instanceof LookupRequest) {
                 handleLookupRequest(connection, (LookupRequest) message);
+            } else if (message instanceof HeartbeatRequest) {
+                handleHeartbeatRequest(connection, (HeartbeatRequest) message);
+            } else if (message instanceof PingRequest) {
+                PingResponse response = PingResponse.success();
+                response.setTraceId(message.getTraceId());
+                connection.sendMessage(response);
+            } else if (message instanceof WatchRequest) {
+                handleWatchRequest(connection, (WatchRequest) message);
+            } else if (message instanceof ListRequest) {
+                handleListRequest(connection, (ListRequest) message);
+            } else if (message instanceof UnsubscribeRequest) {
+                handleUnwatchRequest(connection, (UnsubscribeRequest) message);
             } else {
                 logger.warn("Received unknown message type: {}", message.getClass().getSimpleName());
                 // Send error response
@@ -88,41 +270,208 @@ public class RegistryServer {
                 errorResponse.setTraceId(message.getTraceId());
                 connection.sendMessage(errorResponse);
             }
-        } catch (Exception e) {
+        } catch (ConnectionHandler.ConnectionException e) {
             logger.error("Error handling connection: {}", e.getMessage());
-        } finally {
             connection.close();
         }
     }
     
     private void handleRegisterRequest(ConnectionHandler connection, RegisterRequest request) 
             throws ConnectionHandler.ConnectionException {
-        String functionName = request.getFunctionName();
+        List<String> functionNames = functionNames(request.getFunctionName(), request.getFunctionNames());
         String host = request.getHost();
         int port = request.getPort();
+        String subject = describe(functionNames);
         
-        logger.info("Received register request for function '{}' at {}:{}", functionName, host, port);
+        logger.info("Received register request for {} at {}:{}", subject, host, port);
+        
+        if (leaderClient != null) {
+            forwardRegisterRequest(connection, request, functionNames);
+            return;
+        }
         
         RegisterResponse response = new RegisterResponse();
         response.setTraceId(request.getTraceId());
         
-        boolean registered = registry.registerService(functionName, host, port);
+        if (request.getLeaseTtlMs() > 0 || request.getLeaseId() != 0) {
+            registerLeased(request, functionNames, subject, response);
+            connection.sendMessage(response);
+            return;
+        }
+        
+        boolean registered = registry.registerServices(functionNames, host, port) > 0;
+        if (!awaitDurable(response)) {
+            connection.sendMessage(response);
+            return;
+        }
+        response.setStatus("success");
+        response.setRevision(registry.getRevision());
         if (registered) {
-            logger.info("Function '{}' registered successfully at {}:{}", functionName, host, port);
-            response.setStatus("success");
-            response.setMessage("Function '" + functionName + "' registered successfully");
+            logger.info("{} registered successfully at {}:{}", subject, host, port);
+            response.setMessage(subject + " registered successfully");
         } else {
-            logger.info("Function '{}' already registered, updating to {}:{}", functionName, host, port);
-            registry.updateService(functionName, host, port);
-            response.setStatus("success");
-            response.setMessage("Function '" + functionName + "' registration updated");
+            logger.info("{} already registered at {}:{}, registration updated", subject, host, port);
+            response.setMessage(subject + " registration updated");
         }
         
         connection.sendMessage(response);
     }
     
+    private void registerLeased(RegisterRequest request, List<String> functionNames, String subject,
+                                RegisterResponse response) {
+        long leaseId = request.getLeaseId();
+        if (leaseId == 0) {
+            leaseId = registry.grantLease(request.getLeaseTtlMs());
+            logger.info("Granted lease {} with TTL {} ms", leaseId, registry.getLeaseTtl(leaseId));
+        } else if (!registry.renewLease(leaseId)) {
+            logger.warn("Cannot register {}: lease {} has expired", subject, leaseId);
+            response.setStatus("error");
+            response.setMessage("Lease " + leaseId + " not found");
+            return;
+        }
+        boolean registered;
+        try {
+            registered = registry.registerServices(functionNames, request.getHost(), request.getPort(), leaseId) > 0;
+        } catch (IllegalArgumentException e) {
+            // The lease expired between the renewal and the registration
+            response.setStatus("error");
+            response.setMessage(e.getMessage());
+            return;
+        }
+        if (!awaitDurable(response)) {
+            return;
+        }
+        logger.info("{} {} at {}:{} under lease {}", subject, registered ? "registered" : "updated",
+                request.getHost(), request.getPort(), leaseId);
+        response.setStatus("success");
+        response.setMessage(subject + " " + (registered ? "registered successfully" : "registration updated"));
+        response.setLeaseId(leaseId);
+        response.setLeaseTtlMs(registry.getLeaseTtl(leaseId));
+        response.setRevision(registry.getRevision());
+    }
+    
+    /**
+     * Gets the functions a register or lookup request is for: its list, or else its single function.
+     */
+    private static List<String> functionNames(String functionName, List<String> functionNames) {
+        return functionNames != null && !functionNames.isEmpty() ? functionNames : List.of(functionName);
+    }
+    
+    private static String describe(List<String> functionNames) {
+        return functionNames.size() == 1 ? "Function '" + functionNames.get(0) + "'" : functionNames.size() + " functions";
+    }
+    
+    /**
+     * Waits until the registration is on disk, or records in the response that it is not.
+     */
+    private boolean awaitDurable(RegisterResponse response) {
+        try {
+            registry.awaitDurable();
+            return true;
+        } catch (IOException e) {
+            logger.error("Registration not persisted: {}", e.getMessage());
+            response.setStatus("error");
+            response.setMessage("Registration could not be persisted: " + e.getMessage());
+            return false;
+        }
+    }
+    
+    private void forwardRegisterRequest(ConnectionHandler connection, RegisterRequest request,
+                                        List<String> functionNames) throws ConnectionHandler.ConnectionException {
+        RegisterResponse response;
+        try {
+            response = leaderClient.registerServices(functionNames, request.getHost(), request.getPort(),
+                    request.getLeaseId(), request.getLeaseTtlMs());
+        } catch (RegistryClient.RegistryException e) {
+            response = RegisterResponse.unavailable("Registry leader unavailable: " + e.getMessage());
+        }
+        if (response.isSuccess() && response.getRevision() != 0) {
+            awaitReplicated(response.getRevision());
+        }
+        response.setTraceId(request.getTraceId());
+        connection.sendMessage(response);
+    }
+    
+    /**
+     * Waits until this follower has applied the leader's changes up to a revision. Gives up
+     * after a while rather than hold the registrant back, as the leader has the registration.
+     */
+    private void awaitReplicated(long revision) {
+        try {
+            if (!registry.awaitRevision(revision, FOLLOWER_APPLY_TIMEOUT_MS)) {
+                logger.warn("Leader revision {} not replicated within {} ms, answering anyway", revision,
+                        FOLLOWER_APPLY_TIMEOUT_MS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private void handleHeartbeatRequest(ConnectionHandler connection, HeartbeatRequest request)
+            throws ConnectionHandler.ConnectionException {
+        if (leaderClient != null) {
+            HeartbeatResponse response;
+            try {
+                response = leaderClient.renewLease(request.getLeaseId())
+                        ? HeartbeatResponse.success()
+                        : HeartbeatResponse.error("Lease " + request.getLeaseId() + " not found");
+            } catch (RegistryClient.RegistryException e) {
+                // Not an error: the lease is likely still there, so the sender must not replace it
+                response = HeartbeatResponse.unavailable("Registry leader unavailable: " + e.getMessage());
+            }
+            response.setTraceId(request.getTraceId());
+            connection.sendMessage(response);
+            return;
+        }
+        HeartbeatResponse response = registry.renewLease(request.getLeaseId())
+                ? HeartbeatResponse.success()
+                : HeartbeatResponse.error("Lease " + request.getLeaseId() + " not found");
+        if (!response.isSuccess()) {
+            logger.warn("Heartbeat for expired lease {}", request.getLeaseId());
+        }
+        response.setTraceId(request.getTraceId());
+        connection.sendMessage(response);
+    }
+    
+    private void handleWatchRequest(ConnectionHandler connection, WatchRequest request)
+            throws ConnectionHandler.ConnectionException {
+        logger.info("Watch {} of {} '{}' from revision {} by {}:{}", request.getTraceId(),
+                request.isPrefix() ? "prefix" : "function", request.getKey(), request.getFromRevision(),
+                connection.getRemoteHost(), connection.getRemotePort());
+        RpcResponse ack = new RpcResponse();
+        ack.setTraceId(request.getTraceId());
+        connection.setKeepOpen(true);
+        connection.sendMessage(ack);
+        Watch watch = new Watch(connection, request);
+        watches.computeIfAbsent(connection, key -> new CopyOnWriteArrayList<>()).add(watch);
+        registry.watch(request.getFromRevision(), watch);
+    }
+    
+    private void handleUnwatchRequest(ConnectionHandler connection, UnsubscribeRequest request)
+            throws ConnectionHandler.ConnectionException {
+        boolean removed = false;
+        List<Watch> connectionWatches = watches.getOrDefault(connection, List.of());
+        for (Watch watch : connectionWatches) {
+            if (watch.id.equals(request.getSubscriptionId())) {
+                removed |= watch.cancel();
+            }
+        }
+        if (connectionWatches.isEmpty()) {
+            connection.setKeepOpen(false);
+        }
+        RpcResponse response = removed
+                ? new RpcResponse()
+                : RpcResponse.error("Watch " + request.getSubscriptionId() + " not found");
+        response.setTraceId(request.getTraceId());
+        connection.sendMessage(response);
+    }
+    
     private void handleLookupRequest(ConnectionHandler connection, LookupRequest request) 
             throws ConnectionHandler.ConnectionException {
+        if (request.getFunctionNames() != null && !request.getFunctionNames().isEmpty()) {
+            handleBulkLookupRequest(connection, request);
+            return;
+        }
         String functionName = request.getFunctionName();
         
         logger.info("Received lookup request for function '{}'", functionName);
@@ -130,12 +479,13 @@ public class RegistryServer {
         LookupResponse response = new LookupResponse();
         response.setTraceId(request.getTraceId());
         
-        ServiceRegistry.ServiceInfo serviceInfo = registry.lookupService(functionName);
-        if (serviceInfo != null) {
-            logger.info("Function '{}' found at {}:{}", functionName, serviceInfo.getHost(), serviceInfo.getPort());
+        List<Endpoint> endpoints = lookupEndpoints(functionName);
+        if (!endpoints.isEmpty()) {
+            logger.info("Function '{}' found at {}", functionName, endpoints);
             response.setStatus("success");
-            response.setHost(serviceInfo.getHost());
-            response.setPort(serviceInfo.getPort());
+            response.setHost(endpoints.get(0).getHost());
+            response.setPort(endpoints.get(0).getPort());
+            response.setEndpoints(endpoints);
         } else {
             logger.warn("Function '{}' not found in registry", functionName);
             response.setStatus("error");
@@ -145,13 +495,158 @@ public class RegistryServer {
         connection.sendMessage(response);
     }
     
+    private void handleBulkLookupRequest(ConnectionHandler connection, LookupRequest request)
+            throws ConnectionHandler.ConnectionException {
+        List<String> functionNames = request.getFunctionNames();
+        Map<String, List<Endpoint>> functions = new LinkedHashMap<>(functionNames.size() * 2);
+        for (String functionName : functionNames) {
+            List<Endpoint> endpoints = lookupEndpoints(functionName);
+            if (!endpoints.isEmpty()) {
+                functions.put(functionName, endpoints);
+            }
+        }
+        logger.info("Received lookup request for {} functions; found {}", functionNames.size(), functions.size());
+        LookupResponse response = new LookupResponse();
+        response.setTraceId(request.getTraceId());
+        response.setStatus("success");
+        response.setFunctions(functions);
+        connection.sendMessage(response);
+    }
+    
+    private void handleListRequest(ConnectionHandler connection, ListRequest request)
+            throws ConnectionHandler.ConnectionException {
+        String prefix = request.getPrefix() == null ? "" : request.getPrefix();
+        int limit = request.getLimit() <= 0 ? DEFAULT_LIST_LIMIT : Math.min(request.getLimit(), MAX_LIST_LIMIT);
+        ListResponse response;
+        try {
+            ServiceRegistry.Listing listing = registry.list(prefix, request.getStartAfter(), limit, request.getRevision());
+            response = new ListResponse();
+            response.setRevision(listing.getRevision());
+            response.setMore(listing.hasMore());
+            for (Map.Entry<String, List<ServiceRegistry.ServiceInfo>> entry : listing.getServices().entrySet()) {
+                List<Endpoint> endpoints = new ArrayList<>(entry.getValue().size());
+                for (ServiceRegistry.ServiceInfo service : entry.getValue()) {
+                    endpoints.add(new Endpoint(service.getHost(), service.getPort()));
+                }
+                response.getFunctions().put(entry.getKey(), endpoints);
+            }
+            logger.info("Listed {} functions under '{}' after '{}' at revision {}", response.getFunctions().size(),
+                    prefix, request.getStartAfter(), listing.getRevision());
+        } catch (ServiceRegistry.RevisionUnavailableException e) {
+            logger.info("Cannot list '{}': {}", prefix, e.getMessage());
+            response = ListResponse.error(e.getMessage());
+        }
+        response.setTraceId(request.getTraceId());
+        connection.sendMessage(response);
+    }
+    
+    private List<Endpoint> lookupEndpoints(String functionName) {
+        List<ServiceRegistry.ServiceInfo> services = registry.lookupServices(functionName);
+        List<Endpoint> endpoints = new ArrayList<>(services.size());
+        for (ServiceRegistry.ServiceInfo service : services) {
+            endpoints.add(new Endpoint(service.getHost(), service.getPort()));
+        }
+        // Lookups skip the endpoints failing their health probes; watches and listings show all
+        return healthChecker.filter(endpoints);
+    }
+    
+    /**
+     * One watch: passes the registry changes matching its key to the watching connection.
+     */
+    private final class Watch implements ServiceRegistry.ChangeListener {
+        private final ConnectionHandler connection;
+        private final String id;
+        private final String key;
+        private final boolean prefix;
+        // Events sent since the connection last had nothing queued
+        private final AtomicInteger lagged = new AtomicInteger();
+        // Only touched under the registry's lock
+        private long sequence = 0;
+        
+        private Watch(ConnectionHandler connection, WatchRequest request) {
+            this.connection = connection;
+            this.id = request.getTraceId();
+            this.key = request.getKey() == null ? "" : request.getKey();
+            this.prefix = request.isPrefix();
+        }
+        
+        @Override
+        public void onChanges(long revision, boolean reset, List<ServiceChange> changes) {
+            List<ServiceChange> matching = new ArrayList<>(changes.size());
+            for (ServiceChange change : changes) {
+                String functionName = change.getFunctionName();
+                if (prefix ? functionName.startsWith(key) : functionName.equals(key)) {
+                    matching.add(change);
+                }
+            }
+            // The first event goes out even if empty, to tell the watcher the current revision,
+            // and so does a reset, which empties the watcher's view
+            if (matching.isEmpty() && !reset && sequence > 0) {
+                return;
+            }
+            if (!connection.isWritable() && lagged.incrementAndGet() == 1) {
+                connection.whenWritable(() -> lagged.set(0));
+            }
+            if (lagged.get() > MAX_LAGGED_WATCH_EVENTS) {
+                logger.warn("Dropping watch {} by {}:{}, which fell {} events behind", id,
+                        connection.getRemoteHost(), connection.getRemotePort(), MAX_LAGGED_WATCH_EVENTS);
+                cancel();
+                connection.close();
+                return;
+            }
+            WatchEvent event = new WatchEvent(++sequence, revision, reset, matching);
+            event.setTraceId(id);
+            try {
+                connection.sendMessage(event);
+            } catch (ConnectionHandler.ConnectionException e) {
+                logger.debug("Dropping watch {}: {}", id, e.getMessage());
+                cancel();
+            }
+        }
+        
+        private boolean cancel() {
+            List<Watch> connectionWatches = watches.get(connection);
+            if (connectionWatches != null) {
+                connectionWatches.remove(this);
+            }
+            return registry.unwatch(this);
+        }
+    }
+    
+    /**
+     * Applies the leader's changes to a follower's registry, one event at a time.
+     */
+    private final class Replicator implements RegistryWatch.Listener {
+        // Only touched by the watch, one event at a time
+        private final List<ServiceChange> pending = new ArrayList<>();
+        private boolean reset = false;
+        
+        @Override
+        public void onReset() {
+            reset = true;
+        }
+        
+        @Override
+        public void onChange(ServiceChange change) {
+            pending.add(change);
+        }
+        
+        @Override
+        public void onApplied(long revision) {
+            registry.replicate(revision, reset, new ArrayList<>(pending));
+            pending.clear();
+            reset = false;
+        }
+    }
+    
     /**
      * Main method to start the registry server.
      *
-     * @param args Command line arguments
+     * @param args Command line arguments: optionally the data directory, "registry-data" by default
      */
     public static void main(String[] args) {
-        RegistryServer registryServer = new RegistryServer();
+        Path dataDirectory = Paths.get(args.length > 0 ? args[0] : "registry-data");
+        RegistryServer registryServer = new RegistryServer(DEFAULT_PORT, dataDirectory);
         
         // Add shutdown hook to cleanly shutdown the server
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
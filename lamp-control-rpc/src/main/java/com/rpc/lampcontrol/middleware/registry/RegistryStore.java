@@ -0,0 +1,561 @@
+package com.rpc.lampcontrol.middleware.registry;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Durable storage for a {@link ServiceRegistry}: a write-ahead log of every registration
+ * change plus periodic snapshots of the whole registry, kept in one directory.
+ * <p>
+ * The log is a series of segments, each a memory-mapped file of fixed size, so appending a
+ * record is a copy into memory under a short lock. Each record carries its length and a CRC,
+ * and a zero length marks the end of a segment's records; a record torn by a crash fails its
+ * CRC and ends recovery there. Records are made durable by a flusher thread that forces
+ * everything appended so far in one go, so callers waiting in {@link #awaitDurable} share
+ * the cost of an fsync (group commit).
+ * <p>
+ * A snapshot records the registry as of the end of some segment; once it is written, the
+ * segments it covers are deleted. Recovery loads the snapshot and replays the segments after it.
+ * Lease renewals are not logged: a recovered lease starts a new TTL, so live servers keep
+ * their registrations through a registry restart and dead ones expire one TTL later.
+ */
+final class RegistryStore implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(RegistryStore.class);
+    static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    private static final int SEGMENT_MAGIC = 0x4C57414C; // "LWAL"
+    private static final int SNAPSHOT_MAGIC = 0x4C534E50; // "LSNP"
+    private static final int FORMAT_VERSION = 1;
+    private static final int SEGMENT_HEADER_SIZE = 16;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final String SNAPSHOT_FILE = "snapshot.dat";
+    // A snapshot is due once the log has grown by this fraction of a segment since the last one
+    private static final double SNAPSHOT_THRESHOLD = 0.5;
+
+    private static final byte OP_GRANT = 1;
+    private static final byte OP_EXPIRE = 2;
+    private static final byte OP_ADD = 3;
+    private static final byte OP_REMOVE = 4;
+
+    private final Path directory;
+    private final int segmentSize;
+    // Large enough for the biggest record: an add with two strings of the longest length
+    private final ByteBuffer scratch = ByteBuffer.allocate(1 + 2 * (2 + 65535) + 4 + 8);
+    private final CRC32 crc = new CRC32();
+    private final Thread flusher;
+
+    // Guarded by this
+    private long generation;
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    // Bytes appended over the store's lifetime; the unit of awaitDurable
+    private long appended = 0;
+    private long flushed = 0;
+    private long appendedSinceSnapshot = 0;
+    // The position some waiter needs durable; the flusher runs while it is ahead of flushed
+    private long flushRequested = 0;
+    private boolean closed = false;
+    private IOException flushError;
+
+    /**
+     * Receives the state recovered from a store, in the order it was recorded.
+     */
+    interface Recovery {
+        void nextLeaseId(long nextLeaseId);
+
+        void grant(long leaseId, long ttlMs);
+
+        void expire(long leaseId);
+
+        void add(String functionName, String host, int port, long leaseId);
+
+        void remove(String functionName, String host, int port);
+    }
+
+    private RegistryStore(Path directory, int segmentSize) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.flusher = new Thread(this::flushLoop, "registry-wal-flusher");
+        this.flusher.setDaemon(true);
+    }
+
+    /**
+     * Opens the store in a directory, creating it if needed, and replays its contents.
+     *
+     * @param directory The directory holding the snapshot and log segments
+     * @param recovery Receives the recovered state
+     * @return the store, ready for appends
+     * @throws IOException if the directory cannot be read or a snapshot is corrupt
+     */
+    static RegistryStore open(Path directory, Recovery recovery) throws IOException {
+        return open(directory, DEFAULT_SEGMENT_SIZE, recovery);
+    }
+
+    static RegistryStore open(Path directory, int segmentSize, Recovery recovery) throws IOException {
+        if (segmentSize < 1024) {
+            throw new IllegalArgumentException("Segment size must be at least 1 KB");
+        }
+        Files.createDirectories(directory);
+        RegistryStore store = new RegistryStore(directory, segmentSize);
+        store.recover(recovery);
+        store.flusher.start();
+        return store;
+    }
+
+    synchronized void logGrant(long leaseId, long ttlMs) throws IOException {
+        scratch.clear();
+        scratch.put(OP_GRANT).putLong(leaseId).putLong(ttlMs);
+        append();
+    }
+
+    synchronized void logExpire(long leaseId) throws IOException {
+        scratch.clear();
+        scratch.put(OP_EXPIRE).putLong(leaseId);
+        append();
+    }
+
+    synchronized void logAdd(String functionName, String host, int port, long leaseId) throws IOException {
+        scratch.clear();
+        scratch.put(OP_ADD);
+        putString(functionName);
+        putString(host);
+        scratch.putInt(port).putLong(leaseId);
+        append();
+    }
+
+    synchronized void logRemove(String functionName, String host, int port) throws IOException {
+        scratch.clear();
+        scratch.put(OP_REMOVE);
+        putString(functionName);
+        putString(host);
+        scratch.putInt(port);
+        append();
+    }
+
+    /**
+     * Gets the position of the last record appended, for {@link #awaitDurable}.
+     *
+     * @return the end of the log
+     */
+    synchronized long getPosition() {
+        return appended;
+    }
+
+    /**
+     * Waits until the log is durable up to a position. Concurrent callers are served by the
+     * same fsync. Waits on this object's monitor, which would pin a virtual thread to its
+     * carrier for the fsync; the registry server's workers are platform threads.
+     *
+     * @param position The position from {@link #getPosition}
+     * @throws IOException if forcing the log to disk failed
+     */
+    synchronized void awaitDurable(long position) throws IOException {
+        boolean interrupted = false;
+        try {
+            while (flushed < position) {
+                if (flushError != null) {
+                    throw flushError;
+                }
+                if (closed) {
+                    throw new IOException("Registry store is closed");
+                }
+                // Waiters already covered by an earlier request stay quiet; waking each other
+                // would starve the flusher of the lock
+                if (position > flushRequested) {
+                    flushRequested = position;
+                    notifyAll();
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Checks whether enough has been logged since the last snapshot to take a new one.
+     *
+     * @return true if a snapshot is due
+     */
+    synchronized boolean isSnapshotDue() {
+        return appendedSinceSnapshot >= segmentSize * SNAPSHOT_THRESHOLD;
+    }
+
+    /**
+     * Starts a new segment, so that a snapshot of the state as of now covers every earlier
+     * segment. Must be called while the registry is not changing.
+     *
+     * @return the generation of the last segment the snapshot covers
+     * @throws IOException if the new segment cannot be created
+     */
+    synchronized long rotate() throws IOException {
+        long covered = generation;
+        openSegment(generation + 1);
+        appendedSinceSnapshot = 0;
+        return covered;
+    }
+
+    /**
+     * Writes a snapshot that covers the segments up to a generation and deletes those segments.
+     * Runs without the store's lock, so appends continue meanwhile.
+     *
+     * @param covered The generation returned by {@link #rotate}
+     * @param nextLeaseId The registry's next lease id
+     * @param leaseTtls The TTL in milliseconds of each live lease, by lease id
+     * @param services The endpoints of each function
+     * @throws IOException if the snapshot cannot be written
+     */
+    void writeSnapshot(long covered, long nextLeaseId, Map<Long, Long> leaseTtls,
+                       Map<String, List<ServiceRegistry.ServiceInfo>> services) throws IOException {
+        long start = System.nanoTime();
+        Path temporary = directory.resolve(SNAPSHOT_FILE + ".tmp");
+        int endpoints = 0;
+        try (FileOutputStream file = new FileOutputStream(temporary.toFile())) {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(file, 64 * 1024), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(covered);
+            out.writeLong(nextLeaseId);
+            out.writeInt(leaseTtls.size());
+            for (Map.Entry<Long, Long> lease : leaseTtls.entrySet()) {
+                out.writeLong(lease.getKey());
+                out.writeLong(lease.getValue());
+            }
+            for (List<ServiceRegistry.ServiceInfo> list : services.values()) {
+                endpoints += list.size();
+            }
+            out.writeInt(endpoints);
+            for (Map.Entry<String, List<ServiceRegistry.ServiceInfo>> entry : services.entrySet()) {
+                for (ServiceRegistry.ServiceInfo endpoint : entry.getValue()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeUTF(endpoint.getHost());
+                    out.writeInt(endpoint.getPort());
+                    out.writeLong(endpoint.getLeaseId());
+                }
+            }
+            // The trailing checksum covers everything before it
+            out.writeLong(checked.getChecksum().getValue());
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(temporary, directory.resolve(SNAPSHOT_FILE),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        for (Path path : listSegments().values()) {
+            if (generationOf(path) <= covered) {
+                Files.deleteIfExists(path);
+            }
+        }
+        logger.info("Wrote registry snapshot of {} endpoints and {} leases in {} ms", endpoints,
+                leaseTtls.size(), (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Forces everything logged so far to disk and stops the flusher.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            try {
+                segment.force();
+                channel.close();
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Error closing registry log: {}", e.getMessage());
+            }
+        }
+    }
+
+    private void putString(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 65535) {
+            throw new IllegalArgumentException("String too long for the registry log: " + bytes.length + " bytes");
+        }
+        scratch.putShort((short) bytes.length);
+        scratch.put(bytes);
+    }
+
+    /**
+     * Appends the record in the scratch buffer, starting a new segment if it does not fit.
+     */
+    private void append() throws IOException {
+        if (closed) {
+            throw new IOException("Registry store is closed");
+        }
+        scratch.flip();
+        int length = scratch.remaining();
+        if (segment.remaining() < RECORD_HEADER_SIZE + length + 4) {
+            openSegment(generation + 1);
+        }
+        crc.reset();
+        crc.update(scratch.array(), 0, length);
+        segment.putInt(length);
+        segment.putInt((int) crc.getValue());
+        segment.put(scratch);
+        appended += RECORD_HEADER_SIZE + length;
+        appendedSinceSnapshot += RECORD_HEADER_SIZE + length;
+    }
+
+    /**
+     * Replaces the active segment with a new, empty one. The old segment is forced first, so
+     * the flusher only ever has to force the active one.
+     */
+    private void openSegment(long newGeneration) throws IOException {
+        if (segment != null) {
+            segment.force();
+            channel.close();
+            flushed = appended;
+            notifyAll();
+        }
+        Path path = directory.resolve(segmentName(newGeneration));
+        channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        segment.putInt(SEGMENT_MAGIC).putInt(FORMAT_VERSION).putLong(newGeneration);
+        segment.force();
+        generation = newGeneration;
+    }
+
+    private void flushLoop() {
+        while (true) {
+            MappedByteBuffer active;
+            long target;
+            synchronized (this) {
+                while (!closed && flushRequested <= flushed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) {
+                    return;
+                }
+                active = segment;
+                target = appended;
+            }
+            // Outside the lock, so appends go on while the disk catches up
+            IOException error = null;
+            try {
+                active.force();
+            } catch (RuntimeException e) {
+                error = new IOException("Failed to force the registry log: " + e.getMessage(), e);
+            }
+            synchronized (this) {
+                if (error != null) {
+                    logger.error(error.getMessage());
+                    flushError = error;
+                } else if (flushed < target) {
+                    flushed = target;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    private synchronized void recover(Recovery recovery) throws IOException {
+        long start = System.nanoTime();
+        long covered = 0;
+        Path snapshot = directory.resolve(SNAPSHOT_FILE);
+        boolean fromSnapshot = Files.exists(snapshot);
+        if (fromSnapshot) {
+            covered = readSnapshot(snapshot, recovery);
+        }
+        int records = 0;
+        TreeMap<Long, Path> segments = listSegments();
+        Path last = null;
+        int lastEnd = SEGMENT_HEADER_SIZE;
+        for (Path path : segments.values()) {
+            long segmentGeneration = generationOf(path);
+            if (segmentGeneration <= covered) {
+                // Left over from a crash after the snapshot was written
+                Files.deleteIfExists(path);
+                continue;
+            }
+            int[] result = replaySegment(path, segmentGeneration, recovery);
+            records += result[0];
+            last = path;
+            lastEnd = result[1];
+            generation = segmentGeneration;
+        }
+        if (last != null && lastEnd + RECORD_HEADER_SIZE + 4 < segmentSize
+                && Files.size(last) == segmentSize) {
+            // Keep appending to the last segment, after its last intact record
+            channel = FileChannel.open(last, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            // Wipe what follows, e.g. a torn record, so that it cannot be mistaken for data later
+            segment.position(lastEnd);
+            while (segment.remaining() >= 8) {
+                segment.putLong(0);
+            }
+            while (segment.hasRemaining()) {
+                segment.put((byte) 0);
+            }
+            segment.position(lastEnd);
+        } else {
+            openSegment(Math.max(generation, covered) + 1);
+        }
+        logger.info("Recovered registry from {} ({}{} log records) in {} ms", directory,
+                fromSnapshot ? "snapshot and " : "", records, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private long readSnapshot(Path path, Recovery recovery) throws IOException {
+        try (InputStream file = new BufferedInputStream(Files.newInputStream(path), 64 * 1024)) {
+            CheckedInputStream checked = new CheckedInputStream(file, new CRC32());
+            DataInputStream in = new DataInputStream(checked);
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != FORMAT_VERSION) {
+                throw new IOException("Not a registry snapshot: " + path);
+            }
+            long covered = in.readLong();
+            recovery.nextLeaseId(in.readLong());
+            int leaseCount = in.readInt();
+            for (int i = 0; i < leaseCount; i++) {
+                recovery.grant(in.readLong(), in.readLong());
+            }
+            int endpointCount = in.readInt();
+            for (int i = 0; i < endpointCount; i++) {
+                recovery.add(in.readUTF(), in.readUTF(), in.readInt(), in.readLong());
+            }
+            // Read past the checksum, not through it
+            long expected = checked.getChecksum().getValue();
+            if (new DataInputStream(file).readLong() != expected) {
+                throw new IOException("Registry snapshot is corrupt: " + path);
+            }
+            return covered;
+        } catch (EOFException e) {
+            throw new IOException("Registry snapshot is truncated: " + path, e);
+        }
+    }
+
+    /**
+     * Replays the intact records of a segment.
+     *
+     * @return the number of records and the offset after the last intact one
+     */
+    private int[] replaySegment(Path path, long expectedGeneration, Recovery recovery) throws IOException {
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = file.size();
+            if (size < SEGMENT_HEADER_SIZE) {
+                return new int[] {0, SEGMENT_HEADER_SIZE};
+            }
+            MappedByteBuffer buffer = file.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt() != SEGMENT_MAGIC || buffer.getInt() != FORMAT_VERSION
+                    || buffer.getLong() != expectedGeneration) {
+                throw new IOException("Not a registry log segment: " + path);
+            }
+            int records = 0;
+            CRC32 check = new CRC32();
+            while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+                int recordStart = buffer.position();
+                int length = buffer.getInt();
+                int checksum = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining()) {
+                    buffer.position(recordStart);
+                    break;
+                }
+                ByteBuffer record = buffer.slice(buffer.position(), length);
+                check.reset();
+                check.update(record.duplicate());
+                if ((int) check.getValue() != checksum) {
+                    logger.warn("Ignoring torn record at offset {} of {}", recordStart, path);
+                    buffer.position(recordStart);
+                    break;
+                }
+                buffer.position(buffer.position() + length);
+                replayRecord(record, recovery);
+                records++;
+            }
+            return new int[] {records, buffer.position()};
+        }
+    }
+
+    private static void replayRecord(ByteBuffer record, Recovery recovery) throws IOException {
+        try {
+            byte op = record.get();
+            switch (op) {
+                case OP_GRANT:
+                    recovery.grant(record.getLong(), record.getLong());
+                    break;
+                case OP_EXPIRE:
+                    recovery.expire(record.getLong());
+                    break;
+                case OP_ADD:
+                    recovery.add(getString(record), getString(record), record.getInt(), record.getLong());
+                    break;
+                case OP_REMOVE:
+                    recovery.remove(getString(record), getString(record), record.getInt());
+                    break;
+                default:
+                    throw new IOException("Unknown registry log record type " + op);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Malformed registry log record", e);
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private TreeMap<Long, Path> listSegments() throws IOException {
+        TreeMap<Long, Path> segments = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "wal-*.log")) {
+            for (Path path : files) {
+                segments.put(generationOf(path), path);
+            }
+        }
+        return segments;
+    }
+
+    private static String segmentName(long generation) {
+        return String.format("wal-%016d.log", generation);
+    }
+
+    private static long generationOf(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(4, name.length() - 4));
+    }
+
+}
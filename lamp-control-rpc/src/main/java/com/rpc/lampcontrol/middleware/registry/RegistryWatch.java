@@ -0,0 +1,324 @@
+package com.rpc.lampcontrol.middleware.registry;
+
+import com.rpc.lampcontrol.middleware.protocol.Endpoint;
+import com.rpc.lampcontrol.middleware.protocol.Message;
+import com.rpc.lampcontrol.middleware.protocol.RpcResponse;
+import com.rpc.lampcontrol.middleware.protocol.ServiceChange;
+import com.rpc.lampcontrol.middleware.protocol.WatchEvent;
+import com.rpc.lampcontrol.middleware.protocol.WatchRequest;
+import com.rpc.lampcontrol.middleware.transport.ClientTransport;
+import com.rpc.lampcontrol.middleware.transport.ConnectionHandler;
+import com.rpc.lampcontrol.middleware.transport.MultiplexedConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A local view of the endpoints of a function, or of all functions whose name starts with a
+ * prefix, kept current by the registry pushing every change over one long-lived connection
+ * instead of by lookups. Created with {@link RegistryClient#watch}.
+ * <p>
+ * Events are decoded in parallel and may arrive out of order, so each is held back until the
+ * ones before it have been applied. If the connection is lost, the watch reconnects with
+ * backoff and resumes from the last revision it applied; if the registry no longer has the
+ * changes since then, or was restarted, it sends a snapshot that replaces the view. Given
+ * several nodes of a registry cluster, it moves on to the next one when a connection is lost,
+ * and resumes there from the same revision, since followers replicate at the leader's revisions.
+ */
+public class RegistryWatch implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(RegistryWatch.class);
+    private static final long MIN_RECONNECT_DELAY_MS = 1000;
+    private static final long MAX_RECONNECT_DELAY_MS = 30_000;
+
+    private final List<Endpoint> registries;
+    private final String key;
+    private final boolean prefix;
+    private final Listener listener;
+    private final LookupCache lookupCache;
+    private final ClientTransport transport = new ClientTransport();
+    // Immutable lists, so readers need no lock; written under this
+    private final Map<String, List<Endpoint>> endpoints = new ConcurrentHashMap<>();
+    private final CompletableFuture<RegistryWatch> ready = new CompletableFuture<>();
+    // Guarded by this
+    private final Map<Long, WatchEvent> early = new HashMap<>();
+    private long revision = 0;
+    private long nextSequence;
+    // Incremented for every connection attempt, so callbacks of an abandoned one are ignored
+    private int attempt = 0;
+    private MultiplexedConnection connection;
+    private long reconnectDelayMs = MIN_RECONNECT_DELAY_MS;
+    // The node watched, and how many failed in a row; a full round of failures backs off
+    private int registryIndex = 0;
+    private int failures = 0;
+    private boolean closed = false;
+
+    /**
+     * Receives the changes applied to a watch's view.
+     */
+    public interface Listener {
+        /**
+         * Called for each change, one at a time and in revision order, after the view
+         * reflects it. Must not block.
+         *
+         * @param change The change
+         */
+        void onChange(ServiceChange change);
+
+        /**
+         * Called when the view is about to be replaced by a snapshot, which is then passed to
+         * {@link #onChange} as additions.
+         */
+        default void onReset() {
+        }
+
+        /**
+         * Called once the changes of an event have all been passed to {@link #onChange}.
+         *
+         * @param revision The registry revision the view is now up to date with
+         */
+        default void onApplied(long revision) {
+        }
+    }
+
+    RegistryWatch(List<Endpoint> registries, String key, boolean prefix, Listener listener,
+                  LookupCache lookupCache) {
+        if (registries.isEmpty()) {
+            throw new IllegalArgumentException("No registry to watch");
+        }
+        this.registries = List.copyOf(registries);
+        this.key = key;
+        this.prefix = prefix;
+        this.listener = listener;
+        this.lookupCache = lookupCache;
+    }
+
+    /**
+     * Starts watching.
+     *
+     * @return a future completed once the view holds the registry's current endpoints, or
+     *         exceptionally if the first attempt to watch fails; the watch keeps retrying either way
+     */
+    CompletableFuture<RegistryWatch> start() {
+        connect();
+        return ready;
+    }
+
+    /**
+     * Gets the endpoints of a watched function.
+     *
+     * @param functionName The function
+     * @return the endpoints, or an empty list if none are registered or the function is not watched
+     */
+    public List<Endpoint> getEndpoints(String functionName) {
+        return endpoints.getOrDefault(functionName, Collections.emptyList());
+    }
+
+    /**
+     * Gets the watched functions that have endpoints.
+     *
+     * @return the function names
+     */
+    public Set<String> getFunctionNames() {
+        return Collections.unmodifiableSet(endpoints.keySet());
+    }
+
+    /**
+     * Gets the registry revision the view is up to date with.
+     *
+     * @return the revision, or 0 before the first update
+     */
+    public synchronized long getRevision() {
+        return revision;
+    }
+
+    /**
+     * Checks whether the watch currently has a connection to the registry.
+     *
+     * @return true if connected
+     */
+    public synchronized boolean isConnected() {
+        return connection != null;
+    }
+
+    /**
+     * Stops watching and closes the connection. The view keeps its last state.
+     */
+    @Override
+    public void close() {
+        MultiplexedConnection current;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            current = connection;
+            connection = null;
+        }
+        // The registry drops the watch with the connection
+        if (current != null) {
+            current.close();
+        }
+        ready.completeExceptionally(new IllegalStateException("Watch closed"));
+        logger.info("Stopped watching '{}'", key);
+    }
+
+    private void connect() {
+        WatchRequest request;
+        Endpoint registry;
+        int current;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            current = ++attempt;
+            request = new WatchRequest(key, prefix, revision);
+            registry = registries.get(registryIndex);
+            nextSequence = 1;
+            early.clear();
+        }
+        logger.info("Watching {} '{}' at {} from revision {}", prefix ? "prefix" : "function", key,
+                registry, request.getFromRevision());
+        transport.connectAsync(registry.getHost(), registry.getPort()).whenComplete((handler, connectError) -> {
+            if (connectError != null) {
+                failed(current, connectError);
+                return;
+            }
+            MultiplexedConnection opened = new MultiplexedConnection(handler);
+            synchronized (this) {
+                if (closed || current != attempt) {
+                    opened.close();
+                    return;
+                }
+                connection = opened;
+            }
+            opened.openStream(request, new Stream(current)).whenComplete((response, error) -> {
+                if (error != null) {
+                    failed(current, error);
+                } else if (!(response instanceof RpcResponse) || !((RpcResponse) response).isSuccess()) {
+                    failed(current, new IllegalStateException("Watch rejected: "
+                            + (response instanceof RpcResponse ? ((RpcResponse) response).getErrorMessage() : response.getType())));
+                }
+            });
+        });
+    }
+
+    private void failed(int failedAttempt, Throwable error) {
+        MultiplexedConnection lost;
+        long delay;
+        synchronized (this) {
+            if (closed || failedAttempt != attempt) {
+                return;
+            }
+            attempt++;
+            lost = connection;
+            connection = null;
+            registryIndex = (registryIndex + 1) % registries.size();
+            if (++failures % registries.size() != 0) {
+                delay = 0;
+            } else {
+                delay = reconnectDelayMs;
+                reconnectDelayMs = Math.min(reconnectDelayMs * 2, MAX_RECONNECT_DELAY_MS);
+            }
+        }
+        if (lost != null) {
+            lost.close();
+        }
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        logger.warn("Watch of '{}' lost: {}; reconnecting in {} ms", key, cause.getMessage(), delay);
+        ready.completeExceptionally(cause);
+        CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS).execute(this::connect);
+    }
+
+    private synchronized void receive(int eventAttempt, WatchEvent event) {
+        if (closed || eventAttempt != attempt || event.getSequence() < nextSequence) {
+            return;
+        }
+        early.put(event.getSequence(), event);
+        WatchEvent next;
+        while ((next = early.remove(nextSequence)) != null) {
+            nextSequence++;
+            apply(next);
+        }
+    }
+
+    private void apply(WatchEvent event) {
+        Set<String> changed = new HashSet<>();
+        if (event.isReset()) {
+            changed.addAll(endpoints.keySet());
+            endpoints.clear();
+            try {
+                listener.onReset();
+            } catch (RuntimeException e) {
+                logger.error("Watch listener for '{}' failed: {}", key, e.getMessage(), e);
+            }
+        }
+        for (ServiceChange change : event.getChanges()) {
+            String functionName = change.getFunctionName();
+            Endpoint endpoint = new Endpoint(change.getHost(), change.getPort());
+            List<Endpoint> updated = new ArrayList<>(getEndpoints(functionName));
+            if (ServiceChange.REMOVE.equals(change.getAction())) {
+                updated.remove(endpoint);
+            } else if (!updated.contains(endpoint)) {
+                updated.add(endpoint);
+            }
+            if (updated.isEmpty()) {
+                endpoints.remove(functionName);
+            } else {
+                endpoints.put(functionName, Collections.unmodifiableList(updated));
+            }
+            changed.add(functionName);
+            try {
+                listener.onChange(change);
+            } catch (RuntimeException e) {
+                logger.error("Watch listener for '{}' failed: {}", key, e.getMessage(), e);
+            }
+        }
+        // Cached lookups of changed functions may name endpoints that are gone or miss new ones
+        for (String functionName : changed) {
+            lookupCache.invalidate(functionName);
+        }
+        revision = event.getRevision();
+        try {
+            listener.onApplied(revision);
+        } catch (RuntimeException e) {
+            logger.error("Watch listener for '{}' failed: {}", key, e.getMessage(), e);
+        }
+        reconnectDelayMs = MIN_RECONNECT_DELAY_MS;
+        failures = 0;
+        ready.complete(this);
+    }
+
+    /**
+     * Receives the events of one connection attempt.
+     */
+    private final class Stream implements MultiplexedConnection.StreamHandler {
+        private final int streamAttempt;
+
+        private Stream(int streamAttempt) {
+            this.streamAttempt = streamAttempt;
+        }
+
+        @Override
+        public void onEvent(Message event) {
+            if (event instanceof WatchEvent) {
+                receive(streamAttempt, (WatchEvent) event);
+            }
+        }
+
+        @Override
+        public void onClose(ConnectionHandler.ConnectionException cause) {
+            failed(streamAttempt, cause);
+        }
+    }
+}
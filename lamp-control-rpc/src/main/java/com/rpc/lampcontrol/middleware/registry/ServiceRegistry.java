@@ -1,62 +1,393 @@
 package com.rpc.lampcontrol.middleware.registry;
 
+import com.rpc.lampcontrol.middleware.protocol.Endpoint;
+import com.rpc.lampcontrol.middleware.protocol.ServiceChange;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
 
 /**
  * Service registry that stores information about available services.
+ * <p>
+ * Each function maps to the set of endpoints offering it, so several servers can register
+ * the same function. The sets are immutable lists replaced on every change, so lookups read
+ * them without locking.
+ * <p>
+ * Services can be registered under a lease: the server that registered them renews the lease
+ * with heartbeats, and once it stops, the lease expires and its services are removed. Leases
+ * are expired through a {@link TimingWheel} advanced by {@link #expireLeases()}, so each
+ * tick only looks at the leases due in it; a renewal just moves the lease's deadline, and the
+ * lease is scheduled again when its old deadline comes up.
+ * <p>
+ * Every change to the endpoints gets a new revision and is kept in a bounded history, so a
+ * {@link ChangeListener} added with {@link #watch} can pick up where it left off. Changes are
+ * made under the registry's lock, one at a time; lookups do not take it.
+ * <p>
+ * Function names are also kept in order, under the same lock, so that {@link #list} can page
+ * through all functions under a prefix such as {@code building7/}. A listing can be taken at a
+ * past revision that is still in the history, which lets a client page through a large prefix
+ * and still see it as it was at one moment.
+ * <p>
+ * A registry opened on a directory with {@link #open} survives restarts: it recovers its
+ * registrations and leases from there and journals every later change to a
+ * {@link RegistryStore}. A registry can instead mirror another through {@link #replicate}.
  */
 public class ServiceRegistry {
-    private final Map<String, ServiceInfo> services = new ConcurrentHashMap<>();
+    private static final Logger logger = LoggerFactory.getLogger(ServiceRegistry.class);
+    public static final long LEASE_TICK_MS = 100;
+    // One turn of the wheel covers about 51 s, so leases up to that long expire without extra rounds
+    private static final int LEASE_WHEEL_SIZE = 512;
+    // A lease shorter than a few ticks would expire before the first renewal could arrive
+    public static final long MIN_LEASE_TTL_MS = 10 * LEASE_TICK_MS;
+    // Watchers further behind than this many changes start over from a snapshot
+    static final int HISTORY_SIZE = 10_000;
+
+    private final Map<String, List<ServiceInfo>> services = new ConcurrentHashMap<>();
+    // The keys of services in order, for listings; guarded by this, like every change to services
+    private final TreeSet<String> functionNames = new TreeSet<>();
+    private final Map<Long, Lease> leases = new ConcurrentHashMap<>();
+    // Starts at a random point so that a lease id held from before a registry restart
+    // does not renew a lease granted to another server since
+    private final AtomicLong nextLeaseId = new AtomicLong(ThreadLocalRandom.current().nextLong(1L << 32, 1L << 48));
+    private final LongSupplier clock;
+    private final TimingWheel<Lease> leaseWheel;
+    // Guarded by this. Revisions start at a random point for the same reason as lease ids:
+    // a revision from before a restart must not be mistaken for one of this registry's
+    private long revision = ThreadLocalRandom.current().nextLong(1L << 32, 1L << 48);
+    // The newest revision no longer in the history
+    private long compactedRevision = revision;
+    private final ArrayDeque<ServiceChange> history = new ArrayDeque<>();
+    // Copied on write, so a listener can remove itself while being called
+    private final List<ChangeListener> listeners = new CopyOnWriteArrayList<>();
+    // Guarded by this; null while the registry only lives in memory
+    private RegistryStore store;
+
+    /**
+     * Receives the changes made to the registry.
+     */
+    public interface ChangeListener {
+        /**
+         * Called with the changes of one revision, in revision order. Called under the
+         * registry's lock, so it must neither block nor call back into the registry.
+         *
+         * @param revision The revision the listener is up to date with after these changes
+         * @param reset True if the changes are a snapshot of all endpoints, as additions,
+         *        that replaces whatever the listener knew
+         * @param changes The changes; may be empty for the first call of a watch
+         */
+        void onChanges(long revision, boolean reset, List<ServiceChange> changes);
+    }
+
+    /**
+     * Creates an empty registry.
+     */
+    public ServiceRegistry() {
+        this(System::nanoTime);
+    }
+
+    ServiceRegistry(LongSupplier clock) {
+        this.clock = clock;
+        this.leaseWheel = new TimingWheel<>(LEASE_TICK_MS, LEASE_WHEEL_SIZE, clock);
+    }
 
     /**
-     * Registers a service with the registry.
+     * Registers a service endpoint with the registry, next to any other endpoints of the
+     * function. Registering an endpoint again replaces its previous registration.
      *
      * @param functionName The name of the function to register
      * @param host The host where the function is available
      * @param port The port where the function is available
-     * @return true if registration was successful, false if it already existed
+     * @return true if the endpoint was added, false if it was already registered
      */
     public boolean registerService(String functionName, String host, int port) {
-        ServiceInfo newService = new ServiceInfo(host, port);
-        return services.putIfAbsent(functionName, newService) == null;
+        return addEndpoint(functionName, new ServiceInfo(host, port));
+    }
+
+    /**
+     * Registers a service endpoint under a lease, next to any other endpoints of the function.
+     * Registering an endpoint again replaces its previous registration and lease.
+     *
+     * @param functionName The name of the function to register
+     * @param host The host where the function is available
+     * @param port The port where the function is available
+     * @param leaseId The lease the registration lasts for
+     * @return true if the endpoint was added, false if it was already registered
+     * @throws IllegalArgumentException if the lease does not exist or has expired
+     */
+    public boolean registerService(String functionName, String host, int port, long leaseId) {
+        Lease lease = leases.get(leaseId);
+        if (lease == null) {
+            throw new IllegalArgumentException("Lease " + leaseId + " not found");
+        }
+        // Under the lease lock, so an expiring lease cannot miss a registration made concurrently
+        synchronized (lease) {
+            if (lease.expired) {
+                throw new IllegalArgumentException("Lease " + leaseId + " has expired");
+            }
+            lease.functions.add(functionName);
+            return addEndpoint(functionName, new ServiceInfo(host, port, leaseId));
+        }
+    }
+
+    /**
+     * Registers one endpoint for several functions at once, as a single revision that is
+     * journaled and flushed together.
+     *
+     * @param functionNames The names of the functions to register
+     * @param host The host where the functions are available
+     * @param port The port where the functions are available
+     * @return the number of functions the endpoint was added to, not counting ones it was already registered for
+     */
+    public int registerServices(List<String> functionNames, String host, int port) {
+        return addEndpoints(functionNames, new ServiceInfo(host, port));
+    }
+
+    /**
+     * Registers one endpoint for several functions at once under a lease, as a single revision.
+     *
+     * @param functionNames The names of the functions to register
+     * @param host The host where the functions are available
+     * @param port The port where the functions are available
+     * @param leaseId The lease the registrations last for
+     * @return the number of functions the endpoint was added to, not counting ones it was already registered for
+     * @throws IllegalArgumentException if the lease does not exist or has expired
+     */
+    public int registerServices(List<String> functionNames, String host, int port, long leaseId) {
+        Lease lease = leases.get(leaseId);
+        if (lease == null) {
+            throw new IllegalArgumentException("Lease " + leaseId + " not found");
+        }
+        synchronized (lease) {
+            if (lease.expired) {
+                throw new IllegalArgumentException("Lease " + leaseId + " has expired");
+            }
+            lease.functions.addAll(functionNames);
+            return addEndpoints(functionNames, new ServiceInfo(host, port, leaseId));
+        }
+    }
+
+    /**
+     * Grants a new lease.
+     *
+     * @param ttlMs How long the lease lasts without a renewal, at least {@link #MIN_LEASE_TTL_MS}
+     * @return the id of the lease
+     */
+    public synchronized long grantLease(long ttlMs) {
+        Lease lease = putLease(nextLeaseId.incrementAndGet(), Math.max(ttlMs, MIN_LEASE_TTL_MS));
+        if (store != null) {
+            try {
+                store.logGrant(lease.id, TimeUnit.NANOSECONDS.toMillis(lease.ttlNanos));
+            } catch (IOException e) {
+                journalFailed(e);
+            }
+        }
+        return lease.id;
+    }
+
+    /**
+     * Renews a lease for another full TTL.
+     *
+     * @param leaseId The lease to renew
+     * @return true if renewed, false if the lease does not exist or has already expired
+     */
+    public boolean renewLease(long leaseId) {
+        Lease lease = leases.get(leaseId);
+        if (lease == null) {
+            return false;
+        }
+        synchronized (lease) {
+            if (lease.expired) {
+                return false;
+            }
+            lease.deadline = clock.getAsLong() + lease.ttlNanos;
+            return true;
+        }
+    }
+
+    /**
+     * Gets the TTL of a lease.
+     *
+     * @param leaseId The lease
+     * @return the TTL in milliseconds, or 0 if the lease does not exist
+     */
+    public long getLeaseTtl(long leaseId) {
+        Lease lease = leases.get(leaseId);
+        return lease == null ? 0 : TimeUnit.NANOSECONDS.toMillis(lease.ttlNanos);
+    }
+
+    /**
+     * Expires the leases whose deadline has passed and removes their services. Meant to be
+     * called about every {@link #LEASE_TICK_MS} by a single thread.
+     *
+     * @return the number of leases that expired
+     */
+    public int expireLeases() {
+        int[] expired = {0};
+        leaseWheel.advance(lease -> {
+            if (expire(lease)) {
+                expired[0]++;
+            }
+        });
+        return expired[0];
+    }
+
+    /**
+     * Gets the number of live leases.
+     *
+     * @return the number of leases
+     */
+    public int getLeaseCount() {
+        return leases.size();
+    }
+
+    private boolean expire(Lease lease) {
+        synchronized (lease) {
+            if (lease.deadline - clock.getAsLong() > 0) {
+                // Renewed since it was scheduled
+                leaseWheel.schedule(lease, lease.deadline);
+                return false;
+            }
+            lease.expired = true;
+        }
+        synchronized (this) {
+            leases.remove(lease.id, lease);
+            if (store != null) {
+                try {
+                    store.logExpire(lease.id);
+                } catch (IOException e) {
+                    journalFailed(e);
+                }
+            }
+            for (String functionName : lease.functions) {
+                // Leave endpoints that were registered again under another lease in place
+                removeEndpoints(functionName, info -> info.getLeaseId() == lease.id);
+            }
+        }
+        return true;
     }
 
     /**
-     * Updates an existing service registration.
+     * Replaces all endpoints of an existing service with a single one.
      *
      * @param functionName The name of the function to update
      * @param host The new host
      * @param port The new port
      * @return true if update was successful, false if service wasn't registered
      */
-    public boolean updateService(String functionName, String host, int port) {
-        ServiceInfo newService = new ServiceInfo(host, port);
-        return services.replace(functionName, newService) != null;
+    public synchronized boolean updateService(String functionName, String host, int port) {
+        List<ServiceInfo> oldEndpoints = services.get(functionName);
+        if (oldEndpoints == null) {
+            return false;
+        }
+        ServiceInfo service = new ServiceInfo(host, port);
+        putFunction(functionName, Collections.singletonList(service));
+        List<ServiceChange> changes = new ArrayList<>(oldEndpoints.size() + 1);
+        String action = ServiceChange.ADD;
+        for (ServiceInfo endpoint : oldEndpoints) {
+            if (endpoint.matches(host, port)) {
+                action = ServiceChange.UPDATE;
+            } else {
+                changes.add(change(ServiceChange.REMOVE, functionName, endpoint));
+            }
+        }
+        changes.add(change(action, functionName, service));
+        commit(changes);
+        journal(changes, service.getLeaseId());
+        return true;
     }
 
     /**
-     * Unregisters a service from the registry.
+     * Unregisters a service from the registry, with all of its endpoints.
      *
      * @param functionName The name of the function to unregister
      * @return true if unregistration was successful, false if service wasn't registered
      */
-    public boolean unregisterService(String functionName) {
-        return services.remove(functionName) != null;
+    public synchronized boolean unregisterService(String functionName) {
+        List<ServiceInfo> endpoints = services.remove(functionName);
+        if (endpoints == null) {
+            return false;
+        }
+        functionNames.remove(functionName);
+        List<ServiceChange> changes = new ArrayList<>(endpoints.size());
+        for (ServiceInfo endpoint : endpoints) {
+            changes.add(change(ServiceChange.REMOVE, functionName, endpoint));
+        }
+        commit(changes);
+        journal(changes, 0);
+        return true;
+    }
+
+    /**
+     * Unregisters one endpoint of a service.
+     *
+     * @param functionName The name of the function
+     * @param host The host of the endpoint
+     * @param port The port of the endpoint
+     * @return true if the endpoint was registered
+     */
+    public boolean unregisterService(String functionName, String host, int port) {
+        return removeEndpoints(functionName, info -> info.matches(host, port));
     }
 
     /**
      * Looks up a service in the registry.
      *
      * @param functionName The name of the function to look up
-     * @return ServiceInfo containing host and port, or null if not found
+     * @return ServiceInfo of the first registered endpoint, or null if not found
      */
     public ServiceInfo lookupService(String functionName) {
-        return services.get(functionName);
+        List<ServiceInfo> endpoints = services.get(functionName);
+        return endpoints == null ? null : endpoints.get(0);
+    }
+
+    /**
+     * Looks up all endpoints of a service, in registration order.
+     *
+     * @param functionName The name of the function to look up
+     * @return the endpoints, or an empty list if not found
+     */
+    public List<ServiceInfo> lookupServices(String functionName) {
+        return services.getOrDefault(functionName, Collections.emptyList());
+    }
+
+    /**
+     * Gets every distinct endpoint that has a function registered.
+     *
+     * @return the endpoints
+     */
+    public Set<Endpoint> getEndpoints() {
+        Set<Endpoint> endpoints = new HashSet<>();
+        for (List<ServiceInfo> infos : services.values()) {
+            for (ServiceInfo service : infos) {
+                endpoints.add(new Endpoint(service.getHost(), service.getPort()));
+            }
+        }
+        return endpoints;
     }
 
     /**
-     * Gets the number of registered services.
+     * Gets the number of registered services, counting each function once.
      *
      * @return the number of registered services
      */
@@ -67,8 +398,583 @@ public class ServiceRegistry {
     /**
      * Clears all registered services.
      */
-    public void clear() {
+    public synchronized void clear() {
+        List<ServiceChange> changes = new ArrayList<>();
+        for (Map.Entry<String, List<ServiceInfo>> entry : services.entrySet()) {
+            for (ServiceInfo endpoint : entry.getValue()) {
+                changes.add(change(ServiceChange.REMOVE, entry.getKey(), endpoint));
+            }
+        }
         services.clear();
+        functionNames.clear();
+        if (store != null) {
+            for (Long leaseId : leases.keySet()) {
+                try {
+                    store.logExpire(leaseId);
+                } catch (IOException e) {
+                    journalFailed(e);
+                }
+            }
+        }
+        leases.clear();
+        if (!changes.isEmpty()) {
+            commit(changes);
+            journal(changes, 0);
+        }
+    }
+
+    /**
+     * Makes the registry durable: recovers the registrations and leases saved in a directory,
+     * then journals every later change there. Recovered leases start a new TTL. Must be called
+     * before the registry is used.
+     *
+     * @param directory The directory holding the registry's log and snapshot
+     * @throws IOException if the directory cannot be read or holds a corrupt snapshot
+     * @throws IllegalStateException if the registry is already durable or not empty
+     */
+    public synchronized void open(Path directory) throws IOException {
+        if (store != null || !services.isEmpty() || !leases.isEmpty()) {
+            throw new IllegalStateException("Registry must be empty and in memory to be opened");
+        }
+        store = RegistryStore.open(directory, new Restorer());
+        logger.info("Recovered {} services and {} leases", services.size(), leases.size());
+    }
+
+    /**
+     * Waits until every change made so far has reached the disk. Concurrent callers share one
+     * fsync. Returns at once for a registry that only lives in memory.
+     *
+     * @throws IOException if the journal cannot be written
+     */
+    public void awaitDurable() throws IOException {
+        RegistryStore current;
+        long position;
+        synchronized (this) {
+            current = store;
+            if (current == null) {
+                return;
+            }
+            position = current.getPosition();
+        }
+        // Outside the registry's lock, so changes go on while this caller waits for the disk
+        current.awaitDurable(position);
+    }
+
+    /**
+     * Checks whether the journal has grown enough since the last snapshot to take a new one.
+     *
+     * @return true if {@link #snapshot} is due
+     */
+    public synchronized boolean isSnapshotDue() {
+        return store != null && store.isSnapshotDue();
+    }
+
+    /**
+     * Writes a snapshot of the registry and drops the part of the journal it replaces.
+     * Changes are held up only while the state is copied, not while it is written.
+     *
+     * @throws IOException if the snapshot cannot be written
+     */
+    public void snapshot() throws IOException {
+        RegistryStore current;
+        long covered;
+        long lastLeaseId;
+        Map<Long, Long> leaseTtls = new HashMap<>();
+        Map<String, List<ServiceInfo>> copy;
+        synchronized (this) {
+            current = store;
+            if (current == null) {
+                return;
+            }
+            covered = current.rotate();
+            lastLeaseId = nextLeaseId.get();
+            for (Lease lease : leases.values()) {
+                leaseTtls.put(lease.id, TimeUnit.NANOSECONDS.toMillis(lease.ttlNanos));
+            }
+            // The lists are immutable, so copying the map is enough
+            copy = new HashMap<>(services);
+        }
+        current.writeSnapshot(covered, lastLeaseId, leaseTtls, copy);
+    }
+
+    /**
+     * Stops journaling and closes the registry's store, after forcing the journal to disk.
+     * The registry keeps its state in memory.
+     */
+    public synchronized void close() {
+        if (store != null) {
+            store.close();
+            store = null;
+        }
+    }
+
+    /**
+     * Adds a listener for the changes made from now on, after catching it up: if the
+     * changes since {@code fromRevision} are still in the history, the listener first gets
+     * those, otherwise a snapshot of all endpoints. Either way the first call tells the
+     * listener the current revision.
+     *
+     * @param fromRevision The last revision the listener has seen, or 0 for a snapshot
+     * @param listener The listener
+     */
+    public synchronized void watch(long fromRevision, ChangeListener listener) {
+        if (fromRevision >= compactedRevision && fromRevision <= revision) {
+            List<ServiceChange> missed = new ArrayList<>();
+            // Only walk the tail of the history the listener has not seen
+            Iterator<ServiceChange> iterator = history.descendingIterator();
+            while (iterator.hasNext()) {
+                ServiceChange change = iterator.next();
+                if (change.getRevision() <= fromRevision) {
+                    break;
+                }
+                missed.add(change);
+            }
+            Collections.reverse(missed);
+            listener.onChanges(revision, false, missed);
+        } else {
+            List<ServiceChange> snapshot = new ArrayList<>();
+            for (Map.Entry<String, List<ServiceInfo>> entry : services.entrySet()) {
+                for (ServiceInfo endpoint : entry.getValue()) {
+                    snapshot.add(new ServiceChange(revision, ServiceChange.ADD, entry.getKey(),
+                            endpoint.getHost(), endpoint.getPort()));
+                }
+            }
+            listener.onChanges(revision, true, snapshot);
+        }
+        listeners.add(listener);
+    }
+
+    /**
+     * Applies changes made to another registry, at that registry's revisions, so that this one
+     * serves as a read replica of it and a watch can resume from the same revision on either.
+     * Replicated endpoints carry no lease here; the leader removes them when theirs expires.
+     * Changes this registry already has are skipped.
+     *
+     * @param revision The other registry's revision after the changes
+     * @param reset True if the changes are a snapshot of all its endpoints, which replaces this registry's
+     * @param changes The changes, in revision order
+     * @throws IllegalStateException if this registry is durable
+     */
+    public synchronized void replicate(long revision, boolean reset, List<ServiceChange> changes) {
+        if (store != null) {
+            throw new IllegalStateException("A durable registry cannot replicate another");
+        }
+        if (reset) {
+            Map<String, List<ServiceInfo>> snapshot = new HashMap<>();
+            for (ServiceChange change : changes) {
+                snapshot.computeIfAbsent(change.getFunctionName(), key -> new ArrayList<>())
+                        .add(new ServiceInfo(change.getHost(), change.getPort()));
+            }
+            // Replaced function by function, so a lookup never finds the registry empty halfway
+            for (Map.Entry<String, List<ServiceInfo>> entry : snapshot.entrySet()) {
+                putFunction(entry.getKey(), Collections.unmodifiableList(entry.getValue()));
+            }
+            services.keySet().retainAll(snapshot.keySet());
+            functionNames.retainAll(snapshot.keySet());
+            history.clear();
+            this.revision = revision;
+            compactedRevision = revision;
+            notifyAll();
+            List<ServiceChange> published = Collections.unmodifiableList(changes);
+            for (ChangeListener listener : listeners) {
+                listener.onChanges(revision, true, published);
+            }
+            return;
+        }
+        if (revision <= this.revision) {
+            return;
+        }
+        List<ServiceChange> applied = new ArrayList<>(changes.size());
+        for (ServiceChange change : changes) {
+            if (change.getRevision() <= this.revision) {
+                continue;
+            }
+            if (ServiceChange.REMOVE.equals(change.getAction())) {
+                takeEndpoints(change.getFunctionName(), info -> info.matches(change.getHost(), change.getPort()));
+            } else {
+                putEndpoint(change.getFunctionName(), new ServiceInfo(change.getHost(), change.getPort()));
+            }
+            applied.add(change);
+        }
+        this.revision = revision;
+        notifyAll();
+        publish(applied);
+    }
+
+    /**
+     * Waits until this registry, replicating another, has applied that registry's changes up
+     * to a revision.
+     *
+     * @param revision The other registry's revision
+     * @param timeoutMs How long to wait at most, in milliseconds
+     * @return true if the revision was reached, false if the wait timed out
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized boolean awaitRevision(long revision, long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (this.revision < revision) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Lists the functions whose name starts with a prefix, in name order, one page at a time.
+     * The page is consistent: it shows the registry at a single revision, which is the
+     * current one or, for the later pages of a listing, the revision of its first page.
+     * Changes made since that revision are undone from the history for the functions they touched.
+     *
+     * @param prefix The prefix of the function names; empty for all functions
+     * @param startAfter The last function of the previous page, or null for the first page
+     * @param limit The maximum number of functions in the page
+     * @param atRevision The revision to list at, or 0 for the current revision
+     * @return the page
+     * @throws RevisionUnavailableException if the revision is no longer in the history, or not yet reached
+     */
+    public synchronized Listing list(String prefix, String startAfter, int limit, long atRevision)
+            throws RevisionUnavailableException {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Limit must be positive");
+        }
+        long at = atRevision == 0 ? revision : atRevision;
+        if (at < compactedRevision || at > revision) {
+            throw new RevisionUnavailableException("Revision " + at + " is not available; the registry is at "
+                    + revision + " and keeps changes since " + compactedRevision);
+        }
+        boolean inclusive = startAfter == null || startAfter.compareTo(prefix) < 0;
+        String from = inclusive ? prefix : startAfter;
+        // The endpoints at the listed revision of each function changed since, in the range
+        TreeMap<String, List<ServiceInfo>> past = new TreeMap<>();
+        Iterator<ServiceChange> newer = history.descendingIterator();
+        while (newer.hasNext()) {
+            ServiceChange change = newer.next();
+            if (change.getRevision() <= at) {
+                break;
+            }
+            String functionName = change.getFunctionName();
+            int order = functionName.compareTo(from);
+            if (!functionName.startsWith(prefix) || order < 0 || (order == 0 && !inclusive)) {
+                continue;
+            }
+            List<ServiceInfo> endpoints = past.computeIfAbsent(functionName,
+                    key -> new ArrayList<>(lookupServices(key)));
+            if (ServiceChange.REMOVE.equals(change.getAction())) {
+                endpoints.add(new ServiceInfo(change.getHost(), change.getPort()));
+            } else if (ServiceChange.ADD.equals(change.getAction())) {
+                endpoints.removeIf(endpoint -> endpoint.matches(change.getHost(), change.getPort()));
+            }
+        }
+        // Merge the current names with those of functions that only existed at the revision
+        Map<String, List<ServiceInfo>> page = new LinkedHashMap<>();
+        Iterator<String> current = functionNames.tailSet(from, inclusive).iterator();
+        String name = nextWithPrefix(current, prefix);
+        boolean more = false;
+        while (name != null || !past.isEmpty()) {
+            String next;
+            if (name != null && (past.isEmpty() || name.compareTo(past.firstKey()) <= 0)) {
+                next = name;
+                name = nextWithPrefix(current, prefix);
+            } else {
+                next = past.firstKey();
+            }
+            List<ServiceInfo> endpoints = past.containsKey(next) ? past.remove(next) : services.get(next);
+            if (endpoints == null || endpoints.isEmpty()) {
+                continue;
+            }
+            if (page.size() == limit) {
+                more = true;
+                break;
+            }
+            page.put(next, Collections.unmodifiableList(endpoints));
+        }
+        return new Listing(at, page, more);
+    }
+
+    private static String nextWithPrefix(Iterator<String> names, String prefix) {
+        if (!names.hasNext()) {
+            return null;
+        }
+        // The names are in order and start at the prefix, so the first without it ends the range
+        String name = names.next();
+        return name.startsWith(prefix) ? name : null;
+    }
+
+    /**
+     * Removes a listener added with {@link #watch}.
+     *
+     * @param listener The listener
+     * @return true if the listener was watching
+     */
+    public synchronized boolean unwatch(ChangeListener listener) {
+        return listeners.remove(listener);
+    }
+
+    /**
+     * Gets the revision of the latest change.
+     *
+     * @return the current revision
+     */
+    public synchronized long getRevision() {
+        return revision;
+    }
+
+    private synchronized boolean addEndpoint(String functionName, ServiceInfo service) {
+        boolean added = putEndpoint(functionName, service);
+        List<ServiceChange> changes = Collections.singletonList(
+                change(added ? ServiceChange.ADD : ServiceChange.UPDATE, functionName, service));
+        commit(changes);
+        journal(changes, service.getLeaseId());
+        return added;
+    }
+
+    private synchronized int addEndpoints(List<String> functionNames, ServiceInfo service) {
+        int added = 0;
+        List<ServiceChange> changes = new ArrayList<>(functionNames.size());
+        for (String functionName : functionNames) {
+            boolean isNew = putEndpoint(functionName, service);
+            if (isNew) {
+                added++;
+            }
+            changes.add(change(isNew ? ServiceChange.ADD : ServiceChange.UPDATE, functionName, service));
+        }
+        if (!changes.isEmpty()) {
+            commit(changes);
+            journal(changes, service.getLeaseId());
+        }
+        return added;
+    }
+
+    private boolean putEndpoint(String functionName, ServiceInfo service) {
+        List<ServiceInfo> endpoints = services.get(functionName);
+        List<ServiceInfo> updated = endpoints == null ? new ArrayList<>(1) : new ArrayList<>(endpoints);
+        boolean added = true;
+        for (int i = 0; i < updated.size() && added; i++) {
+            if (updated.get(i).matches(service.getHost(), service.getPort())) {
+                updated.set(i, service);
+                added = false;
+            }
+        }
+        if (added) {
+            updated.add(service);
+        }
+        putFunction(functionName, Collections.unmodifiableList(updated));
+        return added;
+    }
+
+    private void putFunction(String functionName, List<ServiceInfo> endpoints) {
+        if (services.put(functionName, endpoints) == null) {
+            functionNames.add(functionName);
+        }
+    }
+
+    private synchronized boolean removeEndpoints(String functionName, Predicate<ServiceInfo> filter) {
+        List<ServiceInfo> removed = takeEndpoints(functionName, filter);
+        if (removed.isEmpty()) {
+            return false;
+        }
+        List<ServiceChange> changes = new ArrayList<>(removed.size());
+        for (ServiceInfo endpoint : removed) {
+            changes.add(change(ServiceChange.REMOVE, functionName, endpoint));
+        }
+        commit(changes);
+        journal(changes, 0);
+        return true;
+    }
+
+    private List<ServiceInfo> takeEndpoints(String functionName, Predicate<ServiceInfo> filter) {
+        List<ServiceInfo> endpoints = services.get(functionName);
+        if (endpoints == null) {
+            return Collections.emptyList();
+        }
+        List<ServiceInfo> remaining = new ArrayList<>(endpoints.size());
+        List<ServiceInfo> removed = new ArrayList<>(1);
+        for (ServiceInfo endpoint : endpoints) {
+            if (filter.test(endpoint)) {
+                removed.add(endpoint);
+            } else {
+                remaining.add(endpoint);
+            }
+        }
+        if (removed.isEmpty()) {
+            return removed;
+        }
+        if (remaining.isEmpty()) {
+            services.remove(functionName);
+            functionNames.remove(functionName);
+        } else {
+            services.put(functionName, Collections.unmodifiableList(remaining));
+        }
+        return removed;
+    }
+
+    private Lease putLease(long leaseId, long ttlMs) {
+        long ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+        Lease lease = new Lease(leaseId, ttlNanos, clock.getAsLong() + ttlNanos);
+        leases.put(lease.id, lease);
+        leaseWheel.schedule(lease, lease.deadline);
+        return lease;
+    }
+
+    /**
+     * Appends changes to the store, if any; additions and updates carry the given lease.
+     */
+    private void journal(List<ServiceChange> changes, long leaseId) {
+        if (store == null) {
+            return;
+        }
+        try {
+            for (ServiceChange change : changes) {
+                if (ServiceChange.REMOVE.equals(change.getAction())) {
+                    store.logRemove(change.getFunctionName(), change.getHost(), change.getPort());
+                } else {
+                    store.logAdd(change.getFunctionName(), change.getHost(), change.getPort(), leaseId);
+                }
+            }
+        } catch (IOException e) {
+            journalFailed(e);
+        }
+    }
+
+    private static void journalFailed(IOException e) {
+        // The change stands in memory; callers waiting for durability see the failure
+        logger.error("Failed to journal a registry change: {}", e.getMessage(), e);
+    }
+
+    /**
+     * Creates a change that belongs to the next revision; only valid until {@link #commit}.
+     */
+    private ServiceChange change(String action, String functionName, ServiceInfo endpoint) {
+        return new ServiceChange(revision + 1, action, functionName, endpoint.getHost(), endpoint.getPort());
+    }
+
+    /**
+     * Makes the changes the next revision: records them and hands them to the listeners.
+     */
+    private void commit(List<ServiceChange> changes) {
+        revision++;
+        publish(changes);
+    }
+
+    /**
+     * Records changes up to the current revision and hands them to the listeners.
+     */
+    private void publish(List<ServiceChange> changes) {
+        for (ServiceChange change : changes) {
+            history.addLast(change);
+        }
+        while (history.size() > HISTORY_SIZE) {
+            compactedRevision = history.removeFirst().getRevision();
+        }
+        // A revision only partly in the history cannot be replayed
+        while (!history.isEmpty() && history.peekFirst().getRevision() == compactedRevision) {
+            history.removeFirst();
+        }
+        List<ServiceChange> published = Collections.unmodifiableList(changes);
+        for (ChangeListener listener : listeners) {
+            listener.onChanges(revision, false, published);
+        }
+    }
+
+    /**
+     * Rebuilds the registry from its store, without journaling or notifying listeners.
+     */
+    private final class Restorer implements RegistryStore.Recovery {
+        @Override
+        public void nextLeaseId(long next) {
+            nextLeaseId.accumulateAndGet(next, Math::max);
+        }
+
+        @Override
+        public void grant(long leaseId, long ttlMs) {
+            putLease(leaseId, ttlMs);
+            nextLeaseId(leaseId);
+        }
+
+        @Override
+        public void expire(long leaseId) {
+            Lease lease = leases.remove(leaseId);
+            if (lease != null) {
+                lease.expired = true;
+                for (String functionName : lease.functions) {
+                    takeEndpoints(functionName, info -> info.getLeaseId() == leaseId);
+                }
+            }
+        }
+
+        @Override
+        public void add(String functionName, String host, int port, long leaseId) {
+            if (leaseId != 0) {
+                Lease lease = leases.get(leaseId);
+                if (lease == null) {
+                    return;
+                }
+                lease.functions.add(functionName);
+            }
+            putEndpoint(functionName, new ServiceInfo(host, port, leaseId));
+        }
+
+        @Override
+        public void remove(String functionName, String host, int port) {
+            takeEndpoints(functionName, info -> info.matches(host, port));
+        }
+    }
+
+    /**
+     * One page of a {@link #list} of functions.
+     */
+    public static final class Listing {
+        private final long revision;
+        private final Map<String, List<ServiceInfo>> services;
+        private final boolean more;
+
+        private Listing(long revision, Map<String, List<ServiceInfo>> services, boolean more) {
+            this.revision = revision;
+            this.services = Collections.unmodifiableMap(services);
+            this.more = more;
+        }
+
+        /** The revision the page shows. */
+        public long getRevision() {
+            return revision;
+        }
+
+        /** The endpoints of each function in the page, in name order. */
+        public Map<String, List<ServiceInfo>> getServices() {
+            return services;
+        }
+
+        /** Whether more functions follow, after the last one of this page. */
+        public boolean hasMore() {
+            return more;
+        }
+    }
+
+    /**
+     * Thrown when a listing asks for a revision the registry can no longer, or cannot yet, show.
+     */
+    public static class RevisionUnavailableException extends Exception {
+        public RevisionUnavailableException(String message) {
+            super(message);
+        }
+    }
+
+    private static final class Lease {
+        private final long id;
+        private final long ttlNanos;
+        private final Set<String> functions = ConcurrentHashMap.newKeySet();
+        // Guarded by this
+        private long deadline;
+        private boolean expired = false;
+
+        private Lease(long id, long ttlNanos, long deadline) {
+            this.id = id;
+            this.ttlNanos = ttlNanos;
+            this.deadline = deadline;
+        }
     }
 
     /**
@@ -77,10 +983,16 @@ public class ServiceRegistry {
     public static class ServiceInfo {
         private final String host;
         private final int port;
+        private final long leaseId;
 
         public ServiceInfo(String host, int port) {
+            this(host, port, 0);
+        }
+
+        public ServiceInfo(String host, int port, long leaseId) {
             this.host = host;
             this.port = port;
+            this.leaseId = leaseId;
         }
 
         public String getHost() {
@@ -91,6 +1003,19 @@ public class ServiceRegistry {
             return port;
         }
 
+        private boolean matches(String otherHost, int otherPort) {
+            return port == otherPort && host.equals(otherHost);
+        }
+
+        /**
+         * Gets the lease the registration lasts for.
+         *
+         * @return the lease id, or 0 if the registration does not expire
+         */
+        public long getLeaseId() {
+            return leaseId;
+        }
+
         @Override
         public String toString() {
             return host + ":" + port;
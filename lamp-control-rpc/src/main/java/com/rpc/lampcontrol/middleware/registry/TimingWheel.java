@@ -0,0 +1,110 @@
+package com.rpc.lampcontrol.middleware.registry;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Hashed timing wheel: a ring of buckets, one per tick, into which timeouts are hashed by
+ * their deadline tick. Advancing the wheel by one tick only visits that tick's bucket, so the
+ * cost of a tick does not grow with the number of scheduled timeouts. Deadlines further away
+ * than one turn of the wheel carry a count of remaining turns.
+ * <p>
+ * Timeouts fire up to one tick late and are never cancelled; owners that extend a deadline
+ * schedule the item again when the old timeout fires. {@link #schedule} may be called from any
+ * thread, {@link #advance} from one thread at a time.
+ *
+ * @param <T> The type of the items that time out
+ */
+final class TimingWheel<T> {
+    private final long tickNanos;
+    private final int mask;
+    private final ArrayDeque<Timeout<T>>[] buckets;
+    private final Queue<Timeout<T>> scheduled = new ConcurrentLinkedQueue<>();
+    private final LongSupplier clock;
+    private final long startTime;
+    // The next tick to process; only touched by advance
+    private long currentTick = 0;
+
+    /**
+     * Creates a wheel.
+     *
+     * @param tickMs The length of a tick in milliseconds
+     * @param wheelSize The number of buckets, rounded up to a power of two
+     * @param clock The time source in nanoseconds
+     */
+    @SuppressWarnings("unchecked")
+    TimingWheel(long tickMs, int wheelSize, LongSupplier clock) {
+        if (tickMs <= 0 || wheelSize <= 0) {
+            throw new IllegalArgumentException("Tick and wheel size must be positive");
+        }
+        int size = wheelSize == 1 ? 1 : Integer.highestOneBit(wheelSize - 1) << 1;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMs);
+        this.mask = size - 1;
+        this.buckets = new ArrayDeque[size];
+        for (int i = 0; i < size; i++) {
+            buckets[i] = new ArrayDeque<>();
+        }
+        this.clock = clock;
+        this.startTime = clock.getAsLong();
+    }
+
+    /**
+     * Schedules an item to time out at a deadline.
+     *
+     * @param item The item
+     * @param deadline The deadline, on the wheel's clock
+     */
+    void schedule(T item, long deadline) {
+        scheduled.add(new Timeout<>(item, deadline));
+    }
+
+    /**
+     * Processes every tick that has passed since the last call and hands the items that
+     * timed out to the consumer. Items scheduled by the consumer go into a later tick.
+     *
+     * @param expired Receives each item whose deadline has passed
+     */
+    void advance(Consumer<T> expired) {
+        long lastTick = (clock.getAsLong() - startTime) / tickNanos;
+        while (currentTick <= lastTick) {
+            transferScheduled();
+            Iterator<Timeout<T>> iterator = buckets[(int) (currentTick & mask)].iterator();
+            while (iterator.hasNext()) {
+                Timeout<T> timeout = iterator.next();
+                if (timeout.remainingRounds > 0) {
+                    timeout.remainingRounds--;
+                } else {
+                    iterator.remove();
+                    expired.accept(timeout.item);
+                }
+            }
+            currentTick++;
+        }
+    }
+
+    private void transferScheduled() {
+        Timeout<T> timeout;
+        while ((timeout = scheduled.poll()) != null) {
+            // Round up so that a timeout never fires before its deadline
+            long deadlineTick = Math.max(currentTick, (timeout.deadline - startTime + tickNanos - 1) / tickNanos);
+            timeout.remainingRounds = (deadlineTick - currentTick) / buckets.length;
+            buckets[(int) (deadlineTick & mask)].add(timeout);
+        }
+    }
+
+    private static final class Timeout<T> {
+        private final T item;
+        private final long deadline;
+        private long remainingRounds;
+
+        private Timeout(T item, long deadline) {
+            this.item = item;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.rpc.lampcontrol.middleware.rpc;
+
+/**
+ * The outcome of one entry of a batch invocation: either the function's result or the error
+ * that prevented it, such as an unknown function, a failed invocation or a lost connection.
+ */
+public class BatchResult {
+    private final Object result;
+    private final RpcClient.RpcException error;
+
+    private BatchResult(Object result, RpcClient.RpcException error) {
+        this.result = result;
+        this.error = error;
+    }
+
+    public static BatchResult success(Object result) {
+        return new BatchResult(result, null);
+    }
+
+    public static BatchResult failure(RpcClient.RpcException error) {
+        return new BatchResult(null, error);
+    }
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+
+    /**
+     * Gets the result of the function call.
+     *
+     * @return the result, or null if the call failed or the function returned nothing
+     */
+    public Object getResult() {
+        return result;
+    }
+
+    /**
+     * Gets the error of a failed call.
+     *
+     * @return the error, or null if the call succeeded
+     */
+    public RpcClient.RpcException getError() {
+        return error;
+    }
+
+    /**
+     * Gets the result of the function call, throwing its error if it failed.
+     *
+     * @return the result
+     * @throws RpcClient.RpcException if the call failed
+     */
+    public Object getResultOrThrow() throws RpcClient.RpcException {
+        if (error != null) {
+            throw error;
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return isSuccess() ? "success: " + result : "error: " + error.getMessage();
+    }
+}
@@ -0,0 +1,184 @@
+package com.rpc.lampcontrol.middleware.rpc;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Limits how many function invocations an {@link RpcServer} runs at once, and adjusts the limit
+ * to the latency it observes, so the limit need not be tuned for each function or deployment.
+ * <p>
+ * Latency is averaged over windows of at least {@link #WINDOW_SAMPLES} invocations and
+ * {@link #WINDOW_MS} ms, and compared with the lowest window latency of the last
+ * {@link #BASELINE_PERIOD_WINDOWS} windows or so, which stands for the latency of an unloaded
+ * server, as the lowest round-trip time does in TCP Vegas. While the window latency stays within
+ * {@link #TOLERANCE} times the lowest, the limit grows by about its square root per window;
+ * once it rises beyond that, the limit moves toward one scaled down by the excess, never below
+ * half of the current one. Each window moves the limit only part of the way. The limit only
+ * grows while at least half of it is in use, so an idle server does not talk itself into a
+ * limit it never tried. Invocations beyond the limit are refused at once rather than queued,
+ * so the ones admitted keep the latency the limit was found at.
+ */
+public final class ConcurrencyLimiter {
+    private static final Logger logger = LoggerFactory.getLogger(ConcurrencyLimiter.class);
+    public static final int DEFAULT_INITIAL_LIMIT = 20;
+    public static final int DEFAULT_MIN_LIMIT = 4;
+    public static final int DEFAULT_MAX_LIMIT = 1000;
+    static final int WINDOW_SAMPLES = 10;
+    static final long WINDOW_MS = 100;
+    // How far window latency may rise above the lowest recent one before the limit shrinks
+    static final double TOLERANCE = 1.5;
+    // Weight of each new limit, so one noisy window moves the limit only a little
+    private static final double SMOOTHING = 0.2;
+    // The lowest latency is taken over the current and the previous period of this many
+    // windows, so a function that became slower for good is not held to its old latency
+    static final int BASELINE_PERIOD_WINDOWS = 300;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final long windowNanos;
+    private final LongSupplier clock;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+    private volatile int limit;
+    // Guarded by this: the exact limit, of which limit is the rounded-down value, and the window
+    private double estimatedLimit;
+    private double baselineNanos = Double.MAX_VALUE;
+    private double periodLowestNanos = Double.MAX_VALUE;
+    private int periodWindows;
+    private long windowStart;
+    private long windowLatencyNanos;
+    private int windowSamples;
+    private int windowMaxInFlight;
+
+    /**
+     * Creates a limiter with the default initial limit and bounds.
+     */
+    public ConcurrencyLimiter() {
+        this(DEFAULT_INITIAL_LIMIT, DEFAULT_MIN_LIMIT, DEFAULT_MAX_LIMIT);
+    }
+
+    /**
+     * Creates a limiter.
+     *
+     * @param initialLimit Invocations allowed at once until latency has been observed
+     * @param minLimit Lowest the limit may shrink to
+     * @param maxLimit Highest the limit may grow to
+     */
+    public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+        this(initialLimit, minLimit, maxLimit, System::nanoTime);
+    }
+
+    ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, LongSupplier clock) {
+        if (minLimit < 1 || initialLimit < minLimit || maxLimit < initialLimit) {
+            throw new IllegalArgumentException("Need 1 <= minLimit <= initialLimit <= maxLimit");
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(WINDOW_MS);
+        this.clock = clock;
+        this.limit = initialLimit;
+        this.estimatedLimit = initialLimit;
+        this.windowStart = clock.getAsLong();
+    }
+
+    /**
+     * Starts an invocation, unless as many as the limit are in progress already.
+     *
+     * @return true if the invocation may run, in which case {@link #release} must be called
+     *         once it is done; false if it should be refused
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= limit) {
+                rejected.increment();
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Ends an invocation started with {@link #tryAcquire} and records its latency.
+     *
+     * @param latencyNanos How long the invocation took, in nanoseconds
+     */
+    public void release(long latencyNanos) {
+        int current = inFlight.getAndDecrement();
+        synchronized (this) {
+            windowLatencyNanos += latencyNanos;
+            windowSamples++;
+            windowMaxInFlight = Math.max(windowMaxInFlight, current);
+            long now = clock.getAsLong();
+            if (windowSamples < WINDOW_SAMPLES || now - windowStart < windowNanos) {
+                return;
+            }
+            double windowNanosAverage = (double) windowLatencyNanos / windowSamples;
+            int maxInFlight = windowMaxInFlight;
+            windowStart = now;
+            windowLatencyNanos = 0;
+            windowSamples = 0;
+            windowMaxInFlight = 0;
+            adjust(windowNanosAverage, maxInFlight);
+        }
+    }
+
+    private void adjust(double windowNanosAverage, int maxInFlight) {
+        periodLowestNanos = Math.min(periodLowestNanos, windowNanosAverage);
+        baselineNanos = Math.min(baselineNanos, windowNanosAverage);
+        if (++periodWindows == BASELINE_PERIOD_WINDOWS) {
+            // Forget what is older than the previous period
+            baselineNanos = periodLowestNanos;
+            periodLowestNanos = Double.MAX_VALUE;
+            periodWindows = 0;
+        }
+        if (maxInFlight < estimatedLimit / 2) {
+            // Too little load to tell whether a higher limit would hurt
+            return;
+        }
+        double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * baselineNanos / windowNanosAverage));
+        double target = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+        estimatedLimit = Math.max(minLimit, Math.min(maxLimit,
+                estimatedLimit * (1 - SMOOTHING) + target * SMOOTHING));
+        int newLimit = (int) estimatedLimit;
+        if (newLimit != limit) {
+            logger.debug("Concurrency limit {} -> {} (latency {} us, lowest {} us)", limit, newLimit,
+                    (long) windowNanosAverage / 1000, (long) baselineNanos / 1000);
+            limit = newLimit;
+        }
+    }
+
+    /**
+     * Gets the current limit.
+     *
+     * @return the invocations allowed at once
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Gets the invocations in progress.
+     *
+     * @return the number of invocations started and not yet released
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Gets how many invocations were refused since the limiter was created.
+     *
+     * @return the number of refused invocations
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+}
@@ -0,0 +1,534 @@
+package com.rpc.lampcontrol.middleware.rpc;
+
+import com.rpc.lampcontrol.middleware.common.JsonSerializer;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaConversionException;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Calls one registered function with arguments taken from a request.
+ * <p>
+ * Built once per function. For public methods of public classes with up to four parameters,
+ * {@link LambdaMetafactory} generates a small class that calls the method directly, with the
+ * target object captured, so the JIT can inline the call like any interface call. Other methods
+ * go through a {@link MethodHandle} bound to the target. Either way the per-parameter argument
+ * adapters are chosen up front, and a call needs no argument array and no access check.
+ */
+public abstract class FunctionInvoker {
+    private static final int MAX_SPECIALIZED_ARITY = 4;
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private final Method method;
+    private final ArgumentAdapter[] adapters;
+
+    FunctionInvoker(Method method, ArgumentAdapter[] adapters) {
+        this.method = method;
+        this.adapters = adapters;
+    }
+
+    /**
+     * Creates an invoker for a method on the given object.
+     *
+     * @param target The object to call the method on; ignored for static methods
+     * @param method The method to call
+     * @return the invoker
+     * @throws IllegalAccessException if the method cannot be accessed
+     */
+    public static FunctionInvoker create(Object target, Method method) throws IllegalAccessException {
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        Type[] genericTypes = method.getGenericParameterTypes();
+        int arity = parameterTypes.length;
+        ArgumentAdapter[] adapters = new ArgumentAdapter[arity];
+        for (int i = 0; i < arity; i++) {
+            adapters[i] = ArgumentAdapter.forType(parameterTypes[i],
+                    genericTypes.length == arity ? genericTypes[i] : parameterTypes[i]);
+        }
+
+        MethodHandle handle = unreflect(method);
+        boolean isStatic = Modifier.isStatic(method.getModifiers());
+        if (arity > MAX_SPECIALIZED_ARITY) {
+            if (!isStatic) {
+                handle = handle.bindTo(target);
+            }
+            handle = handle.asSpreader(Object[].class, arity)
+                    .asType(MethodType.methodType(Object.class, Object[].class));
+            return new SpreadInvoker(method, adapters, handle);
+        }
+
+        Object call = isPublic(method) ? spin(target, method, handle, isStatic) : null;
+        if (call == null) {
+            call = wrap(isStatic ? handle : handle.bindTo(target), arity);
+        }
+        switch (arity) {
+            case 0:
+                return new Invoker0(method, adapters, (Call0) call);
+            case 1:
+                return new Invoker1(method, adapters, (Call1) call);
+            case 2:
+                return new Invoker2(method, adapters, (Call2) call);
+            case 3:
+                return new Invoker3(method, adapters, (Call3) call);
+            default:
+                return new Invoker4(method, adapters, (Call4) call);
+        }
+    }
+
+    /**
+     * Calls the function.
+     *
+     * @param arguments The arguments from the request
+     * @return the function's result, or null for void functions
+     * @throws IllegalArgumentException if the arguments do not match the parameters
+     * @throws InvocationTargetException if the function itself throws
+     */
+    public final Object invoke(List<Object> arguments) throws InvocationTargetException {
+        if (arguments.size() != adapters.length) {
+            throw new IllegalArgumentException("Function '" + method.getName() + "' expects "
+                    + adapters.length + " arguments but got " + arguments.size());
+        }
+        try {
+            return call(arguments);
+        } catch (ArgumentException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        } catch (Throwable t) {
+            throw new InvocationTargetException(t);
+        }
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    /**
+     * Checks whether the arguments fit the parameters. Used to pick among overloads with the
+     * same number of parameters.
+     *
+     * @param arguments The arguments from the request
+     * @param convert Whether plain maps, lists and strings count as fitting object parameters
+     *                they would have to be converted to; otherwise only unboxing and widening
+     * @return true if every argument fits its parameter
+     */
+    boolean accepts(List<Object> arguments, boolean convert) {
+        if (arguments.size() != adapters.length) {
+            return false;
+        }
+        for (int i = 0; i < adapters.length; i++) {
+            if (!adapters[i].accepts(arguments.get(i), convert)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int getParameterCount() {
+        return adapters.length;
+    }
+
+    /**
+     * Adapts the arguments and calls the function. Adapters report mismatches with
+     * {@link ArgumentException}; anything else comes from the function itself.
+     */
+    abstract Object call(List<Object> arguments) throws Throwable;
+
+    final Object adapt(int index, Object value) throws ArgumentException {
+        return adapters[index].adapt(value);
+    }
+
+    private static MethodHandle unreflect(Method method) throws IllegalAccessException {
+        try {
+            return MethodHandles.publicLookup().unreflect(method);
+        } catch (IllegalAccessException e) {
+            // Public methods of non-public classes, such as anonymous handlers
+            method.setAccessible(true);
+            return LOOKUP.unreflect(method);
+        }
+    }
+
+    private static boolean isPublic(Method method) {
+        return Modifier.isPublic(method.getModifiers())
+                && Modifier.isPublic(method.getDeclaringClass().getModifiers());
+    }
+
+    /**
+     * Generates a {@code CallN} (or a {@code VoidCallN} adapted to one) that calls the method
+     * directly. Returns null if the metafactory rejects the method.
+     */
+    private static Object spin(Object target, Method method, MethodHandle handle, boolean isStatic) {
+        int arity = method.getParameterCount();
+        boolean isVoid = method.getReturnType() == void.class;
+        Class<?> callType = isVoid ? VOID_CALL_TYPES[arity] : CALL_TYPES[arity];
+        MethodType factoryType = isStatic
+                ? MethodType.methodType(callType)
+                : MethodType.methodType(callType, method.getDeclaringClass());
+        MethodType erasedType = MethodType.genericMethodType(arity);
+        if (isVoid) {
+            erasedType = erasedType.changeReturnType(void.class);
+        }
+        // The declared types with primitives boxed; the generated class casts and unboxes to them
+        MethodType instantiatedType = MethodType.methodType(method.getReturnType(), method.getParameterTypes()).wrap();
+        if (isVoid) {
+            instantiatedType = instantiatedType.changeReturnType(void.class);
+        }
+        try {
+            CallSite site = LambdaMetafactory.metafactory(LOOKUP, "call", factoryType, erasedType, handle, instantiatedType);
+            Object call = isStatic ? site.getTarget().invoke() : site.getTarget().invoke(target);
+            return isVoid ? returningNull(call, arity) : call;
+        } catch (LambdaConversionException e) {
+            return null;
+        } catch (Throwable t) {
+            throw new IllegalStateException("Failed to generate invoker for " + method, t);
+        }
+    }
+
+    private static Object returningNull(Object voidCall, int arity) {
+        switch (arity) {
+            case 0: {
+                VoidCall0 call = (VoidCall0) voidCall;
+                return (Call0) () -> {
+                    call.call();
+                    return null;
+                };
+            }
+            case 1: {
+                VoidCall1 call = (VoidCall1) voidCall;
+                return (Call1) a0 -> {
+                    call.call(a0);
+                    return null;
+                };
+            }
+            case 2: {
+                VoidCall2 call = (VoidCall2) voidCall;
+                return (Call2) (a0, a1) -> {
+                    call.call(a0, a1);
+                    return null;
+                };
+            }
+            case 3: {
+                VoidCall3 call = (VoidCall3) voidCall;
+                return (Call3) (a0, a1, a2) -> {
+                    call.call(a0, a1, a2);
+                    return null;
+                };
+            }
+            default: {
+                VoidCall4 call = (VoidCall4) voidCall;
+                return (Call4) (a0, a1, a2, a3) -> {
+                    call.call(a0, a1, a2, a3);
+                    return null;
+                };
+            }
+        }
+    }
+
+    private static Object wrap(MethodHandle bound, int arity) {
+        MethodHandle handle = bound.asType(MethodType.genericMethodType(arity));
+        switch (arity) {
+            case 0:
+                return (Call0) () -> (Object) handle.invokeExact();
+            case 1:
+                return (Call1) a0 -> (Object) handle.invokeExact(a0);
+            case 2:
+                return (Call2) (a0, a1) -> (Object) handle.invokeExact(a0, a1);
+            case 3:
+                return (Call3) (a0, a1, a2) -> (Object) handle.invokeExact(a0, a1, a2);
+            default:
+                return (Call4) (a0, a1, a2, a3) -> (Object) handle.invokeExact(a0, a1, a2, a3);
+        }
+    }
+
+    private static final Class<?>[] CALL_TYPES = {Call0.class, Call1.class, Call2.class, Call3.class, Call4.class};
+    private static final Class<?>[] VOID_CALL_TYPES = {
+            VoidCall0.class, VoidCall1.class, VoidCall2.class, VoidCall3.class, VoidCall4.class};
+
+    interface Call0 {
+        Object call() throws Throwable;
+    }
+
+    interface Call1 {
+        Object call(Object a0) throws Throwable;
+    }
+
+    interface Call2 {
+        Object call(Object a0, Object a1) throws Throwable;
+    }
+
+    interface Call3 {
+        Object call(Object a0, Object a1, Object a2) throws Throwable;
+    }
+
+    interface Call4 {
+        Object call(Object a0, Object a1, Object a2, Object a3) throws Throwable;
+    }
+
+    interface VoidCall0 {
+        void call() throws Throwable;
+    }
+
+    interface VoidCall1 {
+        void call(Object a0) throws Throwable;
+    }
+
+    interface VoidCall2 {
+        void call(Object a0, Object a1) throws Throwable;
+    }
+
+    interface VoidCall3 {
+        void call(Object a0, Object a1, Object a2) throws Throwable;
+    }
+
+    interface VoidCall4 {
+        void call(Object a0, Object a1, Object a2, Object a3) throws Throwable;
+    }
+
+    private static final class Invoker0 extends FunctionInvoker {
+        private final Call0 call;
+
+        Invoker0(Method method, ArgumentAdapter[] adapters, Call0 call) {
+            super(method, adapters);
+            this.call = call;
+        }
+
+        @Override
+        Object call(List<Object> arguments) throws Throwable {
+            return call.call();
+        }
+    }
+
+    private static final class Invoker1 extends FunctionInvoker {
+        private final Call1 call;
+
+        Invoker1(Method method, ArgumentAdapter[] adapters, Call1 call) {
+            super(method, adapters);
+            this.call = call;
+        }
+
+        @Override
+        Object call(List<Object> arguments) throws Throwable {
+            return call.call(adapt(0, arguments.get(0)));
+        }
+    }
+
+    private static final class Invoker2 extends FunctionInvoker {
+        private final Call2 call;
+
+        Invoker2(Method method, ArgumentAdapter[] adapters, Call2 call) {
+            super(method, adapters);
+            this.call = call;
+        }
+
+        @Override
+        Object call(List<Object> arguments) throws Throwable {
+            return call.call(adapt(0, arguments.get(0)), adapt(1, arguments.get(1)));
+        }
+    }
+
+    private static final class Invoker3 extends FunctionInvoker {
+        private final Call3 call;
+
+        Invoker3(Method method, ArgumentAdapter[] adapters, Call3 call) {
+            super(method, adapters);
+            this.call = call;
+        }
+
+        @Override
+        Object call(List<Object> arguments) throws Throwable {
+            return call.call(adapt(0, arguments.get(0)), adapt(1, arguments.get(1)), adapt(2, arguments.get(2)));
+        }
+    }
+
+    private static final class Invoker4 extends FunctionInvoker {
+        private final Call4 call;
+
+        Invoker4(Method method, ArgumentAdapter[] adapters, Call4 call) {
+            super(method, adapters);
+            this.call = call;
+        }
+
+        @Override
+        Object call(List<Object> arguments) throws Throwable {
+            return call.call(adapt(0, arguments.get(0)), adapt(1, arguments.get(1)),
+                    adapt(2, arguments.get(2)), adapt(3, arguments.get(3)));
+        }
+    }
+
+    private static final class SpreadInvoker extends FunctionInvoker {
+        private final MethodHandle handle;
+
+        SpreadInvoker(Method method, ArgumentAdapter[] adapters, MethodHandle handle) {
+            super(method, adapters);
+            this.handle = handle;
+        }
+
+        @Override
+        Object call(List<Object> arguments) throws Throwable {
+            Object[] adapted = new Object[arguments.size()];
+            for (int i = 0; i < adapted.length; i++) {
+                adapted[i] = adapt(i, arguments.get(i));
+            }
+            return (Object) handle.invokeExact(adapted);
+        }
+    }
+
+    /**
+     * Converts a decoded argument to the value a parameter accepts, following the conversions
+     * reflection allows: unboxing and primitive widening, but no lossy narrowing. Arguments
+     * that arrive as plain maps, lists or strings for other parameter types are converted. A single
+     * class switching on a precomputed kind keeps the call site in the invokers monomorphic.
+     */
+    static final class ArgumentAdapter {
+        private static final int REFERENCE = 0;
+        private static final int INT = 1;
+        private static final int LONG = 2;
+        private static final int DOUBLE = 3;
+        private static final int FLOAT = 4;
+        private static final int SHORT = 5;
+        private static final int BYTE = 6;
+        private static final int CHAR = 7;
+        private static final int BOOLEAN = 8;
+
+        private final Class<?> type;
+        private final Type genericType;
+        private final Class<?> boxedType;
+        private final int kind;
+
+        private ArgumentAdapter(Class<?> type, Type genericType, int kind) {
+            this.type = type;
+            this.genericType = genericType;
+            this.boxedType = MethodType.methodType(type).wrap().returnType();
+            this.kind = kind;
+        }
+
+        static ArgumentAdapter forType(Class<?> type, Type genericType) {
+            Class<?> boxed = MethodType.methodType(type).wrap().returnType();
+            int kind;
+            if (boxed == Integer.class) {
+                kind = INT;
+            } else if (boxed == Long.class) {
+                kind = LONG;
+            } else if (boxed == Double.class) {
+                kind = DOUBLE;
+            } else if (boxed == Float.class) {
+                kind = FLOAT;
+            } else if (boxed == Short.class) {
+                kind = SHORT;
+            } else if (boxed == Byte.class) {
+                kind = BYTE;
+            } else if (boxed == Character.class) {
+                kind = CHAR;
+            } else if (boxed == Boolean.class) {
+                kind = BOOLEAN;
+            } else {
+                kind = REFERENCE;
+            }
+            return new ArgumentAdapter(type, genericType, kind);
+        }
+
+        Object adapt(Object value) throws ArgumentException {
+            // Decoded arguments almost always have exactly the expected class already
+            if (value != null && value.getClass() == boxedType) {
+                return value;
+            }
+            if (value == null) {
+                if (type.isPrimitive()) {
+                    throw new ArgumentException("null is not a valid " + type.getName());
+                }
+                return null;
+            }
+            if (boxedType.isInstance(value)) {
+                return value;
+            }
+            return convert(value);
+        }
+
+        // Kept out of adapt() so the common path stays small enough to be inlined
+        private Object convert(Object value) throws ArgumentException {
+            switch (kind) {
+                case INT:
+                    if (value instanceof Short || value instanceof Byte) {
+                        return ((Number) value).intValue();
+                    }
+                    if (value instanceof Character) {
+                        return (int) (Character) value;
+                    }
+                    break;
+                case LONG:
+                    if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                        return ((Number) value).longValue();
+                    }
+                    break;
+                case DOUBLE:
+                    if (value instanceof Number && !(value instanceof BigDecimal)) {
+                        return ((Number) value).doubleValue();
+                    }
+                    break;
+                case FLOAT:
+                    if (value instanceof Integer || value instanceof Long
+                            || value instanceof Short || value instanceof Byte) {
+                        return ((Number) value).floatValue();
+                    }
+                    break;
+                case SHORT:
+                    if (value instanceof Byte) {
+                        return ((Byte) value).shortValue();
+                    }
+                    break;
+                case CHAR:
+                    // JSON has no character type, so single characters arrive as strings
+                    if (value instanceof String && ((String) value).length() == 1) {
+                        return ((String) value).charAt(0);
+                    }
+                    break;
+                default:
+                    // Plain maps, lists and strings for a parameter the decoder could not
+                    // bind, such as a POJO in a request that named the function last
+                    if (value instanceof Map || value instanceof List || value instanceof String) {
+                        try {
+                            return JsonSerializer.convertValue(value, genericType);
+                        } catch (JsonSerializer.SerializationException e) {
+                            throw new ArgumentException("argument type mismatch: expected " + type.getName()
+                                    + ": " + e.getMessage());
+                        }
+                    }
+                    break;
+            }
+            throw new ArgumentException("argument type mismatch: expected " + type.getName()
+                    + " but got " + value.getClass().getName());
+        }
+
+        boolean accepts(Object value, boolean convert) {
+            if (value == null) {
+                return !type.isPrimitive();
+            }
+            if (kind == REFERENCE) {
+                return boxedType.isInstance(value)
+                        || convert && (value instanceof Map || value instanceof List || value instanceof String);
+            }
+            try {
+                adapt(value);
+                return true;
+            } catch (ArgumentException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Thrown by adapters; kept apart from exceptions thrown by the function itself.
+     */
+    static class ArgumentException extends Exception {
+        ArgumentException(String message) {
+            super(message, null, false, false);
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package com.rpc.lampcontrol.middleware.rpc;
+
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.WildcardType;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The methods registered under one function name.
+ * <p>
+ * Overloads are grouped by parameter count and ordered most specific first when the function
+ * is registered, so a call picks its method with an array lookup, and only compares argument
+ * types when several overloads take the same number of parameters. The parameter types are
+ * also kept per position for the decoders (see
+ * {@link com.rpc.lampcontrol.middleware.protocol.ArgumentTypes}); positions where plain
+ * decoded values already fit, or where overloads disagree, are left null.
+ */
+final class FunctionOverloads {
+    private static final FunctionInvoker[] NONE = new FunctionInvoker[0];
+
+    private final String functionName;
+    private final FunctionInvoker[][] byArity;
+    private final Type[][] typesByArity;
+    private final Type[] commonTypes;
+
+    FunctionOverloads(String functionName, List<FunctionInvoker> invokers) {
+        if (invokers.isEmpty()) {
+            throw new IllegalArgumentException("No methods for function '" + functionName + "'");
+        }
+        this.functionName = functionName;
+        int maxArity = 0;
+        for (FunctionInvoker invoker : invokers) {
+            maxArity = Math.max(maxArity, invoker.getParameterCount());
+        }
+
+        List<List<FunctionInvoker>> grouped = new ArrayList<>();
+        for (int arity = 0; arity <= maxArity; arity++) {
+            grouped.add(new ArrayList<>());
+        }
+        for (FunctionInvoker invoker : invokers) {
+            insertBySpecificity(grouped.get(invoker.getParameterCount()), invoker);
+        }
+
+        byArity = new FunctionInvoker[maxArity + 1][];
+        typesByArity = new Type[maxArity + 1][];
+        for (int arity = 0; arity <= maxArity; arity++) {
+            List<FunctionInvoker> group = grouped.get(arity);
+            byArity[arity] = group.isEmpty() ? NONE : group.toArray(NONE);
+            typesByArity[arity] = bindingTypes(group, arity);
+        }
+        commonTypes = bindingTypes(invokers, maxArity);
+    }
+
+    /**
+     * Picks the method for a call.
+     *
+     * @param arguments The arguments from the request
+     * @return the most specific method the arguments fit as they are, else the first one they
+     *         can be converted for, else the first with the right number of parameters, whose
+     *         conversions then report the mismatch
+     * @throws IllegalArgumentException if no method takes that many arguments
+     */
+    FunctionInvoker resolve(List<Object> arguments) {
+        int count = arguments.size();
+        FunctionInvoker[] candidates = count < byArity.length ? byArity[count] : NONE;
+        if (candidates.length == 1) {
+            return candidates[0];
+        }
+        if (candidates.length == 0) {
+            throw new IllegalArgumentException("Function '" + functionName + "' expects "
+                    + describeArities() + " arguments but got " + count);
+        }
+        for (FunctionInvoker candidate : candidates) {
+            if (candidate.accepts(arguments, false)) {
+                return candidate;
+            }
+        }
+        for (FunctionInvoker candidate : candidates) {
+            if (candidate.accepts(arguments, true)) {
+                return candidate;
+            }
+        }
+        return candidates[0];
+    }
+
+    /**
+     * Gets the types the arguments of a call should be decoded to.
+     *
+     * @param count The number of arguments, or -1 if not known yet
+     * @return the types per position, or null if plain values will do for every position
+     */
+    Type[] getArgumentTypes(int count) {
+        if (count < 0) {
+            return commonTypes;
+        }
+        return count < typesByArity.length ? typesByArity[count] : null;
+    }
+
+    private String describeArities() {
+        Set<Integer> arities = new TreeSet<>();
+        for (int arity = 0; arity < byArity.length; arity++) {
+            if (byArity[arity].length > 0) {
+                arities.add(arity);
+            }
+        }
+        StringBuilder description = new StringBuilder();
+        for (Integer arity : arities) {
+            if (description.length() > 0) {
+                description.append(" or ");
+            }
+            description.append(arity);
+        }
+        return description.toString();
+    }
+
+    /**
+     * Inserts an overload ahead of the first one it is more specific than, so that, for
+     * example, {@code dim(int)} is tried before {@code dim(long)} and {@code dim(Object)}.
+     */
+    private static void insertBySpecificity(List<FunctionInvoker> group, FunctionInvoker invoker) {
+        Class<?>[] types = invoker.getMethod().getParameterTypes();
+        for (int i = 0; i < group.size(); i++) {
+            if (isMoreSpecific(types, group.get(i).getMethod().getParameterTypes())) {
+                group.add(i, invoker);
+                return;
+            }
+        }
+        group.add(invoker);
+    }
+
+    private static boolean isMoreSpecific(Class<?>[] a, Class<?>[] b) {
+        for (int i = 0; i < a.length; i++) {
+            if (!isSubtype(a[i], b[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSubtype(Class<?> a, Class<?> b) {
+        if (b.isAssignableFrom(a)) {
+            return true;
+        }
+        if (a.isPrimitive() && b.isPrimitive() && b != char.class && !(a == char.class && b == short.class)) {
+            return wideningRank(a) >= 0 && wideningRank(a) < wideningRank(b);
+        }
+        return false;
+    }
+
+    private static int wideningRank(Class<?> type) {
+        if (type == byte.class) {
+            return 0;
+        } else if (type == short.class || type == char.class) {
+            return 1;
+        } else if (type == int.class) {
+            return 2;
+        } else if (type == long.class) {
+            return 3;
+        } else if (type == float.class) {
+            return 4;
+        } else if (type == double.class) {
+            return 5;
+        }
+        return -1;
+    }
+
+    /**
+     * Collects, per position, the parameter type all the given overloads agree on, or null
+     * where they disagree or plain values need no binding. Returns null if every position is null.
+     */
+    private static Type[] bindingTypes(List<FunctionInvoker> invokers, int maxArity) {
+        Type[] types = new Type[maxArity];
+        boolean any = false;
+        for (int i = 0; i < maxArity; i++) {
+            Type agreed = null;
+            boolean conflict = false;
+            for (FunctionInvoker invoker : invokers) {
+                Method method = invoker.getMethod();
+                if (method.getParameterCount() <= i) {
+                    continue;
+                }
+                Type type = method.getGenericParameterTypes()[i];
+                if (agreed == null) {
+                    agreed = type;
+                } else if (!Objects.equals(agreed, type)) {
+                    conflict = true;
+                    break;
+                }
+            }
+            if (!conflict && agreed != null && needsBinding(agreed)) {
+                types[i] = agreed;
+                any = true;
+            }
+        }
+        return any ? types : null;
+    }
+
+    /**
+     * Checks whether plain decoded values (maps, lists, strings, numbers and booleans) would
+     * not already fit a parameter of this type after the invoker's unboxing and widening.
+     */
+    private static boolean needsBinding(Type type) {
+        if (type instanceof Class) {
+            Class<?> raw = (Class<?>) type;
+            boolean boxed = MethodType.methodType(raw).unwrap().returnType().isPrimitive();
+            return !(raw.isPrimitive() || boxed || raw == Object.class || raw == String.class
+                    || raw == Number.class || raw == List.class || raw == Collection.class || raw == Map.class);
+        }
+        if (type instanceof ParameterizedType) {
+            ParameterizedType parameterized = (ParameterizedType) type;
+            Type raw = parameterized.getRawType();
+            if (raw != List.class && raw != Collection.class && raw != Map.class) {
+                return true;
+            }
+            for (Type argument : parameterized.getActualTypeArguments()) {
+                if (argument != Object.class && argument != String.class && !(argument instanceof WildcardType)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return true;
+    }
+}
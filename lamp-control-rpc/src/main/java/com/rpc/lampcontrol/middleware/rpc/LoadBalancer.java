@@ -0,0 +1,64 @@
+package com.rpc.lampcontrol.middleware.rpc;
+
+import com.rpc.lampcontrol.middleware.protocol.Endpoint;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Spreads calls over the endpoints of a function by the power of two choices: two endpoints
+ * are picked at random and the one with fewer of this client's calls outstanding wins.
+ * Comparing just two keeps the choice cheap and avoids every client piling onto the same
+ * least-loaded server, while still steering calls away from slow or busy ones.
+ */
+final class LoadBalancer {
+    // Calls sent and not yet answered, per endpoint; endpoints without calls are dropped
+    private final Map<Endpoint, Integer> outstanding = new ConcurrentHashMap<>();
+
+    /**
+     * Chooses an endpoint without counting a call against it.
+     *
+     * @param endpoints The endpoints to choose from, not empty
+     * @return the chosen endpoint
+     */
+    Endpoint choose(List<Endpoint> endpoints) {
+        int size = endpoints.size();
+        if (size == 1) {
+            return endpoints.get(0);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(size);
+        // A second index distinct from the first
+        int second = (first + 1 + random.nextInt(size - 1)) % size;
+        Endpoint a = endpoints.get(first);
+        Endpoint b = endpoints.get(second);
+        return getOutstanding(b) < getOutstanding(a) ? b : a;
+    }
+
+    /**
+     * Chooses an endpoint and counts a call against it until {@link #release} is called.
+     *
+     * @param endpoints The endpoints to choose from, not empty
+     * @return the chosen endpoint
+     */
+    Endpoint acquire(List<Endpoint> endpoints) {
+        Endpoint endpoint = choose(endpoints);
+        outstanding.merge(endpoint, 1, Integer::sum);
+        return endpoint;
+    }
+
+    /**
+     * Counts a call to an endpoint as finished.
+     *
+     * @param endpoint The endpoint returned by {@link #acquire}
+     */
+    void release(Endpoint endpoint) {
+        outstanding.computeIfPresent(endpoint, (key, count) -> count == 1 ? null : count - 1);
+    }
+
+    int getOutstanding(Endpoint endpoint) {
+        return outstanding.getOrDefault(endpoint, 0);
+    }
+}
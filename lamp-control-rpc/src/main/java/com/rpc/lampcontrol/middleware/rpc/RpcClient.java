@@ -1,25 +1,56 @@
 package com.rpc.lampcontrol.middleware.rpc;
 
+import com.rpc.lampcontrol.middleware.protocol.BatchRequest;
+import com.rpc.lampcontrol.middleware.protocol.BatchResponse;
+import com.rpc.lampcontrol.middleware.protocol.CancelRequest;
+import com.rpc.lampcontrol.middleware.protocol.Endpoint;
+import com.rpc.lampcontrol.middleware.protocol.LookupResponse;
+import com.rpc.lampcontrol.middleware.protocol.Message;
 import com.rpc.lampcontrol.middleware.protocol.RpcRequest;
 import com.rpc.lampcontrol.middleware.protocol.RpcResponse;
+import com.rpc.lampcontrol.middleware.protocol.SubscribeRequest;
+import com.rpc.lampcontrol.middleware.registry.OutlierDetector;
 import com.rpc.lampcontrol.middleware.registry.RegistryClient;
 import com.rpc.lampcontrol.middleware.transport.ClientTransport;
 import com.rpc.lampcontrol.middleware.transport.ConnectionHandler;
+import com.rpc.lampcontrol.middleware.transport.MultiplexedConnection;
+import com.rpc.lampcontrol.middleware.transport.MultiplexedConnectionPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * RPC client for invoking remote functions.
+ * Concurrent invocations share a few multiplexed connections per server; responses are
+ * matched to their calls by trace id. Calls are asynchronous underneath (see
+ * {@link #invokeAsync(String, List, long)}); {@link #invoke(String, List)} waits for them.
+ * When several servers offer a function, each call goes to the less busy of two randomly
+ * picked ones (see {@link LoadBalancer}). Servers whose calls keep failing, or answer far
+ * slower than the others, are left out for a while (see {@link OutlierDetector}).
  */
-public class RpcClient {
+public class RpcClient implements AutoCloseable {
     private static final Logger logger = LoggerFactory.getLogger(RpcClient.class);
+    private static final long DEFAULT_CALL_TIMEOUT_MS = 5000;
     
     private final RegistryClient registryClient;
-    private final ClientTransport transport;
+    private final MultiplexedConnectionPool connectionPool;
+    private final LoadBalancer balancer = new LoadBalancer();
+    private final OutlierDetector outliers = new OutlierDetector();
     
     /**
      * Creates a new RPC client with default registry settings.
@@ -34,8 +65,18 @@ public class RpcClient {
      * @param registryClient The registry client to use for service lookup
      */
     public RpcClient(RegistryClient registryClient) {
+        this(registryClient, new MultiplexedConnectionPool(new ClientTransport()));
+    }
+    
+    /**
+     * Creates a new RPC client with a specific registry client and connection pool.
+     *
+     * @param registryClient The registry client to use for service lookup
+     * @param connectionPool The pool providing shared connections to RPC servers
+     */
+    public RpcClient(RegistryClient registryClient, MultiplexedConnectionPool connectionPool) {
         this.registryClient = registryClient;
-        this.transport = new ClientTransport();
+        this.connectionPool = connectionPool;
     }
     
     /**
@@ -50,7 +91,7 @@ public class RpcClient {
     }
     
     /**
-     * Invokes a remote function with the specified arguments.
+     * Invokes a remote function with the specified arguments and waits for the result.
      *
      * @param functionName The name of the function to invoke
      * @param args The arguments to pass to the function
@@ -58,48 +99,515 @@ public class RpcClient {
      * @throws RpcException if there is an error invoking the function
      */
     public Object invoke(String functionName, List<Object> args) throws RpcException {
+        return invoke(functionName, args, DEFAULT_CALL_TIMEOUT_MS);
+    }
+    
+    /**
+     * Invokes a remote function with the specified arguments and waits for the result, at
+     * most for the given time. If the waiting thread is interrupted, the call is cancelled.
+     *
+     * @param functionName The name of the function to invoke
+     * @param args The arguments to pass to the function
+     * @param timeoutMs How long to wait for the result
+     * @return The result of the function call
+     * @throws RpcException if there is an error invoking the function; a
+     *                      {@link CallTimeoutException} if the timeout passes first
+     */
+    public Object invoke(String functionName, List<Object> args, long timeoutMs) throws RpcException {
+        CompletableFuture<Object> call = invokeAsync(functionName, args, timeoutMs);
         try {
-            // Look up service in registry
-            var lookupResponse = registryClient.lookupService(functionName);
-            
-            if (!lookupResponse.isSuccess()) {
-                throw new RpcException("Function not found: " + lookupResponse.getErrorMessage());
+            return call.get();
+        } catch (InterruptedException e) {
+            call.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RpcException("Interrupted while waiting for '" + functionName + "'", e);
+        } catch (ExecutionException e) {
+            throw toRpcException(e.getCause());
+        }
+    }
+    
+    /**
+     * Invokes a remote function without blocking, using the default call timeout.
+     *
+     * @param functionName The name of the function to invoke
+     * @param args The arguments to pass to the function
+     * @return a future completed with the result of the function call, or exceptionally
+     *         with an RpcException
+     * @see #invokeAsync(String, List, long)
+     */
+    public CompletableFuture<Object> invokeAsync(String functionName, List<Object> args) {
+        return invokeAsync(functionName, args, DEFAULT_CALL_TIMEOUT_MS);
+    }
+    
+    /**
+     * Invokes a remote function without blocking.
+     * The lookup, the connection and the call itself all proceed asynchronously, so a single
+     * thread can keep thousands of calls in flight. The returned future completes on a client
+     * I/O worker thread; callbacks attached to it should not block.
+     *
+     * <p>
+     * The server is told how long the caller still waits, and drops the call if that time
+     * passes before the call runs. Cancelling the returned future cancels the call on the
+     * server too: it is dropped if it has not started, and a function already running can
+     * notice through {@link RpcContext}.
+     *
+     * @param functionName The name of the function to invoke
+     * @param args The arguments to pass to the function
+     * @param timeoutMs How long to wait for the result, counted from this call
+     * @return a future completed with the result of the function call, or exceptionally
+     *         with an RpcException; a {@link CallTimeoutException} if the timeout passes first
+     */
+    public CompletableFuture<Object> invokeAsync(String functionName, List<Object> args, long timeoutMs) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        RpcRequest request = new RpcRequest(functionName, args);
+        CompletableFuture<Object> result = new CompletableFuture<>();
+        registryClient.lookupServiceAsync(functionName).whenComplete((lookupResponse, error) -> {
+            if (error != null) {
+                result.completeExceptionally(toRpcException(error));
+            } else if (!lookupResponse.isSuccess()) {
+                result.completeExceptionally(new RpcException("Function not found: " + lookupResponse.getErrorMessage()));
+            } else {
+                call(request, lookupResponse.getEndpoints(), deadline, result);
+            }
+        });
+        CompletableFuture<Object> call = result.orTimeout(timeoutMs, TimeUnit.MILLISECONDS).exceptionallyCompose(error -> {
+            if (unwrap(error) instanceof TimeoutException) {
+                logger.error("Function '{}' timed out after {} ms", functionName, timeoutMs);
+                return CompletableFuture.failedFuture(new CallTimeoutException(
+                        "Timed out after " + timeoutMs + " ms waiting for '" + functionName + "'", unwrap(error)));
+            }
+            return CompletableFuture.failedFuture(unwrap(error));
+        });
+        call.whenComplete((value, error) -> {
+            if (error instanceof CancellationException) {
+                result.cancel(false);
+            }
+        });
+        return call;
+    }
+    
+    private void call(RpcRequest request, List<Endpoint> endpoints, long deadline, CompletableFuture<Object> result) {
+        if (result.isDone()) {
+            return;
+        }
+        // The time left, rounded up, as a retry has less of it than the first attempt
+        request.setTimeoutMs(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime() + 999_999)));
+        String functionName = request.getFunctionName();
+        Endpoint endpoint = balancer.acquire(outliers.filter(endpoints));
+        String host = endpoint.getHost();
+        int port = endpoint.getPort();
+        logger.info("Invoking function '{}' at {}:{}", functionName, host, port);
+        
+        connectionPool.getConnectionAsync(host, port).whenComplete((connection, connectError) -> {
+            if (connectError != null) {
+                balancer.release(endpoint);
+                outliers.recordFailure(endpoint);
+                // The cached endpoint may be gone; the next call looks it up again
+                registryClient.invalidateLookup(functionName, host, port);
+                List<Endpoint> remaining = new ArrayList<>(endpoints);
+                remaining.remove(endpoint);
+                if (remaining.isEmpty()) {
+                    result.completeExceptionally(toRpcException(connectError));
+                } else {
+                    // Nothing was sent yet, so another endpoint can safely take the call
+                    logger.warn("Cannot reach {}:{} for '{}', trying another endpoint", host, port, functionName);
+                    call(request, remaining, deadline, result);
+                }
+                return;
+            }
+            // Released when the call completes, or earlier if it is passed on to another endpoint
+            AtomicBoolean released = new AtomicBoolean();
+            AtomicBoolean passedOn = new AtomicBoolean();
+            result.whenComplete((value, error) -> {
+                if (released.compareAndSet(false, true)) {
+                    balancer.release(endpoint);
+                }
+            });
+            // Send request on a shared connection; the response is matched to it by trace id
+            long start = System.nanoTime();
+            connection.send(request).whenComplete((response, error) -> {
+                if (error != null) {
+                    outliers.recordFailure(endpoint);
+                    registryClient.invalidateLookup(functionName, host, port);
+                    result.completeExceptionally(toRpcException(error));
+                    return;
+                }
+                if (response instanceof RpcResponse && ((RpcResponse) response).isOverloaded()) {
+                    outliers.recordFailure(endpoint);
+                    List<Endpoint> remaining = new ArrayList<>(endpoints);
+                    remaining.remove(endpoint);
+                    if (!remaining.isEmpty() && !result.isDone()) {
+                        // The server shed the call without executing it, so another one can take it
+                        passedOn.set(true);
+                        if (released.compareAndSet(false, true)) {
+                            balancer.release(endpoint);
+                        }
+                        logger.warn("{}:{} is overloaded, trying another endpoint for '{}'", host, port, functionName);
+                        call(request, remaining, deadline, result);
+                    } else {
+                        result.completeExceptionally(new ServerOverloadedException("Server " + host + ":" + port
+                                + " is overloaded: " + ((RpcResponse) response).getErrorMessage()));
+                    }
+                    return;
+                }
+                // Any answer, even a failed invocation, shows the server itself is healthy
+                outliers.recordSuccess(endpoint, System.nanoTime() - start);
+                if (!(response instanceof RpcResponse)) {
+                    result.completeExceptionally(new RpcException("Unexpected response type: " + response.getType()));
+                } else if (((RpcResponse) response).isSuccess()) {
+                    logger.info("Function '{}' invoked successfully", functionName);
+                    result.complete(((RpcResponse) response).getResult());
+                } else {
+                    String errorMessage = ((RpcResponse) response).getErrorMessage();
+                    logger.error("Function '{}' invocation failed: {}", functionName, errorMessage);
+                    result.completeExceptionally(new RpcException("Function invocation failed: " + errorMessage));
+                }
+            });
+            result.whenComplete((value, error) -> {
+                if (passedOn.get()) {
+                    return;
+                }
+                if (unwrap(error) instanceof TimeoutException) {
+                    // Discard the late response; the endpoint may be gone, so look it up again next time.
+                    // The server knows the deadline, so it needs no cancellation
+                    connection.cancel(request.getTraceId());
+                    outliers.recordFailure(endpoint);
+                    registryClient.invalidateLookup(functionName, host, port);
+                } else if (result.isCancelled()) {
+                    connection.cancel(request.getTraceId());
+                    sendCancel(connection, request.getTraceId());
+                }
+            });
+        });
+    }
+    
+    /**
+     * Invokes several remote functions and waits for all of their results.
+     *
+     * @param requests The calls to make, each with its function name and arguments
+     * @return one result per request, in request order
+     * @throws RpcException if interrupted while waiting
+     * @see #invokeBatchAsync(List, long)
+     */
+    public List<BatchResult> invokeBatch(List<RpcRequest> requests) throws RpcException {
+        try {
+            return invokeBatchAsync(requests).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RpcException("Interrupted while waiting for a batch of " + requests.size() + " calls", e);
+        } catch (ExecutionException e) {
+            throw toRpcException(e.getCause());
+        }
+    }
+    
+    /**
+     * Invokes several remote functions without blocking, using the default call timeout.
+     *
+     * @param requests The calls to make, each with its function name and arguments
+     * @return a future completed with one result per request, in request order
+     * @see #invokeBatchAsync(List, long)
+     */
+    public CompletableFuture<List<BatchResult>> invokeBatchAsync(List<RpcRequest> requests) {
+        return invokeBatchAsync(requests, DEFAULT_CALL_TIMEOUT_MS);
+    }
+    
+    /**
+     * Invokes several remote functions without blocking.
+     * Each distinct function is looked up once, and the calls going to the same server travel
+     * together as one {@link BatchRequest} and come back as one {@link BatchResponse}, so a
+     * batch costs one round trip per server instead of one per call. The server may execute
+     * the entries of a batch in parallel and in any order.
+     * The returned future never fails: each entry carries its own result or error.
+     *
+     * @param requests The calls to make, each with its function name and arguments
+     * @param timeoutMs How long to wait for the results, counted from this call; entries still
+     *                  outstanding then fail with a {@link CallTimeoutException}
+     * @return a future completed with one result per request, in request order
+     */
+    public CompletableFuture<List<BatchResult>> invokeBatchAsync(List<RpcRequest> requests, long timeoutMs) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        // Created first, so batches already sent can be cancelled along with it
+        CompletableFuture<List<BatchResult>> returned = new CompletableFuture<>();
+        BatchResult[] results = new BatchResult[requests.size()];
+        Map<String, CompletableFuture<LookupResponse>> lookups = new HashMap<>();
+        for (RpcRequest request : requests) {
+            lookups.computeIfAbsent(request.getFunctionName(), registryClient::lookupServiceAsync);
+        }
+        
+        CompletableFuture.allOf(settled(lookups.values())).thenCompose(ignored -> {
+            // Group the calls by the server they go to
+            Map<Endpoint, List<Integer>> byEndpoint = new LinkedHashMap<>();
+            for (int i = 0; i < requests.size(); i++) {
+                LookupResponse lookup;
+                try {
+                    lookup = lookups.get(requests.get(i).getFunctionName()).join();
+                } catch (CompletionException e) {
+                    results[i] = BatchResult.failure(toRpcException(e));
+                    continue;
+                }
+                if (lookup.isSuccess()) {
+                    // Counted per call, so the entries of a big batch spread over the endpoints
+                    Endpoint endpoint = balancer.acquire(outliers.filter(lookup.getEndpoints()));
+                    byEndpoint.computeIfAbsent(endpoint, key -> new ArrayList<>()).add(i);
+                } else {
+                    results[i] = BatchResult.failure(new RpcException("Function not found: " + lookup.getErrorMessage()));
+                }
             }
             
-            String host = lookupResponse.getHost();
-            int port = lookupResponse.getPort();
-            
-            logger.info("Invoking function '{}' at {}:{}", functionName, host, port);
-            
-            // Prepare request
-            RpcRequest request = new RpcRequest(functionName, args);
+            List<CompletableFuture<Void>> calls = new ArrayList<>(byEndpoint.size());
+            for (Map.Entry<Endpoint, List<Integer>> entry : byEndpoint.entrySet()) {
+                Endpoint endpoint = entry.getKey();
+                List<Integer> indices = entry.getValue();
+                calls.add(callBatch(requests, indices, endpoint, deadline, results, returned)
+                        .whenComplete((value, error) -> {
+                            for (int i = 0; i < indices.size(); i++) {
+                                balancer.release(endpoint);
+                            }
+                        }));
+            }
+            return CompletableFuture.allOf(calls.toArray(new CompletableFuture<?>[0]));
+        }).thenApply(ignored -> Arrays.asList(results)).whenComplete((value, error) -> {
+            if (error != null) {
+                returned.completeExceptionally(error);
+            } else {
+                returned.complete(value);
+            }
+        });
+        return returned;
+    }
+    
+    private CompletableFuture<Void> callBatch(List<RpcRequest> requests, List<Integer> indices, Endpoint endpoint,
+                                              long deadline, BatchResult[] results, CompletableFuture<?> caller) {
+        String host = endpoint.getHost();
+        int port = endpoint.getPort();
+        BatchRequest batch = new BatchRequest(new ArrayList<>(indices.size()));
+        long start = System.nanoTime();
+        long timeoutNanos = deadline - start;
+        // The batch carries the time left, so the server can drop it once it passed; the
+        // caller's requests are left untouched, as they may be reused
+        batch.setTimeoutMs(Math.max(1, TimeUnit.NANOSECONDS.toMillis(timeoutNanos + 999_999)));
+        for (int index : indices) {
+            batch.addRequest(requests.get(index));
+        }
+        logger.info("Invoking batch of {} calls at {}:{}", indices.size(), host, port);
+        
+        // Timed from before connecting, so a slow connection counts against the deadline too
+        CompletableFuture<Message> reply = new CompletableFuture<Message>()
+                .orTimeout(Math.max(0, timeoutNanos), TimeUnit.NANOSECONDS);
+        caller.whenComplete((value, error) -> {
+            if (caller.isCancelled()) {
+                reply.cancel(false);
+            }
+        });
+        connectionPool.getConnectionAsync(host, port).whenComplete((connection, connectError) -> {
+            if (connectError != null) {
+                reply.completeExceptionally(connectError);
+                return;
+            }
+            if (reply.isDone()) {
+                // Timed out or cancelled while connecting; nothing to send
+                return;
+            }
+            connection.send(batch).whenComplete((response, error) -> {
+                if (error != null) {
+                    reply.completeExceptionally(error);
+                } else {
+                    reply.complete(response);
+                }
+            });
+            reply.whenComplete((response, error) -> {
+                if (unwrap(error) instanceof TimeoutException) {
+                    // The server knows the deadline, so it needs no cancellation
+                    connection.cancel(batch.getTraceId());
+                } else if (reply.isCancelled()) {
+                    connection.cancel(batch.getTraceId());
+                    sendCancel(connection, batch.getTraceId());
+                }
+            });
+        });
+        return reply.handle((response, error) -> {
+            if (caller.isCancelled()) {
+                // Nobody reads the results, and the server did nothing wrong
+                return null;
+            }
+            List<RpcResponse> responses = response instanceof BatchResponse
+                    ? ((BatchResponse) response).getResponses() : null;
+            RpcException failure = null;
+            if (error != null) {
+                outliers.recordFailure(endpoint);
+                if (unwrap(error) instanceof TimeoutException) {
+                    failure = new CallTimeoutException("Timed out waiting for a batch of " + indices.size()
+                            + " calls to " + host + ":" + port, unwrap(error));
+                } else {
+                    failure = toRpcException(error);
+                }
+                // The cached endpoint may be gone; the next calls look it up again
+                for (int index : indices) {
+                    registryClient.invalidateLookup(requests.get(index).getFunctionName(), host, port);
+                }
+            } else {
+                outliers.recordSuccess(endpoint, System.nanoTime() - start);
+                if (responses == null || responses.size() != indices.size()) {
+                    failure = new RpcException("Unexpected response to a batch of " + indices.size() + " calls: "
+                            + (responses == null ? response.getType() : responses.size() + " responses"));
+                }
+            }
             
-            // Send request and receive response
-            try (ConnectionHandler connection = transport.connect(host, port)) {
-                connection.sendMessage(request);
-                RpcResponse response = connection.receiveMessage(RpcResponse.class);
-                
-                // Check for success
-                if (response.isSuccess()) {
-                    logger.info("Function '{}' invoked successfully", functionName);
-                    return response.getResult();
+            for (int i = 0; i < indices.size(); i++) {
+                if (failure != null) {
+                    results[indices.get(i)] = BatchResult.failure(failure);
+                } else if (responses.get(i).isSuccess()) {
+                    results[indices.get(i)] = BatchResult.success(responses.get(i).getResult());
+                } else if (responses.get(i).isOverloaded()) {
+                    results[indices.get(i)] = BatchResult.failure(new ServerOverloadedException(
+                            "Server " + host + ":" + port + " is overloaded: " + responses.get(i).getErrorMessage()));
                 } else {
-                    logger.error("Function '{}' invocation failed: {}", functionName, response.getErrorMessage());
-                    throw new RpcException("Function invocation failed: " + response.getErrorMessage());
-                }
-            }
-        } catch (IOException e) {
-            logger.error("Network error invoking function: {}", e.getMessage());
-            throw new RpcException("Network error: " + e.getMessage(), e);
-        } catch (ConnectionHandler.ConnectionException e) {
-            logger.error("Communication error invoking function: {}", e.getMessage());
-            throw new RpcException("Communication error: " + e.getMessage(), e);
-        } catch (RegistryClient.RegistryException e) {
-            logger.error("Registry error looking up function: {}", e.getMessage());
-            throw new RpcException("Registry error: " + e.getMessage(), e);
+                    results[indices.get(i)] = BatchResult.failure(
+                            new RpcException("Function invocation failed: " + responses.get(i).getErrorMessage()));
+                }
+            }
+            return null;
+        });
+    }
+    
+    /**
+     * Tells the server to drop or stop a call the caller gave up on. The acknowledgement
+     * is not waited for.
+     */
+    private static void sendCancel(MultiplexedConnection connection, String requestId) {
+        connection.send(new CancelRequest(requestId)).whenComplete((response, error) -> {
+            if (error != null) {
+                logger.debug("Failed to cancel request {}: {}", requestId, error.getMessage());
+            }
+        });
+    }
+    
+    /**
+     * Subscribes to a topic registered on a server, waiting for the subscription to be accepted.
+     *
+     * @param topic The name of the topic
+     * @param listener Receives the current value of every key, then each change
+     * @return the open subscription, to be closed when no longer needed
+     * @throws RpcException if the topic is not found or the subscription fails
+     * @see #subscribeAsync(String, StreamListener)
+     */
+    public Subscription subscribe(String topic, StreamListener listener) throws RpcException {
+        try {
+            return subscribeAsync(topic, listener).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RpcException("Interrupted while subscribing to '" + topic + "'", e);
+        } catch (ExecutionException e) {
+            throw toRpcException(e.getCause());
         }
     }
     
+    /**
+     * Subscribes to a topic registered on a server, so that its state changes are pushed to
+     * the listener instead of being polled for. The subscription shares the pooled connection
+     * to the server with ordinary calls and keeps it open while active. If the connection is
+     * lost, the listener's {@link StreamListener#onClosed} is called; resubscribing is left to
+     * the caller.
+     *
+     * @param topic The name of the topic
+     * @param listener Receives the current value of every key, then each change
+     * @return a future completed with the subscription once the server accepted it, or
+     *         exceptionally with an RpcException
+     */
+    public CompletableFuture<Subscription> subscribeAsync(String topic, StreamListener listener) {
+        CompletableFuture<Subscription> result = new CompletableFuture<>();
+        registryClient.lookupServiceAsync(topic).whenComplete((lookupResponse, error) -> {
+            if (error != null) {
+                result.completeExceptionally(toRpcException(error));
+            } else if (!lookupResponse.isSuccess()) {
+                result.completeExceptionally(new RpcException("Topic not found: " + lookupResponse.getErrorMessage()));
+            } else {
+                Endpoint endpoint = balancer.choose(outliers.filter(lookupResponse.getEndpoints()));
+                openSubscription(topic, endpoint.getHost(), endpoint.getPort(), listener, result);
+            }
+        });
+        return result.orTimeout(DEFAULT_CALL_TIMEOUT_MS, TimeUnit.MILLISECONDS).exceptionallyCompose(error -> {
+            if (unwrap(error) instanceof TimeoutException) {
+                return CompletableFuture.failedFuture(new CallTimeoutException(
+                        "Timed out after " + DEFAULT_CALL_TIMEOUT_MS + " ms subscribing to '" + topic + "'", unwrap(error)));
+            }
+            return CompletableFuture.failedFuture(unwrap(error));
+        });
+    }
+    
+    private void openSubscription(String topic, String host, int port, StreamListener listener,
+                                  CompletableFuture<Subscription> result) {
+        logger.info("Subscribing to topic '{}' at {}:{}", topic, host, port);
+        connectionPool.getConnectionAsync(host, port).whenComplete((connection, connectError) -> {
+            if (connectError != null) {
+                registryClient.invalidateLookup(topic, host, port);
+                result.completeExceptionally(toRpcException(connectError));
+                return;
+            }
+            SubscribeRequest request = new SubscribeRequest(topic);
+            Subscription subscription = new Subscription(topic, request.getTraceId(), connection, listener);
+            connection.openStream(request, subscription).whenComplete((response, error) -> {
+                if (error != null) {
+                    registryClient.invalidateLookup(topic, host, port);
+                    result.completeExceptionally(toRpcException(error));
+                } else if (!(response instanceof RpcResponse)) {
+                    connection.closeStream(request.getTraceId());
+                    result.completeExceptionally(new RpcException("Unexpected response type: " + response.getType()));
+                } else if (!((RpcResponse) response).isSuccess()) {
+                    connection.closeStream(request.getTraceId());
+                    result.completeExceptionally(new RpcException(
+                            "Subscription failed: " + ((RpcResponse) response).getErrorMessage()));
+                } else if (!result.complete(subscription)) {
+                    // Accepted after the caller gave up waiting
+                    subscription.close();
+                } else {
+                    logger.info("Subscribed to topic '{}'", topic);
+                }
+            });
+        });
+    }
+    
+    /**
+     * Gets futures that complete normally once the given futures complete either way.
+     */
+    private static CompletableFuture<?>[] settled(Collection<? extends CompletableFuture<?>> futures) {
+        CompletableFuture<?>[] settled = new CompletableFuture<?>[futures.size()];
+        int i = 0;
+        for (CompletableFuture<?> future : futures) {
+            settled[i++] = future.handle((value, error) -> null);
+        }
+        return settled;
+    }
+    
+    private static RpcException toRpcException(Throwable error) {
+        Throwable cause = unwrap(error);
+        if (cause instanceof RpcException) {
+            return (RpcException) cause;
+        } else if (cause instanceof IOException) {
+            logger.error("Network error invoking function: {}", cause.getMessage());
+            return new RpcException("Network error: " + cause.getMessage(), cause);
+        } else if (cause instanceof ConnectionHandler.ConnectionException) {
+            logger.error("Communication error invoking function: {}", cause.getMessage());
+            return new RpcException("Communication error: " + cause.getMessage(), cause);
+        } else if (cause instanceof RegistryClient.RegistryException) {
+            logger.error("Registry error looking up function: {}", cause.getMessage());
+            return new RpcException("Registry error: " + cause.getMessage(), cause);
+        }
+        return new RpcException("Unexpected error: " + cause.getMessage(), cause);
+    }
+    
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+    
+    /**
+     * Closes all pooled connections held by this client.
+     */
+    @Override
+    public void close() {
+        connectionPool.close();
+    }
+    
     /**
      * Exception thrown when there is an error invoking a remote function.
      */
@@ -112,4 +620,23 @@ public class RpcClient {
             super(message, cause);
         }
     }
+    
+    /**
+     * Exception thrown when every server tried shed a call under load without executing it,
+     * so it can safely be made again later.
+     */
+    public static class ServerOverloadedException extends RpcException {
+        public ServerOverloadedException(String message) {
+            super(message);
+        }
+    }
+    
+    /**
+     * Exception thrown when a remote function does not answer in time.
+     */
+    public static class CallTimeoutException extends RpcException {
+        public CallTimeoutException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,108 @@
+package com.rpc.lampcontrol.middleware.rpc;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The call a registered function is running for: how long its caller still waits for the
+ * result, and whether the caller cancelled it. {@link RpcServer} sets it for the thread that
+ * invokes the function, so a function that takes a while can give up once nobody waits:
+ * <pre>{@code
+ * RpcContext call = RpcContext.current();
+ * for (Lamp lamp : lamps) {
+ *     if (call.isCancelled() || call.isExpired()) {
+ *         break;
+ *     }
+ *     lamp.turnOn();
+ * }
+ * }</pre>
+ * Outside of a call, {@link #current()} returns a context without deadline that is never
+ * cancelled.
+ */
+public final class RpcContext {
+    private static final ThreadLocal<RpcContext> CURRENT = new ThreadLocal<>();
+    private static final RpcContext NONE = new RpcContext(0, 0);
+
+    private final boolean hasDeadline;
+    private final long deadline;
+    private volatile boolean cancelled;
+
+    /**
+     * Creates the context of a call.
+     *
+     * @param receivedAt The {@link System#nanoTime()} the request arrived, or 0 for now
+     * @param timeoutMs How long the caller waits from then, or 0 if it did not say
+     */
+    RpcContext(long receivedAt, long timeoutMs) {
+        this.hasDeadline = timeoutMs > 0;
+        this.deadline = (receivedAt != 0 ? receivedAt : System.nanoTime()) + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+    }
+
+    /**
+     * Gets the context of the call the current thread runs a function for.
+     *
+     * @return the context, never null
+     */
+    public static RpcContext current() {
+        RpcContext call = CURRENT.get();
+        return call != null ? call : NONE;
+    }
+
+    static void enter(RpcContext call) {
+        CURRENT.set(call);
+    }
+
+    static void exit() {
+        CURRENT.remove();
+    }
+
+    /**
+     * Checks whether the caller said how long it waits.
+     *
+     * @return true if the call has a deadline
+     */
+    public boolean hasDeadline() {
+        return hasDeadline;
+    }
+
+    /**
+     * Gets how long the caller still waits for the result.
+     *
+     * @return the remaining time in milliseconds, 0 once the deadline passed, or
+     *         {@link Long#MAX_VALUE} without a deadline
+     */
+    public long getRemainingMillis() {
+        if (!hasDeadline) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+    }
+
+    /**
+     * Checks whether the deadline passed, so the caller no longer waits for the result.
+     *
+     * @return true if the call has a deadline and it passed
+     */
+    public boolean isExpired() {
+        return hasDeadline && System.nanoTime() - deadline >= 0;
+    }
+
+    /**
+     * Checks whether the caller cancelled the call.
+     *
+     * @return true if cancelled
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Checks whether the caller stopped waiting for the result, by cancelling or timing out.
+     */
+    boolean isAbandoned() {
+        return cancelled || isExpired();
+    }
+}
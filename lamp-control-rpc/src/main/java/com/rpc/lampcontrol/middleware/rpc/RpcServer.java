@@ -1,9 +1,21 @@
 package com.rpc.lampcontrol.middleware.rpc;
 
+import com.rpc.lampcontrol.middleware.common.ObjectPool;
+import com.rpc.lampcontrol.middleware.protocol.BatchRequest;
+import com.rpc.lampcontrol.middleware.protocol.BatchResponse;
+import com.rpc.lampcontrol.middleware.protocol.CancelRequest;
+import com.rpc.lampcontrol.middleware.protocol.Message;
+import com.rpc.lampcontrol.middleware.protocol.PingRequest;
+import com.rpc.lampcontrol.middleware.protocol.PingResponse;
+import com.rpc.lampcontrol.middleware.protocol.RegisterResponse;
 import com.rpc.lampcontrol.middleware.protocol.RpcRequest;
 import com.rpc.lampcontrol.middleware.protocol.RpcResponse;
+import com.rpc.lampcontrol.middleware.protocol.SubscribeRequest;
+import com.rpc.lampcontrol.middleware.protocol.UnsubscribeRequest;
 import com.rpc.lampcontrol.middleware.registry.RegistryClient;
+import com.rpc.lampcontrol.middleware.transport.AdmissionControl;
 import com.rpc.lampcontrol.middleware.transport.ConnectionHandler;
+import com.rpc.lampcontrol.middleware.transport.ExecutionMode;
 import com.rpc.lampcontrol.middleware.transport.ServerTransport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,21 +23,81 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * RPC server that handles remote procedure calls.
+ * Single requests and the entries of a {@link BatchRequest} are executed in parallel on the
+ * transport's worker pool. Registered {@link Topic}s push state changes to subscribed clients.
+ * Functions and topics are registered under a registry lease that the server renews with
+ * heartbeats, so the registry drops them once the server is gone.
+ * <p>
+ * Under load, requests beyond a bound or that waited too long for a worker are answered at
+ * once with an "overloaded" response instead of being executed late (see
+ * {@link AdmissionControl}); {@link #getAdmissionStats()} reports the queue and the counters.
+ * Function invocations are also limited to a number in progress at once that a
+ * {@link ConcurrencyLimiter} adapts to their latency; invocations beyond it are answered as
+ * overloaded as well.
+ * <p>
+ * Requests carry how long their caller waits, and a caller may cancel them with a
+ * {@link CancelRequest}. A request whose caller stopped waiting before it ran is dropped
+ * without running, and no response is sent for one the caller stopped waiting for while it ran.
+ * Functions see the deadline and cancellation through {@link RpcContext}.
  */
 public class RpcServer {
     private static final Logger logger = LoggerFactory.getLogger(RpcServer.class);
+    // Responses are encoded before sendMessage returns, so one is borrowed per call and reused;
+    // pooled rather than kept per thread, as with virtual threads each call has a thread of its own
+    private static final ObjectPool<RpcResponse> RESPONSES = new ObjectPool<>(256, RpcResponse::new);
+    // With a thread per message no request waits for a worker, so batches are only limited to
+    // keep the overhead of their chunks small
+    private static final int UNPOOLED_BATCH_PARALLELISM = Math.max(2, ServerTransport.DEFAULT_WORKER_THREADS / 4);
+    public static final long DEFAULT_LEASE_TTL_MS = 10_000;
+    // Cancellations arriving before the request they cancel, e.g. because another worker
+    // decoded them first; the oldest are forgotten once there are more
+    private static final int MAX_EARLY_CANCELS = 1024;
     
     private final int port;
     private final ServerTransport serverTransport;
+    private final int batchParallelism;
     private final RegistryClient registryClient;
-    private final Map<String, FunctionInfo> functions = new ConcurrentHashMap<>();
+    private final Map<String, FunctionOverloads> functions = new ConcurrentHashMap<>();
+    private final Map<String, Topic> topics = new ConcurrentHashMap<>();
     private final String host;
+    private final long leaseTtlMs;
+    // Serializes registrations and heartbeats, which may replace the lease. Held across registry
+    // requests, so a lock rather than a monitor, which would pin a virtual thread while it waits
+    private final ReentrantLock leaseLock = new ReentrantLock();
+    // Guarded by leaseLock; 0 until the first registration
+    private long leaseId = 0;
+    private ScheduledExecutorService heartbeats;
+    private volatile ConcurrencyLimiter limiter = new ConcurrencyLimiter();
+    // Calls queued for or running on a worker, by connection and trace id, so they can be
+    // cancelled, and only over the connection that made them
+    private final Map<CallKey, RpcContext> calls = new ConcurrentHashMap<>();
+    private final Map<CallKey, Boolean> earlyCancels = Collections.synchronizedMap(
+            new LinkedHashMap<CallKey, Boolean>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<CallKey, Boolean> eldest) {
+                    return size() > MAX_EARLY_CANCELS;
+                }
+            });
+    private final LongAdder dropped = new LongAdder();
     
     /**
      * Creates a new RPC server on a dynamically assigned port with localhost as host.
@@ -52,10 +124,102 @@ public class RpcServer {
      * @param registryClient The registry client to use
      */
     public RpcServer(int port, String host, RegistryClient registryClient) {
+        this(port, host, registryClient, DEFAULT_LEASE_TTL_MS);
+    }
+    
+    /**
+     * Creates a new RPC server with a specific registry client and registry lease TTL.
+     * The lease is renewed every third of its TTL while the server runs.
+     *
+     * @param port The port to listen on, or 0 for a dynamically assigned port
+     * @param host The host name or IP address to register with
+     * @param registryClient The registry client to use
+     * @param leaseTtlMs How long registrations outlive the last heartbeat, in milliseconds;
+     *                   0 registers without a lease, so registrations never expire
+     */
+    public RpcServer(int port, String host, RegistryClient registryClient, long leaseTtlMs) {
+        this(port, host, registryClient, leaseTtlMs, ExecutionMode.POOLED);
+    }
+    
+    /**
+     * Creates a new RPC server that invokes functions in the given execution mode.
+     * Functions that block, e.g. on I/O, are best served with {@link ExecutionMode#VIRTUAL},
+     * which runs every call on its own virtual thread.
+     *
+     * @param port The port to listen on, or 0 for a dynamically assigned port
+     * @param host The host name or IP address to register with
+     * @param registryClient The registry client to use
+     * @param leaseTtlMs How long registrations outlive the last heartbeat, in milliseconds;
+     *                   0 registers without a lease, so registrations never expire
+     * @param executionMode How calls are run
+     * @throws IllegalStateException if the running JVM does not support the execution mode
+     */
+    public RpcServer(int port, String host, RegistryClient registryClient, long leaseTtlMs,
+                     ExecutionMode executionMode) {
+        if (leaseTtlMs < 0) {
+            throw new IllegalArgumentException("Lease TTL must not be negative");
+        }
+        this.leaseTtlMs = leaseTtlMs;
         this.port = port;
         this.host = host;
-        this.serverTransport = new ServerTransport(port);
+        this.serverTransport = new ServerTransport(port, executionMode);
+        // Functions may block, so batches spread over workers rather than cores, leaving most
+        // of the pool free for other requests
+        int workerThreads = serverTransport.getWorkerThreads();
+        this.batchParallelism = workerThreads == Integer.MAX_VALUE
+                ? UNPOOLED_BATCH_PARALLELISM : Math.max(1, workerThreads / 4);
         this.registryClient = registryClient;
+        // Lets the decoders bind arguments straight to the registered parameter types
+        this.serverTransport.setArgumentTypes(this::getArgumentTypes);
+        this.serverTransport.setAdmissionControl(new AdmissionControl());
+    }
+    
+    /**
+     * Replaces the default admission control, e.g. to change its limits. Must be called
+     * before {@link #start}.
+     *
+     * @param admission The admission control, or null to execute every request however late
+     */
+    public void setAdmissionControl(AdmissionControl admission) {
+        serverTransport.setAdmissionControl(admission);
+    }
+    
+    /**
+     * Gets the depth of the request queue and the counts of admitted, rejected and shed requests.
+     *
+     * @return the statistics, or null without admission control
+     */
+    public AdmissionControl.Stats getAdmissionStats() {
+        AdmissionControl admission = serverTransport.getAdmissionControl();
+        return admission != null ? admission.getStats() : null;
+    }
+    
+    /**
+     * Replaces the default concurrency limiter, e.g. to change its bounds.
+     *
+     * @param limiter The concurrency limiter, or null to run every invocation that reaches a worker
+     */
+    public void setConcurrencyLimiter(ConcurrencyLimiter limiter) {
+        this.limiter = limiter;
+    }
+    
+    /**
+     * Gets the concurrency limiter, which reports the current limit and refused invocations.
+     *
+     * @return the concurrency limiter, or null without one
+     */
+    public ConcurrencyLimiter getConcurrencyLimiter() {
+        return limiter;
+    }
+    
+    /**
+     * Gets how many requests were dropped without running, because their deadline passed or
+     * they were cancelled while they waited for a worker.
+     *
+     * @return the number of dropped requests
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
     }
     
     /**
@@ -68,6 +232,15 @@ public class RpcServer {
         serverTransport.start(this::handleConnection);
         
         int boundPort = serverTransport.getPort();
+        if (leaseTtlMs > 0) {
+            heartbeats = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "rpc-lease-heartbeat");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long interval = Math.max(1, leaseTtlMs / 3);
+            heartbeats.scheduleWithFixedDelay(this::heartbeat, interval, interval, TimeUnit.MILLISECONDS);
+        }
         logger.info("RPC server started on port {}", boundPort);
     }
     
@@ -76,6 +249,9 @@ public class RpcServer {
      */
     public void stop() {
         logger.info("Stopping RPC server");
+        if (heartbeats != null) {
+            heartbeats.shutdownNow();
+        }
         serverTransport.stop();
         logger.info("RPC server stopped");
     }
@@ -91,6 +267,8 @@ public class RpcServer {
     
     /**
      * Registers a function with this server.
+     * If the method is overloaded, every public overload is registered; each call is routed
+     * to the overload matching its argument count and, if several match, its argument types.
      *
      * @param functionName The name to register the function under
      * @param object The object containing the method to call
@@ -98,100 +276,532 @@ public class RpcServer {
      * @throws Exception if the method cannot be found or if registration fails
      */
     public void registerFunction(String functionName, Object object, String methodName) throws Exception {
-        // Find the method
-        Method method = findMethod(object.getClass(), methodName);
-        if (method == null) {
+        int serverPort = checkStarted("function");
+        addFunction(functionName, object, methodName);
+        
+        // Register with the registry server
+        registerWithRegistry(List.of(functionName), serverPort);
+        logger.info("Registered function '{}' with registry at {}:{}", functionName, host, serverPort);
+    }
+    
+    /**
+     * Registers several methods of an object as functions named after them, with a single
+     * registry request for all of them, so a server exporting many functions starts without
+     * a registry round trip for each.
+     *
+     * @param object The object containing the methods to call
+     * @param methodNames The names of the methods, which are also the function names
+     * @throws Exception if a method cannot be found or if registration fails
+     */
+    public void registerFunctions(Object object, String... methodNames) throws Exception {
+        int serverPort = checkStarted("function");
+        for (String methodName : methodNames) {
+            addFunction(methodName, object, methodName);
+        }
+        registerWithRegistry(Arrays.asList(methodNames), serverPort);
+        logger.info("Registered {} functions with registry at {}:{}", methodNames.length, host, serverPort);
+    }
+    
+    private int checkStarted(String what) {
+        int serverPort = serverTransport.getPort();
+        if (serverPort == -1) {
+            throw new IllegalStateException("Cannot register " + what + ": server not started");
+        }
+        return serverPort;
+    }
+    
+    private void addFunction(String functionName, Object object, String methodName) throws IllegalAccessException {
+        // Find the method and its overloads
+        List<Method> methods = findMethods(object.getClass(), methodName);
+        if (methods.isEmpty()) {
             throw new IllegalArgumentException("Method '" + methodName + "' not found in " + object.getClass().getName());
         }
         
-        // Register the function locally
-        FunctionInfo functionInfo = new FunctionInfo(object, method);
-        functions.put(functionName, functionInfo);
+        // Register the function locally; invokers are built once and reused for every call
+        List<FunctionInvoker> invokers = new ArrayList<>(methods.size());
+        for (Method method : methods) {
+            invokers.add(FunctionInvoker.create(object, method));
+        }
+        functions.put(functionName, new FunctionOverloads(functionName, invokers));
         logger.info("Registered function '{}' locally", functionName);
+    }
+    
+    /**
+     * Registers a topic that clients can subscribe to for pushed state changes (see
+     * {@link RpcClient#subscribe}). Topics are looked up through the registry like functions,
+     * so a topic name must not clash with a function name.
+     *
+     * @param topicName The name to register the topic under
+     * @return the topic, for publishing
+     * @throws RegistryClient.RegistryException if registration with the registry fails
+     */
+    public Topic registerTopic(String topicName) throws RegistryClient.RegistryException {
+        int serverPort = checkStarted("topic");
+        Topic topic = topics.computeIfAbsent(topicName, name -> new Topic(name, serverTransport.getWorkers()));
+        logger.info("Registered topic '{}' locally", topicName);
         
-        // Register with the registry server
+        registerWithRegistry(List.of(topicName), serverPort);
+        logger.info("Registered topic '{}' with registry at {}:{}", topicName, host, serverPort);
+        return topic;
+    }
+    
+    /**
+     * Registers names with the registry, under the lease if there is one. If a leased
+     * registration fails, the names stay registered locally and the next heartbeat registers
+     * them again.
+     *
+     * @throws RegistryClient.RegistryException if the registry cannot be reached or refuses the registration
+     */
+    private void registerWithRegistry(List<String> names, int serverPort) throws RegistryClient.RegistryException {
+        if (leaseTtlMs == 0) {
+            checkRegistered(registryClient.registerServices(names, host, serverPort));
+            return;
+        }
+        leaseLock.lock();
+        try {
+            RegisterResponse response = registryClient.registerServices(names, host, serverPort, leaseId, leaseTtlMs);
+            if (response.isSuccess()) {
+                leaseId = response.getLeaseId();
+            } else if (leaseId != 0) {
+                // The lease expired before the next heartbeat noticed; this registers the names as well
+                renewRegistrations();
+            } else {
+                checkRegistered(response);
+            }
+        } finally {
+            leaseLock.unlock();
+        }
+    }
+    
+    private static void checkRegistered(RegisterResponse response) throws RegistryClient.RegistryException {
+        if (!response.isSuccess()) {
+            throw new RegistryClient.RegistryException("Registry refused registration: " + response.getMessage(), null);
+        }
+    }
+    
+    private void heartbeat() {
+        leaseLock.lock();
+        try {
+            if (leaseId == 0) {
+                if (!functions.isEmpty() || !topics.isEmpty()) {
+                    // Registering failed, or registering again after the lease expired; try once more
+                    try {
+                        registerAgain();
+                    } catch (RegistryClient.RegistryException e) {
+                        logger.warn("Failed to register with the registry again: {}", e.getMessage());
+                    }
+                }
+                return;
+            }
+            try {
+                if (!registryClient.renewLease(leaseId)) {
+                    renewRegistrations();
+                }
+            } catch (RegistryClient.RegistryException e) {
+                // Retried at the next heartbeat, which still comes before the lease expires, or
+                // registers again if renewing found the lease gone
+                logger.warn("Failed to renew registry lease {}: {}", leaseId, e.getMessage());
+            }
+        } finally {
+            leaseLock.unlock();
+        }
+    }
+    
+    /**
+     * Registers every function and topic again under a new lease, after the registry dropped
+     * the old one, e.g. because heartbeats could not reach it for a whole TTL.
+     */
+    private void renewRegistrations() throws RegistryClient.RegistryException {
+        logger.warn("Registry lease {} expired; registering {} functions and {} topics again",
+                leaseId, functions.size(), topics.size());
+        leaseId = 0;
+        registerAgain();
+    }
+    
+    /**
+     * Registers every function and topic under a new lease; until that succeeds, the lease id
+     * stays 0 and each heartbeat tries again.
+     */
+    private void registerAgain() throws RegistryClient.RegistryException {
         int serverPort = serverTransport.getPort();
-        if (serverPort == -1) {
-            throw new IllegalStateException("Cannot register function: server not started");
+        List<String> names = new ArrayList<>(functions.keySet());
+        names.addAll(topics.keySet());
+        if (names.isEmpty()) {
+            return;
         }
-        
-        registryClient.registerService(functionName, host, serverPort);
-        logger.info("Registered function '{}' with registry at {}:{}", functionName, host, serverPort);
+        RegisterResponse response = registryClient.registerServices(names, host, serverPort, leaseId, leaseTtlMs);
+        checkRegistered(response);
+        leaseId = response.getLeaseId();
     }
     
-    private Method findMethod(Class<?> clazz, String methodName) {
+    private List<Method> findMethods(Class<?> clazz, String methodName) {
+        List<Method> methods = new ArrayList<>();
         for (Method method : clazz.getMethods()) {
-            if (method.getName().equals(methodName)) {
-                return method;
+            if (method.getName().equals(methodName) && !method.isBridge()) {
+                methods.add(method);
             }
         }
-        return null;
+        // getMethods() has no defined order; keep overload resolution the same on every run
+        methods.sort(Comparator.comparing(Method::toGenericString));
+        return methods;
+    }
+
+    private Type[] getArgumentTypes(String functionName, int count) {
+        FunctionOverloads overloads = functions.get(functionName);
+        return overloads != null ? overloads.getArgumentTypes(count) : null;
     }
     
     private void handleConnection(ConnectionHandler connection) {
+        // Requests are handled in parallel on the transport's worker pool and each response
+        // goes out as soon as it is ready; the client matches them to its calls by trace id
+        connection.setMessageListener(new ConnectionHandler.MessageListener() {
+            @Override
+            public void onMessage(ConnectionHandler source, Message message) {
+                handleMessage(source, message);
+            }
+
+            @Override
+            public void onShed(ConnectionHandler source, Message message) {
+                rejectOverloaded(source, message);
+            }
+
+            @Override
+            public void onClose(ConnectionHandler source) {
+                for (Topic topic : topics.values()) {
+                    topic.removeConnection(source);
+                }
+                synchronized (earlyCancels) {
+                    earlyCancels.keySet().removeIf(key -> key.connection == source);
+                }
+            }
+        });
+    }
+    
+    private void handleMessage(ConnectionHandler connection, Message message) {
+        if (message instanceof BatchRequest) {
+            handleBatch(connection, (BatchRequest) message);
+            return;
+        } else if (message instanceof SubscribeRequest) {
+            handleSubscribe(connection, (SubscribeRequest) message);
+            return;
+        } else if (message instanceof UnsubscribeRequest) {
+            handleUnsubscribe(connection, (UnsubscribeRequest) message);
+            return;
+        } else if (message instanceof CancelRequest) {
+            handleCancel(connection, (CancelRequest) message);
+            return;
+        } else if (message instanceof PingRequest) {
+            // A health probe; answered on the worker pool like any call, so its latency shows load
+            PingResponse response = PingResponse.success();
+            response.setTraceId(message.getTraceId());
+            sendResponse(connection, response, "ping");
+            return;
+        }
+        RpcResponse response = RESPONSES.acquire();
+        response.setTraceId(message.getTraceId());
         try {
-            // Read request
-            RpcRequest request = connection.receiveMessage(RpcRequest.class);
+            if (!(message instanceof RpcRequest)) {
+                logger.warn("Received unexpected message type: {}", message.getType());
+                setError(response, "Unexpected message type: " + message.getType());
+                sendResponse(connection, response, message.getType());
+                return;
+            }
+
+            RpcRequest request = (RpcRequest) message;
             String functionName = request.getFunctionName();
-            List<Object> args = request.getArguments();
-            
-            logger.info("Received RPC request for function '{}' with {} arguments", 
-                    functionName, args.size());
-            
-            // Process request
-            RpcResponse response = processRequest(request);
+            logger.info("Received RPC request for function '{}' with {} arguments",
+                    functionName, request.getArguments().size());
+            CallKey key = new CallKey(connection, request.getTraceId());
+            RpcContext call = startCall(key, request.getReceivedAt(), request.getTimeoutMs());
+            try {
+                if (call.isAbandoned()) {
+                    drop(functionName, call);
+                    return;
+                }
+
+                // Process request
+                processRequest(request, response, call);
+
+                // Send response, unless nobody waits for it any more
+                if (call.isAbandoned()) {
+                    logger.debug("Caller of '{}' stopped waiting, not sending the response", functionName);
+                    return;
+                }
+                sendResponse(connection, response, functionName);
+            } finally {
+                calls.remove(key, call);
+            }
+        } finally {
+            // Do not keep the result reachable until the response is next used
+            response.setResult(null);
+            RESPONSES.release(response);
+        }
+    }
+    
+    /**
+     * Tracks a call from the time its worker picks it up, so it can be cancelled while it
+     * runs. A cancellation that arrived first is applied right away.
+     */
+    private RpcContext startCall(CallKey key, long receivedAt, long timeoutMs) {
+        RpcContext call = new RpcContext(receivedAt, timeoutMs);
+        // Registered before looking for an early cancellation, which handleCancel adds before
+        // looking for the call again, so a cancellation racing with this is never missed
+        calls.put(key, call);
+        if (earlyCancels.remove(key) != null) {
+            call.cancel();
+        }
+        return call;
+    }
+    
+    private void drop(String what, RpcContext call) {
+        dropped.increment();
+        logger.debug("Dropping {}: {}", what, call.isCancelled() ? "cancelled" : "deadline passed while queued");
+    }
+    
+    private void handleCancel(ConnectionHandler connection, CancelRequest cancel) {
+        // Only calls made over the same connection can be cancelled
+        CallKey key = new CallKey(connection, cancel.getRequestId());
+        RpcContext call = calls.get(key);
+        if (call == null) {
+            earlyCancels.put(key, Boolean.TRUE);
+            call = calls.get(key);
+            if (call != null) {
+                earlyCancels.remove(key);
+            }
+        }
+        if (call != null) {
+            call.cancel();
+            logger.info("Cancelled request {}", cancel.getRequestId());
+        } else {
+            // The request has finished already, or will be dropped when it arrives
+            logger.debug("No call {} in progress to cancel", cancel.getRequestId());
+        }
+        RpcResponse response = new RpcResponse();
+        response.setTraceId(cancel.getTraceId());
+        sendResponse(connection, response, "cancel");
+    }
+    
+    /**
+     * Answers a request shed under load without handling it. Health probes fail, so the
+     * registry stops handing out a server that stays overloaded.
+     */
+    private void rejectOverloaded(ConnectionHandler connection, Message message) {
+        String error = "Server overloaded, request not executed";
+        Message response;
+        if (message instanceof BatchRequest) {
+            int size = ((BatchRequest) message).getRequests().size();
+            List<RpcResponse> responses = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                responses.add(RpcResponse.overloaded(error));
+            }
+            response = new BatchResponse(responses);
+        } else if (message instanceof PingRequest) {
+            response = PingResponse.error(error);
+        } else {
+            response = RpcResponse.overloaded(error);
+        }
+        response.setTraceId(message.getTraceId());
+        // Not logged per request: this runs on the I/O thread when the queue is full
+        try {
+            connection.sendMessage(response);
+        } catch (ConnectionHandler.ConnectionException e) {
+            logger.debug("Failed to send overloaded response: {}", e.getMessage());
+        }
+    }
+    
+    /**
+     * Acknowledges a subscription before adding it, so the acknowledgement is written ahead
+     * of the first event.
+     */
+    private void handleSubscribe(ConnectionHandler connection, SubscribeRequest request) {
+        Topic topic = topics.get(request.getTopic());
+        RpcResponse response = new RpcResponse();
+        response.setTraceId(request.getTraceId());
+        if (topic == null) {
+            logger.warn("Topic '{}' not found", request.getTopic());
+            setError(response, "Topic '" + request.getTopic() + "' not found");
+            sendResponse(connection, response, "subscribe " + request.getTopic());
+            return;
+        }
+        // Subscriptions may stay quiet for longer than the idle timeout
+        connection.setKeepOpen(true);
+        sendResponse(connection, response, "subscribe " + request.getTopic());
+        topic.subscribe(connection, request.getTraceId());
+    }
+
+    private void handleUnsubscribe(ConnectionHandler connection, UnsubscribeRequest request) {
+        boolean removed = false;
+        boolean remaining = false;
+        for (Topic topic : topics.values()) {
+            removed |= topic.unsubscribe(connection, request.getSubscriptionId());
+            remaining |= topic.hasSubscriber(connection);
+        }
+        if (!remaining) {
+            connection.setKeepOpen(false);
+        }
+        RpcResponse response = new RpcResponse();
+        response.setTraceId(request.getTraceId());
+        if (!removed) {
+            setError(response, "Subscription " + request.getSubscriptionId() + " not found");
+        }
+        sendResponse(connection, response, "unsubscribe");
+    }
+
+    /**
+     * Executes the entries of a batch in up to a quarter of the transport's workers' worth of
+     * chunks on its worker pool, running the first chunk on this thread. Whichever chunk finishes
+     * last sends the batch response, so no worker ever waits for another.
+     */
+    private void handleBatch(ConnectionHandler connection, BatchRequest batch) {
+        List<RpcRequest> requests = batch.getRequests();
+        int size = requests.size();
+        logger.info("Received batch of {} RPC requests", size);
+        CallKey key = new CallKey(connection, batch.getTraceId());
+        RpcContext call = startCall(key, batch.getReceivedAt(), batch.getTimeoutMs());
+        if (call.isAbandoned()) {
+            calls.remove(key, call);
+            drop("batch of " + size, call);
+            return;
+        }
+        RpcResponse[] responses = new RpcResponse[size];
+        int chunks = Math.max(1, Math.min(size, batchParallelism));
+        AtomicInteger unfinished = new AtomicInteger(chunks);
+        for (int chunk = 1; chunk < chunks; chunk++) {
+            int from = (int) ((long) size * chunk / chunks);
+            int to = (int) ((long) size * (chunk + 1) / chunks);
+            Runnable task = () -> processBatchChunk(connection, batch, call, responses, from, to, unfinished);
+            try {
+                serverTransport.getWorkers().execute(task);
+            } catch (RejectedExecutionException e) {
+                task.run();
+            }
+        }
+        processBatchChunk(connection, batch, call, responses, 0, size / chunks, unfinished);
+    }
+
+    private void processBatchChunk(ConnectionHandler connection, BatchRequest batch, RpcContext call,
+                                   RpcResponse[] responses, int from, int to, AtomicInteger unfinished) {
+        List<RpcRequest> requests = batch.getRequests();
+        // Entries left once the caller stopped waiting are skipped; the response is not sent then
+        for (int i = from; i < to && !call.isAbandoned(); i++) {
+            RpcRequest request = requests.get(i);
+            // Batch responses are kept until the whole batch is done, so they are not borrowed
+            // from RESPONSES
+            RpcResponse response = new RpcResponse();
             response.setTraceId(request.getTraceId());
-            
-            // Send response
+            processRequest(request, response, call);
+            responses[i] = response;
+        }
+        if (unfinished.decrementAndGet() == 0) {
+            calls.remove(new CallKey(connection, batch.getTraceId()), call);
+            if (call.isAbandoned()) {
+                logger.debug("Caller of a batch of {} stopped waiting, not sending the response", responses.length);
+                return;
+            }
+            BatchResponse batchResponse = new BatchResponse(Arrays.asList(responses));
+            batchResponse.setTraceId(batch.getTraceId());
+            sendResponse(connection, batchResponse, "batch of " + responses.length);
+        }
+    }
+    
+    private void sendResponse(ConnectionHandler connection, Message response, String functionName) {
+        try {
             connection.sendMessage(response);
-            
             logger.info("Sent RPC response for function '{}'", functionName);
         } catch (ConnectionHandler.ConnectionException e) {
-            logger.error("Error handling RPC connection: {}", e.getMessage());
-        } finally {
-            connection.close();
+            logger.error("Failed to send RPC response for function '{}': {}", functionName, e.getMessage());
         }
     }
     
-    private RpcResponse processRequest(RpcRequest request) {
+    private void processRequest(RpcRequest request, RpcResponse response, RpcContext call) {
         String functionName = request.getFunctionName();
         List<Object> args = request.getArguments();
         
         // Look up the function
-        FunctionInfo functionInfo = functions.get(functionName);
-        if (functionInfo == null) {
+        FunctionOverloads overloads = functions.get(functionName);
+        if (overloads == null) {
             logger.warn("Function '{}' not found", functionName);
-            return RpcResponse.error("Function '" + functionName + "' not found");
+            setError(response, "Function '" + functionName + "' not found");
+            return;
+        }
+        if (request.getArgumentError() != null) {
+            logger.warn("Invalid arguments for function '{}': {}", functionName, request.getArgumentError());
+            setError(response, "Invalid arguments: " + request.getArgumentError());
+            return;
         }
         
+        ConcurrencyLimiter limiter = this.limiter;
+        if (limiter != null && !limiter.tryAcquire()) {
+            logger.debug("Concurrency limit {} reached, refusing '{}'", limiter.getLimit(), functionName);
+            setOverloaded(response, "Server overloaded, concurrency limit of " + limiter.getLimit()
+                    + " reached, request not executed");
+            return;
+        }
+        long start = System.nanoTime();
+        RpcContext.enter(call);
         try {
             // Invoke the function
-            Object result = functionInfo.method.invoke(functionInfo.object, args.toArray());
+            Object result = overloads.resolve(args).invoke(args);
             logger.info("Function '{}' invoked successfully", functionName);
-            return RpcResponse.success(result);
-        } catch (IllegalAccessException e) {
-            logger.error("Access error invoking function '{}': {}", functionName, e.getMessage());
-            return RpcResponse.error("Access error: " + e.getMessage());
+            setSuccess(response, result);
         } catch (InvocationTargetException e) {
             Throwable cause = e.getCause();
             logger.error("Error invoking function '{}': {}", functionName, cause.getMessage());
-            return RpcResponse.error("Invocation error: " + cause.getMessage());
+            setError(response, "Invocation error: " + cause.getMessage());
         } catch (Exception e) {
             logger.error("Unexpected error invoking function '{}': {}", functionName, e.getMessage());
-            return RpcResponse.error("Unexpected error: " + e.getMessage());
+            setError(response, "Unexpected error: " + e.getMessage());
+        } finally {
+            RpcContext.exit();
+            if (limiter != null) {
+                limiter.release(System.nanoTime() - start);
+            }
         }
     }
-    
+
+    private static void setSuccess(RpcResponse response, Object result) {
+        response.setStatus("success");
+        response.setResult(result);
+        response.setErrorMessage(null);
+    }
+
+    private static void setOverloaded(RpcResponse response, String errorMessage) {
+        response.setStatus("overloaded");
+        response.setResult(null);
+        response.setErrorMessage(errorMessage);
+    }
+
+    private static void setError(RpcResponse response, String errorMessage) {
+        response.setStatus("error");
+        response.setResult(null);
+        response.setErrorMessage(errorMessage);
+    }
+
     /**
-     * Information about a registered function.
+     * Identifies a call by the connection it came over and its trace id, which the client
+     * chooses and is only unique per connection.
      */
-    private static class FunctionInfo {
-        private final Object object;
-        private final Method method;
-        
-        public FunctionInfo(Object object, Method method) {
-            this.object = object;
-            this.method = method;
+    private static final class CallKey {
+        private final ConnectionHandler connection;
+        private final String traceId;
+
+        CallKey(ConnectionHandler connection, String traceId) {
+            this.connection = connection;
+            this.traceId = traceId;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof CallKey)) {
+                return false;
+            }
+            CallKey key = (CallKey) other;
+            return connection == key.connection && traceId.equals(key.traceId);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(connection) + traceId.hashCode();
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,25 @@
+package com.rpc.lampcontrol.middleware.rpc;
+
+/**
+ * Receives the state changes pushed for a topic subscription (see {@link RpcClient#subscribe}).
+ */
+public interface StreamListener {
+    /**
+     * Called with the latest value of a key: first once for every key the topic holds, then
+     * on every change. A slow listener may miss intermediate values but always sees the
+     * newest one. Calls are made on client worker threads, one at a time per subscription.
+     *
+     * @param key The key whose value changed, e.g. a lamp name
+     * @param value The new value
+     */
+    void onEvent(String key, Object value);
+
+    /**
+     * Called once if the subscription ends because its connection was lost. It is not
+     * resubscribed automatically.
+     *
+     * @param cause Why the subscription ended
+     */
+    default void onClosed(RpcClient.RpcException cause) {
+    }
+}
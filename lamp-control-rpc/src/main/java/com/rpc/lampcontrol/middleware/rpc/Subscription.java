@@ -0,0 +1,93 @@
+package com.rpc.lampcontrol.middleware.rpc;
+
+import com.rpc.lampcontrol.middleware.protocol.Message;
+import com.rpc.lampcontrol.middleware.protocol.StreamEvent;
+import com.rpc.lampcontrol.middleware.protocol.UnsubscribeRequest;
+import com.rpc.lampcontrol.middleware.transport.ConnectionHandler;
+import com.rpc.lampcontrol.middleware.transport.MultiplexedConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An open subscription to a topic, created with {@link RpcClient#subscribe}.
+ * <p>
+ * Events are decoded in parallel and may arrive out of order; an event older than the last
+ * one delivered for its key is dropped, so the listener never goes back to a stale value.
+ */
+public class Subscription implements MultiplexedConnection.StreamHandler, AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(Subscription.class);
+
+    private final String topic;
+    private final String subscriptionId;
+    private final MultiplexedConnection connection;
+    private final StreamListener listener;
+    // Guarded by this
+    private final Map<String, Long> lastSequences = new HashMap<>();
+    private volatile boolean active = true;
+
+    Subscription(String topic, String subscriptionId, MultiplexedConnection connection, StreamListener listener) {
+        this.topic = topic;
+        this.subscriptionId = subscriptionId;
+        this.connection = connection;
+        this.listener = listener;
+    }
+
+    public String getTopic() {
+        return topic;
+    }
+
+    /**
+     * Checks whether events are still being delivered.
+     *
+     * @return false once closed or once the connection was lost
+     */
+    public boolean isActive() {
+        return active;
+    }
+
+    @Override
+    public synchronized void onEvent(Message message) {
+        if (!active || !(message instanceof StreamEvent)) {
+            return;
+        }
+        StreamEvent event = (StreamEvent) message;
+        Long last = lastSequences.get(event.getKey());
+        if (last != null && event.getSequence() <= last) {
+            return;
+        }
+        lastSequences.put(event.getKey(), event.getSequence());
+        try {
+            listener.onEvent(event.getKey(), event.getValue());
+        } catch (RuntimeException e) {
+            logger.error("Listener for topic '{}' failed: {}", topic, e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void onClose(ConnectionHandler.ConnectionException cause) {
+        if (!active) {
+            return;
+        }
+        active = false;
+        logger.warn("Subscription to topic '{}' lost: {}", topic, cause.getMessage());
+        listener.onClosed(new RpcClient.RpcException("Communication error: " + cause.getMessage(), cause));
+    }
+
+    /**
+     * Stops the subscription. The server is told to stop sending, and events already on
+     * the way are discarded.
+     */
+    @Override
+    public void close() {
+        if (!active) {
+            return;
+        }
+        active = false;
+        connection.closeStream(subscriptionId);
+        connection.send(new UnsubscribeRequest(subscriptionId));
+        logger.info("Unsubscribed from topic '{}'", topic);
+    }
+}
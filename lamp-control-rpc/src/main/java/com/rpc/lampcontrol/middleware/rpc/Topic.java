@@ -0,0 +1,190 @@
+package com.rpc.lampcontrol.middleware.rpc;
+
+import com.rpc.lampcontrol.middleware.protocol.StreamEvent;
+import com.rpc.lampcontrol.middleware.transport.ConnectionHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A named stream of state changes that clients subscribe to instead of polling.
+ * <p>
+ * The topic keeps the latest value of each key, such as the state of each lamp. A new
+ * subscriber first receives the current value of every key, then each change as it is
+ * published. Delivery is conflated per subscriber: while a subscriber's connection still has
+ * unwritten bytes, newer values replace older ones that have not been sent yet, so at most
+ * one value per key is buffered and a slow subscriber never makes the server buffer without
+ * bound. Publishing never blocks on subscribers.
+ * <p>
+ * Topics are created with {@link RpcServer#registerTopic}.
+ */
+public class Topic {
+    private static final Logger logger = LoggerFactory.getLogger(Topic.class);
+    // Stands in for null values, which the concurrent maps cannot hold
+    private static final Object NULL = new Object();
+
+    private final String name;
+    private final Executor executor;
+    private final Map<String, Object> latest = new ConcurrentHashMap<>();
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+
+    Topic(String name, Executor executor) {
+        this.name = name;
+        this.executor = executor;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Publishes the new value of a key to all subscribers.
+     *
+     * @param key The key whose value changed, e.g. a lamp name
+     * @param value The new value
+     */
+    public synchronized void publish(String key, Object value) {
+        Object stored = value == null ? NULL : value;
+        latest.put(key, stored);
+        for (Subscriber subscriber : subscribers) {
+            subscriber.offer(key, stored);
+        }
+    }
+
+    /**
+     * Gets the number of open subscriptions.
+     *
+     * @return the number of subscribers
+     */
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    /**
+     * Adds a subscriber and queues the current value of every key for it. Holding the lock
+     * keeps a concurrent publish from being overtaken by the older value in the snapshot.
+     */
+    synchronized void subscribe(ConnectionHandler connection, String subscriptionId) {
+        Subscriber subscriber = new Subscriber(connection, subscriptionId);
+        subscribers.add(subscriber);
+        for (Map.Entry<String, Object> entry : latest.entrySet()) {
+            subscriber.offer(entry.getKey(), entry.getValue());
+        }
+        logger.info("Subscription {} to topic '{}' from {}:{}", subscriptionId, name,
+                connection.getRemoteHost(), connection.getRemotePort());
+    }
+
+    boolean unsubscribe(ConnectionHandler connection, String subscriptionId) {
+        boolean removed = false;
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber.connection == connection && subscriber.subscriptionId.equals(subscriptionId)) {
+                removed |= subscriber.cancel();
+            }
+        }
+        return removed;
+    }
+
+    boolean hasSubscriber(ConnectionHandler connection) {
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber.connection == connection) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void removeConnection(ConnectionHandler connection) {
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber.connection == connection) {
+                subscriber.cancel();
+            }
+        }
+    }
+
+    /**
+     * One subscription and the values not yet sent to it, newest per key.
+     */
+    private final class Subscriber {
+        private final ConnectionHandler connection;
+        private final String subscriptionId;
+        // Guarded by this; insertion order keeps keys fair when a laggard catches up
+        private final Map<String, Object> pending = new LinkedHashMap<>();
+        // Guarded by this; true while a drain is running or waiting for the connection
+        private boolean draining = false;
+        // Only touched by the single active drain
+        private long sequence = 0;
+        private volatile boolean cancelled = false;
+
+        private Subscriber(ConnectionHandler connection, String subscriptionId) {
+            this.connection = connection;
+            this.subscriptionId = subscriptionId;
+        }
+
+        private void offer(String key, Object value) {
+            synchronized (this) {
+                pending.put(key, value);
+                if (draining) {
+                    return;
+                }
+                draining = true;
+            }
+            schedule();
+        }
+
+        private void schedule() {
+            try {
+                executor.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                cancel();
+            }
+        }
+
+        private boolean cancel() {
+            cancelled = true;
+            return subscribers.remove(this);
+        }
+
+        /**
+         * Sends pending values while the connection takes them without queueing; otherwise
+         * resumes once the connection has drained.
+         */
+        private void drain() {
+            while (!cancelled) {
+                if (!connection.isWritable()) {
+                    connection.whenWritable(this::schedule);
+                    return;
+                }
+                String key;
+                Object value;
+                synchronized (this) {
+                    Iterator<Map.Entry<String, Object>> iterator = pending.entrySet().iterator();
+                    if (!iterator.hasNext()) {
+                        draining = false;
+                        return;
+                    }
+                    Map.Entry<String, Object> entry = iterator.next();
+                    key = entry.getKey();
+                    value = entry.getValue();
+                    iterator.remove();
+                }
+                StreamEvent event = new StreamEvent(name, key, ++sequence, value == NULL ? null : value);
+                event.setTraceId(subscriptionId);
+                try {
+                    connection.sendMessage(event);
+                } catch (ConnectionHandler.ConnectionException e) {
+                    logger.debug("Dropping subscription {} to topic '{}': {}", subscriptionId, name, e.getMessage());
+                    cancel();
+                    return;
+                }
+            }
+        }
+    }
+}
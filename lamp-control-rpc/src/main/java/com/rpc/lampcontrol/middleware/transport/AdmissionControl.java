@@ -0,0 +1,199 @@
+package com.rpc.lampcontrol.middleware.transport;
+
+import com.rpc.lampcontrol.middleware.protocol.MessageType;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Decides which incoming messages a {@link ServerTransport} handles and which it sheds.
+ * <p>
+ * At most {@code maxPending} messages may be waiting for a worker or being handled at once;
+ * beyond that, new messages are rejected on arrival. A message that does reach a worker is
+ * still shed if it waited too long for one, in the manner of CoDel: while the queue keeps
+ * draining, a message may wait up to {@code intervalMs}, but once the queue has gone a whole
+ * interval without being empty or letting a message through within {@code targetMs}, it is
+ * standing, and anything that waited longer than the target is shed. Answering those at once
+ * leaves the workers to the messages that can still be answered in time, instead of working
+ * through a backlog whose callers have mostly given up.
+ * <p>
+ * Only calls and health probes are subject to it (see {@link #governs}). Control messages,
+ * such as cancellations and unsubscriptions, are cheap and relieve the server, so they are
+ * always handled and do not count as pending.
+ */
+public final class AdmissionControl {
+    public static final int DEFAULT_MAX_PENDING = 10_000;
+    public static final long DEFAULT_TARGET_MS = 5;
+    public static final long DEFAULT_INTERVAL_MS = 100;
+
+    private final int maxPending;
+    private final long targetNanos;
+    private final long intervalNanos;
+    private final LongSupplier clock;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder shed = new LongAdder();
+    // The last time the queue was empty or a message waited less than the target
+    private volatile long lastDraining;
+
+    /**
+     * Creates an admission control with the default limits.
+     */
+    public AdmissionControl() {
+        this(DEFAULT_MAX_PENDING, DEFAULT_TARGET_MS, DEFAULT_INTERVAL_MS);
+    }
+
+    /**
+     * Creates an admission control.
+     *
+     * @param maxPending Messages waiting or being handled beyond which new ones are rejected
+     * @param targetMs Queue time messages may exceed only while the queue keeps draining
+     * @param intervalMs How long the queue time must stay above the target before messages are
+     *                   shed for exceeding it; also the longest any message may wait
+     */
+    public AdmissionControl(int maxPending, long targetMs, long intervalMs) {
+        this(maxPending, targetMs, intervalMs, System::nanoTime);
+    }
+
+    AdmissionControl(int maxPending, long targetMs, long intervalMs, LongSupplier clock) {
+        if (maxPending < 1 || targetMs < 0 || intervalMs < targetMs) {
+            throw new IllegalArgumentException("Need maxPending >= 1 and 0 <= targetMs <= intervalMs");
+        }
+        this.maxPending = maxPending;
+        this.targetNanos = TimeUnit.MILLISECONDS.toNanos(targetMs);
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMs);
+        this.clock = clock;
+        this.lastDraining = clock.getAsLong();
+    }
+
+    /**
+     * Checks whether messages of a type may be rejected or shed.
+     *
+     * @param type The message type
+     * @return true for calls, batches of calls and health probes
+     */
+    public static boolean governs(MessageType type) {
+        return type == MessageType.REQUEST || type == MessageType.BATCH_REQUEST
+                || type == MessageType.PING;
+    }
+
+    /**
+     * Admits a message that has just arrived, unless too many are pending.
+     *
+     * @return the time it was admitted, to pass to {@link #start}, or -1 if it is rejected
+     */
+    long admit() {
+        if (pending.incrementAndGet() > maxPending) {
+            pending.decrementAndGet();
+            rejected.increment();
+            return -1;
+        }
+        admitted.increment();
+        long now = clock.getAsLong();
+        if (queued.getAndIncrement() == 0) {
+            lastDraining = now;
+        }
+        return now;
+    }
+
+    /**
+     * Called when a worker picks up an admitted message.
+     *
+     * @param admittedAt The time returned by {@link #admit}
+     * @return true if the message should be handled, false if it waited too long and should be
+     *         shed; either way {@link #finish} must be called once it is done with
+     */
+    boolean start(long admittedAt) {
+        long now = clock.getAsLong();
+        long waited = now - admittedAt;
+        if (queued.decrementAndGet() == 0 || waited < targetNanos) {
+            lastDraining = now;
+        }
+        boolean standing = now - lastDraining > intervalNanos;
+        if (waited > (standing ? targetNanos : intervalNanos)) {
+            shed.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Called when an admitted message has been handled or shed.
+     */
+    void finish() {
+        pending.decrementAndGet();
+    }
+
+    /**
+     * Called instead of {@link #start} and {@link #finish} for an admitted message that never
+     * reaches a worker, e.g. because the pool is shut down.
+     */
+    void abandon() {
+        queued.decrementAndGet();
+        pending.decrementAndGet();
+    }
+
+    /**
+     * Gets a snapshot of the queue and its counters.
+     *
+     * @return the statistics
+     */
+    public Stats getStats() {
+        int queuedNow = queued.get();
+        return new Stats(queuedNow, Math.max(0, pending.get() - queuedNow), admitted.sum(), rejected.sum(), shed.sum());
+    }
+
+    /**
+     * Snapshot of the queue and its counters.
+     */
+    public static final class Stats {
+        private final int queued;
+        private final int inProgress;
+        private final long admitted;
+        private final long rejected;
+        private final long shed;
+
+        Stats(int queued, int inProgress, long admitted, long rejected, long shed) {
+            this.queued = queued;
+            this.inProgress = inProgress;
+            this.admitted = admitted;
+            this.rejected = rejected;
+            this.shed = shed;
+        }
+
+        /** Messages waiting for a worker. */
+        public int getQueued() {
+            return queued;
+        }
+
+        /** Messages being handled by a worker. */
+        public int getInProgress() {
+            return inProgress;
+        }
+
+        /** Messages admitted since the server started, including those shed later. */
+        public long getAdmitted() {
+            return admitted;
+        }
+
+        /** Messages rejected on arrival because too many were pending. */
+        public long getRejected() {
+            return rejected;
+        }
+
+        /** Admitted messages shed because they waited too long for a worker. */
+        public long getShed() {
+            return shed;
+        }
+
+        @Override
+        public String toString() {
+            return "queued=" + queued + ", inProgress=" + inProgress + ", admitted=" + admitted
+                    + ", rejected=" + rejected + ", shed=" + shed;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.rpc.lampcontrol.middleware.transport;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of heap byte buffers in power-of-two size classes.
+ * Frame payloads are read into pooled buffers and decoded straight from their backing arrays,
+ * then returned, so steady-state reading does not allocate per message.
+ * Requests larger than the biggest class get an unpooled buffer.
+ */
+public final class BufferPool {
+    private static final int MIN_SIZE_SHIFT = 9;   // 512 bytes
+    private static final int MAX_SIZE_SHIFT = 16;  // 64 KiB
+    private static final int MAX_BUFFERS_PER_CLASS = 256;
+    private static final BufferPool SHARED = new BufferPool();
+
+    private final SizeClass[] classes = new SizeClass[MAX_SIZE_SHIFT - MIN_SIZE_SHIFT + 1];
+
+    private BufferPool() {
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new SizeClass(1 << (MIN_SIZE_SHIFT + i));
+        }
+    }
+
+    /**
+     * Gets the process-wide buffer pool.
+     *
+     * @return the shared pool
+     */
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * Gets a cleared buffer with at least the requested capacity.
+     *
+     * @param minCapacity The minimum capacity in bytes
+     * @return a buffer ready for writing
+     */
+    public ByteBuffer acquire(int minCapacity) {
+        SizeClass sizeClass = sizeClassFor(minCapacity);
+        if (sizeClass == null) {
+            return ByteBuffer.allocate(minCapacity);
+        }
+        ByteBuffer buffer = sizeClass.free.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocate(sizeClass.size);
+        }
+        sizeClass.count.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. The caller must not use it afterwards.
+     *
+     * @param buffer The buffer to return, may be null
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.isDirect() || buffer.isReadOnly()) {
+            return;
+        }
+        SizeClass sizeClass = sizeClassFor(buffer.capacity());
+        if (sizeClass == null || sizeClass.size != buffer.capacity()) {
+            return;
+        }
+        if (sizeClass.count.incrementAndGet() <= MAX_BUFFERS_PER_CLASS) {
+            sizeClass.free.offer(buffer);
+        } else {
+            sizeClass.count.decrementAndGet();
+        }
+    }
+
+    private SizeClass sizeClassFor(int capacity) {
+        if (capacity > (1 << MAX_SIZE_SHIFT)) {
+            return null;
+        }
+        int shift = Math.max(MIN_SIZE_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(1, capacity) - 1));
+        return classes[shift - MIN_SIZE_SHIFT];
+    }
+
+    private static class SizeClass {
+        private final int size;
+        private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger count = new AtomicInteger();
+
+        private SizeClass(int size) {
+            this.size = size;
+        }
+    }
+}
@@ -1,27 +1,74 @@
 package com.rpc.lampcontrol.middleware.transport;
 
+import com.rpc.lampcontrol.middleware.common.Codec;
+import com.rpc.lampcontrol.middleware.common.Codecs;
+
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.ConnectException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Client-side transport layer that handles establishing connections to servers.
+ * Blocking connections come from {@link #connect}; {@link #connectAsync} opens non-blocking
+ * ones that share a few client I/O threads, so thousands of calls in flight cost no threads.
  */
 public class ClientTransport {
     private static final Logger logger = LoggerFactory.getLogger(ClientTransport.class);
     private static final int DEFAULT_TIMEOUT_MS = 5000;
+    private final Framing framing;
+    private final Codec preferredCodec;
+
+    /**
+     * Creates a transport that opens length-prefixed connections.
+     */
+    public ClientTransport() {
+        this(Framing.LENGTH_PREFIXED);
+    }
+
+    /**
+     * Creates a transport that opens connections with the given framing.
+     * Use {@link Framing#LINE} to talk to servers that predate length-prefixed frames.
+     *
+     * @param framing The framing for new connections
+     */
+    public ClientTransport(Framing framing) {
+        this(framing, Codecs.BINARY);
+    }
+
+    /**
+     * Creates a transport that opens connections with the given framing and preferred codec.
+     * Passing {@link Codecs#JSON} keeps traffic human-readable, which helps when debugging.
+     *
+     * @param framing The framing for new connections
+     * @param preferredCodec The codec to use once a server supports it
+     */
+    public ClientTransport(Framing framing, Codec preferredCodec) {
+        this.framing = framing;
+        this.preferredCodec = preferredCodec;
+    }
 
     /**
      * Connects to a server at the specified host and port.
      *
      * @param host The hostname or IP address to connect to
      * @param port The port to connect to
-     * @return A ConnectionHandler for the established connection
+     * @return A SocketConnectionHandler for the established connection
      * @throws IOException if the connection cannot be established
      */
-    public ConnectionHandler connect(String host, int port) throws IOException {
+    public SocketConnectionHandler connect(String host, int port) throws IOException {
         return connect(host, port, DEFAULT_TIMEOUT_MS);
     }
 
@@ -31,19 +78,163 @@ public class ClientTransport {
      * @param host The hostname or IP address to connect to
      * @param port The port to connect to
      * @param timeoutMs The connection timeout in milliseconds
-     * @return A ConnectionHandler for the established connection
+     * @return A SocketConnectionHandler for the established connection
      * @throws IOException if the connection cannot be established
      */
-    public ConnectionHandler connect(String host, int port, int timeoutMs) throws IOException {
+    public SocketConnectionHandler connect(String host, int port, int timeoutMs) throws IOException {
         logger.info("Connecting to {}:{} (timeout: {} ms)", host, port, timeoutMs);
         
         try {
             Socket socket = new Socket(host, port);
             socket.setSoTimeout(timeoutMs);
-            return new ConnectionHandler(socket);
+            // Connections are kept alive and reused, so small messages must not wait for Nagle
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            return new SocketConnectionHandler(socket, framing, preferredCodec);
         } catch (ConnectException e) {
             logger.error("Failed to connect to {}:{}: {}", host, port, e.getMessage());
             throw new IOException("Failed to connect to " + host + ":" + port, e);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Connects to a server without blocking the caller.
+     * The connection is served by the shared client I/O threads; messages it receives are
+     * decoded and handed to its listener on the shared client worker pool.
+     *
+     * @param host The hostname or IP address to connect to
+     * @param port The port to connect to
+     * @return a future completed with the connection once it is established, or exceptionally
+     *         with an IOException if it cannot be established within the default timeout
+     */
+    public CompletableFuture<ConnectionHandler> connectAsync(String host, int port) {
+        CompletableFuture<ConnectionHandler> future = new CompletableFuture<>();
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+        } catch (IOException e) {
+            future.completeExceptionally(new IOException("Failed to connect to " + host + ":" + port, e));
+            return future;
+        }
+
+        logger.info("Connecting to {}:{} asynchronously", host, port);
+        Connector connector = new Connector(channel, host, port, ClientEventLoops.next(), future);
+        connector.start();
+        CompletableFuture.delayedExecutor(DEFAULT_TIMEOUT_MS, TimeUnit.MILLISECONDS).execute(() ->
+                connector.fail(new IOException("Timed out after " + DEFAULT_TIMEOUT_MS + " ms")));
+        return future;
+    }
+
+    /**
+     * Finishes a non-blocking connect on a client event loop.
+     */
+    private class Connector implements EventLoop.Handler {
+        private final SocketChannel channel;
+        private final String host;
+        private final int port;
+        private final EventLoop eventLoop;
+        private final CompletableFuture<ConnectionHandler> future;
+
+        private Connector(SocketChannel channel, String host, int port, EventLoop eventLoop,
+                          CompletableFuture<ConnectionHandler> future) {
+            this.channel = channel;
+            this.host = host;
+            this.port = port;
+            this.eventLoop = eventLoop;
+            this.future = future;
+        }
+
+        private void start() {
+            try {
+                if (channel.connect(new InetSocketAddress(host, port))) {
+                    established(null);
+                } else {
+                    eventLoop.register(channel, SelectionKey.OP_CONNECT, this, key -> { });
+                }
+            } catch (IOException | RuntimeException e) {
+                fail(e);
+            }
+        }
+
+        @Override
+        public void handleSelection(SelectionKey key, ByteBuffer readBuffer) {
+            try {
+                if (key.isConnectable() && channel.finishConnect()) {
+                    established(key);
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        /**
+         * Hands the channel to a connection. The future is completed before the connection
+         * starts reading, so the caller can attach its listener first.
+         */
+        private void established(SelectionKey connectKey) throws IOException {
+            NioConnectionHandler handler = new NioConnectionHandler(channel, eventLoop, ClientEventLoops.WORKERS,
+                    null, null, framing, preferredCodec);
+            if (!future.complete(handler)) {
+                handler.close();
+            } else if (connectKey != null) {
+                handler.adopt(connectKey);
+            } else {
+                handler.register();
+            }
+        }
+
+        private void fail(Exception e) {
+            if (future.completeExceptionally(new IOException("Failed to connect to " + host + ":" + port, e))) {
+                logger.error("Failed to connect to {}:{}: {}", host, port, e.getMessage());
+                close();
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.debug("Error closing channel: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * The I/O threads and worker pool shared by all asynchronous client connections, started on first use.
+     */
+    private static final class ClientEventLoops {
+        private static final int IO_THREADS = Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors() / 2));
+        private static final int WORKER_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors());
+        private static final EventLoop[] LOOPS = new EventLoop[IO_THREADS];
+        private static final AtomicInteger NEXT = new AtomicInteger();
+        static final ExecutorService WORKERS = Executors.newFixedThreadPool(WORKER_THREADS, daemonThreads("client-worker-"));
+
+        static {
+            for (int i = 0; i < IO_THREADS; i++) {
+                try {
+                    // Idle connections are retired by the connection pool, not by the loop
+                    LOOPS[i] = new EventLoop("client-io-" + i, 0);
+                } catch (IOException e) {
+                    throw new ExceptionInInitializerError(e);
+                }
+            }
+        }
+
+        static EventLoop next() {
+            return LOOPS[Math.floorMod(NEXT.getAndIncrement(), LOOPS.length)];
+        }
+
+        private static ThreadFactory daemonThreads(String prefix) {
+            AtomicInteger counter = new AtomicInteger();
+            return runnable -> {
+                Thread thread = new Thread(runnable, prefix + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            };
+        }
+    }
+}
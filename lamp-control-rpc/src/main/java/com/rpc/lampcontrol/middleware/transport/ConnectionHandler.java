@@ -1,128 +1,123 @@
 package com.rpc.lampcontrol.middleware.transport;
 
-import com.rpc.lampcontrol.middleware.common.JsonSerializer;
 import com.rpc.lampcontrol.middleware.protocol.Message;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
 
 /**
- * Handles socket-based communication for sending and receiving messages.
+ * A connection to a remote peer that messages can be sent over.
+ * Incoming messages are delivered to a {@link MessageListener}; blocking implementations
+ * such as {@link SocketConnectionHandler} additionally let the caller read replies directly.
  */
-public class ConnectionHandler implements AutoCloseable {
-    private static final Logger logger = LoggerFactory.getLogger(ConnectionHandler.class);
-    private final Socket socket;
-    private final PrintWriter out;
-    private final BufferedReader in;
+public abstract class ConnectionHandler implements AutoCloseable {
 
     /**
-     * Creates a new ConnectionHandler with the given socket.
+     * Sends a message over the connection.
+     * Safe to call from several threads; each message is written as a whole.
+     * The message is fully encoded before this method returns, so the caller may reuse it.
      *
-     * @param socket The socket to handle
-     * @throws IOException if there's an error accessing the socket streams
+     * @param message The message to send
+     * @throws ConnectionException if sending fails
      */
-    public ConnectionHandler(Socket socket) throws IOException {
-        this.socket = socket;
-        this.out = new PrintWriter(socket.getOutputStream(), true);
-        this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        logger.info("Connection established with {}:{}", socket.getInetAddress().getHostAddress(), socket.getPort());
-    }
+    public abstract void sendMessage(Message message) throws ConnectionException;
 
     /**
-     * Reads a raw message from the socket as a JSON string.
+     * Sets the listener that receives every message arriving on this connection.
+     * Must be called before the first message arrives, normally from the handler
+     * passed to {@link ServerTransport#start}.
      *
-     * @return The raw JSON message
-     * @throws IOException if there's an error reading
-     * @throws ConnectionException if the connection is closed
+     * @param listener The listener for incoming messages
      */
-    public String readRawMessage() throws IOException, ConnectionException {
-        String json = in.readLine();
-        if (json == null) {
-            throw new ConnectionException("Received null message, connection may be closed");
-        }
-        logger.debug("Received raw message: {}", json);
-        return json;
+    public abstract void setMessageListener(MessageListener listener);
+
+    /**
+     * Checks whether the connection is still usable for both reading and writing.
+     *
+     * @return true if the connection is open
+     */
+    public abstract boolean isOpen();
+
+    /**
+     * Checks whether a message sent now would be written right away instead of queueing
+     * behind earlier messages the peer has not taken yet. Senders that can drop or merge
+     * messages use this to avoid buffering without bound for a slow peer.
+     *
+     * @return true if nothing is waiting to be written
+     */
+    public boolean isWritable() {
+        return true;
     }
 
     /**
-     * Sends a message over the connection.
+     * Runs a task once everything queued for writing so far has been written; right away if
+     * nothing is queued. Tasks still waiting when the connection closes are dropped.
      *
-     * @param message The message to send
-     * @throws ConnectionException if sending fails
+     * @param task The task to run, which must not block
      */
-    public void sendMessage(Message message) throws ConnectionException {
-        try {
-            String json = JsonSerializer.serialize(message);
-            logger.debug("Sending message: {}", json);
-            out.println(json);
-            if (out.checkError()) {
-                throw new ConnectionException("Error while sending message");
-            }
-        } catch (JsonSerializer.SerializationException e) {
-            throw new ConnectionException("Failed to serialize message for sending", e);
-        }
+    public void whenWritable(Runnable task) {
+        task.run();
     }
 
     /**
-     * Receives a message of the specified type.
+     * Exempts the connection from being closed for inactivity, e.g. while it carries a
+     * subscription that may stay quiet for a long time.
      *
-     * @param messageClass The expected message class
-     * @param <T> Type parameter for the Message class
-     * @return The received message
-     * @throws ConnectionException if receiving fails or message is null
+     * @param keepOpen true to keep the connection open while idle
      */
-    public <T extends Message> T receiveMessage(Class<T> messageClass) throws ConnectionException {
-        try {
-            String json = in.readLine();
-            if (json == null) {
-                throw new ConnectionException("Received null message, connection may be closed");
-            }
-            
-            logger.debug("Received message: {}", json);
-            return JsonSerializer.deserialize(json, messageClass);
-        } catch (IOException e) {
-            throw new ConnectionException("Error reading from socket", e);
-        } catch (JsonSerializer.SerializationException e) {
-            throw new ConnectionException("Failed to deserialize received message", e);
-        }
+    public void setKeepOpen(boolean keepOpen) {
     }
 
     /**
      * Closes the connection.
      */
     @Override
-    public void close() {
-        try {
-            out.close();
-            in.close();
-            socket.close();
-            logger.info("Connection closed with {}:{}", socket.getInetAddress().getHostAddress(), socket.getPort());
-        } catch (IOException e) {
-            logger.error("Error closing connection: {}", e.getMessage());
-        }
-    }
+    public abstract void close();
 
     /**
      * Gets the remote host address.
      *
      * @return the remote host address
      */
-    public String getRemoteHost() {
-        return socket.getInetAddress().getHostAddress();
-    }
+    public abstract String getRemoteHost();
 
     /**
      * Gets the remote port.
      *
      * @return the remote port
      */
-    public int getRemotePort() {
-        return socket.getPort();
+    public abstract int getRemotePort();
+
+    /**
+     * Receives messages arriving on a connection.
+     */
+    @FunctionalInterface
+    public interface MessageListener {
+        /**
+         * Called for each message received on the connection.
+         *
+         * @param connection The connection the message arrived on, for sending replies
+         * @param message The received message
+         */
+        void onMessage(ConnectionHandler connection, Message message);
+
+        /**
+         * Called instead of {@link #onMessage} for a call, batch or health probe the server
+         * transport sheds under load (see {@link AdmissionControl}), so the listener can tell
+         * the sender at once. May be called on an I/O thread, so must not block. By default the
+         * message is dropped, leaving the sender to time out.
+         *
+         * @param connection The connection the message arrived on, for sending replies
+         * @param message The shed message; its arguments are not bound to parameter types
+         */
+        default void onShed(ConnectionHandler connection, Message message) {
+        }
+
+        /**
+         * Called once when a connection that delivers messages to this listener is closed,
+         * by either side. Connections that are read by the caller directly do not call it.
+         *
+         * @param connection The connection that was closed
+         */
+        default void onClose(ConnectionHandler connection) {
+        }
     }
 
     /**
@@ -137,4 +132,13 @@ public class ConnectionHandler implements AutoCloseable {
             super(message, cause);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Exception thrown when the peer closed the connection in an orderly way.
+     */
+    public static class ConnectionClosedException extends ConnectionException {
+        public ConnectionClosedException(String message) {
+            super(message);
+        }
+    }
+}
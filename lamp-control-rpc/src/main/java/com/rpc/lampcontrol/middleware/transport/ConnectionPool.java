@@ -0,0 +1,275 @@
+package com.rpc.lampcontrol.middleware.transport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool of keep-alive client connections, keyed by host and port.
+ * Connections are borrowed for a single request/response exchange and returned afterwards,
+ * so repeated calls to the same endpoint reuse an established socket instead of opening a new one.
+ */
+public class ConnectionPool implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(ConnectionPool.class);
+    public static final int DEFAULT_MAX_PER_ENDPOINT = 8;
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 30_000;
+    public static final long DEFAULT_VALIDATE_AFTER_IDLE_MS = 2_000;
+    private static final long ACQUIRE_TIMEOUT_MS = 5_000;
+    private static final int VALIDATION_PROBE_TIMEOUT_MS = 1;
+
+    private final ClientTransport transport;
+    private final int maxPerEndpoint;
+    private final long idleTimeoutMs;
+    private final long validateAfterIdleMs;
+    private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService evictor;
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a new connection pool with default settings.
+     *
+     * @param transport The transport used to open new connections
+     */
+    public ConnectionPool(ClientTransport transport) {
+        this(transport, DEFAULT_MAX_PER_ENDPOINT, DEFAULT_IDLE_TIMEOUT_MS, DEFAULT_VALIDATE_AFTER_IDLE_MS);
+    }
+
+    /**
+     * Creates a new connection pool.
+     *
+     * @param transport The transport used to open new connections
+     * @param maxPerEndpoint Maximum number of open connections per host and port
+     * @param idleTimeoutMs Idle connections older than this are closed by the evictor
+     * @param validateAfterIdleMs Connections idle for longer than this are probed before reuse
+     */
+    public ConnectionPool(ClientTransport transport, int maxPerEndpoint, long idleTimeoutMs, long validateAfterIdleMs) {
+        if (maxPerEndpoint < 1) {
+            throw new IllegalArgumentException("maxPerEndpoint must be at least 1");
+        }
+        this.transport = transport;
+        this.maxPerEndpoint = maxPerEndpoint;
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.validateAfterIdleMs = validateAfterIdleMs;
+        this.evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "connection-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long sweepIntervalMs = Math.max(1_000, idleTimeoutMs / 2);
+        evictor.scheduleWithFixedDelay(this::evictIdleConnections, sweepIntervalMs, sweepIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs a request/response exchange that must not run twice, such as a registration, on a
+     * pooled connection to the given endpoint (see {@link #execute(String, int, boolean, Exchange)}).
+     *
+     * @param host The host to connect to
+     * @param port The port to connect to
+     * @param exchange The exchange to run
+     * @param <T> Type of the exchange result
+     * @return The result of the exchange
+     * @throws IOException if no connection can be obtained
+     * @throws ConnectionHandler.ConnectionException if the exchange fails
+     */
+    public <T> T execute(String host, int port, Exchange<T> exchange)
+            throws IOException, ConnectionHandler.ConnectionException {
+        return execute(host, port, false, exchange);
+    }
+
+    /**
+     * Runs a request/response exchange on a pooled connection to the given endpoint.
+     * The connection is returned to the pool if the exchange completes and discarded if it fails.
+     * If a reused connection fails before the exchange sent anything over it, the exchange is
+     * retried once on a fresh connection. An idempotent exchange is also retried if the server
+     * closed the connection after its request was sent, as the server may have dropped it
+     * unanswered; any other exchange might then run twice, so it fails instead.
+     *
+     * @param host The host to connect to
+     * @param port The port to connect to
+     * @param idempotent Whether running the exchange twice has the same effect as running it once
+     * @param exchange The exchange to run
+     * @param <T> Type of the exchange result
+     * @return The result of the exchange
+     * @throws IOException if no connection can be obtained
+     * @throws ConnectionHandler.ConnectionException if the exchange fails
+     */
+    public <T> T execute(String host, int port, boolean idempotent, Exchange<T> exchange)
+            throws IOException, ConnectionHandler.ConnectionException {
+        Endpoint endpoint = endpoints.computeIfAbsent(host + ":" + port, key -> new Endpoint(host, port, maxPerEndpoint));
+        acquirePermit(endpoint);
+        try {
+            PooledConnection pooled = borrow(endpoint);
+            long sent = pooled.connection.getMessagesSent();
+            try {
+                T result = exchange.exchange(pooled.connection);
+                release(endpoint, pooled.connection);
+                return result;
+            } catch (ConnectionHandler.ConnectionException e) {
+                pooled.connection.close();
+                boolean nothingSent = pooled.connection.getMessagesSent() == sent;
+                if (!pooled.reused
+                        || !(nothingSent || idempotent && e instanceof ConnectionHandler.ConnectionClosedException)) {
+                    throw e;
+                }
+                logger.debug("Pooled connection to {}:{} failed: {}; retrying on a new connection", host, port,
+                        e.getMessage());
+            } catch (RuntimeException e) {
+                pooled.connection.close();
+                throw e;
+            }
+
+            SocketConnectionHandler fresh = transport.connect(host, port);
+            try {
+                T result = exchange.exchange(fresh);
+                release(endpoint, fresh);
+                return result;
+            } catch (ConnectionHandler.ConnectionException | RuntimeException e) {
+                fresh.close();
+                throw e;
+            }
+        } finally {
+            endpoint.permits.release();
+        }
+    }
+
+    /**
+     * Gets the number of idle connections currently held for an endpoint.
+     *
+     * @param host The endpoint host
+     * @param port The endpoint port
+     * @return the number of idle connections
+     */
+    public int getIdleCount(String host, int port) {
+        Endpoint endpoint = endpoints.get(host + ":" + port);
+        return endpoint == null ? 0 : endpoint.idle.size();
+    }
+
+    /**
+     * Closes all idle connections and stops the evictor.
+     * Connections that are currently borrowed are closed when they are returned.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        evictor.shutdownNow();
+        for (Endpoint endpoint : endpoints.values()) {
+            IdleConnection idle;
+            while ((idle = endpoint.idle.pollFirst()) != null) {
+                idle.connection.close();
+            }
+        }
+        endpoints.clear();
+    }
+
+    private void acquirePermit(Endpoint endpoint) throws IOException {
+        if (closed) {
+            throw new IOException("Connection pool is closed");
+        }
+        try {
+            if (!endpoint.permits.tryAcquire(ACQUIRE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Connection pool exhausted for " + endpoint.host + ":" + endpoint.port
+                        + " (max " + maxPerEndpoint + " connections)");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a connection to " + endpoint.host + ":" + endpoint.port, e);
+        }
+    }
+
+    private PooledConnection borrow(Endpoint endpoint) throws IOException {
+        long now = System.currentTimeMillis();
+        IdleConnection idle;
+        // Most recently returned first, so rarely used connections age out at the tail
+        while ((idle = endpoint.idle.pollFirst()) != null) {
+            long idleFor = now - idle.idleSince;
+            if (idleFor > idleTimeoutMs || !idle.connection.isOpen()) {
+                idle.connection.close();
+                continue;
+            }
+            if (idleFor > validateAfterIdleMs && !idle.connection.validate(VALIDATION_PROBE_TIMEOUT_MS)) {
+                logger.debug("Discarding stale connection to {}:{}", endpoint.host, endpoint.port);
+                idle.connection.close();
+                continue;
+            }
+            return new PooledConnection(idle.connection, true);
+        }
+        return new PooledConnection(transport.connect(endpoint.host, endpoint.port), false);
+    }
+
+    private void release(Endpoint endpoint, SocketConnectionHandler connection) {
+        if (closed || !connection.isOpen()) {
+            connection.close();
+            return;
+        }
+        endpoint.idle.offerFirst(new IdleConnection(connection, System.currentTimeMillis()));
+    }
+
+    private void evictIdleConnections() {
+        long now = System.currentTimeMillis();
+        for (Endpoint endpoint : endpoints.values()) {
+            Iterator<IdleConnection> iterator = endpoint.idle.iterator();
+            while (iterator.hasNext()) {
+                IdleConnection idle = iterator.next();
+                if (now - idle.idleSince > idleTimeoutMs || !idle.connection.isOpen()) {
+                    // Only the thread that wins the removal may close the connection
+                    if (endpoint.idle.removeFirstOccurrence(idle)) {
+                        logger.debug("Evicting idle connection to {}:{}", endpoint.host, endpoint.port);
+                        idle.connection.close();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A request/response exchange run on a borrowed connection.
+     *
+     * @param <T> Type of the exchange result
+     */
+    @FunctionalInterface
+    public interface Exchange<T> {
+        T exchange(SocketConnectionHandler connection) throws ConnectionHandler.ConnectionException;
+    }
+
+    private static class Endpoint {
+        private final String host;
+        private final int port;
+        private final Semaphore permits;
+        private final ConcurrentLinkedDeque<IdleConnection> idle = new ConcurrentLinkedDeque<>();
+
+        private Endpoint(String host, int port, int maxConnections) {
+            this.host = host;
+            this.port = port;
+            this.permits = new Semaphore(maxConnections);
+        }
+    }
+
+    private static class IdleConnection {
+        private final SocketConnectionHandler connection;
+        private final long idleSince;
+
+        private IdleConnection(SocketConnectionHandler connection, long idleSince) {
+            this.connection = connection;
+            this.idleSince = idleSince;
+        }
+    }
+
+    private static class PooledConnection {
+        private final SocketConnectionHandler connection;
+        private final boolean reused;
+
+        private PooledConnection(SocketConnectionHandler connection, boolean reused) {
+            this.connection = connection;
+            this.reused = reused;
+        }
+    }
+}
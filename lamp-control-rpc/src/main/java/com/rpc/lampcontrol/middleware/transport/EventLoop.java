@@ -0,0 +1,194 @@
+package com.rpc.lampcontrol.middleware.transport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * A single I/O thread multiplexing many non-blocking channels through one {@link Selector}.
+ * All selector and key manipulation happens on the loop thread; other threads hand work
+ * to it through {@link #execute(Runnable)}.
+ */
+class EventLoop implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(EventLoop.class);
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final long SELECT_TIMEOUT_MS = 1000;
+
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // Shared by every channel on this loop; connections only keep bytes of incomplete messages
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final long idleTimeoutMs;
+    private volatile boolean running = true;
+
+    /**
+     * Creates and starts a new event loop.
+     *
+     * @param name The name of the I/O thread
+     * @param idleTimeoutMs Connections without traffic for this long are closed, or 0 to keep them forever
+     * @throws IOException if the selector cannot be opened
+     */
+    EventLoop(String name, long idleTimeoutMs) throws IOException {
+        this.selector = Selector.open();
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Runs a task on the loop thread.
+     *
+     * @param task The task to run
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Registers a channel with this loop. The channel must already be non-blocking.
+     *
+     * @param channel The channel to register
+     * @param interestOps The initial interest set
+     * @param handler The handler for readiness events of this channel
+     * @param onRegistered Called on the loop thread with the new selection key
+     */
+    void register(SelectableChannel channel, int interestOps, Handler handler, Consumer<SelectionKey> onRegistered) {
+        execute(() -> {
+            try {
+                SelectionKey key = channel.register(selector, interestOps, handler);
+                onRegistered.accept(key);
+            } catch (ClosedChannelException e) {
+                logger.debug("Channel closed before it could be registered");
+            }
+        });
+    }
+
+    /**
+     * Checks whether the caller is running on this loop's thread.
+     *
+     * @return true if called from the loop thread
+     */
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Stops the loop and closes every channel registered with it.
+     */
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        long lastIdleCheck = System.currentTimeMillis();
+        while (running) {
+            try {
+                selector.select(SELECT_TIMEOUT_MS);
+                runTasks();
+
+                Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    SelectionKey key = selected.next();
+                    selected.remove();
+                    Handler handler = (Handler) key.attachment();
+                    try {
+                        handler.handleSelection(key, readBuffer);
+                    } catch (RuntimeException e) {
+                        logger.error("Unexpected error handling I/O event: {}", e.getMessage(), e);
+                        handler.close();
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                if (idleTimeoutMs > 0 && now - lastIdleCheck >= SELECT_TIMEOUT_MS) {
+                    lastIdleCheck = now;
+                    closeIdleChannels(now);
+                }
+            } catch (IOException e) {
+                logger.error("Event loop error: {}", e.getMessage());
+            }
+        }
+        closeAll();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.error("Event loop task failed: {}", e.getMessage(), e);
+            }
+        }
+    }
+
+    private void closeIdleChannels(long now) {
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (attachment instanceof Handler && ((Handler) attachment).isIdle(now, idleTimeoutMs)) {
+                ((Handler) attachment).close();
+            }
+        }
+    }
+
+    private void closeAll() {
+        runTasks();
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (attachment instanceof Handler) {
+                ((Handler) attachment).close();
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.error("Error closing selector: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Reacts to readiness events of one registered channel. Called on the loop thread only.
+     */
+    interface Handler {
+        /**
+         * Handles the ready operations of the key.
+         *
+         * @param key The selected key
+         * @param readBuffer A scratch buffer shared by all channels of the loop, valid only during this call
+         */
+        void handleSelection(SelectionKey key, ByteBuffer readBuffer);
+
+        /**
+         * Checks whether the channel has been idle long enough to be closed.
+         *
+         * @param now The current time in milliseconds
+         * @param idleTimeoutMs The idle timeout in milliseconds
+         * @return true if the channel should be closed
+         */
+        default boolean isIdle(long now, long idleTimeoutMs) {
+            return false;
+        }
+
+        /**
+         * Closes the channel.
+         */
+        void close();
+    }
+}
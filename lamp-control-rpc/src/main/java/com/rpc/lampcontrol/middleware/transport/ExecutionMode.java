@@ -0,0 +1,84 @@
+package com.rpc.lampcontrol.middleware.transport;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * How a {@link ServerTransport} runs message handling, and with it the functions an
+ * {@code RpcServer} invokes. A function that blocks, e.g. on I/O, holds its thread until it
+ * returns, so the mode decides how many blocking calls can be in progress at once.
+ */
+public enum ExecutionMode {
+    /**
+     * A fixed pool of platform threads. Calls beyond the pool size wait in its queue, which
+     * bounds the threads a server uses but also the blocking calls it runs at once.
+     */
+    POOLED,
+    /**
+     * A platform thread per message, reused while idle. Blocking calls never wait for a thread,
+     * but each in progress costs a full thread and its stack.
+     */
+    PLATFORM,
+    /**
+     * A virtual thread per message. Blocking calls never wait for a thread and cost little
+     * while blocked, as the virtual thread unmounts from its carrier; a call that blocks inside
+     * a {@code synchronized} block keeps the carrier pinned, though. Needs Java 21 or later at
+     * run time.
+     */
+    VIRTUAL;
+
+    /**
+     * Checks whether the running JVM supports this mode.
+     *
+     * @return false for {@link #VIRTUAL} before Java 21, otherwise true
+     */
+    public boolean isSupported() {
+        return this != VIRTUAL || Runtime.version().feature() >= 21;
+    }
+
+    /**
+     * Creates the executor for this mode.
+     *
+     * @param threadPrefix Prefix of the names of the threads created
+     * @param poolThreads Number of threads of a {@link #POOLED} executor
+     * @return the executor
+     * @throws IllegalStateException if the running JVM does not support this mode
+     */
+    ExecutorService newExecutor(String threadPrefix, int poolThreads) {
+        switch (this) {
+            case POOLED:
+                return Executors.newFixedThreadPool(poolThreads, namedThreads(threadPrefix));
+            case PLATFORM:
+                return Executors.newCachedThreadPool(namedThreads(threadPrefix));
+            default:
+                return newVirtualThreadExecutor(threadPrefix);
+        }
+    }
+
+    private ExecutorService newVirtualThreadExecutor(String threadPrefix) {
+        if (!isSupported()) {
+            throw new IllegalStateException("Virtual threads need Java 21 or later, running on "
+                    + Runtime.version());
+        }
+        // Looked up at run time, so the project still builds for Java 17
+        try {
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, threadPrefix, 1L);
+            ThreadFactory factory = (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory);
+        } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException
+                 | InvocationTargetException e) {
+            throw new IllegalStateException("Cannot create virtual threads: " + e, e);
+        }
+    }
+
+    private static ThreadFactory namedThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> new Thread(runnable, prefix + counter.incrementAndGet());
+    }
+}
@@ -0,0 +1,149 @@
+package com.rpc.lampcontrol.middleware.transport;
+
+import com.rpc.lampcontrol.middleware.common.Codec;
+import com.rpc.lampcontrol.middleware.common.OutputBuffer;
+import com.rpc.lampcontrol.middleware.protocol.Message;
+import com.rpc.lampcontrol.middleware.protocol.MessageType;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Layout of a length-prefixed frame.
+ *
+ * <pre>
+ *  0       1         2      3       4                8
+ *  +-------+---------+------+-------+----------------+-------------+
+ *  | magic | version | type | flags | payload length | payload ... |
+ *  +-------+---------+------+-------+----------------+-------------+
+ * </pre>
+ *
+ * The length is a big-endian 32-bit integer. The magic byte can never start a JSON line,
+ * which lets a server tell framed peers from line-based ones by their first byte.
+ * The low four bits of the flags hold the id of the codec that encoded the payload.
+ */
+public final class FrameFormat {
+    public static final byte MAGIC = (byte) 0xA5;
+    public static final byte VERSION = 1;
+    public static final int HEADER_SIZE = 8;
+    public static final int MAX_PAYLOAD_SIZE = 16 * 1024 * 1024;
+
+    public static final int MAGIC_OFFSET = 0;
+    public static final int VERSION_OFFSET = 1;
+    public static final int TYPE_OFFSET = 2;
+    public static final int FLAGS_OFFSET = 3;
+    public static final int LENGTH_OFFSET = 4;
+
+    public static final int CODEC_MASK = 0x0F;
+
+    private FrameFormat() {
+    }
+
+    /**
+     * Writes a frame header at the buffer's current position.
+     *
+     * @param buffer The buffer to write to
+     * @param type The message type code
+     * @param flags The frame flags
+     * @param payloadLength The number of payload bytes following the header
+     */
+    public static void writeHeader(ByteBuffer buffer, int type, int flags, int payloadLength) {
+        buffer.put(MAGIC);
+        buffer.put(VERSION);
+        buffer.put((byte) type);
+        buffer.put((byte) flags);
+        buffer.putInt(payloadLength);
+    }
+
+    /**
+     * Writes a frame header into a byte array.
+     *
+     * @param target The array to write to
+     * @param offset The offset of the header in the array
+     * @param type The message type code
+     * @param flags The frame flags
+     * @param payloadLength The number of payload bytes following the header
+     */
+    public static void writeHeader(byte[] target, int offset, int type, int flags, int payloadLength) {
+        target[offset + MAGIC_OFFSET] = MAGIC;
+        target[offset + VERSION_OFFSET] = VERSION;
+        target[offset + TYPE_OFFSET] = (byte) type;
+        target[offset + FLAGS_OFFSET] = (byte) flags;
+        target[offset + LENGTH_OFFSET] = (byte) (payloadLength >>> 24);
+        target[offset + LENGTH_OFFSET + 1] = (byte) (payloadLength >>> 16);
+        target[offset + LENGTH_OFFSET + 2] = (byte) (payloadLength >>> 8);
+        target[offset + LENGTH_OFFSET + 3] = (byte) payloadLength;
+    }
+
+    /**
+     * Appends a complete frame to the buffer: the header is reserved first and filled in
+     * once the codec has written the payload behind it, so nothing is copied.
+     *
+     * @param message The message to encode
+     * @param type The message type
+     * @param codec The codec for the payload
+     * @param out The buffer to append to
+     * @throws Codec.CodecException if the message cannot be encoded
+     */
+    public static void encodeFrame(Message message, MessageType type, Codec codec, OutputBuffer out)
+            throws Codec.CodecException {
+        int headerIndex = out.skip(HEADER_SIZE);
+        codec.encode(message, out);
+        writeHeader(out.array(), headerIndex, type.getCode(), codec.getId(), out.size() - headerIndex - HEADER_SIZE);
+    }
+
+    /**
+     * Reads the payload length of a header and checks it against the size limit.
+     *
+     * @param header An array holding a complete header
+     * @param offset The offset of the header in the array
+     * @return the payload length
+     * @throws IllegalStateException if the header is malformed
+     */
+    public static int readPayloadLength(byte[] header, int offset) {
+        checkHeader(header[offset + MAGIC_OFFSET], header[offset + VERSION_OFFSET]);
+        int length = ((header[offset + LENGTH_OFFSET] & 0xFF) << 24)
+                | ((header[offset + LENGTH_OFFSET + 1] & 0xFF) << 16)
+                | ((header[offset + LENGTH_OFFSET + 2] & 0xFF) << 8)
+                | (header[offset + LENGTH_OFFSET + 3] & 0xFF);
+        return checkLength(length);
+    }
+
+    /**
+     * Reads the payload length of a header starting at the given buffer index.
+     *
+     * @param buffer A buffer holding a complete header at {@code index}
+     * @param index The absolute index of the header
+     * @return the payload length
+     * @throws IllegalStateException if the header is malformed
+     */
+    public static int readPayloadLength(ByteBuffer buffer, int index) {
+        checkHeader(buffer.get(index + MAGIC_OFFSET), buffer.get(index + VERSION_OFFSET));
+        return checkLength(buffer.getInt(index + LENGTH_OFFSET));
+    }
+
+    /**
+     * Extracts the codec id from the flags of a header.
+     *
+     * @param flags The flags byte
+     * @return the codec id
+     */
+    public static int codecId(int flags) {
+        return flags & CODEC_MASK;
+    }
+
+    private static void checkHeader(byte magic, byte version) {
+        if (magic != MAGIC) {
+            throw new IllegalStateException("Invalid frame magic: " + (magic & 0xFF));
+        }
+        if (version != VERSION) {
+            throw new IllegalStateException("Unsupported frame version: " + version);
+        }
+    }
+
+    private static int checkLength(int length) {
+        if (length < 0 || length > MAX_PAYLOAD_SIZE) {
+            throw new IllegalStateException("Invalid frame length: " + length);
+        }
+        return length;
+    }
+}
@@ -0,0 +1,17 @@
+package com.rpc.lampcontrol.middleware.transport;
+
+/**
+ * How messages are delimited on a connection.
+ */
+public enum Framing {
+    /**
+     * One JSON message per line. The original wire format, kept for older peers.
+     */
+    LINE,
+
+    /**
+     * A fixed binary header carrying type, flags and payload length, followed by the payload.
+     * See {@link FrameFormat}.
+     */
+    LENGTH_PREFIXED
+}
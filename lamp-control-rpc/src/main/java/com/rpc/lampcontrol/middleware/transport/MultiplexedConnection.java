@@ -0,0 +1,232 @@
+package com.rpc.lampcontrol.middleware.transport;
+
+import com.rpc.lampcontrol.middleware.protocol.Message;
+import com.rpc.lampcontrol.middleware.protocol.StreamEvent;
+import com.rpc.lampcontrol.middleware.protocol.WatchEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A client connection shared by many concurrent callers.
+ * Requests are written as soon as they are issued, and each incoming response completes its
+ * pending call by trace id, so responses may arrive in any order. On a non-blocking connection
+ * (see {@link ClientTransport#connectAsync}) no thread waits for responses at all.
+ * Subscriptions and registry watches opened with {@link #openStream} receive pushed events
+ * over the same connection.
+ */
+public class MultiplexedConnection implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(MultiplexedConnection.class);
+
+    private final ConnectionHandler connection;
+    private final Map<String, CompletableFuture<Message>> pendingCalls = new ConcurrentHashMap<>();
+    private final Map<String, StreamHandler> streams = new ConcurrentHashMap<>();
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private volatile long lastActivity = System.currentTimeMillis();
+
+    /**
+     * Wraps an established connection and starts demultiplexing its responses.
+     * The connection's message listener is replaced.
+     *
+     * @param connection The connection to share
+     */
+    public MultiplexedConnection(ConnectionHandler connection) {
+        this.connection = connection;
+        connection.setMessageListener(new ConnectionHandler.MessageListener() {
+            @Override
+            public void onMessage(ConnectionHandler source, Message message) {
+                complete(message);
+            }
+
+            @Override
+            public void onClose(ConnectionHandler source) {
+                if (!closed.get()) {
+                    logger.debug("Connection to {}:{} lost", source.getRemoteHost(), source.getRemotePort());
+                }
+                shutdown(new ConnectionHandler.ConnectionClosedException("Connection closed by peer"));
+            }
+        });
+    }
+
+    /**
+     * Sends a request and returns a future for its response.
+     * The future completes exceptionally if the connection fails before the response arrives.
+     *
+     * @param request The request to send
+     * @return a future completed with the response carrying the request's trace id
+     */
+    public CompletableFuture<Message> send(Message request) {
+        CompletableFuture<Message> future = new CompletableFuture<>();
+        if (closed.get()) {
+            future.completeExceptionally(new ConnectionHandler.ConnectionClosedException("Connection is closed"));
+            return future;
+        }
+
+        String traceId = request.getTraceId();
+        pendingCalls.put(traceId, future);
+        lastActivity = System.currentTimeMillis();
+        try {
+            connection.sendMessage(request);
+        } catch (ConnectionHandler.ConnectionException e) {
+            pendingCalls.remove(traceId);
+            future.completeExceptionally(e);
+            shutdown(e);
+        }
+        // Re-check: the connection may have failed all pending calls before ours was registered
+        if (closed.get() && pendingCalls.remove(traceId) != null) {
+            future.completeExceptionally(new ConnectionHandler.ConnectionClosedException("Connection is closed"));
+        }
+        return future;
+    }
+
+    /**
+     * Opens a stream, such as a topic subscription or a registry watch. The handler receives
+     * every {@link StreamEvent} or {@link WatchEvent} carrying the request's trace id until
+     * {@link #closeStream} is called or the connection closes.
+     *
+     * @param request The request that opens the stream
+     * @param handler The handler for the stream's events
+     * @return a future completed with the server's acknowledgement
+     */
+    public CompletableFuture<Message> openStream(Message request, StreamHandler handler) {
+        String subscriptionId = request.getTraceId();
+        // Registered before sending: events may be delivered before the acknowledgement
+        streams.put(subscriptionId, handler);
+        CompletableFuture<Message> acknowledgement = send(request);
+        acknowledgement.whenComplete((response, error) -> {
+            if (error != null) {
+                streams.remove(subscriptionId, handler);
+            }
+        });
+        return acknowledgement;
+    }
+
+    /**
+     * Stops delivering the events of a subscription. Events arriving later are discarded.
+     *
+     * @param subscriptionId The trace id of the subscription request
+     */
+    public void closeStream(String subscriptionId) {
+        streams.remove(subscriptionId);
+    }
+
+    /**
+     * Gets the number of subscriptions receiving events on this connection.
+     *
+     * @return the number of open streams
+     */
+    public int getStreamCount() {
+        return streams.size();
+    }
+
+    /**
+     * Forgets a pending call, e.g. after the caller gave up waiting for it.
+     * A response arriving later for this trace id is discarded.
+     *
+     * @param traceId The trace id of the abandoned request
+     */
+    public void cancel(String traceId) {
+        pendingCalls.remove(traceId);
+    }
+
+    /**
+     * Gets the number of calls waiting for a response on this connection.
+     *
+     * @return the number of in-flight calls
+     */
+    public int getInFlightCount() {
+        return pendingCalls.size();
+    }
+
+    /**
+     * Gets the time of the last request or response on this connection.
+     *
+     * @return the last activity time in milliseconds since the epoch
+     */
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    /**
+     * Checks whether this connection can still carry new calls.
+     *
+     * @return true if the connection is open
+     */
+    public boolean isOpen() {
+        return !closed.get() && connection.isOpen();
+    }
+
+    /**
+     * Closes the connection and fails all calls still waiting for a response.
+     */
+    @Override
+    public void close() {
+        shutdown(new ConnectionHandler.ConnectionClosedException("Connection closed"));
+    }
+
+    private void complete(Message response) {
+        lastActivity = System.currentTimeMillis();
+        if (response instanceof StreamEvent || response instanceof WatchEvent) {
+            StreamHandler handler = streams.get(response.getTraceId());
+            if (handler != null) {
+                handler.onEvent(response);
+            } else {
+                logger.debug("Discarding event for unknown subscription {}", response.getTraceId());
+            }
+            return;
+        }
+        CompletableFuture<Message> future = pendingCalls.remove(response.getTraceId());
+        if (future != null) {
+            future.complete(response);
+        } else {
+            logger.debug("Discarding response with unknown trace id {}", response.getTraceId());
+        }
+    }
+
+    private void shutdown(ConnectionHandler.ConnectionException cause) {
+        // Mark closed before failing calls so that send() notices calls registered concurrently
+        if (closed.compareAndSet(false, true)) {
+            connection.close();
+            failPendingCalls(cause);
+            for (String subscriptionId : streams.keySet()) {
+                StreamHandler handler = streams.remove(subscriptionId);
+                if (handler != null) {
+                    handler.onClose(cause);
+                }
+            }
+        }
+    }
+
+    private void failPendingCalls(ConnectionHandler.ConnectionException cause) {
+        for (String traceId : pendingCalls.keySet()) {
+            CompletableFuture<Message> future = pendingCalls.remove(traceId);
+            if (future != null) {
+                future.completeExceptionally(cause);
+            }
+        }
+    }
+
+    /**
+     * Receives the events of one stream.
+     */
+    public interface StreamHandler {
+        /**
+         * Called for each event of the stream, on a client worker thread. Events may be
+         * delivered concurrently and out of order; their sequence numbers order them.
+         *
+         * @param event The event, a {@link StreamEvent} or a {@link WatchEvent}
+         */
+        void onEvent(Message event);
+
+        /**
+         * Called once if the connection closes while the subscription is open.
+         *
+         * @param cause Why the connection closed
+         */
+        void onClose(ConnectionHandler.ConnectionException cause);
+    }
+}
@@ -0,0 +1,202 @@
+package com.rpc.lampcontrol.middleware.transport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a small set of shared {@link MultiplexedConnection}s per host and port.
+ * Callers never own a connection: each call picks the least loaded one, and a new connection
+ * is only opened when all existing ones carry more than a configured number of in-flight calls.
+ */
+public class MultiplexedConnectionPool implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(MultiplexedConnectionPool.class);
+    public static final int DEFAULT_MAX_PER_ENDPOINT = 4;
+    public static final int DEFAULT_MAX_IN_FLIGHT_PER_CONNECTION = 256;
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 30_000;
+
+    private final ClientTransport transport;
+    private final int maxPerEndpoint;
+    private final int maxInFlightPerConnection;
+    private final long idleTimeoutMs;
+    private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService evictor;
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a new multiplexed connection pool with default settings.
+     *
+     * @param transport The transport used to open new connections
+     */
+    public MultiplexedConnectionPool(ClientTransport transport) {
+        this(transport, DEFAULT_MAX_PER_ENDPOINT, DEFAULT_MAX_IN_FLIGHT_PER_CONNECTION, DEFAULT_IDLE_TIMEOUT_MS);
+    }
+
+    /**
+     * Creates a new multiplexed connection pool.
+     *
+     * @param transport The transport used to open new connections
+     * @param maxPerEndpoint Maximum number of connections per host and port
+     * @param maxInFlightPerConnection In-flight calls per connection above which another connection is opened
+     * @param idleTimeoutMs Connections without any traffic for this long are closed
+     */
+    public MultiplexedConnectionPool(ClientTransport transport, int maxPerEndpoint,
+                                     int maxInFlightPerConnection, long idleTimeoutMs) {
+        if (maxPerEndpoint < 1) {
+            throw new IllegalArgumentException("maxPerEndpoint must be at least 1");
+        }
+        this.transport = transport;
+        this.maxPerEndpoint = maxPerEndpoint;
+        this.maxInFlightPerConnection = maxInFlightPerConnection;
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "multiplexed-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long sweepIntervalMs = Math.max(1_000, idleTimeoutMs / 2);
+        evictor.scheduleWithFixedDelay(this::evictIdleConnections, sweepIntervalMs, sweepIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gets a shared connection to the given endpoint, opening one if needed.
+     *
+     * @param host The host to connect to
+     * @param port The port to connect to
+     * @return an open multiplexed connection
+     * @throws IOException if a new connection cannot be established
+     */
+    public MultiplexedConnection getConnection(String host, int port) throws IOException {
+        try {
+            return getConnectionAsync(host, port).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while connecting to " + host + ":" + port, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to set up connection to " + host + ":" + port, e.getCause());
+        }
+    }
+
+    /**
+     * Gets a shared connection to the given endpoint without blocking, opening one if needed.
+     * Only one connection per endpoint is opened at a time; callers arriving meanwhile use
+     * an existing connection if there is one, or wait for the new one.
+     *
+     * @param host The host to connect to
+     * @param port The port to connect to
+     * @return a future completed with an open multiplexed connection, or exceptionally with an
+     *         IOException if a new connection cannot be established
+     */
+    public CompletableFuture<MultiplexedConnection> getConnectionAsync(String host, int port) {
+        if (closed) {
+            return CompletableFuture.failedFuture(new IOException("Connection pool is closed"));
+        }
+        Endpoint endpoint = endpoints.computeIfAbsent(host + ":" + port, key -> new Endpoint());
+
+        MultiplexedConnection leastLoaded = findLeastLoaded(endpoint.connections);
+        if (isUsable(leastLoaded, endpoint)) {
+            return CompletableFuture.completedFuture(leastLoaded);
+        }
+
+        synchronized (endpoint) {
+            // Another caller may have opened a connection while we waited for the lock
+            leastLoaded = findLeastLoaded(endpoint.connections);
+            if (isUsable(leastLoaded, endpoint)) {
+                return CompletableFuture.completedFuture(leastLoaded);
+            }
+            if (endpoint.opening != null) {
+                return leastLoaded != null ? CompletableFuture.completedFuture(leastLoaded) : endpoint.opening;
+            }
+            CompletableFuture<MultiplexedConnection> opening = transport.connectAsync(host, port)
+                    .thenApply(handler -> {
+                        MultiplexedConnection connection = new MultiplexedConnection(handler);
+                        endpoint.connections.add(connection);
+                        logger.debug("Opened multiplexed connection {} of {} to {}:{}",
+                                endpoint.connections.size(), maxPerEndpoint, host, port);
+                        if (closed) {
+                            connection.close();
+                        }
+                        return connection;
+                    });
+            endpoint.opening = opening;
+            opening.whenComplete((connection, error) -> {
+                synchronized (endpoint) {
+                    if (endpoint.opening == opening) {
+                        endpoint.opening = null;
+                    }
+                }
+            });
+            return opening;
+        }
+    }
+
+    /**
+     * Closes all connections and stops the evictor. Calls still in flight fail.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        evictor.shutdownNow();
+        for (Endpoint endpoint : endpoints.values()) {
+            for (MultiplexedConnection connection : endpoint.connections) {
+                connection.close();
+            }
+        }
+        endpoints.clear();
+    }
+
+    private boolean isUsable(MultiplexedConnection connection, Endpoint endpoint) {
+        return connection != null && (connection.getInFlightCount() < maxInFlightPerConnection
+                || endpoint.connections.size() >= maxPerEndpoint);
+    }
+
+    private MultiplexedConnection findLeastLoaded(List<MultiplexedConnection> connections) {
+        MultiplexedConnection best = null;
+        for (MultiplexedConnection connection : connections) {
+            if (!connection.isOpen()) {
+                connections.remove(connection);
+                continue;
+            }
+            if (best == null || connection.getInFlightCount() < best.getInFlightCount()) {
+                best = connection;
+            }
+        }
+        return best;
+    }
+
+    private void evictIdleConnections() {
+        long now = System.currentTimeMillis();
+        for (Endpoint endpoint : endpoints.values()) {
+            for (MultiplexedConnection connection : endpoint.connections) {
+                boolean idle = connection.getInFlightCount() == 0 && connection.getStreamCount() == 0
+                        && now - connection.getLastActivity() > idleTimeoutMs;
+                if (idle || !connection.isOpen()) {
+                    endpoint.connections.remove(connection);
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * The connections to one host and port.
+     */
+    private static final class Endpoint {
+        private final List<MultiplexedConnection> connections = new CopyOnWriteArrayList<>();
+        // Guarded by the endpoint; the connection currently being opened, if any
+        private CompletableFuture<MultiplexedConnection> opening;
+    }
+}
@@ -0,0 +1,652 @@
+package com.rpc.lampcontrol.middleware.transport;
+
+import com.rpc.lampcontrol.middleware.common.Codec;
+import com.rpc.lampcontrol.middleware.common.Codecs;
+import com.rpc.lampcontrol.middleware.common.JsonSerializer;
+import com.rpc.lampcontrol.middleware.common.ObjectPool;
+import com.rpc.lampcontrol.middleware.common.OutputBuffer;
+import com.rpc.lampcontrol.middleware.protocol.ArgumentTypes;
+import com.rpc.lampcontrol.middleware.protocol.Message;
+import com.rpc.lampcontrol.middleware.protocol.MessageType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking connection driven by an {@link EventLoop}.
+ * The I/O thread only moves bytes and splits them into messages; decoding and the
+ * {@link MessageListener} run on a separate worker pool, so a slow listener never stalls
+ * other connections. Writes go straight to the socket when possible and are queued for
+ * the I/O thread otherwise.
+ * <p>
+ * On the server, the framing is detected from the first byte a peer sends: frames start with
+ * {@link FrameFormat#MAGIC}, anything else is treated as line-based JSON. Replies use the
+ * same framing, so older line-based clients keep working during the migration.
+ * Framed messages switch from JSON to the preferred codec once the peer advertises support
+ * for it (see {@link Codecs}). Client connections opened by
+ * {@link ClientTransport#connectAsync} fix their framing up front.
+ */
+public class NioConnectionHandler extends ConnectionHandler implements EventLoop.Handler {
+    private static final Logger logger = LoggerFactory.getLogger(NioConnectionHandler.class);
+    private static final int MAX_MESSAGE_SIZE = FrameFormat.MAX_PAYLOAD_SIZE;
+    // Bytes the peer has not taken yet beyond which the connection is closed, so a peer that
+    // stops reading cannot make this side buffer without bound; room for two maximum messages
+    static final int MAX_QUEUED_BYTES = 2 * (MAX_MESSAGE_SIZE + FrameFormat.HEADER_SIZE);
+    // Messages are encoded on the sending thread into a buffer borrowed for the call; a
+    // shared pool rather than a buffer per connection or per thread keeps memory bounded
+    // by the messages being sent at once, also when each runs on a virtual thread of its own
+    private static final ObjectPool<OutputBuffer> ENCODE_BUFFERS = new ObjectPool<>(64, OutputBuffer::new);
+
+    private final SocketChannel channel;
+    private final EventLoop eventLoop;
+    private final Executor workers;
+    private final ArgumentTypes argumentTypes;
+    private final AdmissionControl admission;
+    private final String remoteHost;
+    private final int remotePort;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Object writeLock = new Object();
+    private final Queue<ByteBuffer> writeQueue = new ArrayDeque<>();
+    // Guarded by writeLock: the bytes in writeQueue, counting each buffer whole until it is sent
+    private long queuedBytes;
+    private int maxQueuedBytes = MAX_QUEUED_BYTES;
+    // Guarded by writeLock; run on the workers once writeQueue has been flushed
+    private final List<Runnable> writableTasks = new ArrayList<>();
+    private boolean writeInterest = false;
+    private volatile MessageListener listener;
+    private volatile long lastActivity = System.currentTimeMillis();
+    private volatile boolean keepOpen = false;
+    private final Codec preferredCodec;
+    private volatile Framing framing;
+    private volatile Codec outboundCodec = Codecs.JSON;
+
+    // Only touched on the event loop thread
+    private SelectionKey key;
+    private ByteBuffer partial;
+
+    /**
+     * Creates a handler for an accepted channel. The channel is not read from until
+     * {@link #register()} is called.
+     *
+     * @param channel The connected, non-blocking channel
+     * @param eventLoop The loop that performs I/O for this channel
+     * @param workers The pool that decodes messages and runs the listener
+     * @param argumentTypes The types to bind request arguments to, or null for plain values
+     * @param admission Decides which messages are shed under load, or null to handle all
+     * @throws IOException if the remote address cannot be determined
+     */
+    NioConnectionHandler(SocketChannel channel, EventLoop eventLoop, Executor workers,
+                         ArgumentTypes argumentTypes, AdmissionControl admission) throws IOException {
+        this(channel, eventLoop, workers, argumentTypes, admission, null, Codecs.BINARY);
+    }
+
+    /**
+     * Creates a handler for a connected channel.
+     *
+     * @param channel The connected, non-blocking channel
+     * @param eventLoop The loop that performs I/O for this channel
+     * @param workers The pool that decodes messages and runs the listener
+     * @param argumentTypes The types to bind request arguments to, or null for plain values
+     * @param admission Decides which messages are shed under load, or null to handle all
+     * @param framing The framing to use, or null to detect it from the first byte received
+     * @param preferredCodec The codec to switch to once the peer supports it
+     * @throws IOException if the remote address cannot be determined
+     */
+    NioConnectionHandler(SocketChannel channel, EventLoop eventLoop, Executor workers,
+                         ArgumentTypes argumentTypes, AdmissionControl admission, Framing framing,
+                         Codec preferredCodec) throws IOException {
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+        this.workers = workers;
+        this.argumentTypes = argumentTypes;
+        this.admission = admission;
+        this.framing = framing;
+        this.preferredCodec = framing == Framing.LINE ? Codecs.JSON : preferredCodec;
+        InetSocketAddress remote = (InetSocketAddress) channel.getRemoteAddress();
+        this.remoteHost = remote.getAddress().getHostAddress();
+        this.remotePort = remote.getPort();
+        logger.info("Connection established with {}:{}", remoteHost, remotePort);
+    }
+
+    /**
+     * Starts reading from the channel.
+     */
+    void register() {
+        eventLoop.register(channel, SelectionKey.OP_READ, this, registeredKey -> {
+            key = registeredKey;
+            updateInterest();
+        });
+    }
+
+    /**
+     * Takes over a key the channel is already registered with, such as the one used to finish
+     * connecting, and starts reading. Must be called on the event loop thread.
+     *
+     * @param registeredKey The channel's key with this handler's event loop
+     */
+    void adopt(SelectionKey registeredKey) {
+        key = registeredKey;
+        key.attach(this);
+        updateInterest();
+    }
+
+    @Override
+    public void setMessageListener(MessageListener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void sendMessage(Message message) throws ConnectionException {
+        boolean line = framing == Framing.LINE;
+        Codec codec = line ? Codecs.JSON : outboundCodec;
+        OutputBuffer encoded = ENCODE_BUFFERS.acquire();
+        encoded.reset();
+        try {
+            message.setVersion(line ? Codecs.JSON.getProtocolVersion() : preferredCodec.getProtocolVersion());
+            int payloadOffset;
+            if (line) {
+                payloadOffset = 0;
+                codec.encode(message, encoded);
+                encoded.write('\n');
+            } else {
+                MessageType type = MessageType.fromName(message.getType());
+                if (type == null) {
+                    throw new ConnectionException("Unknown message type: " + message.getType());
+                }
+                payloadOffset = FrameFormat.HEADER_SIZE;
+                FrameFormat.encodeFrame(message, type, codec, encoded);
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("Sending message: {}", describe(codec, encoded.array(), payloadOffset,
+                        encoded.size() - payloadOffset - (line ? 1 : 0)));
+            }
+            write(encoded);
+        } catch (Codec.CodecException e) {
+            throw new ConnectionException("Failed to serialize message for sending", e);
+        } finally {
+            // write() copies whatever the socket did not take, so the buffer is free again
+            ENCODE_BUFFERS.release(encoded);
+        }
+    }
+
+    @Override
+    public boolean isWritable() {
+        synchronized (writeLock) {
+            return writeQueue.isEmpty();
+        }
+    }
+
+    @Override
+    public void whenWritable(Runnable task) {
+        synchronized (writeLock) {
+            if (!writeQueue.isEmpty()) {
+                if (!closed.get()) {
+                    writableTasks.add(task);
+                }
+                return;
+            }
+        }
+        task.run();
+    }
+
+    /**
+     * Sets how many unsent bytes may be queued before the connection is closed.
+     */
+    void setMaxQueuedBytes(int maxQueuedBytes) {
+        synchronized (writeLock) {
+            this.maxQueuedBytes = maxQueuedBytes;
+        }
+    }
+
+    @Override
+    public void setKeepOpen(boolean keepOpen) {
+        this.keepOpen = keepOpen;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed.get() && channel.isOpen();
+    }
+
+    /**
+     * Closes the connection and tells the listener. Never called with writeLock held: the
+     * listener may take locks of its own, such as the registry's, whose holders send to this
+     * connection, and fail futures whose callbacks write to other connections.
+     */
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            try {
+                channel.close();
+                logger.info("Connection closed with {}:{}", remoteHost, remotePort);
+            } catch (IOException e) {
+                logger.error("Error closing connection: {}", e.getMessage());
+            }
+            synchronized (writeLock) {
+                ByteBuffer buffer;
+                while ((buffer = writeQueue.poll()) != null) {
+                    BufferPool.shared().release(buffer);
+                }
+                queuedBytes = 0;
+                writableTasks.clear();
+            }
+            MessageListener current = listener;
+            if (current != null) {
+                current.onClose(this);
+            }
+        }
+    }
+
+    @Override
+    public String getRemoteHost() {
+        return remoteHost;
+    }
+
+    @Override
+    public int getRemotePort() {
+        return remotePort;
+    }
+
+    @Override
+    public void handleSelection(SelectionKey selectedKey, ByteBuffer readBuffer) {
+        // The key is cancelled if another thread closed the connection since the select
+        if (selectedKey.isValid() && selectedKey.isReadable()) {
+            read(readBuffer);
+        }
+        if (selectedKey.isValid() && selectedKey.isWritable()) {
+            flush();
+        }
+    }
+
+    @Override
+    public boolean isIdle(long now, long idleTimeoutMs) {
+        if (keepOpen || inFlight.get() > 0) {
+            return false;
+        }
+        synchronized (writeLock) {
+            if (!writeQueue.isEmpty()) {
+                return false;
+            }
+        }
+        return now - lastActivity > idleTimeoutMs;
+    }
+
+    private void read(ByteBuffer readBuffer) {
+        try {
+            while (true) {
+                readBuffer.clear();
+                int count = channel.read(readBuffer);
+                if (count < 0) {
+                    logger.debug("Peer {}:{} closed the connection", remoteHost, remotePort);
+                    close();
+                    return;
+                }
+                if (count == 0) {
+                    return;
+                }
+                lastActivity = System.currentTimeMillis();
+                readBuffer.flip();
+                if (!processInbound(readBuffer) || count < readBuffer.capacity()) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            logger.debug("Error reading from {}:{}: {}", remoteHost, remotePort, e.getMessage());
+            close();
+        }
+    }
+
+    /**
+     * Splits received bytes into messages, keeping any incomplete tail for the next read.
+     *
+     * @return false if the connection was closed because of a protocol violation
+     */
+    private boolean processInbound(ByteBuffer data) {
+        ByteBuffer source = data;
+        if (partial != null) {
+            partial = ensureCapacity(partial, data.remaining());
+            partial.put(data);
+            partial.flip();
+            source = partial;
+        }
+
+        if (framing == null) {
+            framing = source.get(source.position()) == FrameFormat.MAGIC ? Framing.LENGTH_PREFIXED : Framing.LINE;
+            logger.debug("Using {} framing for {}:{}", framing, remoteHost, remotePort);
+        }
+        boolean valid = framing == Framing.LINE ? extractLines(source) : extractFrames(source);
+        if (!valid) {
+            close();
+            return false;
+        }
+
+        if (!source.hasRemaining()) {
+            BufferPool.shared().release(partial);
+            partial = null;
+            return true;
+        }
+        if (source.remaining() > MAX_MESSAGE_SIZE + FrameFormat.HEADER_SIZE) {
+            logger.error("Message from {}:{} exceeds {} bytes, closing connection", remoteHost, remotePort, MAX_MESSAGE_SIZE);
+            close();
+            return false;
+        }
+        if (source == partial) {
+            partial.compact();
+        } else {
+            partial = BufferPool.shared().acquire(source.remaining() * 2);
+            partial.put(source);
+        }
+        return true;
+    }
+
+    private boolean extractLines(ByteBuffer source) {
+        int start = source.position();
+        for (int i = start; i < source.limit(); i++) {
+            if (source.get(i) == '\n') {
+                deliver(copyToPooled(source, start, i - start), i - start, null, Codecs.JSON);
+                start = i + 1;
+            }
+        }
+        source.position(start);
+        return true;
+    }
+
+    private boolean extractFrames(ByteBuffer source) {
+        int start = source.position();
+        while (source.limit() - start >= FrameFormat.HEADER_SIZE) {
+            int length;
+            try {
+                length = FrameFormat.readPayloadLength(source, start);
+            } catch (IllegalStateException e) {
+                logger.error("Malformed frame from {}:{}, closing connection: {}", remoteHost, remotePort, e.getMessage());
+                return false;
+            }
+            MessageType type = MessageType.fromCode(source.get(start + FrameFormat.TYPE_OFFSET) & 0xFF);
+            if (type == null) {
+                logger.error("Unknown message type code from {}:{}, closing connection", remoteHost, remotePort);
+                return false;
+            }
+            Codec codec = Codecs.forId(FrameFormat.codecId(source.get(start + FrameFormat.FLAGS_OFFSET)));
+            if (codec == null) {
+                logger.error("Unknown codec id from {}:{}, closing connection", remoteHost, remotePort);
+                return false;
+            }
+            if (source.limit() - start - FrameFormat.HEADER_SIZE < length) {
+                break;
+            }
+            deliver(copyToPooled(source, start + FrameFormat.HEADER_SIZE, length), length, type, codec);
+            start += FrameFormat.HEADER_SIZE + length;
+        }
+        source.position(start);
+        return true;
+    }
+
+    private static ByteBuffer copyToPooled(ByteBuffer source, int index, int length) {
+        // The read buffer is reused by the next selection, so payloads are copied before handing off
+        ByteBuffer payload = BufferPool.shared().acquire(length);
+        source.get(index, payload.array(), 0, length);
+        return payload;
+    }
+
+    /**
+     * Decodes a payload on the worker pool and hands it to the listener. Under admission
+     * control, a message rejected on arrival is decoded here, on the event loop, and one that
+     * waited too long for a worker is decoded there; both go to the listener as shed. Control
+     * messages bypass admission control (see {@link AdmissionControl#governs}); those of the
+     * line-delimited JSON protocol, whose type is only known once decoded, go through it but
+     * are handled even if rejected or shed, on a worker in either case.
+     *
+     * @param payload Pooled buffer holding the payload at offset 0, released after decoding
+     * @param length The payload length
+     * @param type The type from the frame header, or null to read it from the JSON payload
+     * @param codec The codec that encoded the payload
+     */
+    private void deliver(ByteBuffer payload, int length, MessageType type, Codec codec) {
+        long receivedAt = System.nanoTime();
+        AdmissionControl control = admission != null && (type == null || AdmissionControl.governs(type))
+                ? admission : null;
+        long admittedAt = control != null ? control.admit() : 0;
+        inFlight.incrementAndGet();
+        if (admittedAt == -1) {
+            handle(payload, length, type, codec, receivedAt, false);
+            return;
+        }
+        try {
+            workers.execute(() -> {
+                try {
+                    handle(payload, length, type, codec, receivedAt,
+                            control == null || control.start(admittedAt));
+                } finally {
+                    if (control != null) {
+                        control.finish();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            BufferPool.shared().release(payload);
+            inFlight.decrementAndGet();
+            if (control != null) {
+                control.abandon();
+            }
+            logger.warn("Worker pool rejected message from {}:{}, closing connection", remoteHost, remotePort);
+            close();
+        }
+    }
+
+    private void handle(ByteBuffer payload, int length, MessageType type, Codec codec, long receivedAt,
+                        boolean admitted) {
+        try {
+            Message message;
+            // Shed messages are only answered, so their arguments need not be bound
+            ArgumentTypes types = admitted ? argumentTypes : null;
+            try {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Received message: {}", describe(codec, payload.array(), 0, length));
+                }
+                message = type != null
+                        ? codec.decode(type, payload.array(), 0, length, types)
+                        : JsonSerializer.deserialize(payload.array(), 0, length, types);
+            } finally {
+                BufferPool.shared().release(payload);
+            }
+            // Time spent waiting for a worker counts against the sender's timeout
+            message.setReceivedAt(receivedAt);
+            if (type != null) {
+                negotiate(message);
+            }
+            if (!admitted && type == null && !AdmissionControl.governs(MessageType.fromName(message.getType()))) {
+                // A control message sent as line-delimited JSON; it could not be told apart before.
+                // One rejected on arrival was decoded on the event loop, which must not run it
+                if (eventLoop.inEventLoop()) {
+                    dispatchOnWorker(message);
+                    return;
+                }
+                admitted = true;
+            }
+            dispatch(message, admitted);
+        } catch (JsonSerializer.SerializationException | Codec.CodecException e) {
+            logger.error("Malformed message from {}:{}, closing connection: {}", remoteHost, remotePort, e.getMessage());
+            close();
+        } catch (RuntimeException e) {
+            logger.error("Error handling message from {}:{}: {}", remoteHost, remotePort, e.getMessage(), e);
+        } finally {
+            lastActivity = System.currentTimeMillis();
+            inFlight.decrementAndGet();
+        }
+    }
+
+    private void dispatch(Message message, boolean admitted) {
+        MessageListener current = listener;
+        if (current == null) {
+            logger.warn("No listener for message from {}:{}, dropping it", remoteHost, remotePort);
+        } else if (admitted) {
+            current.onMessage(this, message);
+        } else {
+            logger.debug("Shedding {} from {}:{}", message.getType(), remoteHost, remotePort);
+            current.onShed(this, message);
+        }
+    }
+
+    /**
+     * Hands an already decoded message to a worker, like an admitted one.
+     */
+    private void dispatchOnWorker(Message message) {
+        inFlight.incrementAndGet();
+        try {
+            workers.execute(() -> {
+                try {
+                    dispatch(message, true);
+                } catch (RuntimeException e) {
+                    logger.error("Error handling message from {}:{}: {}", remoteHost, remotePort, e.getMessage(), e);
+                } finally {
+                    lastActivity = System.currentTimeMillis();
+                    inFlight.decrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.decrementAndGet();
+            logger.warn("Worker pool rejected message from {}:{}, closing connection", remoteHost, remotePort);
+            close();
+        }
+    }
+
+    private void negotiate(Message message) {
+        if (outboundCodec == preferredCodec) {
+            return;
+        }
+        Codec codec = Codecs.negotiate(message.getVersion(), preferredCodec);
+        if (codec != outboundCodec) {
+            outboundCodec = codec;
+            logger.debug("Using {} codec with {}:{}", codec.getName(), remoteHost, remotePort);
+        }
+    }
+
+    private static String describe(Codec codec, byte[] data, int offset, int length) {
+        if (codec == Codecs.JSON) {
+            return new String(data, offset, length, StandardCharsets.UTF_8);
+        }
+        return length + " bytes (" + codec.getName() + ")";
+    }
+
+    /**
+     * Writes an encoded message. Only bytes the socket does not take right away are
+     * copied into a pooled buffer and queued, so the common case copies nothing. If the
+     * queue would grow beyond its limit, the peer is not keeping up and the connection is
+     * closed instead.
+     */
+    private void write(OutputBuffer encoded) throws ConnectionException {
+        if (closed.get()) {
+            throw new ConnectionClosedException("Connection is closed");
+        }
+        ConnectionException failure;
+        synchronized (writeLock) {
+            try {
+                ByteBuffer source = encoded.asByteBuffer();
+                // Write directly while nothing is queued; keeps ordering and avoids a loop round-trip
+                if (writeQueue.isEmpty()) {
+                    channel.write(source);
+                    if (!source.hasRemaining()) {
+                        lastActivity = System.currentTimeMillis();
+                        return;
+                    }
+                }
+                // A single message always fits, however large, as long as nothing else is queued
+                if (queuedBytes == 0 || queuedBytes + source.remaining() <= maxQueuedBytes) {
+                    ByteBuffer pending = BufferPool.shared().acquire(source.remaining());
+                    pending.put(source).flip();
+                    writeQueue.add(pending);
+                    queuedBytes += pending.limit();
+                    if (!writeInterest) {
+                        writeInterest = true;
+                        eventLoop.execute(this::updateInterest);
+                    }
+                    return;
+                }
+                logger.warn("{}:{} is not reading; {} bytes queued, closing connection", remoteHost, remotePort,
+                        queuedBytes);
+                failure = new ConnectionClosedException("Connection closed: peer is not reading its messages");
+            } catch (IOException e) {
+                failure = new ConnectionException("Error while sending message", e);
+            }
+        }
+        // Outside writeLock, as closing runs the listener (see close)
+        close();
+        throw failure;
+    }
+
+    private void flush() {
+        synchronized (writeLock) {
+            try {
+                ByteBuffer buffer;
+                while ((buffer = writeQueue.peek()) != null) {
+                    channel.write(buffer);
+                    if (buffer.hasRemaining()) {
+                        return;
+                    }
+                    queuedBytes -= buffer.limit();
+                    BufferPool.shared().release(writeQueue.poll());
+                }
+                lastActivity = System.currentTimeMillis();
+                writeInterest = false;
+                updateInterest();
+                runWritableTasks();
+                return;
+            } catch (IOException e) {
+                logger.debug("Error writing to {}:{}: {}", remoteHost, remotePort, e.getMessage());
+            }
+        }
+        close();
+    }
+
+    /**
+     * Hands the tasks waiting for the write queue to drain to the workers, keeping them off
+     * the event loop. Called with writeLock held.
+     */
+    private void runWritableTasks() {
+        for (Runnable task : writableTasks) {
+            try {
+                workers.execute(task);
+            } catch (RejectedExecutionException e) {
+                logger.warn("Worker pool rejected a task waiting for {}:{} to drain", remoteHost, remotePort);
+            }
+        }
+        writableTasks.clear();
+    }
+
+    private void updateInterest() {
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        boolean wantWrite;
+        synchronized (writeLock) {
+            wantWrite = writeInterest;
+        }
+        key.interestOps(wantWrite ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    private static ByteBuffer ensureCapacity(ByteBuffer buffer, int additional) {
+        if (buffer.remaining() >= additional) {
+            return buffer;
+        }
+        ByteBuffer larger = BufferPool.shared().acquire(Math.max(buffer.capacity() * 2, buffer.position() + additional));
+        buffer.flip();
+        larger.put(buffer);
+        BufferPool.shared().release(buffer);
+        return larger;
+    }
+}
@@ -1,24 +1,51 @@
 package com.rpc.lampcontrol.middleware.transport;
 
+import com.rpc.lampcontrol.middleware.protocol.ArgumentTypes;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
 /**
  * Server-side transport layer that handles incoming connections.
+ * Connections are multiplexed over a small, fixed number of selector-based I/O threads,
+ * so idle connections cost no threads. Message handling runs on a separate worker pool, a
+ * fixed number of platform threads by default, or a thread per message in another
+ * {@link ExecutionMode}. With an {@link AdmissionControl}, messages beyond its bound, or that
+ * waited too long for a worker, are shed instead of queued without limit.
  */
 public class ServerTransport {
     private static final Logger logger = LoggerFactory.getLogger(ServerTransport.class);
+    public static final int DEFAULT_IDLE_TIMEOUT_MS = 60_000;
+    public static final int DEFAULT_IO_THREADS =
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+    public static final int DEFAULT_WORKER_THREADS = Math.max(16, Runtime.getRuntime().availableProcessors() * 4);
+    private static final int ACCEPT_BACKLOG = 1024;
+
     private final int port;
-    private final ExecutorService executorService;
-    private ServerSocket serverSocket;
+    private final int idleTimeoutMs;
+    private final int ioThreads;
+    private final int workerThreads;
+    private final ExecutorService workers;
+    private final AtomicInteger nextEventLoop = new AtomicInteger();
+    private EventLoop[] eventLoops;
+    private ServerSocketChannel serverChannel;
+    private volatile int boundPort = -1;
     private volatile boolean running = false;
+    private volatile ArgumentTypes argumentTypes;
+    private volatile AdmissionControl admission;
 
     /**
      * Creates a new ServerTransport that will listen on a specific port.
@@ -26,26 +53,124 @@ public class ServerTransport {
      * @param port Port to listen on, or 0 for a system-assigned port
      */
     public ServerTransport(int port) {
+        this(port, DEFAULT_IDLE_TIMEOUT_MS);
+    }
+
+    /**
+     * Creates a new ServerTransport with a custom idle timeout for keep-alive connections.
+     * The timeout should be longer than the client pool's idle timeout so that clients
+     * normally retire connections before the server does.
+     *
+     * @param port Port to listen on, or 0 for a system-assigned port
+     * @param idleTimeoutMs Time in milliseconds a connection may stay idle before it is closed
+     */
+    public ServerTransport(int port, int idleTimeoutMs) {
+        this(port, idleTimeoutMs, DEFAULT_IO_THREADS, DEFAULT_WORKER_THREADS);
+    }
+
+    /**
+     * Creates a new ServerTransport that handles messages in the given execution mode.
+     *
+     * @param port Port to listen on, or 0 for a system-assigned port
+     * @param executionMode How message handling is run
+     */
+    public ServerTransport(int port, ExecutionMode executionMode) {
+        this(port, DEFAULT_IDLE_TIMEOUT_MS, DEFAULT_IO_THREADS, DEFAULT_WORKER_THREADS, executionMode);
+    }
+
+    /**
+     * Creates a new ServerTransport with explicit thread counts.
+     *
+     * @param port Port to listen on, or 0 for a system-assigned port
+     * @param idleTimeoutMs Time in milliseconds a connection may stay idle before it is closed
+     * @param ioThreads Number of selector threads performing network I/O
+     * @param workerThreads Number of threads decoding and handling messages
+     */
+    public ServerTransport(int port, int idleTimeoutMs, int ioThreads, int workerThreads) {
+        this(port, idleTimeoutMs, ioThreads, workerThreads, ExecutionMode.POOLED);
+    }
+
+    /**
+     * Creates a new ServerTransport with explicit thread counts and execution mode.
+     *
+     * @param port Port to listen on, or 0 for a system-assigned port
+     * @param idleTimeoutMs Time in milliseconds a connection may stay idle before it is closed
+     * @param ioThreads Number of selector threads performing network I/O
+     * @param workerThreads Number of threads decoding and handling messages in
+     *                      {@link ExecutionMode#POOLED}; ignored in the other modes
+     * @param executionMode How message handling is run
+     * @throws IllegalStateException if the running JVM does not support the execution mode
+     */
+    public ServerTransport(int port, int idleTimeoutMs, int ioThreads, int workerThreads,
+                           ExecutionMode executionMode) {
+        if (ioThreads < 1 || workerThreads < 1) {
+            throw new IllegalArgumentException("ioThreads and workerThreads must be at least 1");
+        }
         this.port = port;
-        this.executorService = Executors.newCachedThreadPool();
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.ioThreads = ioThreads;
+        // Only a pool limits how many messages run at once; the other modes start a thread each
+        this.workerThreads = executionMode == ExecutionMode.POOLED ? workerThreads : Integer.MAX_VALUE;
+        this.workers = executionMode.newExecutor("server-worker-", workerThreads);
+    }
+
+    /**
+     * Sets the argument types that incoming requests are decoded against, so their
+     * arguments arrive already bound to the parameter types of the called functions.
+     * Applies to connections accepted afterwards; call it before {@link #start}.
+     *
+     * @param argumentTypes The argument types of the functions served, or null for plain values
+     */
+    public void setArgumentTypes(ArgumentTypes argumentTypes) {
+        this.argumentTypes = argumentTypes;
+    }
+
+    /**
+     * Sets the admission control that bounds the messages waiting for or on a worker and sheds
+     * those that waited too long, handing them to the listener's
+     * {@link ConnectionHandler.MessageListener#onShed}. Applies to connections accepted
+     * afterwards; call it before {@link #start}. Without one, every message is handled.
+     *
+     * @param admission The admission control, or null to handle every message
+     */
+    public void setAdmissionControl(AdmissionControl admission) {
+        this.admission = admission;
+    }
+
+    /**
+     * Gets the admission control set with {@link #setAdmissionControl}.
+     *
+     * @return the admission control, or null if every message is handled
+     */
+    public AdmissionControl getAdmissionControl() {
+        return admission;
     }
 
     /**
      * Starts the server and begins accepting connections.
-     * Each connection is processed by the provided connection handler.
+     * Each connection is passed to the provided connection handler once, on a worker thread.
+     * The handler must not block on the connection; it registers a
+     * {@link ConnectionHandler.MessageListener}, which is then called for every incoming message.
      *
      * @param connectionHandler The handler for processing each new connection
      * @throws IOException if the server socket cannot be created
      */
     public void start(Consumer<ConnectionHandler> connectionHandler) throws IOException {
-        serverSocket = new ServerSocket(port);
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+        serverChannel.configureBlocking(false);
+        boundPort = ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+
+        eventLoops = new EventLoop[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            eventLoops[i] = new EventLoop("server-io-" + boundPort + "-" + i, idleTimeoutMs);
+        }
         running = true;
-        
-        int boundPort = serverSocket.getLocalPort();
-        logger.info("Server started on port {}", boundPort);
-        
-        // Start accepting connections in a separate thread
-        executorService.submit(() -> acceptConnections(connectionHandler));
+
+        // The first loop also accepts; accepting is cheap compared to reading and writing
+        eventLoops[0].register(serverChannel, SelectionKey.OP_ACCEPT, new Acceptor(connectionHandler), key -> { });
+        logger.info("Server started on port {} with {} I/O threads", boundPort, ioThreads);
     }
 
     /**
@@ -54,10 +179,27 @@ public class ServerTransport {
      * @return the bound port
      */
     public int getPort() {
-        if (serverSocket != null && serverSocket.isBound()) {
-            return serverSocket.getLocalPort();
-        }
-        return -1;
+        return boundPort;
+    }
+
+    /**
+     * Gets the worker pool that handles incoming messages, for handlers that split a message
+     * into work that can run in parallel. Tasks must not block waiting for each other.
+     *
+     * @return the worker pool
+     */
+    public Executor getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Gets how many messages the workers can handle at once.
+     *
+     * @return the pool size in {@link ExecutionMode#POOLED} mode, otherwise
+     *         {@link Integer#MAX_VALUE}, as each message gets a thread of its own
+     */
+    public int getWorkerThreads() {
+        return workerThreads;
     }
 
     /**
@@ -65,38 +207,92 @@ public class ServerTransport {
      */
     public void stop() {
         running = false;
-        if (serverSocket != null) {
+        if (serverChannel != null) {
             try {
-                serverSocket.close();
+                serverChannel.close();
                 logger.info("Server stopped");
             } catch (IOException e) {
                 logger.error("Error stopping server: {}", e.getMessage());
             }
         }
-        executorService.shutdown();
+        if (eventLoops != null) {
+            for (EventLoop eventLoop : eventLoops) {
+                eventLoop.shutdown();
+            }
+        }
+        workers.shutdown();
     }
 
-    private void acceptConnections(Consumer<ConnectionHandler> connectionHandler) {
-        while (running) {
+    private EventLoop nextEventLoop() {
+        return eventLoops[Math.floorMod(nextEventLoop.getAndIncrement(), eventLoops.length)];
+    }
+
+    /**
+     * Accepts pending connections and hands them to an event loop.
+     */
+    private class Acceptor implements EventLoop.Handler {
+        private final Consumer<ConnectionHandler> connectionHandler;
+
+        private Acceptor(Consumer<ConnectionHandler> connectionHandler) {
+            this.connectionHandler = connectionHandler;
+        }
+
+        @Override
+        public void handleSelection(SelectionKey key, ByteBuffer readBuffer) {
+            while (running) {
+                SocketChannel channel;
+                try {
+                    channel = serverChannel.accept();
+                } catch (IOException e) {
+                    logger.error("Error accepting connection: {}", e.getMessage());
+                    return;
+                }
+                if (channel == null) {
+                    return;
+                }
+                accept(channel);
+            }
+        }
+
+        private void accept(SocketChannel channel) {
+            NioConnectionHandler handler;
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                handler = new NioConnectionHandler(channel, nextEventLoop(), workers, argumentTypes, admission);
+            } catch (IOException e) {
+                logger.error("Error setting up connection: {}", e.getMessage());
+                closeQuietly(channel);
+                return;
+            }
+
             try {
-                Socket clientSocket = serverSocket.accept();
-                logger.info("Accepted connection from {}:{}", 
-                    clientSocket.getInetAddress().getHostAddress(), clientSocket.getPort());
-                
-                // Handle each connection in a separate thread
-                executorService.submit(() -> {
+                // Let the application attach its listener before the first byte is read
+                workers.execute(() -> {
                     try {
-                        ConnectionHandler handler = new ConnectionHandler(clientSocket);
                         connectionHandler.accept(handler);
-                    } catch (IOException e) {
+                        handler.register();
+                    } catch (RuntimeException e) {
                         logger.error("Error handling connection: {}", e.getMessage());
+                        handler.close();
                     }
                 });
+            } catch (RejectedExecutionException e) {
+                handler.close();
+            }
+        }
+
+        @Override
+        public void close() {
+            closeQuietly(serverChannel);
+        }
+
+        private void closeQuietly(Channel channel) {
+            try {
+                channel.close();
             } catch (IOException e) {
-                if (running) {
-                    logger.error("Error accepting connection: {}", e.getMessage());
-                }
+                logger.debug("Error closing channel: {}", e.getMessage());
             }
         }
     }
-}
\ No newline at end of file
+}
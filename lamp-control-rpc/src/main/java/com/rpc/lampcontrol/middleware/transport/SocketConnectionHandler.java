@@ -0,0 +1,425 @@
+package com.rpc.lampcontrol.middleware.transport;
+
+import com.rpc.lampcontrol.middleware.common.Codec;
+import com.rpc.lampcontrol.middleware.common.Codecs;
+import com.rpc.lampcontrol.middleware.common.JsonSerializer;
+import com.rpc.lampcontrol.middleware.common.OutputBuffer;
+import com.rpc.lampcontrol.middleware.protocol.Message;
+import com.rpc.lampcontrol.middleware.protocol.MessageType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Handles blocking socket-based communication for sending and receiving messages.
+ * Used on the client side, where a caller sends a request and then reads the reply.
+ * Messages are length-prefixed frames by default; line framing is available for older servers.
+ * Framed connections start out with JSON and switch to the preferred codec once the server
+ * advertises support for it (see {@link Codecs}).
+ */
+public class SocketConnectionHandler extends ConnectionHandler {
+    private static final Logger logger = LoggerFactory.getLogger(SocketConnectionHandler.class);
+    private static final int STREAM_BUFFER_SIZE = 8 * 1024;
+    private final Socket socket;
+    private final Framing framing;
+    private final Codec preferredCodec;
+    private volatile Codec outboundCodec = Codecs.JSON;
+    private final InputStream in;
+    private final OutputStream out;
+    private final BufferedReader lineReader;
+    private final byte[] header = new byte[FrameFormat.HEADER_SIZE];
+    // A lock rather than a monitor: writes block on the socket, which would pin a virtual thread
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // Guarded by writeLock; each message is encoded into it and written with a single call
+    private final OutputBuffer encodeBuffer = new OutputBuffer();
+    // Written under writeLock: messages handed to the socket in full
+    private volatile long messagesSent;
+
+    /**
+     * Creates a new SocketConnectionHandler with the given socket, using length-prefixed framing.
+     *
+     * @param socket The socket to handle
+     * @throws IOException if there's an error accessing the socket streams
+     */
+    public SocketConnectionHandler(Socket socket) throws IOException {
+        this(socket, Framing.LENGTH_PREFIXED);
+    }
+
+    /**
+     * Creates a new SocketConnectionHandler with the given socket and framing.
+     *
+     * @param socket The socket to handle
+     * @param framing How messages are delimited on this connection
+     * @throws IOException if there's an error accessing the socket streams
+     */
+    public SocketConnectionHandler(Socket socket, Framing framing) throws IOException {
+        this(socket, framing, Codecs.BINARY);
+    }
+
+    /**
+     * Creates a new SocketConnectionHandler with the given socket, framing and preferred codec.
+     * Line framing can only carry JSON, so the preferred codec is ignored for it.
+     *
+     * @param socket The socket to handle
+     * @param framing How messages are delimited on this connection
+     * @param preferredCodec The codec to switch to once the server supports it
+     * @throws IOException if there's an error accessing the socket streams
+     */
+    public SocketConnectionHandler(Socket socket, Framing framing, Codec preferredCodec) throws IOException {
+        this.socket = socket;
+        this.framing = framing;
+        this.preferredCodec = framing == Framing.LINE ? Codecs.JSON : preferredCodec;
+        this.in = new BufferedInputStream(socket.getInputStream(), STREAM_BUFFER_SIZE);
+        this.out = socket.getOutputStream();
+        this.lineReader = framing == Framing.LINE
+                ? new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))
+                : null;
+        logger.info("Connection established with {}:{}", socket.getInetAddress().getHostAddress(), socket.getPort());
+    }
+
+    /**
+     * Reads a raw message from the socket as a JSON string.
+     *
+     * @return The raw JSON message
+     * @throws IOException if there's an error reading
+     * @throws ConnectionException if the connection is closed
+     */
+    public String readRawMessage() throws IOException, ConnectionException {
+        String json;
+        if (framing == Framing.LINE) {
+            json = lineReader.readLine();
+            if (json == null) {
+                throw new ConnectionClosedException("Received null message, connection may be closed");
+            }
+        } else {
+            int length = readHeader();
+            if (FrameFormat.codecId(header[FrameFormat.FLAGS_OFFSET]) != Codecs.JSON.getId()) {
+                throw new ConnectionException("Received a frame that is not JSON-encoded");
+            }
+            byte[] payload = new byte[length];
+            readFully(payload, length);
+            json = new String(payload, StandardCharsets.UTF_8);
+        }
+        logger.debug("Received raw message: {}", json);
+        return json;
+    }
+
+    @Override
+    public void sendMessage(Message message) throws ConnectionException {
+        Codec codec = outboundCodec;
+        try {
+            message.setVersion(preferredCodec.getProtocolVersion());
+            writeLock.lock();
+            try {
+                encodeBuffer.reset();
+                int payloadOffset;
+                if (framing == Framing.LINE) {
+                    payloadOffset = 0;
+                    codec.encode(message, encodeBuffer);
+                    encodeBuffer.write('\n');
+                } else {
+                    payloadOffset = FrameFormat.HEADER_SIZE;
+                    FrameFormat.encodeFrame(message, messageType(message), codec, encodeBuffer);
+                }
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Sending message: {}", describe(codec, encodeBuffer.array(), payloadOffset,
+                            encodeBuffer.size() - payloadOffset - (framing == Framing.LINE ? 1 : 0)));
+                }
+                out.write(encodeBuffer.array(), 0, encodeBuffer.size());
+                out.flush();
+                messagesSent++;
+            } finally {
+                writeLock.unlock();
+            }
+        } catch (Codec.CodecException e) {
+            throw new ConnectionException("Failed to serialize message for sending", e);
+        } catch (IOException e) {
+            throw new ConnectionException("Error while sending message", e);
+        }
+    }
+
+    /**
+     * Gets how many messages were handed to the socket in full. A message whose write failed
+     * is not counted; the peer cannot have acted on it, as it never got all of it.
+     *
+     * @return the number of messages sent
+     */
+    long getMessagesSent() {
+        return messagesSent;
+    }
+
+    /**
+     * Receives a message of the specified type.
+     *
+     * @param messageClass The expected message class
+     * @param <T> Type parameter for the Message class
+     * @return The received message
+     * @throws ConnectionException if receiving fails or message is null
+     */
+    public <T extends Message> T receiveMessage(Class<T> messageClass) throws ConnectionException {
+        try {
+            if (framing == Framing.LINE) {
+                String json = lineReader.readLine();
+                if (json == null) {
+                    throw new ConnectionClosedException("Received null message, connection may be closed");
+                }
+
+                logger.debug("Received message: {}", json);
+                return JsonSerializer.deserialize(json, messageClass);
+            }
+            Message message = readFrame();
+            if (!messageClass.isInstance(message)) {
+                throw new ConnectionException("Expected " + messageClass.getSimpleName()
+                        + " but received " + message.getClass().getSimpleName());
+            }
+            return messageClass.cast(message);
+        } catch (IOException e) {
+            throw new ConnectionException("Error reading from socket", e);
+        } catch (JsonSerializer.SerializationException e) {
+            throw new ConnectionException("Failed to deserialize received message", e);
+        }
+    }
+
+    /**
+     * Receives the next message, whatever its type.
+     *
+     * @return The received message
+     * @throws ConnectionException if receiving fails or message is null
+     */
+    public Message receiveMessage() throws ConnectionException {
+        try {
+            if (framing == Framing.LINE) {
+                return JsonSerializer.deserialize(readRawMessage());
+            }
+            return readFrame();
+        } catch (IOException e) {
+            throw new ConnectionException("Error reading from socket", e);
+        } catch (JsonSerializer.SerializationException e) {
+            throw new ConnectionException("Failed to deserialize received message", e);
+        }
+    }
+
+    /**
+     * Starts a reader thread that delivers every incoming message to the listener
+     * until the connection is closed. The reader waits for messages without a timeout.
+     *
+     * @param listener The listener for incoming messages
+     */
+    @Override
+    public void setMessageListener(MessageListener listener) {
+        try {
+            socket.setSoTimeout(0);
+        } catch (IOException e) {
+            logger.debug("Could not clear read timeout for {}:{}: {}", getRemoteHost(), getRemotePort(), e.getMessage());
+        }
+        Thread reader = new Thread(() -> {
+            try {
+                while (isOpen()) {
+                    listener.onMessage(this, receiveMessage());
+                }
+            } catch (ConnectionException e) {
+                logger.debug("Reader for {}:{} stopped: {}", getRemoteHost(), getRemotePort(), e.getMessage());
+            } finally {
+                close();
+                listener.onClose(this);
+            }
+        }, "connection-reader-" + getRemoteHost() + ":" + getRemotePort());
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Sets how long a read may block before it fails with a timeout.
+     *
+     * @param timeoutMs The read timeout in milliseconds, or 0 to block indefinitely
+     * @throws ConnectionException if the socket option cannot be set
+     */
+    public void setReadTimeout(int timeoutMs) throws ConnectionException {
+        try {
+            socket.setSoTimeout(timeoutMs);
+        } catch (IOException e) {
+            throw new ConnectionException("Failed to set read timeout", e);
+        }
+    }
+
+    /**
+     * Checks whether the underlying socket is still usable for both reading and writing.
+     * This is a cheap local check; it does not detect a peer that closed the connection.
+     *
+     * @return true if the socket is connected and neither side has been shut down
+     */
+    @Override
+    public boolean isOpen() {
+        return socket.isConnected() && !socket.isClosed()
+                && !socket.isInputShutdown() && !socket.isOutputShutdown();
+    }
+
+    /**
+     * Probes an idle connection to find out whether the peer has closed it.
+     * Reads with a short timeout: an end-of-stream or unexpected data means the
+     * connection must not be reused, while a timeout means it is still alive.
+     *
+     * @param probeTimeoutMs How long to wait for the peer in milliseconds
+     * @return true if the connection can be reused
+     */
+    public boolean validate(int probeTimeoutMs) {
+        if (!isOpen()) {
+            return false;
+        }
+        try {
+            int originalTimeout = socket.getSoTimeout();
+            socket.setSoTimeout(probeTimeoutMs);
+            try {
+                // Either end-of-stream or stale data: idle connections must not have pending input
+                if (lineReader != null) {
+                    lineReader.read();
+                } else {
+                    in.read();
+                }
+                return false;
+            } catch (SocketTimeoutException e) {
+                return true;
+            } finally {
+                socket.setSoTimeout(originalTimeout);
+            }
+        } catch (IOException e) {
+            logger.debug("Validation of connection to {}:{} failed: {}", getRemoteHost(), getRemotePort(), e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Closes the connection.
+     */
+    @Override
+    public void close() {
+        try {
+            socket.close();
+            logger.info("Connection closed with {}:{}", socket.getInetAddress().getHostAddress(), socket.getPort());
+        } catch (IOException e) {
+            logger.error("Error closing connection: {}", e.getMessage());
+        }
+    }
+
+    @Override
+    public String getRemoteHost() {
+        return socket.getInetAddress().getHostAddress();
+    }
+
+    @Override
+    public int getRemotePort() {
+        return socket.getPort();
+    }
+
+    /**
+     * Gets the framing used on this connection.
+     *
+     * @return the framing
+     */
+    public Framing getFraming() {
+        return framing;
+    }
+
+    /**
+     * Gets the codec currently used for outgoing messages.
+     *
+     * @return the outbound codec
+     */
+    public Codec getCodec() {
+        return outboundCodec;
+    }
+
+    private Message readFrame() throws IOException, ConnectionException {
+        int length = readHeader();
+        MessageType type = MessageType.fromCode(header[FrameFormat.TYPE_OFFSET] & 0xFF);
+        if (type == null) {
+            throw new ConnectionException("Unknown message type code: " + (header[FrameFormat.TYPE_OFFSET] & 0xFF));
+        }
+        Codec codec = Codecs.forId(FrameFormat.codecId(header[FrameFormat.FLAGS_OFFSET]));
+        if (codec == null) {
+            throw new ConnectionException("Unknown codec id: " + FrameFormat.codecId(header[FrameFormat.FLAGS_OFFSET]));
+        }
+        // Decode straight from a pooled buffer; the payload never becomes a String
+        ByteBuffer payload = BufferPool.shared().acquire(length);
+        Message message;
+        try {
+            readFully(payload.array(), length);
+            if (logger.isDebugEnabled()) {
+                logger.debug("Received message: {}", describe(codec, payload.array(), 0, length));
+            }
+            message = codec.decode(type, payload.array(), 0, length);
+        } catch (Codec.CodecException e) {
+            throw new ConnectionException("Failed to decode received message", e);
+        } finally {
+            BufferPool.shared().release(payload);
+        }
+        negotiate(message);
+        return message;
+    }
+
+    private void negotiate(Message message) {
+        if (outboundCodec == preferredCodec) {
+            return;
+        }
+        Codec codec = Codecs.negotiate(message.getVersion(), preferredCodec);
+        if (codec != outboundCodec) {
+            outboundCodec = codec;
+            logger.debug("Using {} codec with {}:{}", codec.getName(), getRemoteHost(), getRemotePort());
+        }
+    }
+
+    private static String describe(Codec codec, byte[] data, int offset, int length) {
+        if (codec == Codecs.JSON) {
+            return new String(data, offset, length, StandardCharsets.UTF_8);
+        }
+        return length + " bytes (" + codec.getName() + ")";
+    }
+
+    private int readHeader() throws IOException, ConnectionException {
+        int first = in.read();
+        if (first < 0) {
+            throw new ConnectionClosedException("Received null message, connection may be closed");
+        }
+        header[0] = (byte) first;
+        readFully(header, 1, FrameFormat.HEADER_SIZE - 1);
+        try {
+            return FrameFormat.readPayloadLength(header, 0);
+        } catch (IllegalStateException e) {
+            throw new ConnectionException("Malformed frame: " + e.getMessage());
+        }
+    }
+
+    private void readFully(byte[] target, int length) throws IOException, ConnectionException {
+        readFully(target, 0, length);
+    }
+
+    private void readFully(byte[] target, int offset, int length) throws IOException, ConnectionException {
+        int read = 0;
+        while (read < length) {
+            int count = in.read(target, offset + read, length - read);
+            if (count < 0) {
+                throw new ConnectionException("Connection closed in the middle of a frame");
+            }
+            read += count;
+        }
+    }
+
+    private static MessageType messageType(Message message) throws ConnectionException {
+        MessageType type = MessageType.fromName(message.getType());
+        if (type == null) {
+            throw new ConnectionException("Unknown message type: " + message.getType());
+        }
+        return type;
+    }
+}
@@ -0,0 +1,321 @@
+package com.rpc.lampcontrol.middleware.common;
+
+import com.rpc.lampcontrol.middleware.protocol.ArgumentTypes;
+import com.rpc.lampcontrol.middleware.protocol.BatchRequest;
+import com.rpc.lampcontrol.middleware.protocol.BatchResponse;
+import com.rpc.lampcontrol.middleware.protocol.CancelRequest;
+import com.rpc.lampcontrol.middleware.protocol.Endpoint;
+import com.rpc.lampcontrol.middleware.protocol.ListRequest;
+import com.rpc.lampcontrol.middleware.protocol.ListResponse;
+import com.rpc.lampcontrol.middleware.protocol.LookupRequest;
+import com.rpc.lampcontrol.middleware.protocol.LookupResponse;
+import com.rpc.lampcontrol.middleware.protocol.Message;
+import com.rpc.lampcontrol.middleware.protocol.MessageType;
+import com.rpc.lampcontrol.middleware.protocol.PingRequest;
+import com.rpc.lampcontrol.middleware.protocol.PingResponse;
+import com.rpc.lampcontrol.middleware.protocol.RegisterRequest;
+import com.rpc.lampcontrol.middleware.protocol.RegisterResponse;
+import com.rpc.lampcontrol.middleware.protocol.RpcRequest;
+import com.rpc.lampcontrol.middleware.protocol.RpcResponse;
+import com.rpc.lampcontrol.middleware.protocol.ServiceChange;
+import com.rpc.lampcontrol.middleware.protocol.StreamEvent;
+import com.rpc.lampcontrol.middleware.protocol.SubscribeRequest;
+import com.rpc.lampcontrol.middleware.protocol.UnsubscribeRequest;
+import com.rpc.lampcontrol.middleware.protocol.WatchEvent;
+import com.rpc.lampcontrol.middleware.protocol.WatchRequest;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Type;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for the binary codec and codec negotiation.
+ */
+public class BinaryCodecTest {
+    private final Codec codec = Codecs.BINARY;
+
+    @Test
+    public void roundTripsRegistryMessages() throws Exception {
+        RegisterRequest register = new RegisterRequest("toggle", "10.0.0.1", 9000);
+        RegisterRequest decoded = assertInstanceOf(RegisterRequest.class, roundTrip(register));
+        assertEquals("toggle", decoded.getFunctionName());
+        assertEquals("10.0.0.1", decoded.getHost());
+        assertEquals(9000, decoded.getPort());
+        assertEquals(register.getTraceId(), decoded.getTraceId());
+        assertEquals(BinaryCodec.PROTOCOL_VERSION, decoded.getVersion());
+
+        RegisterResponse registered = RegisterResponse.success("Function 'toggle' registered successfully");
+        registered.setLeaseId(1L << 40);
+        registered.setLeaseTtlMs(10_000);
+        registered.setRevision((1L << 40) + 7);
+        RegisterResponse decodedRegistered = assertInstanceOf(RegisterResponse.class, roundTrip(registered));
+        assertTrue(decodedRegistered.isSuccess());
+        assertEquals(1L << 40, decodedRegistered.getLeaseId());
+        assertEquals(10_000, decodedRegistered.getLeaseTtlMs());
+        assertEquals((1L << 40) + 7, decodedRegistered.getRevision());
+        assertTrue(assertInstanceOf(RegisterResponse.class,
+                roundTrip(RegisterResponse.unavailable("Registry leader unavailable"))).isUnavailable());
+
+        LookupResponse error = LookupResponse.error("Function 'x' not found");
+        error.setTraceId("custom-trace");
+        LookupResponse decodedError = assertInstanceOf(LookupResponse.class, roundTrip(error));
+        assertEquals("error", decodedError.getStatus());
+        assertEquals("Function 'x' not found", decodedError.getErrorMessage());
+        assertEquals("custom-trace", decodedError.getTraceId());
+        assertNull(decodedError.getHost());
+
+        LookupResponse found = LookupResponse.success(List.of(new Endpoint("10.0.0.1", 9000), new Endpoint("10.0.0.2", 9001)));
+        LookupResponse decodedFound = assertInstanceOf(LookupResponse.class, roundTrip(found));
+        assertEquals(found.getEndpoints(), decodedFound.getEndpoints());
+        assertEquals("10.0.0.1", decodedFound.getHost());
+        assertEquals(9000, decodedFound.getPort());
+        assertNull(decodedFound.getFunctions());
+    }
+
+    @Test
+    public void roundTripsBulkRegistrationsLookupsAndListings() throws Exception {
+        RegisterRequest register = new RegisterRequest("toggle", "10.0.0.1", 9000);
+        register.setFunctionNames(List.of("toggle", "isOn"));
+        assertEquals(List.of("toggle", "isOn"),
+                assertInstanceOf(RegisterRequest.class, roundTrip(register)).getFunctionNames());
+        assertNull(assertInstanceOf(RegisterRequest.class,
+                roundTrip(new RegisterRequest("toggle", "10.0.0.1", 9000))).getFunctionNames());
+
+        LookupRequest lookup = new LookupRequest("toggle");
+        lookup.setFunctionNames(List.of("toggle", "missing"));
+        assertEquals(List.of("toggle", "missing"),
+                assertInstanceOf(LookupRequest.class, roundTrip(lookup)).getFunctionNames());
+
+        Map<String, List<Endpoint>> functions = new LinkedHashMap<>();
+        functions.put("toggle", List.of(new Endpoint("10.0.0.1", 9000), new Endpoint("10.0.0.2", 9001)));
+        functions.put("isOn", List.of(new Endpoint("10.0.0.1", 9000)));
+        LookupResponse found = new LookupResponse();
+        found.setFunctions(functions);
+        for (Codec each : List.of(Codecs.BINARY, Codecs.JSON)) {
+            byte[] payload = each.encode(found);
+            LookupResponse decoded = assertInstanceOf(LookupResponse.class,
+                    each.decode(MessageType.LOOKUP_RESPONSE, payload, 0, payload.length));
+            assertTrue(decoded.isSuccess());
+            assertEquals(functions, decoded.getFunctions());
+            assertEquals(List.of("toggle", "isOn"), List.copyOf(decoded.getFunctions().keySet()));
+        }
+
+        ListRequest list = assertInstanceOf(ListRequest.class, roundTrip(new ListRequest("building7/", "building7/1", 50, 42)));
+        assertEquals("building7/1", list.getStartAfter());
+        assertEquals(42, list.getRevision());
+        ListResponse page = new ListResponse();
+        page.setRevision(42);
+        page.setMore(true);
+        page.setFunctions(functions);
+        ListResponse decodedPage = assertInstanceOf(ListResponse.class, roundTrip(page));
+        assertTrue(decodedPage.isMore());
+        assertEquals(functions, decodedPage.getFunctions());
+    }
+
+    @Test
+    public void decodesArgumentsAndResultsLikeJson() throws Exception {
+        Map<String, Object> nested = new LinkedHashMap<>();
+        nested.put("level", 3);
+        nested.put("tags", List.of("a", "b"));
+        RpcRequest request = new RpcRequest("set", Arrays.asList(
+                1, 5_000_000_000L, 7L, 2.5, true, null, "text", nested, new int[]{1, 2}));
+        request.setTimeoutMs(1500);
+
+        RpcRequest viaBinary = assertInstanceOf(RpcRequest.class, roundTrip(request));
+        RpcRequest viaJson = assertInstanceOf(RpcRequest.class, Codecs.JSON.decode(MessageType.REQUEST,
+                Codecs.JSON.encode(request), 0, Codecs.JSON.encode(request).length));
+        assertEquals(viaJson.getArguments(), viaBinary.getArguments());
+        assertEquals(1500, viaBinary.getTimeoutMs());
+        assertEquals(1500, viaJson.getTimeoutMs());
+
+        RpcResponse response = assertInstanceOf(RpcResponse.class, roundTrip(RpcResponse.success("Lamp is ON")));
+        assertTrue(response.isSuccess());
+        assertEquals("Lamp is ON", response.getResult());
+    }
+
+    @Test
+    public void bindsArgumentsToDeclaredTypes() throws Exception {
+        Map<String, Object> color = new LinkedHashMap<>();
+        color.put("red", 255);
+        color.put("green", 160);
+        ArgumentTypes argumentTypes = (functionName, count) -> new Type[]{Color.class, null};
+        RpcRequest request = new RpcRequest("paint", Arrays.asList(color, 40));
+        Map<String, Object> invalid = new LinkedHashMap<>();
+        invalid.put("red", "bright");
+        RpcRequest invalidRequest = new RpcRequest("paint", Arrays.asList(invalid, 40));
+
+        for (Codec each : List.of(Codecs.JSON, Codecs.BINARY)) {
+            byte[] payload = each.encode(request);
+            RpcRequest decoded = assertInstanceOf(RpcRequest.class,
+                    each.decode(MessageType.REQUEST, payload, 0, payload.length, argumentTypes));
+            Color bound = assertInstanceOf(Color.class, decoded.getArguments().get(0));
+            assertEquals(255, bound.red);
+            assertEquals(160, bound.green);
+            assertEquals(40, decoded.getArguments().get(1));
+            assertNull(decoded.getArgumentError());
+
+            // A value that does not fit is reported on the request instead of failing the frame
+            byte[] invalidPayload = each.encode(invalidRequest);
+            RpcRequest rejected = assertInstanceOf(RpcRequest.class,
+                    each.decode(MessageType.REQUEST, invalidPayload, 0, invalidPayload.length, argumentTypes));
+            assertTrue(rejected.getArgumentError().startsWith("Argument 0"));
+            assertEquals(40, rejected.getArguments().get(1));
+        }
+    }
+
+    @Test
+    public void roundTripsBatchesWithBothCodecs() throws Exception {
+        Map<String, Object> color = new LinkedHashMap<>();
+        color.put("red", 255);
+        ArgumentTypes argumentTypes = (functionName, count) ->
+                functionName.equals("paint") ? new Type[]{Color.class} : null;
+        BatchRequest batch = new BatchRequest(Arrays.asList(
+                new RpcRequest("toggle"), new RpcRequest("paint", Arrays.asList(color))));
+        batch.setTimeoutMs(2500);
+        BatchResponse replies = new BatchResponse(Arrays.asList(
+                RpcResponse.success(true), RpcResponse.error("Function 'paint' not found")));
+
+        for (Codec each : List.of(Codecs.JSON, Codecs.BINARY)) {
+            byte[] payload = each.encode(batch);
+            BatchRequest decoded = assertInstanceOf(BatchRequest.class,
+                    each.decode(MessageType.BATCH_REQUEST, payload, 0, payload.length, argumentTypes));
+            assertEquals(2, decoded.getRequests().size());
+            assertEquals(2500, decoded.getTimeoutMs());
+            assertEquals(batch.getRequests().get(0).getTraceId(), decoded.getRequests().get(0).getTraceId());
+            assertEquals("toggle", decoded.getRequests().get(0).getFunctionName());
+            assertEquals(255, assertInstanceOf(Color.class, decoded.getRequests().get(1).getArguments().get(0)).red);
+
+            payload = each.encode(replies);
+            BatchResponse decodedReplies = assertInstanceOf(BatchResponse.class,
+                    each.decode(MessageType.BATCH_RESPONSE, payload, 0, payload.length));
+            assertEquals(true, decodedReplies.getResponses().get(0).getResult());
+            assertEquals("Function 'paint' not found", decodedReplies.getResponses().get(1).getErrorMessage());
+        }
+    }
+
+    @Test
+    public void roundTripsSubscriptionsEventsAndCancellationsWithBothCodecs() throws Exception {
+        SubscribeRequest subscribe = new SubscribeRequest("lampState");
+        StreamEvent event = new StreamEvent("lampState", "Main Lamp", 42, true);
+        event.setTraceId(subscribe.getTraceId());
+
+        for (Codec each : List.of(Codecs.JSON, Codecs.BINARY)) {
+            byte[] payload = each.encode(subscribe);
+            SubscribeRequest decoded = assertInstanceOf(SubscribeRequest.class,
+                    each.decode(MessageType.SUBSCRIBE, payload, 0, payload.length));
+            assertEquals(subscribe.getTraceId(), decoded.getTraceId());
+            assertEquals("lampState", decoded.getTopic());
+
+            payload = each.encode(new UnsubscribeRequest(subscribe.getTraceId()));
+            assertEquals(subscribe.getTraceId(), assertInstanceOf(UnsubscribeRequest.class,
+                    each.decode(MessageType.UNSUBSCRIBE, payload, 0, payload.length)).getSubscriptionId());
+
+            payload = each.encode(new CancelRequest(subscribe.getTraceId()));
+            assertEquals(subscribe.getTraceId(), assertInstanceOf(CancelRequest.class,
+                    each.decode(MessageType.CANCEL, payload, 0, payload.length)).getRequestId());
+
+            payload = each.encode(event);
+            StreamEvent decodedEvent = assertInstanceOf(StreamEvent.class,
+                    each.decode(MessageType.EVENT, payload, 0, payload.length));
+            assertEquals(subscribe.getTraceId(), decodedEvent.getTraceId());
+            assertEquals("Main Lamp", decodedEvent.getKey());
+            assertEquals(42, decodedEvent.getSequence());
+            assertEquals(true, decodedEvent.getValue());
+        }
+    }
+
+    @Test
+    public void roundTripsPingsWithBothCodecs() throws Exception {
+        PingRequest ping = new PingRequest();
+        PingResponse refused = PingResponse.error("Server overloaded");
+        refused.setTraceId(ping.getTraceId());
+
+        for (Codec each : List.of(Codecs.JSON, Codecs.BINARY)) {
+            byte[] payload = each.encode(ping);
+            assertEquals(ping.getTraceId(), assertInstanceOf(PingRequest.class,
+                    each.decode(MessageType.PING, payload, 0, payload.length)).getTraceId());
+
+            payload = each.encode(PingResponse.success());
+            assertTrue(assertInstanceOf(PingResponse.class,
+                    each.decode(MessageType.PING_RESPONSE, payload, 0, payload.length)).isSuccess());
+
+            payload = each.encode(refused);
+            PingResponse decodedRefused = assertInstanceOf(PingResponse.class,
+                    each.decode(MessageType.PING_RESPONSE, payload, 0, payload.length));
+            assertEquals(ping.getTraceId(), decodedRefused.getTraceId());
+            assertEquals("error", decodedRefused.getStatus());
+            assertEquals("Server overloaded", decodedRefused.getMessage());
+        }
+    }
+
+    @Test
+    public void roundTripsWatchesWithBothCodecs() throws Exception {
+        WatchRequest watch = new WatchRequest("lamp.", true, 1L << 40);
+        WatchEvent event = new WatchEvent(3, (1L << 40) + 2, false, List.of(
+                new ServiceChange((1L << 40) + 1, ServiceChange.ADD, "lamp.toggle", "host-1", 9000),
+                new ServiceChange((1L << 40) + 2, ServiceChange.REMOVE, "lamp.isOn", "host-2", 9001)));
+        event.setTraceId(watch.getTraceId());
+
+        for (Codec each : List.of(Codecs.JSON, Codecs.BINARY)) {
+            byte[] payload = each.encode(watch);
+            WatchRequest decoded = assertInstanceOf(WatchRequest.class,
+                    each.decode(MessageType.WATCH, payload, 0, payload.length));
+            assertEquals("lamp.", decoded.getKey());
+            assertTrue(decoded.isPrefix());
+            assertEquals(1L << 40, decoded.getFromRevision());
+
+            payload = each.encode(event);
+            WatchEvent decodedEvent = assertInstanceOf(WatchEvent.class,
+                    each.decode(MessageType.WATCH_EVENT, payload, 0, payload.length));
+            assertEquals(watch.getTraceId(), decodedEvent.getTraceId());
+            assertEquals(3, decodedEvent.getSequence());
+            assertEquals((1L << 40) + 2, decodedEvent.getRevision());
+            assertEquals(2, decodedEvent.getChanges().size());
+            ServiceChange removed = decodedEvent.getChanges().get(1);
+            assertEquals(ServiceChange.REMOVE, removed.getAction());
+            assertEquals("lamp.isOn", removed.getFunctionName());
+            assertEquals("host-2:9001", removed.getHost() + ":" + removed.getPort());
+        }
+    }
+
+    @Test
+    public void isSmallerThanJson() throws Exception {
+        RpcRequest request = new RpcRequest("toggle");
+        assertTrue(codec.encode(request).length * 3 < Codecs.JSON.encode(request).length);
+    }
+
+    @Test
+    public void rejectsTruncatedPayload() throws Exception {
+        byte[] payload = codec.encode(new RegisterRequest("toggle", "localhost", 9000));
+        assertThrows(Codec.CodecException.class,
+                () -> codec.decode(MessageType.REGISTER, payload, 0, payload.length - 3));
+    }
+
+    @Test
+    public void negotiatesByAdvertisedVersion() {
+        assertSame(Codecs.JSON, Codecs.negotiate("1.0", Codecs.BINARY));
+        assertSame(Codecs.JSON, Codecs.negotiate(null, Codecs.BINARY));
+        assertSame(Codecs.BINARY, Codecs.negotiate("2.0", Codecs.BINARY));
+        assertSame(Codecs.JSON, Codecs.negotiate("2.0", Codecs.JSON));
+    }
+
+    public static class Color {
+        public int red;
+        public int green;
+    }
+
+    private Message roundTrip(Message message) throws Exception {
+        byte[] payload = codec.encode(message);
+        return codec.decode(MessageType.fromName(message.getType()), payload, 0, payload.length);
+    }
+}
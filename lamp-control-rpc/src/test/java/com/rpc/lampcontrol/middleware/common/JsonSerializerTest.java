@@ -0,0 +1,70 @@
+package com.rpc.lampcontrol.middleware.common;
+
+import com.rpc.lampcontrol.middleware.protocol.LookupRequest;
+import com.rpc.lampcontrol.middleware.protocol.LookupResponse;
+import com.rpc.lampcontrol.middleware.protocol.Message;
+import com.rpc.lampcontrol.middleware.protocol.RegisterRequest;
+import com.rpc.lampcontrol.middleware.protocol.RpcRequest;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for polymorphic message decoding.
+ */
+public class JsonSerializerTest {
+
+    @Test
+    public void writesTypeFirst() throws Exception {
+        String json = JsonSerializer.serialize(new LookupRequest("toggle"));
+        assertTrue(json.startsWith("{\"type\":\"lookup\""), json);
+    }
+
+    @Test
+    public void roundTripsEveryMessageType() throws Exception {
+        RegisterRequest register = new RegisterRequest("toggle", "localhost", 9000);
+        RpcRequest request = new RpcRequest("toggle", List.of("a", 1));
+
+        RegisterRequest decodedRegister = assertInstanceOf(RegisterRequest.class,
+                JsonSerializer.deserialize(JsonSerializer.serialize(register)));
+        assertEquals("localhost", decodedRegister.getHost());
+        assertEquals(9000, decodedRegister.getPort());
+        assertEquals(register.getTraceId(), decodedRegister.getTraceId());
+
+        byte[] bytes = JsonSerializer.serializeToBytes(request);
+        RpcRequest decodedRequest = assertInstanceOf(RpcRequest.class,
+                JsonSerializer.deserialize(bytes, 0, bytes.length));
+        assertEquals("toggle", decodedRequest.getFunctionName());
+        assertEquals(List.of("a", 1), decodedRequest.getArguments());
+    }
+
+    @Test
+    public void decodesWhenTypeIsNotFirst() throws Exception {
+        String json = "{\"traceId\":\"t-1\",\"status\":\"success\",\"host\":\"h\",\"type\":\"lookupResponse\",\"port\":7}";
+        LookupResponse response = assertInstanceOf(LookupResponse.class, JsonSerializer.deserialize(json));
+        assertEquals("t-1", response.getTraceId());
+        assertEquals("h", response.getHost());
+        assertEquals(7, response.getPort());
+    }
+
+    @Test
+    public void decodesMessageWithOnlyType() throws Exception {
+        byte[] json = "{\"type\":\"lookup\"}".getBytes(StandardCharsets.UTF_8);
+        Message message = JsonSerializer.deserialize(json, 0, json.length);
+        assertInstanceOf(LookupRequest.class, message);
+    }
+
+    @Test
+    public void rejectsMissingOrUnknownType() {
+        assertThrows(JsonSerializer.SerializationException.class,
+                () -> JsonSerializer.deserialize("{\"functionName\":\"toggle\"}"));
+        assertThrows(JsonSerializer.SerializationException.class,
+                () -> JsonSerializer.deserialize("{\"type\":\"bogus\"}"));
+    }
+}
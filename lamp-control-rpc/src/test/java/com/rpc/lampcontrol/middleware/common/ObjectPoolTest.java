@@ -0,0 +1,44 @@
+package com.rpc.lampcontrol.middleware.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * Unit tests for the object pool.
+ */
+public class ObjectPoolTest {
+
+    @Test
+    public void reusesObjectsReleasedByOtherThreads() throws Exception {
+        ObjectPool<OutputBuffer> pool = new ObjectPool<>(4, OutputBuffer::new);
+        AtomicReference<OutputBuffer> released = new AtomicReference<>();
+        // Each message on a thread of its own, as with virtual threads
+        Thread thread = new Thread(() -> {
+            OutputBuffer buffer = pool.acquire();
+            released.set(buffer);
+            pool.release(buffer);
+        });
+        thread.start();
+        thread.join();
+
+        assertSame(released.get(), pool.acquire());
+    }
+
+    @Test
+    public void dropsObjectsBeyondItsIdleLimit() {
+        ObjectPool<OutputBuffer> pool = new ObjectPool<>(1, OutputBuffer::new);
+        OutputBuffer first = pool.acquire();
+        OutputBuffer second = pool.acquire();
+        pool.release(first);
+        pool.release(second);
+
+        assertSame(first, pool.acquire());
+        OutputBuffer created = pool.acquire();
+        assertNotSame(first, created);
+        assertNotSame(second, created);
+    }
+}
@@ -0,0 +1,64 @@
+package com.rpc.lampcontrol.middleware.common;
+
+import com.rpc.lampcontrol.middleware.protocol.MessageType;
+import com.rpc.lampcontrol.middleware.protocol.RpcRequest;
+import com.rpc.lampcontrol.middleware.transport.FrameFormat;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * Unit tests for encoding messages into a reusable buffer.
+ */
+public class OutputBufferTest {
+    private final OutputBuffer out = new OutputBuffer();
+
+    @Test
+    public void reusesItsArrayAndViewAcrossMessages() throws Exception {
+        Codecs.BINARY.encode(new RpcRequest("toggle"), out);
+        byte[] array = out.array();
+        ByteBuffer view = out.asByteBuffer();
+        assertEquals(out.size(), view.remaining());
+
+        out.reset();
+        Codecs.BINARY.encode(new RpcRequest("isOn"), out);
+        assertSame(array, out.array());
+        assertSame(view, out.asByteBuffer());
+        assertEquals(out.size(), view.remaining());
+    }
+
+    @Test
+    public void dropsAnArrayThatGrewForOneLargeMessage() {
+        out.write(new byte[100 * 1024], 0, 100 * 1024);
+        byte[] large = out.array();
+        out.reset();
+        assertNotSame(large, out.array());
+        assertEquals(0, out.size());
+    }
+
+    @Test
+    public void fillsTheFrameHeaderInPlaceBehindThePayload() throws Exception {
+        RpcRequest first = new RpcRequest("toggle");
+        RpcRequest second = new RpcRequest("isOn");
+        FrameFormat.encodeFrame(first, MessageType.REQUEST, Codecs.BINARY, out);
+        int firstEnd = out.size();
+        FrameFormat.encodeFrame(second, MessageType.REQUEST, Codecs.BINARY, out);
+
+        // Two frames back to back, each header giving the length of its own payload
+        int firstLength = FrameFormat.readPayloadLength(out.array(), 0);
+        assertEquals(firstEnd - FrameFormat.HEADER_SIZE, firstLength);
+        int secondLength = FrameFormat.readPayloadLength(out.array(), firstEnd);
+        assertEquals(out.size() - firstEnd - FrameFormat.HEADER_SIZE, secondLength);
+        assertEquals(MessageType.REQUEST.getCode(), out.array()[firstEnd + FrameFormat.TYPE_OFFSET]);
+
+        RpcRequest decoded = assertInstanceOf(RpcRequest.class, Codecs.BINARY.decode(MessageType.REQUEST,
+                out.array(), firstEnd + FrameFormat.HEADER_SIZE, secondLength));
+        assertEquals("isOn", decoded.getFunctionName());
+        assertEquals(second.getTraceId(), decoded.getTraceId());
+    }
+}
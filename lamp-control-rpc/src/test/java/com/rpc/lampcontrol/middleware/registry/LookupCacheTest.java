@@ -0,0 +1,128 @@
+package com.rpc.lampcontrol.middleware.registry;
+
+import com.rpc.lampcontrol.middleware.protocol.LookupResponse;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Unit tests for the client-side registry lookup cache.
+ */
+public class LookupCacheTest {
+    private final AtomicLong now = new AtomicLong();
+    private final AtomicInteger loads = new AtomicInteger();
+    // Refreshes run inline so the tests can observe them immediately
+    private final LookupCache cache = new LookupCache(1000, 100, now::get, Runnable::run);
+
+    private LookupResponse load(String functionName) {
+        loads.incrementAndGet();
+        return functionName.equals("missing")
+                ? LookupResponse.error("Function '" + functionName + "' not found")
+                : LookupResponse.success("host-" + loads.get(), 9000);
+    }
+
+    private void advanceMillis(long millis) {
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    @Test
+    public void servesFoundServicesUntilTheTtlExpires() throws Exception {
+        LookupResponse first = cache.get("toggle", this::load);
+        advanceMillis(500);
+        assertSame(first, cache.get("toggle", this::load));
+        assertEquals(1, loads.get());
+
+        advanceMillis(600);
+        assertEquals("host-2", cache.get("toggle", this::load).getHost());
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void cachesNotFoundForTheNegativeTtl() throws Exception {
+        assertFalse(cache.get("missing", this::load).isSuccess());
+        cache.get("missing", this::load);
+        assertEquals(1, loads.get());
+
+        advanceMillis(150);
+        cache.get("missing", this::load);
+        assertEquals(2, loads.get());
+        assertEquals(1, cache.getStats().getNegativeHits());
+    }
+
+    @Test
+    public void refreshesHotEntriesBeforeTheyExpire() throws Exception {
+        cache.get("toggle", this::load);
+        advanceMillis(800);
+        // Past the refresh point: the current entry is returned and replaced in the background
+        assertEquals("host-1", cache.get("toggle", this::load).getHost());
+        assertEquals("host-2", cache.get("toggle", this::load).getHost());
+
+        // Still valid past the first entry's expiry, and not yet due for its own refresh
+        advanceMillis(600);
+        assertEquals("host-2", cache.get("toggle", this::load).getHost());
+        assertEquals(1, cache.getStats().getRefreshes());
+        assertEquals(1, cache.getStats().getMisses());
+    }
+
+    @Test
+    public void answersOnlyFreshEntriesWithoutLoading() throws Exception {
+        assertNull(cache.getIfFresh("toggle", this::load));
+        assertEquals(0, loads.get());
+
+        cache.get("toggle", this::load);
+        assertEquals("host-1", cache.getIfFresh("toggle", this::load).getHost());
+        advanceMillis(1000);
+        assertNull(cache.getIfFresh("toggle", this::load));
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void invalidatesOnlyTheFailedEndpoint() throws Exception {
+        cache.get("toggle", this::load);
+        cache.invalidate("toggle", "other-host", 9000);
+        cache.get("toggle", this::load);
+        assertEquals(1, loads.get());
+
+        cache.invalidate("toggle", "host-1", 9000);
+        assertEquals("host-2", cache.get("toggle", this::load).getHost());
+        assertEquals(1, cache.getStats().getInvalidations());
+    }
+
+    @Test
+    public void doesNotCacheALookupThatAnInvalidationOvertook() throws Exception {
+        // The function is registered while its lookup is under way, after the registry answered
+        LookupCache.Loader overtaken = functionName -> {
+            LookupResponse response = load("missing");
+            cache.invalidate(functionName);
+            return response;
+        };
+        assertFalse(cache.get("toggle", overtaken).isSuccess());
+        assertEquals(0, cache.size());
+        assertEquals("host-2", cache.get("toggle", this::load).getHost());
+
+        // The same for a refresh ahead of expiry
+        advanceMillis(800);
+        cache.get("toggle", overtaken);
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void doesNotCacheRegistryErrors() {
+        LookupCache.Loader failing = functionName -> {
+            loads.incrementAndGet();
+            throw new RegistryClient.RegistryException("registry down", null);
+        };
+        assertThrows(RegistryClient.RegistryException.class, () -> cache.get("toggle", failing));
+        assertThrows(RegistryClient.RegistryException.class, () -> cache.get("toggle", failing));
+        assertEquals(2, loads.get());
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,76 @@
+package com.rpc.lampcontrol.middleware.registry;
+
+import com.rpc.lampcontrol.middleware.protocol.Endpoint;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for ejecting failing and slow endpoints.
+ */
+public class OutlierDetectorTest {
+    private final AtomicLong now = new AtomicLong();
+    private final OutlierDetector detector = new OutlierDetector(3, 5, 1000, now::get);
+    private final List<Endpoint> endpoints = List.of(new Endpoint("host-1", 9000), new Endpoint("host-2", 9000),
+            new Endpoint("host-3", 9000), new Endpoint("host-4", 9000));
+
+    private void advanceMillis(long millis) {
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    /** Gives every endpoint one interval of successful requests at the given latencies. */
+    private void interval(long... latenciesMs) {
+        for (int request = 0; request < 5; request++) {
+            for (int i = 0; i < endpoints.size(); i++) {
+                detector.recordSuccess(endpoints.get(i), TimeUnit.MILLISECONDS.toNanos(latenciesMs[i]));
+            }
+        }
+        advanceMillis(1000);
+    }
+
+    @Test
+    public void ejectsAfterConsecutiveFailuresWithGrowingBackoff() {
+        interval(1, 1, 1, 1);
+        Endpoint sick = endpoints.get(0);
+        for (int i = 0; i < 3; i++) {
+            detector.recordFailure(sick);
+        }
+        assertTrue(detector.isEjected(sick));
+        assertEquals(endpoints.subList(1, 4), detector.filter(endpoints));
+
+        advanceMillis(OutlierDetector.BASE_EJECTION_MS);
+        assertFalse(detector.isEjected(sick));
+        for (int i = 0; i < 3; i++) {
+            detector.recordFailure(sick);
+        }
+        // The second ejection lasts twice as long
+        advanceMillis(OutlierDetector.BASE_EJECTION_MS + 1000);
+        assertTrue(detector.isEjected(sick));
+        advanceMillis(OutlierDetector.BASE_EJECTION_MS);
+        assertFalse(detector.isEjected(sick));
+    }
+
+    @Test
+    public void ejectsALatencyOutlierButNeverMoreThanHalf() {
+        interval(2, 2, 3, 40);
+        interval(2, 2, 3, 40);
+        assertTrue(detector.isEjected(endpoints.get(3)));
+        assertFalse(detector.isEjected(endpoints.get(2)));
+
+        // With one of four ejected already, a second may go but not a third; and all ejected fails open
+        for (Endpoint endpoint : endpoints.subList(0, 3)) {
+            for (int i = 0; i < 3; i++) {
+                detector.recordFailure(endpoint);
+            }
+        }
+        assertEquals(2, endpoints.stream().filter(detector::isEjected).count());
+        List<Endpoint> down = List.of(endpoints.get(3));
+        assertEquals(down, detector.filter(down));
+    }
+}
@@ -0,0 +1,103 @@
+package com.rpc.lampcontrol.middleware.registry;
+
+import com.rpc.lampcontrol.middleware.common.Codecs;
+import com.rpc.lampcontrol.middleware.common.OutputBuffer;
+import com.rpc.lampcontrol.middleware.protocol.MessageType;
+import com.rpc.lampcontrol.middleware.protocol.PingRequest;
+import com.rpc.lampcontrol.middleware.protocol.PingResponse;
+import com.rpc.lampcontrol.middleware.protocol.WatchRequest;
+import com.rpc.lampcontrol.middleware.transport.ClientTransport;
+import com.rpc.lampcontrol.middleware.transport.FrameFormat;
+import com.rpc.lampcontrol.middleware.transport.SocketConnectionHandler;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for the registry server's watch streams.
+ */
+public class RegistryServerTest {
+    private final RegistryServer registry = new RegistryServer(0);
+
+    @AfterEach
+    public void stop() {
+        registry.stop();
+    }
+
+    /**
+     * Opens a connection that watches every function but never reads, so the events for it
+     * pile up in the registry's write queue.
+     */
+    private Socket stalledWatcher() throws Exception {
+        Socket socket = new Socket();
+        socket.setReceiveBufferSize(1024);
+        socket.connect(new InetSocketAddress("localhost", registry.getPort()));
+        OutputBuffer out = new OutputBuffer();
+        FrameFormat.encodeFrame(new WatchRequest("", true, 0), MessageType.WATCH, Codecs.BINARY, out);
+        socket.getOutputStream().write(out.array(), 0, out.size());
+        return socket;
+    }
+
+    @Test
+    public void answersPings() throws Exception {
+        registry.start();
+        try (SocketConnectionHandler connection = new ClientTransport().connect("localhost", registry.getPort())) {
+            PingRequest ping = new PingRequest();
+            connection.sendMessage(ping);
+            PingResponse response = connection.receiveMessage(PingResponse.class);
+            assertTrue(response.isSuccess());
+            assertEquals(ping.getTraceId(), response.getTraceId());
+        }
+    }
+
+    @Test
+    public void keepsServingWhileWatchersDisconnectDuringPublishing() throws Exception {
+        registry.start();
+        AtomicBoolean publishing = new AtomicBoolean(true);
+        List<Thread> publishers = new ArrayList<>();
+        for (int p = 0; p < 4; p++) {
+            int publisher = p;
+            Thread thread = new Thread(() -> {
+                try (RegistryClient client = new RegistryClient("localhost", registry.getPort())) {
+                    for (int i = 0; publishing.get(); i++) {
+                        client.registerService("lamp-" + publisher + "-" + (i % 200), "localhost", 9000 + i % 100);
+                    }
+                } catch (RegistryClient.RegistryException e) {
+                    // Checked below: a registry that stopped answering fails the last registration
+                }
+            });
+            thread.start();
+            publishers.add(thread);
+        }
+        try {
+            for (int round = 0; round < 30; round++) {
+                Socket watcher = stalledWatcher();
+                Thread.sleep(40 + round % 5 * 40);
+                // Reset rather than closed cleanly, so the registry's next write to it fails
+                watcher.setSoLinger(true, 0);
+                watcher.close();
+            }
+        } finally {
+            publishing.set(false);
+        }
+        for (Thread thread : publishers) {
+            thread.join(10_000);
+            assertFalse(thread.isAlive(), "a registration never returned");
+        }
+        try (RegistryClient client = new RegistryClient("localhost", registry.getPort())) {
+            assertTimeoutPreemptively(Duration.ofSeconds(10),
+                    () -> assertTrue(client.registerService("after", "localhost", 9000).isSuccess()));
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.rpc.lampcontrol.middleware.registry;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for recovering a durable registry.
+ */
+public class RegistryStoreTest {
+    @TempDir
+    Path directory;
+
+    private final AtomicLong now = new AtomicLong();
+
+    private ServiceRegistry reopen(ServiceRegistry previous) throws Exception {
+        if (previous != null) {
+            previous.close();
+        }
+        ServiceRegistry registry = new ServiceRegistry(now::get);
+        registry.open(directory);
+        return registry;
+    }
+
+    private void advanceMillis(ServiceRegistry registry, long millis) {
+        for (long elapsed = 0; elapsed < millis; elapsed += ServiceRegistry.LEASE_TICK_MS) {
+            now.addAndGet(TimeUnit.MILLISECONDS.toNanos(ServiceRegistry.LEASE_TICK_MS));
+            registry.expireLeases();
+        }
+    }
+
+    @Test
+    public void recoversRegistrationsAndLeasesFromTheLogAndSnapshot() throws Exception {
+        ServiceRegistry registry = reopen(null);
+        long lease = registry.grantLease(5000);
+        registry.registerService("toggle", "host-1", 9000, lease);
+        registry.registerService("isOn", "host-1", 9000, lease);
+        registry.registerService("permanent", "other", 9001);
+        registry.registerService("toggle", "host-2", 9000, registry.grantLease(1000));
+        advanceMillis(registry, 1100);
+        registry.snapshot();
+        registry.unregisterService("isOn");
+        registry.registerService("toggle", "host-3", 9000);
+        registry.awaitDurable();
+
+        registry = reopen(registry);
+        assertEquals(List.of("host-1:9000", "host-3:9000"), registry.lookupServices("toggle").stream()
+                .map(Object::toString).collect(Collectors.toList()));
+        assertNull(registry.lookupService("isOn"));
+        assertEquals("other", registry.lookupService("permanent").getHost());
+        assertEquals(1, registry.getLeaseCount());
+        // The lease survives with a fresh TTL, and new leases do not reuse its id
+        assertTrue(registry.renewLease(lease));
+        assertTrue(registry.grantLease(5000) > lease);
+        registry.close();
+    }
+
+    @Test
+    public void stopsRecoveryAtATornRecord() throws Exception {
+        ServiceRegistry registry = reopen(null);
+        registry.registerService("toggle", "host-1", 9000);
+        registry.registerService("isOn", "host-1", 9000);
+        registry.close();
+
+        // Corrupt the last record, as a crash in the middle of writing it would
+        Path segment;
+        try (Stream<Path> files = Files.list(directory)) {
+            segment = files.filter(path -> path.getFileName().toString().startsWith("wal-")).findFirst().orElseThrow();
+        }
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            long end = 16;
+            while (true) {
+                file.seek(end);
+                int length = file.readInt();
+                if (length == 0) {
+                    break;
+                }
+                end += 8 + length;
+            }
+            file.seek(end - 1);
+            file.write(0x5A);
+        }
+
+        registry = reopen(null);
+        assertEquals("host-1", registry.lookupService("toggle").getHost());
+        assertNull(registry.lookupService("isOn"));
+        // Appending resumes after the intact records
+        registry.registerService("isOn", "host-2", 9000);
+        registry = reopen(registry);
+        assertEquals("host-2", registry.lookupService("isOn").getHost());
+        registry.close();
+    }
+}
@@ -0,0 +1,211 @@
+package com.rpc.lampcontrol.middleware.registry;
+
+import com.rpc.lampcontrol.middleware.protocol.ServiceChange;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for registry leases, watches and replication.
+ */
+public class ServiceRegistryTest {
+    private final AtomicLong now = new AtomicLong();
+    private final ServiceRegistry registry = new ServiceRegistry(now::get);
+
+    private void advanceMillis(long millis) {
+        // Tick by tick, as the registry server's timer does
+        for (long elapsed = 0; elapsed < millis; elapsed += ServiceRegistry.LEASE_TICK_MS) {
+            now.addAndGet(TimeUnit.MILLISECONDS.toNanos(Math.min(ServiceRegistry.LEASE_TICK_MS, millis - elapsed)));
+            registry.expireLeases();
+        }
+    }
+
+    @Test
+    public void removesServicesOnceTheirLeaseExpires() {
+        long lease = registry.grantLease(5000);
+        registry.registerService("toggle", "host", 9000, lease);
+        registry.registerService("isOn", "host", 9000, lease);
+        registry.registerService("permanent", "other", 9001);
+
+        advanceMillis(4900);
+        assertNotNull(registry.lookupService("toggle"));
+        advanceMillis(200);
+        assertNull(registry.lookupService("toggle"));
+        assertNull(registry.lookupService("isOn"));
+        assertNotNull(registry.lookupService("permanent"));
+        assertEquals(0, registry.getLeaseCount());
+        assertFalse(registry.renewLease(lease));
+        assertThrows(IllegalArgumentException.class, () -> registry.registerService("toggle", "host", 9000, lease));
+    }
+
+    @Test
+    public void keepsEveryEndpointOfAFunction() {
+        long lease = registry.grantLease(2000);
+        registry.registerService("toggle", "host-1", 9000, lease);
+        registry.registerService("toggle", "host-2", 9000, registry.grantLease(60_000));
+        assertFalse(registry.registerService("toggle", "host-2", 9000));
+        assertEquals(2, registry.lookupServices("toggle").size());
+        assertEquals(1, registry.getServiceCount());
+
+        // Only the endpoint under the expired lease goes
+        advanceMillis(2100);
+        assertEquals(1, registry.lookupServices("toggle").size());
+        assertEquals("host-2", registry.lookupService("toggle").getHost());
+        assertTrue(registry.unregisterService("toggle", "host-2", 9000));
+        assertTrue(registry.lookupServices("toggle").isEmpty());
+    }
+
+    @Test
+    public void renewalsKeepTheLeaseAlive() {
+        long lease = registry.grantLease(2000);
+        registry.registerService("toggle", "host", 9000, lease);
+        for (int i = 0; i < 10; i++) {
+            advanceMillis(1500);
+            assertTrue(registry.renewLease(lease));
+        }
+        assertNotNull(registry.lookupService("toggle"));
+        advanceMillis(2100);
+        assertNull(registry.lookupService("toggle"));
+    }
+
+    @Test
+    public void expiresLeasesLongerThanOneTurnOfTheWheel() {
+        long lease = registry.grantLease(120_000);
+        registry.registerService("toggle", "host", 9000, lease);
+        advanceMillis(119_900);
+        assertNotNull(registry.lookupService("toggle"));
+        advanceMillis(200);
+        assertNull(registry.lookupService("toggle"));
+    }
+
+    @Test
+    public void keepsRegistrationsTakenOverByAnotherLease() {
+        long oldLease = registry.grantLease(2000);
+        registry.registerService("toggle", "old-host", 9000, oldLease);
+        advanceMillis(1000);
+        long newLease = registry.grantLease(2000);
+        registry.registerService("toggle", "new-host", 9000, newLease);
+
+        advanceMillis(1100);
+        assertEquals(1, registry.getLeaseCount());
+        assertEquals("new-host", registry.lookupService("toggle").getHost());
+    }
+
+    @Test
+    public void replaysMissedChangesOrSendsASnapshot() {
+        registry.registerService("toggle", "host-1", 9000);
+        long seen = registry.getRevision();
+        long lease = registry.grantLease(2000);
+        registry.registerService("toggle", "host-2", 9000, lease);
+        registry.registerService("isOn", "host-1", 9000);
+
+        List<ServiceChange> replayed = new ArrayList<>();
+        boolean[] reset = {true};
+        registry.watch(seen, (revision, isReset, changes) -> {
+            reset[0] = isReset;
+            replayed.addAll(changes);
+        });
+        assertFalse(reset[0]);
+        assertEquals(2, replayed.size());
+        assertEquals("host-2", replayed.get(0).getHost());
+        assertEquals(ServiceChange.ADD, replayed.get(1).getAction());
+
+        // Live changes follow, including expiry
+        advanceMillis(2100);
+        ServiceChange expired = replayed.get(replayed.size() - 1);
+        assertEquals(ServiceChange.REMOVE, expired.getAction());
+        assertEquals(registry.getRevision(), expired.getRevision());
+
+        // Unknown revisions, e.g. from before a restart, get a snapshot
+        List<ServiceChange> snapshot = new ArrayList<>();
+        registry.watch(1, (revision, isReset, changes) -> {
+            reset[0] = isReset;
+            snapshot.addAll(changes);
+        });
+        assertTrue(reset[0]);
+        assertEquals(2, snapshot.size());
+    }
+
+    @Test
+    public void replicaFollowsTheLeaderAtItsRevisions() {
+        ServiceRegistry replica = new ServiceRegistry(now::get);
+        replica.registerService("stale", "host-9", 9000);
+        registry.registerService("toggle", "host-1", 9000);
+        registry.watch(0, replica::replicate);
+
+        // The snapshot replaces whatever the replica had
+        assertNull(replica.lookupService("stale"));
+        assertEquals("host-1", replica.lookupService("toggle").getHost());
+        assertEquals(registry.getRevision(), replica.getRevision());
+
+        registry.registerService("toggle", "host-2", 9000, registry.grantLease(2000));
+        advanceMillis(2100);
+        registry.unregisterService("toggle", "host-1", 9000);
+        assertTrue(replica.lookupServices("toggle").isEmpty());
+        assertEquals(registry.getRevision(), replica.getRevision());
+
+        // A watcher of the replica can resume from a revision it saw on the leader
+        long seen = registry.getRevision();
+        registry.registerService("isOn", "host-1", 9000);
+        List<ServiceChange> replayed = new ArrayList<>();
+        replica.watch(seen, (revision, isReset, changes) -> {
+            assertFalse(isReset);
+            replayed.addAll(changes);
+        });
+        assertEquals(1, replayed.size());
+        assertEquals("isOn", replayed.get(0).getFunctionName());
+    }
+
+    @Test
+    public void replicaWaitsUntilItHasALeaderRevision() throws Exception {
+        ServiceRegistry replica = new ServiceRegistry(now::get);
+        ServiceRegistry.ChangeListener snapshot = replica::replicate;
+        registry.watch(0, snapshot);
+        registry.unwatch(snapshot);
+        long synced = replica.getRevision();
+
+        registry.registerService("toggle", "host-1", 9000);
+        long revision = registry.getRevision();
+        assertFalse(replica.awaitRevision(revision, 10));
+
+        Thread replication = new Thread(() -> registry.watch(synced, replica::replicate));
+        replication.start();
+        assertTrue(replica.awaitRevision(revision, 5000));
+        replication.join();
+        assertEquals("host-1", replica.lookupService("toggle").getHost());
+    }
+
+    @Test
+    public void listsAPrefixPageByPageAtOneRevision() throws Exception {
+        for (String name : List.of("building7/1/lamp/toggle", "building7/1/lamp/isOn", "building7/2/lamp/toggle",
+                "building70/1/lamp/toggle", "building6/1/lamp/toggle")) {
+            registry.registerService(name, "host", 9000);
+        }
+        ServiceRegistry.Listing first = registry.list("building7/", null, 2, 0);
+        assertEquals(List.of("building7/1/lamp/isOn", "building7/1/lamp/toggle"), List.copyOf(first.getServices().keySet()));
+        assertTrue(first.hasMore());
+
+        // Changes after the first page do not show in the later pages of the same listing
+        registry.unregisterService("building7/2/lamp/toggle");
+        registry.registerService("building7/3/lamp/toggle", "host", 9000);
+        ServiceRegistry.Listing second = registry.list("building7/", "building7/1/lamp/toggle", 2, first.getRevision());
+        assertEquals(List.of("building7/2/lamp/toggle"), List.copyOf(second.getServices().keySet()));
+        assertEquals("host", second.getServices().get("building7/2/lamp/toggle").get(0).getHost());
+        assertFalse(second.hasMore());
+
+        ServiceRegistry.Listing now = registry.list("building7/", "building7/1/lamp/toggle", 2, 0);
+        assertEquals(List.of("building7/3/lamp/toggle"), List.copyOf(now.getServices().keySet()));
+        assertThrows(ServiceRegistry.RevisionUnavailableException.class,
+                () -> registry.list("building7/", null, 2, registry.getRevision() + 1));
+    }
+}
@@ -0,0 +1,140 @@
+package com.rpc.lampcontrol.middleware.rpc;
+
+import com.rpc.lampcontrol.middleware.protocol.RpcRequest;
+import com.rpc.lampcontrol.middleware.registry.RegistryClient;
+import com.rpc.lampcontrol.middleware.registry.RegistryServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for invoking batches of calls end to end, from the client to one or more servers.
+ */
+public class BatchInvocationTest {
+    private final RegistryServer registry = new RegistryServer(0);
+    private final List<RpcServer> servers = new ArrayList<>();
+    private RpcClient client;
+
+    /** The functions under test, served under a name of their own by each server. */
+    public static class Lamp {
+        final String name;
+        final Set<String> threads = ConcurrentHashMap.newKeySet();
+
+        Lamp(String name) {
+            this.name = name;
+        }
+
+        public String echo(String text) {
+            return text;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        public void broken() {
+            throw new IllegalStateException("bulb is broken");
+        }
+
+        public int slowDouble(int value) throws InterruptedException {
+            threads.add(Thread.currentThread().getName());
+            Thread.sleep(20);
+            return value * 2;
+        }
+    }
+
+    @BeforeEach
+    public void start() throws Exception {
+        registry.start();
+        client = new RpcClient(new RegistryClient("localhost", registry.getPort()));
+    }
+
+    @AfterEach
+    public void stop() {
+        client.close();
+        servers.forEach(RpcServer::stop);
+        registry.stop();
+    }
+
+    private RpcServer startServer(Lamp lamp, String nameFunction) throws Exception {
+        RpcServer server = new RpcServer(0, "localhost", new RegistryClient("localhost", registry.getPort()));
+        servers.add(server);
+        server.start();
+        server.registerFunction("echo", lamp, "echo");
+        server.registerFunction("broken", lamp, "broken");
+        server.registerFunction("slowDouble", lamp, "slowDouble");
+        server.registerFunction(nameFunction, lamp, "name");
+        return server;
+    }
+
+    @Test
+    public void returnsEachResultOrErrorInTheOrderOfTheRequests() throws Exception {
+        startServer(new Lamp("a"), "nameA");
+        List<RpcRequest> requests = List.of(
+                new RpcRequest("echo", List.of("on")),
+                new RpcRequest("broken"),
+                new RpcRequest("echo", List.of("dim")),
+                new RpcRequest("missing"),
+                new RpcRequest("echo", List.of("off")));
+
+        List<BatchResult> results = client.invokeBatch(requests);
+
+        assertEquals(5, results.size());
+        assertEquals("on", results.get(0).getResultOrThrow());
+        assertFalse(results.get(1).isSuccess());
+        assertTrue(results.get(1).getError().getMessage().contains("bulb is broken"),
+                results.get(1).getError().getMessage());
+        assertEquals("dim", results.get(2).getResultOrThrow());
+        assertFalse(results.get(3).isSuccess());
+        assertTrue(results.get(3).getError().getMessage().contains("not found"),
+                results.get(3).getError().getMessage());
+        assertEquals("off", results.get(4).getResultOrThrow());
+    }
+
+    @Test
+    public void spreadsTheEntriesOfABatchOverSeveralWorkers() throws Exception {
+        Lamp lamp = new Lamp("a");
+        startServer(lamp, "nameA");
+        List<RpcRequest> requests = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            requests.add(new RpcRequest("slowDouble", List.of(i)));
+        }
+
+        List<BatchResult> results = client.invokeBatch(requests);
+
+        for (int i = 0; i < 40; i++) {
+            assertEquals(i * 2, ((Number) results.get(i).getResultOrThrow()).intValue());
+        }
+        assertTrue(lamp.threads.size() > 1, "ran on " + lamp.threads);
+        assertTrue(lamp.threads.stream().allMatch(thread -> thread.startsWith("server-worker-")), lamp.threads.toString());
+    }
+
+    @Test
+    public void sendsTheEntriesOfABatchToTheServersOfferingThem() throws Exception {
+        startServer(new Lamp("a"), "nameA");
+        startServer(new Lamp("b"), "nameB");
+        List<RpcRequest> requests = List.of(
+                new RpcRequest("nameA"),
+                new RpcRequest("nameB"),
+                new RpcRequest("echo", List.of("either")),
+                new RpcRequest("nameB"),
+                new RpcRequest("nameA"));
+
+        List<BatchResult> results = client.invokeBatch(requests);
+
+        assertEquals("a", results.get(0).getResultOrThrow());
+        assertEquals("b", results.get(1).getResultOrThrow());
+        assertEquals("either", results.get(2).getResultOrThrow());
+        assertEquals("b", results.get(3).getResultOrThrow());
+        assertEquals("a", results.get(4).getResultOrThrow());
+    }
+}
@@ -0,0 +1,71 @@
+package com.rpc.lampcontrol.middleware.rpc;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for adapting the concurrency limit to latency.
+ */
+public class ConcurrencyLimiterTest {
+    private final AtomicLong now = new AtomicLong();
+    private final ConcurrencyLimiter limiter = new ConcurrencyLimiter(20, 4, 1000, now::get);
+
+    /** Runs one window of invocations at the given latency, with the limit in use each time. */
+    private void saturatedWindow(long latencyMs) {
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(ConcurrencyLimiter.WINDOW_MS));
+        int samples = 0;
+        while (samples < ConcurrencyLimiter.WINDOW_SAMPLES) {
+            int acquired = 0;
+            while (limiter.tryAcquire()) {
+                acquired++;
+            }
+            for (int i = 0; i < acquired; i++) {
+                limiter.release(TimeUnit.MILLISECONDS.toNanos(latencyMs));
+            }
+            samples += acquired;
+        }
+    }
+
+    @Test
+    public void refusesBeyondTheLimitAndDoesNotGrowWhileIdle() {
+        for (int i = 0; i < 20; i++) {
+            assertTrue(limiter.tryAcquire());
+        }
+        assertFalse(limiter.tryAcquire());
+        assertEquals(1, limiter.getRejected());
+        for (int i = 0; i < 20; i++) {
+            limiter.release(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+
+        // One invocation at a time says nothing about a higher limit
+        for (int window = 0; window < 20; window++) {
+            now.addAndGet(TimeUnit.MILLISECONDS.toNanos(ConcurrencyLimiter.WINDOW_MS));
+            for (int i = 0; i < ConcurrencyLimiter.WINDOW_SAMPLES; i++) {
+                assertTrue(limiter.tryAcquire());
+                limiter.release(TimeUnit.MILLISECONDS.toNanos(10));
+            }
+        }
+        assertEquals(20, limiter.getLimit());
+    }
+
+    @Test
+    public void growsWhileLatencyHoldsAndShrinksOnceItRises() {
+        for (int window = 0; window < 20; window++) {
+            saturatedWindow(10);
+        }
+        int grown = limiter.getLimit();
+        assertTrue(grown > 30, "limit " + grown);
+
+        // Latency well beyond the tolerance shrinks the limit a little each window
+        for (int window = 0; window < 10; window++) {
+            saturatedWindow(40);
+        }
+        assertTrue(limiter.getLimit() < grown * 0.8, "limit " + limiter.getLimit() + " from " + grown);
+    }
+}
@@ -0,0 +1,154 @@
+package com.rpc.lampcontrol.middleware.rpc;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for calling functions through invokers, widening arguments the way reflection does.
+ */
+public class FunctionInvokerTest {
+
+    /** Called through generated classes, since both the class and its methods are public. */
+    public static class Lamp {
+        private int level = 7;
+
+        public int level() {
+            return level;
+        }
+
+        public void setLevel(int level) {
+            this.level = level;
+        }
+
+        public long scale(long value) {
+            return value * 2;
+        }
+
+        public double add(long a, double b) {
+            return a + b;
+        }
+
+        public String describe(int a, float b, short c) {
+            return a + "/" + b + "/" + c;
+        }
+
+        public double sum(long a, long b, double c, int d) {
+            return a + b + c + d;
+        }
+
+        public long sum(long a, long b, long c, long d, long e) {
+            return a + b + c + d + e;
+        }
+
+        public char initial(char c) {
+            return c;
+        }
+
+        public void fail() {
+            throw new IllegalStateException("bulb is out");
+        }
+    }
+
+    /** Called through method handles, since the class is not public. */
+    private static class HiddenLamp {
+        @SuppressWarnings("unused")
+        public double add(long a, double b) {
+            return a + b;
+        }
+    }
+
+    private final Lamp lamp = new Lamp();
+
+    private FunctionInvoker invoker(Object target, String name, Class<?>... parameterTypes) throws Exception {
+        return FunctionInvoker.create(target, target.getClass().getMethod(name, parameterTypes));
+    }
+
+    @Test
+    public void callsAFunctionWithoutArguments() throws Exception {
+        assertEquals(7, invoker(lamp, "level").invoke(List.of()));
+    }
+
+    @Test
+    public void returnsNullForVoidFunctions() throws Exception {
+        assertNull(invoker(lamp, "setLevel", int.class).invoke(List.of((short) 3)));
+        assertEquals(3, lamp.level());
+    }
+
+    @Test
+    public void widensOneArgument() throws Exception {
+        assertEquals(10L, invoker(lamp, "scale", long.class).invoke(List.of(5)));
+        assertEquals(10L, invoker(lamp, "scale", long.class).invoke(List.of((byte) 5)));
+    }
+
+    @Test
+    public void widensTwoArguments() throws Exception {
+        FunctionInvoker add = invoker(lamp, "add", long.class, double.class);
+        assertEquals(3.5, add.invoke(List.of(1, 2.5f)));
+        assertEquals(3.0, add.invoke(List.of((short) 1, 2L)));
+    }
+
+    @Test
+    public void widensThreeArguments() throws Exception {
+        FunctionInvoker describe = invoker(lamp, "describe", int.class, float.class, short.class);
+        assertEquals("1/2.0/3", describe.invoke(List.of((short) 1, 2, (byte) 3)));
+        assertEquals("65/2.0/3", describe.invoke(List.of('A', 2L, (short) 3)));
+    }
+
+    @Test
+    public void widensFourArguments() throws Exception {
+        FunctionInvoker sum = invoker(lamp, "sum", long.class, long.class, double.class, int.class);
+        assertEquals(10.0, sum.invoke(List.of((byte) 1, (short) 2, 3L, (short) 4)));
+    }
+
+    @Test
+    public void widensArgumentsBeyondTheSpecializedArities() throws Exception {
+        FunctionInvoker sum = invoker(lamp, "sum", long.class, long.class, long.class, long.class, long.class);
+        assertEquals(15L, sum.invoke(List.of(1, (short) 2, (byte) 3, 4L, 5)));
+    }
+
+    @Test
+    public void widensArgumentsForMethodsOfNonPublicClasses() throws Exception {
+        FunctionInvoker add = invoker(new HiddenLamp(), "add", long.class, double.class);
+        assertEquals(3.5, add.invoke(List.of(1, 2.5f)));
+    }
+
+    @Test
+    public void takesSingleCharacterStringsAsCharacters() throws Exception {
+        assertEquals('x', invoker(lamp, "initial", char.class).invoke(List.of("x")));
+    }
+
+    @Test
+    public void rejectsNarrowingAndMissingPrimitives() throws Exception {
+        FunctionInvoker scale = invoker(lamp, "scale", long.class);
+        assertThrows(IllegalArgumentException.class, () -> scale.invoke(List.of(2.5)));
+        assertThrows(IllegalArgumentException.class, () -> scale.invoke(Arrays.asList((Object) null)));
+        FunctionInvoker sum = invoker(lamp, "sum", long.class, long.class, long.class, long.class, long.class);
+        assertThrows(IllegalArgumentException.class, () -> sum.invoke(List.of(1, 2, 3, 4, 5.0)));
+        assertThrows(IllegalArgumentException.class, () -> scale.invoke(List.of(1, 2)));
+    }
+
+    @Test
+    public void reportsExceptionsFromTheFunctionItself() throws Exception {
+        InvocationTargetException e = assertThrows(InvocationTargetException.class,
+                () -> invoker(lamp, "fail").invoke(List.of()));
+        assertInstanceOf(IllegalStateException.class, e.getCause());
+    }
+
+    @Test
+    public void acceptsOnlyArgumentsThatFit() throws Exception {
+        FunctionInvoker add = invoker(lamp, "add", long.class, double.class);
+        assertTrue(add.accepts(List.of(1, 2), false));
+        assertFalse(add.accepts(List.of(1.5, 2), false));
+        assertFalse(add.accepts(List.of(1), false));
+    }
+}
@@ -0,0 +1,148 @@
+package com.rpc.lampcontrol.middleware.rpc;
+
+import com.rpc.lampcontrol.middleware.protocol.PingRequest;
+import com.rpc.lampcontrol.middleware.protocol.PingResponse;
+import com.rpc.lampcontrol.middleware.protocol.RpcRequest;
+import com.rpc.lampcontrol.middleware.registry.RegistryClient;
+import com.rpc.lampcontrol.middleware.registry.RegistryServer;
+import com.rpc.lampcontrol.middleware.transport.ClientTransport;
+import com.rpc.lampcontrol.middleware.transport.SocketConnectionHandler;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for invoking functions asynchronously, with timeouts and cancellation.
+ */
+public class RpcClientTest {
+    private final RegistryServer registry = new RegistryServer(0);
+    private final Lamp lamp = new Lamp();
+    private RpcServer server;
+    private RpcClient client;
+
+    /** The functions under test. */
+    public static class Lamp {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch cancelled = new CountDownLatch(1);
+
+        public String echo(String text) {
+            return text;
+        }
+
+        public void sleep(long ms) throws InterruptedException {
+            Thread.sleep(ms);
+        }
+
+        public void waitForCancel() throws InterruptedException {
+            started.countDown();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (System.nanoTime() - deadline < 0) {
+                if (RpcContext.current().isCancelled()) {
+                    cancelled.countDown();
+                    return;
+                }
+                Thread.sleep(5);
+            }
+        }
+    }
+
+    @BeforeEach
+    public void start() throws Exception {
+        registry.start();
+        server = new RpcServer(0, "localhost", new RegistryClient("localhost", registry.getPort()));
+        server.start();
+        server.registerFunction("echo", lamp, "echo");
+        server.registerFunction("sleep", lamp, "sleep");
+        server.registerFunction("waitForCancel", lamp, "waitForCancel");
+        client = new RpcClient(new RegistryClient("localhost", registry.getPort()));
+    }
+
+    @AfterEach
+    public void stop() {
+        client.close();
+        server.stop();
+        registry.stop();
+    }
+
+    @Test
+    public void completesWithTheResult() throws Exception {
+        CompletableFuture<Object> call = client.invokeAsync("echo", List.of("on"));
+        assertEquals("on", call.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void failsWithACallTimeoutWhenTheServerTakesTooLong() throws Exception {
+        long start = System.nanoTime();
+        CompletableFuture<Object> call = client.invokeAsync("sleep", List.of(2000), 200);
+        ExecutionException e = assertThrows(ExecutionException.class, () -> call.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(RpcClient.CallTimeoutException.class, e.getCause());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 2000);
+    }
+
+    @Test
+    public void keepsTheConnectionUsableAfterACallIsAbandoned() throws Exception {
+        CompletableFuture<Object> timedOut = client.invokeAsync("sleep", List.of(300), 50);
+        CompletableFuture<Object> cancelled = client.invokeAsync("sleep", List.of(300), 5000);
+        assertTrue(cancelled.cancel(true));
+        assertThrows(CancellationException.class, cancelled::join);
+        assertThrows(ExecutionException.class, () -> timedOut.get(5, TimeUnit.SECONDS));
+        // The late responses are dropped rather than taken for the answers to later calls
+        Thread.sleep(400);
+        assertEquals("still on", client.invokeAsync("echo", List.of("still on")).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void cancelsTheCallOnTheServer() throws Exception {
+        CompletableFuture<Object> call = client.invokeAsync("waitForCancel", List.of(), 10_000);
+        assertTrue(lamp.started.await(5, TimeUnit.SECONDS));
+        assertTrue(call.cancel(true));
+        assertThrows(CancellationException.class, call::join);
+        // The running function sees the cancellation through its context
+        assertTrue(lamp.cancelled.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void timesABatchFromBeforeItsConnectionIsOpen() throws Exception {
+        // A server whose accept queue is full: connecting to it hangs while the SYNs are retried
+        try (ServerSocket stuck = new ServerSocket(0, 1);
+             Socket first = new Socket("localhost", stuck.getLocalPort());
+             Socket second = new Socket("localhost", stuck.getLocalPort());
+             RegistryClient registryClient = new RegistryClient("localhost", registry.getPort())) {
+            registryClient.registerService("stuck", "localhost", stuck.getLocalPort());
+            long start = System.nanoTime();
+            List<BatchResult> results = client.invokeBatchAsync(List.of(new RpcRequest("stuck")), 300)
+                    .get(5, TimeUnit.SECONDS);
+            assertInstanceOf(RpcClient.CallTimeoutException.class, results.get(0).getError());
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+        }
+    }
+
+    @Test
+    public void answersHealthProbes() throws Exception {
+        try (SocketConnectionHandler connection = new ClientTransport().connect("localhost", server.getPort())) {
+            connection.sendMessage(new PingRequest());
+            assertTrue(connection.receiveMessage(PingResponse.class).isSuccess());
+        }
+    }
+
+    @Test
+    public void failsForAnUnknownFunction() {
+        CompletableFuture<Object> call = client.invokeAsync("dim", List.of());
+        ExecutionException e = assertThrows(ExecutionException.class, () -> call.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(RpcClient.RpcException.class, e.getCause());
+    }
+}
@@ -0,0 +1,202 @@
+package com.rpc.lampcontrol.middleware.rpc;
+
+import com.rpc.lampcontrol.middleware.protocol.Message;
+import com.rpc.lampcontrol.middleware.protocol.StreamEvent;
+import com.rpc.lampcontrol.middleware.registry.RegistryClient;
+import com.rpc.lampcontrol.middleware.registry.RegistryServer;
+import com.rpc.lampcontrol.middleware.transport.ConnectionHandler;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for delivering the changes published on a topic to its subscribers.
+ */
+public class TopicTest {
+    // Drains run right away on the publishing thread, so every test is deterministic
+    private final Topic topic = new Topic("lampState", Runnable::run);
+
+    /**
+     * A connection that records the events sent over it, and takes them without queueing only
+     * while it is marked writable.
+     */
+    private static class FakeConnection extends ConnectionHandler {
+        final List<String> sent = new ArrayList<>();
+        private final List<Runnable> writableTasks = new ArrayList<>();
+        private boolean writable = true;
+
+        void setWritable(boolean writable) {
+            this.writable = writable;
+            if (writable) {
+                List<Runnable> tasks = new ArrayList<>(writableTasks);
+                writableTasks.clear();
+                tasks.forEach(Runnable::run);
+            }
+        }
+
+        @Override
+        public void sendMessage(Message message) {
+            StreamEvent event = (StreamEvent) message;
+            sent.add(event.getKey() + "=" + event.getValue() + "#" + event.getSequence());
+        }
+
+        @Override
+        public boolean isWritable() {
+            return writable;
+        }
+
+        @Override
+        public void whenWritable(Runnable task) {
+            writableTasks.add(task);
+        }
+
+        @Override
+        public void setMessageListener(MessageListener listener) {
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public String getRemoteHost() {
+            return "localhost";
+        }
+
+        @Override
+        public int getRemotePort() {
+            return 9000;
+        }
+    }
+
+    @Test
+    public void sendsTheCurrentValuesThenEachChange() {
+        FakeConnection connection = new FakeConnection();
+        topic.publish("kitchen", "on");
+        topic.subscribe(connection, "sub-1");
+        topic.publish("kitchen", "off");
+        topic.publish("hall", "on");
+
+        assertEquals(List.of("kitchen=on#1", "kitchen=off#2", "hall=on#3"), connection.sent);
+    }
+
+    @Test
+    public void keepsOnlyTheNewestValuePerKeyForASlowSubscriber() {
+        FakeConnection connection = new FakeConnection();
+        topic.subscribe(connection, "sub-1");
+        connection.setWritable(false);
+        topic.publish("kitchen", "on");
+        topic.publish("hall", "on");
+        topic.publish("kitchen", "dim");
+        topic.publish("kitchen", "off");
+        topic.publish("hall", "off");
+        assertEquals(List.of(), connection.sent);
+
+        connection.setWritable(true);
+
+        // One event per key, in the order the keys first changed
+        assertEquals(List.of("kitchen=off#1", "hall=off#2"), connection.sent);
+    }
+
+    @Test
+    public void resumesOnceTheConnectionIsWritableAgain() {
+        FakeConnection connection = new FakeConnection();
+        topic.subscribe(connection, "sub-1");
+        topic.publish("kitchen", "on");
+        connection.setWritable(false);
+        topic.publish("kitchen", "off");
+        assertEquals(List.of("kitchen=on#1"), connection.sent);
+
+        connection.setWritable(true);
+        topic.publish("kitchen", "on");
+
+        assertEquals(List.of("kitchen=on#1", "kitchen=off#2", "kitchen=on#3"), connection.sent);
+    }
+
+    @Test
+    public void keepsASlowSubscriberFromDelayingOthers() {
+        FakeConnection slow = new FakeConnection();
+        FakeConnection fast = new FakeConnection();
+        topic.subscribe(slow, "sub-1");
+        topic.subscribe(fast, "sub-2");
+        slow.setWritable(false);
+        topic.publish("kitchen", "on");
+        topic.publish("kitchen", "off");
+
+        assertEquals(List.of(), slow.sent);
+        assertEquals(List.of("kitchen=on#1", "kitchen=off#2"), fast.sent);
+    }
+
+    @Test
+    public void stopsSendingAfterUnsubscribing() {
+        FakeConnection connection = new FakeConnection();
+        topic.subscribe(connection, "sub-1");
+        assertFalse(topic.unsubscribe(connection, "sub-2"));
+        assertTrue(topic.unsubscribe(connection, "sub-1"));
+        topic.publish("kitchen", "on");
+
+        assertEquals(List.of(), connection.sent);
+        assertEquals(0, topic.getSubscriberCount());
+        assertFalse(topic.hasSubscriber(connection));
+    }
+
+    @Test
+    public void dropsTheSubscriptionsOfAClosedConnection() {
+        FakeConnection closed = new FakeConnection();
+        FakeConnection open = new FakeConnection();
+        topic.subscribe(closed, "sub-1");
+        topic.subscribe(closed, "sub-2");
+        topic.subscribe(open, "sub-1");
+        // Values pending for a stalled subscriber are dropped with it
+        closed.setWritable(false);
+        topic.publish("kitchen", "on");
+        topic.removeConnection(closed);
+        closed.setWritable(true);
+
+        assertEquals(List.of(), closed.sent);
+        assertEquals(List.of("kitchen=on#1"), open.sent);
+        assertEquals(1, topic.getSubscriberCount());
+        assertFalse(topic.hasSubscriber(closed));
+    }
+
+    @Test
+    public void dropsTheSubscriptionWhenTheClientDisconnects() throws Exception {
+        RegistryServer registry = new RegistryServer(0);
+        registry.start();
+        RpcServer server = new RpcServer(0, "localhost", new RegistryClient("localhost", registry.getPort()));
+        try {
+            server.start();
+            Topic lampState = server.registerTopic("lampState");
+            lampState.publish("kitchen", "on");
+            CountDownLatch received = new CountDownLatch(1);
+            RpcClient client = new RpcClient(new RegistryClient("localhost", registry.getPort()));
+            client.subscribe("lampState", (key, value) -> received.countDown());
+            assertTrue(received.await(5, TimeUnit.SECONDS));
+            assertEquals(1, lampState.getSubscriberCount());
+
+            // Closes the connection without unsubscribing
+            client.close();
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (lampState.getSubscriberCount() > 0 && System.nanoTime() - deadline < 0) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, lampState.getSubscriberCount());
+        } finally {
+            server.stop();
+            registry.stop();
+        }
+    }
+}
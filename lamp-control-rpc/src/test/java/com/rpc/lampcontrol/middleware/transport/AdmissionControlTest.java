@@ -0,0 +1,66 @@
+package com.rpc.lampcontrol.middleware.transport;
+
+import com.rpc.lampcontrol.middleware.protocol.MessageType;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for rejecting and shedding messages under load.
+ */
+public class AdmissionControlTest {
+    private final AtomicLong now = new AtomicLong();
+    private final AdmissionControl control = new AdmissionControl(2, 5, 100, now::get);
+
+    private void advanceMillis(long millis) {
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    @Test
+    public void rejectsBeyondMaxPending() {
+        long first = control.admit();
+        assertTrue(control.admit() >= 0);
+        assertEquals(-1, control.admit());
+
+        assertTrue(control.start(first));
+        control.finish();
+        assertTrue(control.admit() >= 0);
+        assertEquals(1, control.getStats().getRejected());
+    }
+
+    @Test
+    public void shedsOnlyOnceTheQueueIsStanding() {
+        // A single burst may wait past the target, as the queue has not been busy for an interval yet
+        long burst = control.admit();
+        advanceMillis(50);
+        assertTrue(control.start(burst));
+        control.finish();
+
+        // Every message waits 20 ms and the queue never empties, so after an interval it is standing
+        long previous = control.admit();
+        for (int i = 1; i <= 6; i++) {
+            advanceMillis(20);
+            long next = control.admit();
+            assertEquals(i <= 5, control.start(previous));
+            control.finish();
+            previous = next;
+        }
+        assertEquals(1, control.getStats().getShed());
+    }
+
+    @Test
+    public void governsOnlyCallsAndHealthProbes() {
+        assertTrue(AdmissionControl.governs(MessageType.REQUEST));
+        assertTrue(AdmissionControl.governs(MessageType.BATCH_REQUEST));
+        assertTrue(AdmissionControl.governs(MessageType.PING));
+        assertFalse(AdmissionControl.governs(MessageType.HEARTBEAT));
+        assertFalse(AdmissionControl.governs(MessageType.CANCEL));
+        assertFalse(AdmissionControl.governs(MessageType.SUBSCRIBE));
+        assertFalse(AdmissionControl.governs(MessageType.UNSUBSCRIBE));
+    }
+}
@@ -0,0 +1,71 @@
+package com.rpc.lampcontrol.middleware.transport;
+
+import com.rpc.lampcontrol.middleware.protocol.Message;
+import com.rpc.lampcontrol.middleware.protocol.RpcRequest;
+import com.rpc.lampcontrol.middleware.protocol.RpcResponse;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Unit tests for retrying exchanges on pooled connections.
+ */
+public class ConnectionPoolTest {
+    private final AtomicInteger received = new AtomicInteger();
+    private final ServerTransport server = new ServerTransport(0);
+    private final ConnectionPool pool = new ConnectionPool(new ClientTransport());
+
+    @BeforeEach
+    public void startServer() throws Exception {
+        // Answers the first request; then, like a server shutting down, closes on every other one
+        server.start(connection -> connection.setMessageListener(new ConnectionHandler.MessageListener() {
+            @Override
+            public void onMessage(ConnectionHandler source, Message message) {
+                if (received.incrementAndGet() > 1) {
+                    source.close();
+                    return;
+                }
+                RpcResponse response = new RpcResponse();
+                response.setTraceId(message.getTraceId());
+                try {
+                    source.sendMessage(response);
+                } catch (ConnectionHandler.ConnectionException e) {
+                    source.close();
+                }
+            }
+        }));
+    }
+
+    @AfterEach
+    public void stop() {
+        pool.close();
+        server.stop();
+    }
+
+    private RpcResponse call(SocketConnectionHandler connection) throws ConnectionHandler.ConnectionException {
+        connection.sendMessage(new RpcRequest("toggle"));
+        return connection.receiveMessage(RpcResponse.class);
+    }
+
+    @Test
+    public void doesNotSendARequestAgainAfterTheServerGotIt() throws Exception {
+        pool.execute("localhost", server.getPort(), this::call);
+        assertThrows(ConnectionHandler.ConnectionClosedException.class, () ->
+                pool.execute("localhost", server.getPort(), this::call));
+        assertEquals(2, received.get());
+    }
+
+    @Test
+    public void sendsAnIdempotentRequestAgainOnAFreshConnection() throws Exception {
+        pool.execute("localhost", server.getPort(), this::call);
+        assertThrows(ConnectionHandler.ConnectionClosedException.class, () ->
+                pool.execute("localhost", server.getPort(), true, this::call));
+        // Retried once on a new connection, which this server closes as well
+        assertEquals(3, received.get());
+    }
+}
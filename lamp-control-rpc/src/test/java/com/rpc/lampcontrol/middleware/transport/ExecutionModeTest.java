@@ -0,0 +1,122 @@
+package com.rpc.lampcontrol.middleware.transport;
+
+import com.rpc.lampcontrol.middleware.protocol.Message;
+import com.rpc.lampcontrol.middleware.protocol.RpcRequest;
+import com.rpc.lampcontrol.middleware.protocol.RpcResponse;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for running message handling in each execution mode.
+ */
+public class ExecutionModeTest {
+    private static final int CALLS = 8;
+
+    private ServerTransport server;
+    private long waitMs = 5000;
+    // Counted down by every call in progress; a call answers once all are in progress at once
+    private final CountDownLatch inProgress = new CountDownLatch(CALLS);
+
+    @AfterEach
+    public void stop() {
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    /**
+     * Starts a server with a single pool thread whose handler blocks until {@link #CALLS}
+     * calls are in progress, then answers with the name of the thread it ran on. A call that
+     * gives up waiting answers with an error.
+     */
+    private void startBlockingServer(ExecutionMode mode) throws Exception {
+        server = new ServerTransport(0, 0, 1, 1, mode);
+        server.start(connection -> connection.setMessageListener(new ConnectionHandler.MessageListener() {
+            @Override
+            public void onMessage(ConnectionHandler source, Message message) {
+                inProgress.countDown();
+                RpcResponse response;
+                try {
+                    response = inProgress.await(waitMs, TimeUnit.MILLISECONDS)
+                            ? RpcResponse.success(Thread.currentThread().getName())
+                            : RpcResponse.error("not enough calls in progress at once");
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                response.setTraceId(message.getTraceId());
+                try {
+                    source.sendMessage(response);
+                } catch (ConnectionHandler.ConnectionException e) {
+                    source.close();
+                }
+            }
+        }));
+    }
+
+    /**
+     * Makes {@link #CALLS} calls at once, each on its own connection, and returns the responses.
+     */
+    private List<RpcResponse> callAtOnce() throws Exception {
+        ClientTransport client = new ClientTransport();
+        List<SocketConnectionHandler> connections = new ArrayList<>();
+        try {
+            for (int i = 0; i < CALLS; i++) {
+                SocketConnectionHandler connection = client.connect("localhost", server.getPort());
+                connections.add(connection);
+                connection.sendMessage(new RpcRequest("block"));
+            }
+            List<RpcResponse> responses = new ArrayList<>();
+            for (SocketConnectionHandler connection : connections) {
+                responses.add(connection.receiveMessage(RpcResponse.class));
+            }
+            return responses;
+        } finally {
+            connections.forEach(SocketConnectionHandler::close);
+        }
+    }
+
+    private void assertAllInProgressAtOnce(ExecutionMode mode) throws Exception {
+        startBlockingServer(mode);
+        for (RpcResponse response : callAtOnce()) {
+            assertTrue(response.isSuccess(), response.getErrorMessage());
+            assertTrue(((String) response.getResult()).startsWith("server-worker-"), (String) response.getResult());
+        }
+    }
+
+    @Test
+    public void queuesBlockingCallsBeyondThePoolSize() throws Exception {
+        waitMs = 100;
+        startBlockingServer(ExecutionMode.POOLED);
+        // The single pool thread runs one call at a time, so each gives up waiting for the
+        // others; only the last, started after all the rest, finds them all counted
+        List<RpcResponse> responses = callAtOnce();
+        assertEquals(CALLS - 1, responses.stream().filter(response -> !response.isSuccess()).count());
+    }
+
+    @Test
+    public void runsBlockingCallsOnPlatformThreadsOfTheirOwn() throws Exception {
+        assertAllInProgressAtOnce(ExecutionMode.PLATFORM);
+    }
+
+    @Test
+    public void runsBlockingCallsOnVirtualThreadsFromJava21() throws Exception {
+        if (Runtime.version().feature() >= 21) {
+            assertTrue(ExecutionMode.VIRTUAL.isSupported());
+            assertAllInProgressAtOnce(ExecutionMode.VIRTUAL);
+        } else {
+            assertFalse(ExecutionMode.VIRTUAL.isSupported());
+            assertThrows(IllegalStateException.class, () -> new ServerTransport(0, ExecutionMode.VIRTUAL));
+        }
+    }
+}
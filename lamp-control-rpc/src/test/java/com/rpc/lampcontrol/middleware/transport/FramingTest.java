@@ -0,0 +1,136 @@
+package com.rpc.lampcontrol.middleware.transport;
+
+import com.rpc.lampcontrol.middleware.common.Codecs;
+import com.rpc.lampcontrol.middleware.common.JsonSerializer;
+import com.rpc.lampcontrol.middleware.common.OutputBuffer;
+import com.rpc.lampcontrol.middleware.protocol.Message;
+import com.rpc.lampcontrol.middleware.protocol.MessageType;
+import com.rpc.lampcontrol.middleware.protocol.RpcRequest;
+import com.rpc.lampcontrol.middleware.protocol.RpcResponse;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for reading frames and JSON lines however the bytes arrive.
+ */
+public class FramingTest {
+    private final ServerTransport server = new ServerTransport(0);
+    private final BlockingQueue<Message> received = new LinkedBlockingQueue<>();
+
+    @BeforeEach
+    public void startServer() throws Exception {
+        // Records every message and answers it with its function name
+        server.start(connection -> connection.setMessageListener(new ConnectionHandler.MessageListener() {
+            @Override
+            public void onMessage(ConnectionHandler source, Message message) {
+                received.add(message);
+                RpcResponse response = RpcResponse.success(((RpcRequest) message).getFunctionName());
+                response.setTraceId(message.getTraceId());
+                try {
+                    source.sendMessage(response);
+                } catch (ConnectionHandler.ConnectionException e) {
+                    source.close();
+                }
+            }
+        }));
+    }
+
+    @AfterEach
+    public void stop() {
+        server.stop();
+    }
+
+    private static byte[] frame(String functionName) throws Exception {
+        OutputBuffer out = new OutputBuffer();
+        FrameFormat.encodeFrame(new RpcRequest(functionName, List.of(1, "two")), MessageType.REQUEST,
+                Codecs.BINARY, out);
+        return out.toByteArray();
+    }
+
+    private RpcRequest next() throws InterruptedException {
+        Message message = received.poll(5, TimeUnit.SECONDS);
+        assertNotNull(message, "no message received");
+        return assertInstanceOf(RpcRequest.class, message);
+    }
+
+    @Test
+    public void readsAFrameSplitAcrossManyReads() throws Exception {
+        byte[] frame = frame("toggle");
+        try (Socket socket = new Socket("localhost", server.getPort())) {
+            socket.setTcpNoDelay(true);
+            OutputStream out = socket.getOutputStream();
+            // Byte by byte through the header, so even the header arrives in pieces
+            for (int i = 0; i < frame.length; i++) {
+                out.write(frame[i]);
+                out.flush();
+                if (i < FrameFormat.HEADER_SIZE + 2) {
+                    Thread.sleep(2);
+                }
+            }
+            RpcRequest request = next();
+            assertEquals("toggle", request.getFunctionName());
+            assertEquals(List.of(1, "two"), request.getArguments());
+        }
+    }
+
+    @Test
+    public void readsSeveralFramesArrivingInOneWrite() throws Exception {
+        byte[] first = frame("first");
+        byte[] second = frame("second");
+        byte[] third = frame("third");
+        byte[] merged = new byte[first.length + second.length + third.length];
+        System.arraycopy(first, 0, merged, 0, first.length);
+        System.arraycopy(second, 0, merged, first.length, second.length);
+        System.arraycopy(third, 0, merged, first.length + second.length, third.length);
+        try (Socket socket = new Socket("localhost", server.getPort())) {
+            OutputStream out = socket.getOutputStream();
+            // The last frame is cut short; its rest follows in a later write
+            out.write(merged, 0, merged.length - 3);
+            out.flush();
+            Thread.sleep(50);
+            out.write(merged, merged.length - 3, 3);
+            out.flush();
+
+            // Handled on the worker pool, so in any order
+            List<String> names = List.of(next().getFunctionName(), next().getFunctionName(), next().getFunctionName());
+            assertTrue(names.containsAll(List.of("first", "second", "third")), names.toString());
+        }
+    }
+
+    @Test
+    public void fallsBackToJsonLinesForOldClients() throws Exception {
+        try (Socket socket = new Socket("localhost", server.getPort())) {
+            OutputStream out = socket.getOutputStream();
+            String line = JsonSerializer.serialize(new RpcRequest("legacy"));
+            byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+            // Split mid-line, and the newline comes on its own
+            out.write(bytes, 0, 5);
+            out.flush();
+            Thread.sleep(20);
+            out.write(bytes, 5, bytes.length - 5);
+            out.flush();
+            assertEquals("legacy", next().getFunctionName());
+
+            // Answered in the same form
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            RpcResponse response = JsonSerializer.deserialize(in.readLine(), RpcResponse.class);
+            assertEquals("legacy", response.getResult());
+        }
+    }
+}
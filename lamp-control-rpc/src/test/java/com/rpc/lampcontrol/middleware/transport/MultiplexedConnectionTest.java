@@ -0,0 +1,115 @@
+package com.rpc.lampcontrol.middleware.transport;
+
+import com.rpc.lampcontrol.middleware.protocol.Message;
+import com.rpc.lampcontrol.middleware.protocol.RpcRequest;
+import com.rpc.lampcontrol.middleware.protocol.RpcResponse;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Unit tests for sharing one connection between concurrent calls.
+ */
+public class MultiplexedConnectionTest {
+    private final ServerTransport server = new ServerTransport(0);
+    // Guarded by itself
+    private final List<RpcRequest> held = new ArrayList<>();
+
+    @AfterEach
+    public void stop() {
+        server.stop();
+    }
+
+    /**
+     * Starts a server that holds requests until it has {@code batch} of them, then answers
+     * them newest first, each with the name of the function it asked for.
+     */
+    private void startReversingServer(int batch) throws Exception {
+        server.start(connection -> connection.setMessageListener(new ConnectionHandler.MessageListener() {
+            @Override
+            public void onMessage(ConnectionHandler source, Message message) {
+                List<RpcRequest> answer;
+                synchronized (held) {
+                    held.add((RpcRequest) message);
+                    if (held.size() < batch) {
+                        return;
+                    }
+                    answer = new ArrayList<>(held);
+                    held.clear();
+                }
+                for (int i = answer.size() - 1; i >= 0; i--) {
+                    RpcResponse response = RpcResponse.success(answer.get(i).getFunctionName());
+                    response.setTraceId(answer.get(i).getTraceId());
+                    try {
+                        source.sendMessage(response);
+                    } catch (ConnectionHandler.ConnectionException e) {
+                        source.close();
+                    }
+                }
+            }
+        }));
+    }
+
+    private MultiplexedConnection connect() throws Exception {
+        ConnectionHandler connection = new ClientTransport()
+                .connectAsync("localhost", server.getPort()).get(5, TimeUnit.SECONDS);
+        return new MultiplexedConnection(connection);
+    }
+
+    private static Object result(CompletableFuture<Message> future) throws Exception {
+        return assertInstanceOf(RpcResponse.class, future.get(5, TimeUnit.SECONDS)).getResult();
+    }
+
+    @Test
+    public void matchesResponsesArrivingOutOfOrder() throws Exception {
+        startReversingServer(3);
+        try (MultiplexedConnection connection = connect()) {
+            CompletableFuture<Message> first = connection.send(new RpcRequest("first"));
+            CompletableFuture<Message> second = connection.send(new RpcRequest("second"));
+            assertFalse(first.isDone());
+            CompletableFuture<Message> third = connection.send(new RpcRequest("third"));
+
+            assertEquals("first", result(first));
+            assertEquals("second", result(second));
+            assertEquals("third", result(third));
+            assertEquals(0, connection.getInFlightCount());
+        }
+    }
+
+    @Test
+    public void discardsTheResponseOfACancelledCall() throws Exception {
+        startReversingServer(2);
+        try (MultiplexedConnection connection = connect()) {
+            RpcRequest request = new RpcRequest("abandoned");
+            CompletableFuture<Message> abandoned = connection.send(request);
+            connection.cancel(request.getTraceId());
+            CompletableFuture<Message> kept = connection.send(new RpcRequest("kept"));
+
+            // Both are answered, but the response to the abandoned call is dropped
+            assertEquals("kept", result(kept));
+            assertFalse(abandoned.isDone());
+            assertEquals(0, connection.getInFlightCount());
+        }
+    }
+
+    @Test
+    public void failsPendingCallsWhenTheConnectionCloses() throws Exception {
+        startReversingServer(2);
+        MultiplexedConnection connection = connect();
+        CompletableFuture<Message> pending = connection.send(new RpcRequest("pending"));
+        connection.close();
+        ExecutionException e = assertThrows(ExecutionException.class, () -> pending.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(ConnectionHandler.ConnectionClosedException.class, e.getCause());
+        assertFalse(connection.isOpen());
+    }
+}
@@ -0,0 +1,79 @@
+package com.rpc.lampcontrol.middleware.transport;
+
+import com.rpc.lampcontrol.middleware.protocol.Message;
+import com.rpc.lampcontrol.middleware.protocol.RpcRequest;
+import org.junit.jupiter.api.Test;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for the non-blocking connection handler.
+ */
+public class NioConnectionHandlerTest {
+
+    @Test
+    public void closesAConnectionWhosePeerStopsReading() throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            NioConnectionHandler connection = (NioConnectionHandler) new ClientTransport()
+                    .connectAsync("localhost", server.getLocalPort()).get(5, TimeUnit.SECONDS);
+            // Accepted but never read, so everything beyond the socket buffers is queued
+            try (Socket ignored = server.accept()) {
+                connection.setMaxQueuedBytes(1024 * 1024);
+                RpcRequest request = new RpcRequest("toggle", List.of("x".repeat(256 * 1024)));
+                assertThrows(ConnectionHandler.ConnectionClosedException.class, () -> {
+                    for (int i = 0; i < 1000; i++) {
+                        connection.sendMessage(request);
+                    }
+                });
+                assertFalse(connection.isOpen());
+            }
+        }
+    }
+
+    @Test
+    public void notifiesItsListenerOfACloseOutsideItsWriteLock() throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            NioConnectionHandler connection = (NioConnectionHandler) new ClientTransport()
+                    .connectAsync("localhost", server.getLocalPort()).get(5, TimeUnit.SECONDS);
+            CompletableFuture<Boolean> touchedFromAnotherThread = new CompletableFuture<>();
+            connection.setMessageListener(new ConnectionHandler.MessageListener() {
+                @Override
+                public void onMessage(ConnectionHandler source, Message message) {
+                }
+
+                @Override
+                public void onClose(ConnectionHandler source) {
+                    // Like a registry dropping its watches, which another thread may hold while
+                    // sending to this connection: that thread must not wait for this one
+                    try {
+                        CompletableFuture.supplyAsync(source::isWritable).get(2, TimeUnit.SECONDS);
+                        touchedFromAnotherThread.complete(true);
+                    } catch (TimeoutException e) {
+                        touchedFromAnotherThread.complete(false);
+                    } catch (Exception e) {
+                        touchedFromAnotherThread.completeExceptionally(e);
+                    }
+                }
+            });
+            try (Socket ignored = server.accept()) {
+                connection.setMaxQueuedBytes(1024 * 1024);
+                RpcRequest request = new RpcRequest("toggle", List.of("x".repeat(256 * 1024)));
+                assertThrows(ConnectionHandler.ConnectionClosedException.class, () -> {
+                    for (int i = 0; i < 1000; i++) {
+                        connection.sendMessage(request);
+                    }
+                });
+                assertTrue(touchedFromAnotherThread.get(5, TimeUnit.SECONDS));
+            }
+        }
+    }
+}
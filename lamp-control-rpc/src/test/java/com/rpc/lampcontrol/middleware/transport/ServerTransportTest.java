@@ -0,0 +1,118 @@
+package com.rpc.lampcontrol.middleware.transport;
+
+import com.rpc.lampcontrol.middleware.common.JsonSerializer;
+import com.rpc.lampcontrol.middleware.protocol.CancelRequest;
+import com.rpc.lampcontrol.middleware.protocol.Message;
+import com.rpc.lampcontrol.middleware.protocol.RpcRequest;
+import com.rpc.lampcontrol.middleware.protocol.RpcResponse;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for serving connections from event loops.
+ */
+public class ServerTransportTest {
+    private ServerTransport server;
+
+    @AfterEach
+    public void stop() {
+        server.stop();
+    }
+
+    /**
+     * Starts the server with a listener that answers every request with its function name.
+     */
+    private void startEchoServer(ServerTransport transport) throws Exception {
+        server = transport;
+        server.start(connection -> connection.setMessageListener(new ConnectionHandler.MessageListener() {
+            @Override
+            public void onMessage(ConnectionHandler source, Message message) {
+                RpcResponse response = RpcResponse.success(((RpcRequest) message).getFunctionName());
+                response.setTraceId(message.getTraceId());
+                try {
+                    source.sendMessage(response);
+                } catch (ConnectionHandler.ConnectionException e) {
+                    source.close();
+                }
+            }
+        }));
+    }
+
+    @Test
+    public void servesManyConnectionsFromOneIoThread() throws Exception {
+        startEchoServer(new ServerTransport(0, 0, 1, 4));
+        ClientTransport client = new ClientTransport();
+        List<SocketConnectionHandler> connections = new ArrayList<>();
+        try {
+            // All connected and sent to before any is read from; a thread per connection is not needed
+            for (int i = 0; i < 200; i++) {
+                SocketConnectionHandler connection = client.connect("localhost", server.getPort());
+                connections.add(connection);
+                connection.sendMessage(new RpcRequest("call-" + i));
+            }
+            for (int i = 0; i < connections.size(); i++) {
+                assertEquals("call-" + i, connections.get(i).receiveMessage(RpcResponse.class).getResult());
+            }
+        } finally {
+            connections.forEach(SocketConnectionHandler::close);
+        }
+    }
+
+    @Test
+    public void handlesRejectedLineJsonControlMessagesOnAWorker() throws Exception {
+        server = new ServerTransport(0, 0, 1, 2);
+        // Room for one message only, taken by a call that blocks until the cancellation arrives
+        server.setAdmissionControl(new AdmissionControl(1, 100, 100));
+        CountDownLatch blocking = new CountDownLatch(1);
+        CompletableFuture<String> cancelHandledOn = new CompletableFuture<>();
+        server.start(connection -> connection.setMessageListener(new ConnectionHandler.MessageListener() {
+            @Override
+            public void onMessage(ConnectionHandler source, Message message) {
+                if (message instanceof CancelRequest) {
+                    cancelHandledOn.complete(Thread.currentThread().getName());
+                    return;
+                }
+                blocking.countDown();
+                try {
+                    cancelHandledOn.get(5, TimeUnit.SECONDS);
+                } catch (Exception e) {
+                    // The test fails on the missing cancellation
+                }
+            }
+        }));
+        ClientTransport client = new ClientTransport();
+        try (SocketConnectionHandler caller = client.connect("localhost", server.getPort());
+             Socket socket = new Socket("localhost", server.getPort())) {
+            caller.sendMessage(new RpcRequest("block"));
+            assertTrue(blocking.await(5, TimeUnit.SECONDS));
+            // Line-delimited JSON, whose type the event loop only learns by decoding it
+            socket.getOutputStream().write(
+                    (JsonSerializer.serialize(new CancelRequest("call-1")) + "\n").getBytes(StandardCharsets.UTF_8));
+
+            assertTrue(cancelHandledOn.get(5, TimeUnit.SECONDS).startsWith("server-worker-"));
+        }
+    }
+
+    @Test
+    public void closesIdleConnections() throws Exception {
+        startEchoServer(new ServerTransport(0, 100, 1, 1));
+        try (Socket socket = new Socket("localhost", server.getPort())) {
+            socket.setSoTimeout(5000);
+            InputStream in = socket.getInputStream();
+            // The event loop checks for idle connections about once a second
+            assertEquals(-1, in.read());
+        }
+    }
+}